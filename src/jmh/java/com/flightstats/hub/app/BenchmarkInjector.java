@@ -0,0 +1,23 @@
+package com.flightstats.hub.app;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+
+/**
+ * Some hot path classes read singletons from {@link HubProvider} in static initializers.
+ * This provides those singletons for benchmarks which run outside of a hub.
+ */
+public class BenchmarkInjector {
+
+    public static synchronized void initialize() {
+        if (HubProvider.getInjector() == null) {
+            HubProvider.setInjector(Guice.createInjector(new AbstractModule() {
+                @Override
+                protected void configure() {
+                    bind(ObjectMapper.class).toInstance(HubBindings.objectMapper());
+                }
+            }));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.flightstats.hub.channel;
+
+import com.flightstats.hub.app.BenchmarkInjector;
+import com.flightstats.hub.dao.ChannelService;
+import com.flightstats.hub.model.Content;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.model.StreamResults;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.*;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams the zip and multipart bulk responses to a null output, reading the items from memory.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class BulkBuilderBenchmark {
+
+    private static final String CHANNEL = "benchmark";
+
+    @Param({"100", "1000"})
+    private int itemCount;
+
+    @Param({"1024", "16384"})
+    private int payloadBytes;
+
+    private final SortedMap<ContentKey, Content> items = new TreeMap<>();
+    private SortedSet<ContentKey> keys;
+    private ChannelService channelService;
+    private UriInfo uriInfo;
+
+    @Setup
+    public void setUp() {
+        BenchmarkInjector.initialize();
+        DateTime start = new DateTime(2018, 1, 1, 0, 0, DateTimeZone.UTC);
+        byte[] payload = new byte[payloadBytes];
+        for (int i = 0; i < itemCount; i++) {
+            ContentKey key = new ContentKey(start.plusMillis(i), "hash" + i);
+            items.put(key, Content.builder()
+                    .withContentKey(key)
+                    .withContentType("application/json")
+                    .withData(payload)
+                    .build());
+        }
+        keys = new TreeSet<>(items.keySet());
+        channelService = new ChannelService() {
+            @Override
+            public void get(StreamResults streamResults) {
+                for (ContentKey key : streamResults.getKeys()) {
+                    Content content = items.get(key);
+                    streamResults.getCallback().accept(Content.builder()
+                            .withContentKey(key)
+                            .withContentType(content.getContentType().get())
+                            .withData(content.getData())
+                            .build());
+                }
+            }
+        };
+        uriInfo = (UriInfo) Proxy.newProxyInstance(UriInfo.class.getClassLoader(), new Class<?>[]{UriInfo.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getBaseUriBuilder")) {
+                        return UriBuilder.fromUri("http://localhost/");
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    @Benchmark
+    public long zip() throws IOException {
+        return write(ZipBulkBuilder.build(keys, CHANNEL, channelService, false, builder -> {
+        }));
+    }
+
+    @Benchmark
+    public long multiPart() throws IOException {
+        return write(MultiPartBulkBuilder.build(keys, CHANNEL, channelService, uriInfo, builder -> {
+        }, false));
+    }
+
+    private long write(Response response) throws IOException {
+        CountingOutputStream output = new CountingOutputStream(new NullOutputStream());
+        ((StreamingOutput) response.getEntity()).write(output);
+        return output.getByteCount();
+    }
+}
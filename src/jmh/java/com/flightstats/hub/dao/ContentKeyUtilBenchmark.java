@@ -0,0 +1,57 @@
+package com.flightstats.hub.dao;
+
+import com.flightstats.hub.model.ChannelConfig;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.model.DirectionQuery;
+import com.flightstats.hub.util.TimeUtil;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class ContentKeyUtilBenchmark {
+
+    @Param({"1000", "10000"})
+    private int keyCount;
+
+    private final List<ContentKey> keys = new ArrayList<>();
+    private DirectionQuery nextQuery;
+    private DirectionQuery previousQuery;
+
+    @Setup
+    public void setUp() {
+        DateTime start = TimeUtil.now().minusHours(1);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add(new ContentKey(start.plusMillis(i * 100), "hash" + i));
+        }
+        ChannelConfig channelConfig = ChannelConfig.builder().name("benchmark").build();
+        ContentKey middle = keys.get(keyCount / 2);
+        nextQuery = DirectionQuery.builder()
+                .channelName("benchmark")
+                .channelConfig(channelConfig)
+                .startKey(middle)
+                .count(100)
+                .next(true)
+                .build();
+        previousQuery = nextQuery.withNext(false);
+    }
+
+    @Benchmark
+    public SortedSet<ContentKey> filterNext() {
+        return ContentKeyUtil.filter(keys, nextQuery);
+    }
+
+    @Benchmark
+    public SortedSet<ContentKey> filterPrevious() {
+        return ContentKeyUtil.filter(keys, previousQuery);
+    }
+}
@@ -0,0 +1,58 @@
+package com.flightstats.hub.dao;
+
+import com.flightstats.hub.model.Content;
+import com.flightstats.hub.model.ContentCodec;
+import com.flightstats.hub.model.ContentKey;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class ContentMarshallerBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    private int payloadBytes;
+
+    @Param({"NONE", "FAST", "MAX"})
+    private ContentCodec codec;
+
+    private final ContentKey key = new ContentKey();
+    private byte[] payload;
+    private byte[] marshalled;
+
+    @Setup
+    public void setUp() throws IOException {
+        payload = new byte[payloadBytes];
+        Random random = new Random(payloadBytes);
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) ('a' + random.nextInt(16));
+        }
+        marshalled = ContentMarshaller.toBytes(content());
+    }
+
+    private Content content() {
+        return Content.builder()
+                .withContentKey(key)
+                .withContentType("application/json")
+                .withData(payload)
+                .withCodec(codec)
+                .build();
+    }
+
+    @Benchmark
+    public byte[] toBytes() throws IOException {
+        return ContentMarshaller.toBytes(content());
+    }
+
+    @Benchmark
+    public byte[] toContent() throws IOException {
+        return ContentMarshaller.toContent(marshalled, key).getData();
+    }
+}
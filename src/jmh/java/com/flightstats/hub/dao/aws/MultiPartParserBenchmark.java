@@ -0,0 +1,59 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.model.BulkContent;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class MultiPartParserBenchmark {
+
+    private static final String BOUNDARY = "frontier";
+
+    @Param({"2", "8"})
+    private int bodyMB;
+
+    @Param({"4096", "262144"})
+    private int itemBytes;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(bodyMB * 31 + itemBytes);
+        byte[] item = new byte[itemBytes];
+        for (int i = 0; i < item.length; i++) {
+            item[i] = (byte) ('a' + random.nextInt(26));
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write("This is a message with multiple parts in MIME format.\r\n".getBytes());
+        while (output.size() < bodyMB * 1024 * 1024) {
+            output.write(("--" + BOUNDARY + "\r\n").getBytes());
+            output.write("Content-Type: text/plain\r\n\r\n".getBytes());
+            output.write(item);
+            output.write("\r\n".getBytes());
+        }
+        output.write(("--" + BOUNDARY + "--").getBytes());
+        body = output.toByteArray();
+    }
+
+    @Benchmark
+    public BulkContent parse() throws IOException {
+        BulkContent bulkContent = BulkContent.builder()
+                .stream(new ByteArrayInputStream(body))
+                .contentType("multipart/mixed; boundary=" + BOUNDARY)
+                .isNew(true)
+                .build();
+        new MultiPartParser(bulkContent).parse();
+        return bulkContent;
+    }
+}
@@ -0,0 +1,52 @@
+package com.flightstats.hub.model;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class ContentKeyBenchmark {
+
+    private static final int KEYS = 1024;
+
+    private final ContentKey[] keys = new ContentKey[KEYS];
+    private final String[] urls = new String[KEYS];
+    private int index;
+
+    @Setup
+    public void setUp() {
+        DateTime start = new DateTime(2018, 1, 1, 0, 0, DateTimeZone.UTC);
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = new ContentKey(start.plusMillis(i * 37 % 5000), "hash" + i);
+            urls[i] = keys[i].toUrl();
+        }
+    }
+
+    private int next() {
+        index = (index + 1) & (KEYS - 1);
+        return index;
+    }
+
+    @Benchmark
+    public Object fromUrl() {
+        return ContentKey.fromUrl(urls[next()]);
+    }
+
+    @Benchmark
+    public String toUrl() {
+        return keys[next()].toUrl();
+    }
+
+    @Benchmark
+    public int compareTo() {
+        int i = next();
+        return keys[i].compareTo(keys[(i * 31) & (KEYS - 1)]);
+    }
+}
@@ -0,0 +1,84 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.model.ContentKey;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs against a temp directory, so results depend on the file system of the machine.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class FileSpokeStoreBenchmark {
+
+    private static final int ITEMS = 1000;
+    private static final String CHANNEL = "benchmark";
+
+    @Param({"file", "segment"})
+    private String storage;
+
+    @Param({"true", "false"})
+    private String keyIndex;
+
+    @Param({"1024"})
+    private int payloadBytes;
+
+    private final DateTime minute = new DateTime(DateTimeZone.UTC).withSecondOfMinute(0).withMillisOfSecond(0);
+    private final String[] paths = new String[ITEMS];
+    private File directory;
+    private FileSpokeStore store;
+    private byte[] payload;
+    private String minutePath;
+    private long inserted;
+    private int index;
+
+    @Setup
+    public void setUp() throws Exception {
+        HubProperties.setProperty("spoke.keyIndex", keyIndex);
+        directory = Files.createTempDir();
+        store = "segment".equals(storage)
+                ? new SegmentSpokeStore(directory.getPath(), 60)
+                : new FileSpokeStore(directory.getPath(), 60);
+        store.awaitKeyIndex(60_000);
+        payload = new byte[payloadBytes];
+        for (int i = 0; i < ITEMS; i++) {
+            paths[i] = CHANNEL + "/" + new ContentKey(minute.plusMillis(i * 50), "hash" + i).toUrl();
+            store.insert(paths[i], payload);
+        }
+        minutePath = CHANNEL + "/" + minute.toString("yyyy/MM/dd/HH/mm");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public boolean insert() {
+        inserted++;
+        return store.insert("insert/" + new ContentKey(minute.plusMillis((int) (inserted / 10)), "h" + inserted).toUrl(), payload);
+    }
+
+    @Benchmark
+    public byte[] read() {
+        index = (index + 1) % ITEMS;
+        return store.read(paths[index]);
+    }
+
+    @Benchmark
+    public String keysInBucket() {
+        return store.readKeysInBucket(minutePath);
+    }
+}
@@ -48,6 +48,7 @@ class ClusterHubBindings extends AbstractModule {
                 .to(S3LargeContentDao.class).asEagerSingleton();
         bind(DynamoUtils.class).asEagerSingleton();
         bind(S3BatchManager.class).asEagerSingleton();
+        bind(S3BatchWriter.class).asEagerSingleton();
         bind(S3Verifier.class).asEagerSingleton();
         bind(AppUrlCheck.class).asEagerSingleton();
 
@@ -8,6 +8,7 @@ import com.flightstats.hub.channel.ChannelValidator;
 import com.flightstats.hub.cluster.*;
 import com.flightstats.hub.dao.ChannelService;
 import com.flightstats.hub.dao.ContentDao;
+import com.flightstats.hub.events.Broadcaster;
 import com.flightstats.hub.health.HubHealthCheck;
 import com.flightstats.hub.metrics.DelegatingMetricsService;
 import com.flightstats.hub.metrics.MetricsRunner;
@@ -17,6 +18,7 @@ import com.flightstats.hub.replication.ReplicationManager;
 import com.flightstats.hub.rest.*;
 import com.flightstats.hub.spoke.FileSpokeStore;
 import com.flightstats.hub.spoke.GCRunner;
+import com.flightstats.hub.spoke.SegmentSpokeStore;
 import com.flightstats.hub.spoke.SpokeClusterRegister;
 import com.flightstats.hub.spoke.SpokeFinalCheck;
 import com.flightstats.hub.spoke.SpokeReadContentDao;
@@ -165,6 +167,7 @@ public class HubBindings extends AbstractModule {
         bind(ChannelValidator.class).asEagerSingleton();
         bind(WebhookValidator.class).asEagerSingleton();
         bind(WebhookManager.class).asEagerSingleton();
+        bind(Broadcaster.class).asEagerSingleton();
         bind(LastContentPath.class).asEagerSingleton();
         bind(WatchManager.class).asEagerSingleton();
         bind(MetricsService.class).to(DelegatingMetricsService.class).asEagerSingleton();
@@ -186,15 +189,20 @@ public class HubBindings extends AbstractModule {
 
         bind(FileSpokeStore.class)
                 .annotatedWith(Names.named(SpokeStore.WRITE.name()))
-                .toInstance(new FileSpokeStore(
-                        HubProperties.getSpokePath(SpokeStore.WRITE),
-                        HubProperties.getSpokeTtlMinutes(SpokeStore.WRITE)));
+                .toInstance(buildFileSpokeStore(SpokeStore.WRITE));
 
         bind(FileSpokeStore.class)
                 .annotatedWith(Names.named(SpokeStore.READ.name()))
-                .toInstance(new FileSpokeStore(
-                        HubProperties.getSpokePath(SpokeStore.READ),
-                        HubProperties.getSpokeTtlMinutes(SpokeStore.READ)));
+                .toInstance(buildFileSpokeStore(SpokeStore.READ));
+    }
+
+    private static FileSpokeStore buildFileSpokeStore(SpokeStore spokeStore) {
+        String path = HubProperties.getSpokePath(spokeStore);
+        int ttlMinutes = HubProperties.getSpokeTtlMinutes(spokeStore);
+        if (HubProperties.isSpokeSegmentStorage()) {
+            return new SegmentSpokeStore(path, ttlMinutes);
+        }
+        return new FileSpokeStore(path, ttlMinutes);
     }
 
 }
@@ -53,6 +53,14 @@ public class HubProperties {
         return getProperty(property, getProperty(fallbackProperty, defaultPath));
     }
 
+    public static boolean isSpokeSegmentStorage() {
+        return "segment".equals(getProperty("spoke.storage", "file"));
+    }
+
+    public static boolean isS3BatchNative() {
+        return "native".equals(getProperty("s3.batch.pipeline", "webhook"));
+    }
+
     public static long getLargePayload() {
         return HubProperties.getProperty("app.large.payload.MB", 40) * 1024 * 1024;
     }
@@ -73,8 +81,8 @@ public class HubProperties {
         return getProperty("aws.signing_region", "us-east-1");
     }
 
-    public static int getS3WriteQueueSize() {
-        return getProperty("s3.writeQueueSize", 40000);
+    public static int getS3WriteQueueMaxMB() {
+        return getProperty("s3.writeQueue.maxMB", 1024);
     }
 
     public static int getS3WriteQueueThreads() {
@@ -45,6 +45,7 @@ public class ChannelValidator {
         validateDescription(config);
         validateTags(config);
         validateStorage(config);
+        validateCodec(config);
         if (config.isProtect()) {
             ensurePropertyNotBlank("Owner", config.getOwner());
         }
@@ -96,6 +97,12 @@ public class ChannelValidator {
         }
     }
 
+    private void validateCodec(ChannelConfig config) {
+        if (!config.isValidCodec()) {
+            throw new InvalidRequestException("{\"error\": \"Valid codec values are NONE, FAST and MAX\"}");
+        }
+    }
+
     private void validateTags(ChannelConfig request) {
         if (request.getTags().size() > 20) {
             throw new InvalidRequestException("{\"error\": \"Channels are limited to 20 tags\"}");
@@ -85,7 +85,7 @@ public class CuratorCluster implements Cluster {
     }
 
     public List<String> getWriteServers() {
-        List<String> servers = decommissionCluster.filter(getAllServers());
+        List<String> servers = getActiveServers();
         if (servers.size() <= WRITE_FACTOR) {
             return servers;
         } else {
@@ -94,6 +94,13 @@ public class CuratorCluster implements Cluster {
         }
     }
 
+    /**
+     * @return the servers which are not being decommissioned
+     */
+    public List<String> getActiveServers() {
+        return decommissionCluster.filter(getAllServers());
+    }
+
     @Override
     public Set<String> getAllServers() {
         Set<String> servers = new HashSet<>();
@@ -40,22 +40,32 @@ public class CuratorLock {
     }
 
     public boolean runWithLock(Lockable lockable, long time, TimeUnit timeUnit) {
+        if (tryLock(time, timeUnit)) {
+            singleThreadExecutor.submit(() -> {
+                try {
+                    lockable.takeLeadership(leadershipV2);
+                } catch (Exception e) {
+                    logger.warn("we lost the lock " + lockPath, e);
+                    leadershipV2.setLeadership(false);
+                } finally {
+                    release();
+                }
+            });
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Acquires the lock without a thread to work in, for callers which call unlock() when they are done.
+     */
+    public boolean tryLock(long time, TimeUnit timeUnit) {
         mutex = new InterProcessSemaphoreMutex(curator, lockPath);
         try {
             logger.debug("attempting acquire {}", lockPath);
             if (mutex.acquire(time, timeUnit)) {
                 leadershipV2.setLeadership(true);
                 logger.debug("acquired {} {}", lockPath, leadershipV2.hasLeadership());
-                singleThreadExecutor.submit(() -> {
-                    try {
-                        lockable.takeLeadership(leadershipV2);
-                    } catch (Exception e) {
-                        logger.warn("we lost the lock " + lockPath, e);
-                        leadershipV2.setLeadership(false);
-                    } finally {
-                        release();
-                    }
-                });
                 return true;
             } else {
                 logger.debug("unable to acquire {} ", lockPath);
@@ -69,6 +79,17 @@ public class CuratorLock {
         }
     }
 
+    public Leadership getLeadership() {
+        return leadershipV2;
+    }
+
+    public void unlock() {
+        stopWorking();
+        if (mutex != null) {
+            release();
+        }
+    }
+
     public void stopWorking() {
         leadershipV2.setLeadership(false);
     }
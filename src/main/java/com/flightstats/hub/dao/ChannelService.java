@@ -14,6 +14,7 @@ import com.flightstats.hub.model.*;
 import com.flightstats.hub.replication.ReplicationManager;
 import com.flightstats.hub.time.TimeService;
 import com.flightstats.hub.util.TimeUtil;
+import com.flightstats.hub.webhook.NewKeyNotifier;
 import com.flightstats.hub.webhook.TagWebhook;
 import com.google.common.base.Optional;
 import com.google.inject.Inject;
@@ -54,6 +55,8 @@ public class ChannelService {
     private TimeService timeService;
     @Inject
     private MetricsService metricsService;
+    @Inject
+    private NewKeyNotifier newKeyNotifier;
 
     public boolean channelExists(String channelName) {
         return channelConfigDao.exists(channelName);
@@ -115,6 +118,7 @@ public class ChannelService {
             Traces traces = ActiveTraces.getLocal();
             traces.add("ContentService.insert");
             try {
+                content.setCodec(channelConfig.getContentCodec());
                 content.packageStream();
                 checkZeroBytes(content, channelConfig);
                 traces.add("ContentService.insert marshalled");
@@ -122,6 +126,7 @@ public class ChannelService {
                 logger.trace("writing key {} to channel {}", key, channelName);
                 key = contentService.insert(channelName, content);
                 traces.add("ContentService.insert end", key);
+                newKeyNotifier.notify(channelName, key);
                 return key;
             } catch (ContentTooLargeException e) {
                 logger.info("content too large for channel " + channelName);
@@ -149,6 +154,7 @@ public class ChannelService {
             throw new InvalidRequestException(msg);
         }
         boolean insert = inFlightService.inFlight(() -> {
+            content.setCodec(channelConfig.getContentCodec());
             content.packageStream();
             checkZeroBytes(content, channelConfig);
             return contentService.historicalInsert(normalizedChannelName, content);
@@ -174,7 +180,11 @@ public class ChannelService {
         Collection<ContentKey> contentKeys = inFlightService.inFlight(() -> {
             MultiPartParser multiPartParser = new MultiPartParser(bulkContent);
             multiPartParser.parse();
-            return contentService.insert(bulkContent);
+            ContentCodec codec = getCachedChannelConfig(channel).getContentCodec();
+            bulkContent.getItems().forEach(item -> item.setCodec(codec));
+            Collection<ContentKey> keys = contentService.insert(bulkContent);
+            keys.stream().max(Comparator.naturalOrder()).ifPresent(key -> newKeyNotifier.notify(channel, key));
+            return keys;
         });
         metricsService.insert(channel, start, Insert.bulk, bulkContent.getItems().size(), bulkContent.getSize());
         return contentKeys;
@@ -4,24 +4,80 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.flightstats.hub.app.HubProperties;
-import com.flightstats.hub.exception.ContentTooLargeException;
+import com.flightstats.hub.exception.InvalidRequestException;
 import com.flightstats.hub.model.Content;
+import com.flightstats.hub.model.ContentCodec;
 import com.flightstats.hub.model.ContentKey;
 import com.google.common.io.ByteStreams;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.zip.Deflater;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.*;
 
+/**
+ * Items are stored in a container with a fixed header, followed by the payload:
+ * <pre>
+ * magic "HUBC" | version (1 byte) | codec (1 byte) | payload length (8 bytes) | content type length (2 bytes) | content type | payload
+ * </pre>
+ * The payload is compressed with the item's {@link ContentCodec}, unless the content type is already compressed,
+ * or compression does not make the payload smaller.
+ * Items written before the container existed are zips, and are still readable.
+ */
 public class ContentMarshaller {
 
     private static final ObjectMapper mapper = new ObjectMapper();
+    private static final byte[] MAGIC = {'H', 'U', 'B', 'C'};
+    private static final byte VERSION = 1;
+    private static final int HEADER_BYTES = MAGIC.length + 1 + 1 + 8 + 2;
+    private static final boolean writeContainer = HubProperties.getProperty("content.container.write", true);
 
     public static byte[] toBytes(Content content) throws IOException {
+        if (!writeContainer) {
+            return toZipBytes(content);
+        }
+        byte[] payload = ByteStreams.toByteArray(content.getStream());
+        content.setSize((long) payload.length);
+        byte[] contentType = content.getContentType().or("").getBytes(StandardCharsets.UTF_8);
+        if (contentType.length > 0xFFFF) {
+            throw new InvalidRequestException("content type is too long");
+        }
+        ContentCodec codec = content.getCodec() == null ? ContentCodec.fromName(null) : content.getCodec();
+        codec = codec.forContentType(content.getContentType());
+        byte[] body = payload;
+        if (codec != ContentCodec.NONE) {
+            body = deflate(payload, codec);
+            if (body.length >= payload.length) {
+                codec = ContentCodec.NONE;
+                body = payload;
+            }
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(HEADER_BYTES + contentType.length + body.length);
+        DataOutputStream output = new DataOutputStream(baos);
+        output.write(MAGIC);
+        output.writeByte(VERSION);
+        output.writeByte(codec.getId());
+        output.writeLong(payload.length);
+        output.writeShort(contentType.length);
+        output.write(contentType);
+        output.write(body);
+        output.flush();
+        return baos.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] payload, ContentCodec codec) throws IOException {
+        Deflater deflater = new Deflater(codec.getLevel());
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(payload.length / 2 + 64);
+            try (DeflaterOutputStream output = new DeflaterOutputStream(baos, deflater)) {
+                output.write(payload);
+            }
+            return baos.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] toZipBytes(Content content) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         ZipOutputStream zipOut = new ZipOutputStream(baos);
         zipOut.setLevel(Deflater.BEST_COMPRESSION);
@@ -45,6 +101,9 @@ public class ContentMarshaller {
     }
 
     public static Content toContent(byte[] read, ContentKey key) throws IOException {
+        if (isContainer(read)) {
+            return fromContainer(read, key);
+        }
         ZipInputStream zipStream = new ZipInputStream(new ByteArrayInputStream(read));
         zipStream.getNextEntry();
         byte[] bytes = ByteStreams.toByteArray(zipStream);
@@ -58,6 +117,42 @@ public class ContentMarshaller {
         return builder.withStream(zipStream).build();
     }
 
+    static boolean isContainer(byte[] read) {
+        if (read.length < HEADER_BYTES) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (read[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Content fromContainer(byte[] read, ContentKey key) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(read, MAGIC.length, HEADER_BYTES - MAGIC.length));
+        byte version = input.readByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported container version " + version + " for " + key);
+        }
+        ContentCodec codec = ContentCodec.fromId(input.readByte());
+        long size = input.readLong();
+        int typeLength = input.readUnsignedShort();
+        Content.Builder builder = Content.builder()
+                .withContentKey(key)
+                .withSize(size)
+                .withCodec(codec);
+        if (typeLength > 0) {
+            builder.withContentType(new String(read, HEADER_BYTES, typeLength, StandardCharsets.UTF_8));
+        }
+        int offset = HEADER_BYTES + typeLength;
+        InputStream body = new ByteArrayInputStream(read, offset, read.length - offset);
+        if (codec != ContentCodec.NONE) {
+            body = new InflaterInputStream(body);
+        }
+        return builder.withStream(body).build();
+    }
+
     public static void setMetaData(String metaData, Content.Builder builder) throws IOException {
         JsonNode jsonNode = mapper.readTree(metaData);
         if (jsonNode.has("contentType")) {
@@ -35,7 +35,7 @@ public class AwsConnectorFactory {
     public AmazonS3 getS3Client() throws IOException {
         logger.info("creating for  " + protocol + " " + s3Endpoint + " " + signingRegion);
         return AmazonS3ClientBuilder.standard()
-                .withClientConfiguration(getClientConfiguration("s3", true))
+                .withClientConfiguration(getClientConfiguration("s3", true, false))
                 .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(s3Endpoint, signingRegion))
                 .withCredentials(getAwsCredentials())
                 .build();
@@ -44,7 +44,7 @@ public class AwsConnectorFactory {
     public AmazonDynamoDB getDynamoClient() throws IOException {
         logger.info("creating for  " + protocol + " " + dynamoEndpoint + " " + signingRegion);
         return AmazonDynamoDBClientBuilder.standard()
-                .withClientConfiguration(getClientConfiguration("dynamo", false))
+                .withClientConfiguration(getClientConfiguration("dynamo", false, true))
                 .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(dynamoEndpoint, signingRegion))
                 .withCredentials(getAwsCredentials())
                 .build();
@@ -66,8 +66,11 @@ public class AwsConnectorFactory {
         }
     }
 
-    private ClientConfiguration getClientConfiguration(String name, boolean compress) {
-        RetryPolicy retryPolicy = new RetryPolicy(new HubRetryCondition(), new HubBackoffStrategy(), 6, true);
+    /**
+     * S3 throttling is retried by {@link S3Governor}, which can slow down and stay within the retry budget.
+     */
+    private ClientConfiguration getClientConfiguration(String name, boolean compress, boolean retryThrottling) {
+        RetryPolicy retryPolicy = new RetryPolicy(new HubRetryCondition(retryThrottling), new HubBackoffStrategy(), 6, true);
         ClientConfiguration configuration = new ClientConfiguration()
                 .withMaxConnections(HubProperties.getProperty(name + ".maxConnections", 50))
                 .withRetryPolicy(retryPolicy)
@@ -120,10 +123,19 @@ public class AwsConnectorFactory {
     static class HubRetryCondition implements RetryPolicy.RetryCondition {
 
         private final RetryPolicy.RetryCondition retryCondition = PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION;
+        private final boolean retryThrottling;
+
+        HubRetryCondition(boolean retryThrottling) {
+            this.retryThrottling = retryThrottling;
+        }
 
         @Override
         public boolean shouldRetry(AmazonWebServiceRequest originalRequest, AmazonClientException exception, int retriesAttempted) {
             logger.warn("exception {} from request {} attempts {}", exception, originalRequest, retriesAttempted);
+            if (!retryThrottling && exception instanceof AmazonServiceException
+                    && S3Governor.isThrottled((AmazonServiceException) exception)) {
+                return false;
+            }
             return retryCondition.shouldRetry(originalRequest, exception, retriesAttempted);
         }
 
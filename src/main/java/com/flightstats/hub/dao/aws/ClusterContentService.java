@@ -18,12 +18,12 @@ import com.google.common.util.concurrent.AbstractIdleService;
 import com.google.common.util.concurrent.AbstractScheduledService;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.name.Named;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
@@ -31,7 +31,6 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.function.Supplier;
 
 import static com.flightstats.hub.model.LargeContent.createIndex;
 import static com.flightstats.hub.model.LargeContent.fromIndex;
@@ -66,7 +65,11 @@ public class ClusterContentService implements ContentService {
     @Inject
     private S3WriteQueue s3WriteQueue;
     @Inject
+    private S3WriteBuffer s3WriteBuffer;
+    @Inject
     private HubUtils hubUtils;
+    @Inject
+    private Provider<S3BatchManager> s3BatchManager;
 
     private static final ExecutorService executorService = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("ClusterContentService-%d").build());
 
@@ -85,18 +88,17 @@ public class ClusterContentService implements ContentService {
         ContentKey key = spokeWriteContentDao.insert(channelName, spokeContent);
         ChannelConfig channel = channelService.getCachedChannelConfig(channelName);
         if (channel.isSingle() || channel.isBoth()) {
-            Supplier<Void> local = () -> {
-                s3SingleWrite(channelName, key, content.isForceWrite());
-                return null;
-            };
+            s3SingleWrite(channelName, spokeContent, content.isForceWrite());
         }
         return key;
     }
 
-    private void s3SingleWrite(String channelName, ContentKey key, boolean forceWrite) {
+    private void s3SingleWrite(String channelName, Content content, boolean forceWrite) {
+        ContentKey key = content.getContentKey().get();
         if (!forceWrite && dropSomeWrites && Math.random() > 0.5) {
             logger.debug("dropping {} {}", channelName, key);
         } else {
+            s3WriteBuffer.put(channelName, content);
             s3WriteQueue.add(new ChannelContentKey(channelName, key));
         }
     }
@@ -107,8 +109,8 @@ public class ClusterContentService implements ContentService {
         SortedSet<ContentKey> keys = spokeWriteContentDao.insert(bulkContent);
         ChannelConfig channel = channelService.getCachedChannelConfig(channelName);
         if (channel.isSingle() || channel.isBoth()) {
-            for (ContentKey key : keys) {
-                s3SingleWrite(channelName, key, false);
+            for (Content content : bulkContent.getItems()) {
+                s3SingleWrite(channelName, content, false);
             }
         }
         return keys;
@@ -157,15 +159,14 @@ public class ClusterContentService implements ContentService {
 
     private Content getFromS3BatchAndStoreInReadCache(String channelName, ContentKey key) {
         try {
-            Map<ContentKey, Content> map = s3BatchContentDao.readBatch(channelName, key);
-            Content content = map.get(key);
+            Content content = s3BatchContentDao.get(channelName, key);
             if (content == null) {
                 return null;
             }
             Content copy = Content.copy(content);
-            storeBatchInReadCache(channelName, map);
+            storeBatchInReadCache(channelName, Collections.singletonMap(key, content));
             return copy;
-        } catch (IOException e) {
+        } catch (Exception e) {
             logger.warn("unable to get batch from long term storage", e);
             return null;
         }
@@ -385,6 +386,7 @@ public class ClusterContentService implements ContentService {
         s3LargePayloadContentDao.delete(channelName);
         lastContentPath.delete(channelName, CHANNEL_LATEST_UPDATED);
         lastContentPath.delete(channelName, S3Verifier.LAST_SINGLE_VERIFIED);
+        lastContentPath.delete(channelName, S3BatchWriter.LAST_BATCH_WRITTEN);
         ChannelConfig channel = channelService.getCachedChannelConfig(channelName);
         if (!channel.isSingle()) {
             new S3Batch(channel, hubUtils).stop();
@@ -413,6 +415,8 @@ public class ClusterContentService implements ContentService {
             if (oldConfig != null && !oldConfig.isSingle()) {
                 new S3Batch(newConfig, hubUtils).stop();
             }
+        } else if (HubProperties.isS3BatchNative()) {
+            s3BatchManager.get().initializeNative(newConfig);
         } else {
             new S3Batch(newConfig, hubUtils).start();
         }
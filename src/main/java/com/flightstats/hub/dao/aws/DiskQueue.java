@@ -0,0 +1,314 @@
+package com.flightstats.hub.dao.aws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * DiskQueue is an append only queue of single line records, kept in segment files in a local directory.
+ * <p>
+ * Records are handed out in the order they were appended, and stay on disk until they are completed.
+ * The checkpoint file holds the sequence of the oldest record which is not complete, so records which were
+ * queued or in flight when the process stopped are handed out again after a restart.
+ * Segments are deleted once all of their records are complete.
+ */
+class DiskQueue {
+
+    private final static Logger logger = LoggerFactory.getLogger(DiskQueue.class);
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT = "checkpoint";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long segmentBytes;
+    private final boolean fsync;
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private final ConcurrentSkipListMap<Long, String> inFlight = new ConcurrentSkipListMap<>();
+
+    private FileChannel writer;
+    private long writerBytes;
+    private long totalBytes;
+    private long writeSeq;
+    private long readSeq;
+    private long checkpointSeq;
+    private SegmentReader reader;
+
+    DiskQueue(Path directory, long maxBytes, long segmentBytes, boolean fsync) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = segmentBytes;
+        this.fsync = fsync;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .forEach(path -> segments.put(getBaseSeq(path), path));
+        }
+        Path checkpointPath = directory.resolve(CHECKPOINT);
+        if (Files.exists(checkpointPath)) {
+            checkpointSeq = Long.parseLong(new String(Files.readAllBytes(checkpointPath), StandardCharsets.UTF_8).trim());
+        } else if (!segments.isEmpty()) {
+            checkpointSeq = segments.firstKey();
+        }
+        if (segments.isEmpty()) {
+            writeSeq = checkpointSeq;
+            roll();
+        } else {
+            Map.Entry<Long, Path> last = segments.lastEntry();
+            writeSeq = last.getKey() + truncatePartialRecord(last.getValue());
+            writer = FileChannel.open(last.getValue(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            writerBytes = writer.size();
+        }
+        checkpointSeq = Math.min(Math.max(checkpointSeq, segments.firstKey()), writeSeq);
+        readSeq = checkpointSeq;
+        for (Path path : segments.values()) {
+            totalBytes += Files.size(path);
+        }
+        deleteCompleteSegments();
+        logger.info("recovered {} records in {} segments from {}", getDepth(), segments.size(), directory);
+    }
+
+    /**
+     * A crash can leave the last record in the last segment partly written.
+     *
+     * @return the number of complete records in the segment
+     */
+    private long truncatePartialRecord(Path path) throws IOException {
+        long records = 0;
+        long end = 0;
+        long position = 0;
+        try (InputStream input = Files.newInputStream(path)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        records++;
+                        end = position + i + 1;
+                    }
+                }
+                position += read;
+            }
+        }
+        if (end < position) {
+            logger.warn("truncating partial record in {} from {} to {}", path, position, end);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(end);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return false if the queue has reached its maximum size
+     */
+    synchronized boolean append(String record) throws IOException {
+        if (record.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("records can not contain newlines " + record);
+        }
+        byte[] bytes = (record + "\n").getBytes(StandardCharsets.UTF_8);
+        if (totalBytes + bytes.length > maxBytes) {
+            return false;
+        }
+        if (writerBytes >= segmentBytes) {
+            roll();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            writer.write(buffer);
+        }
+        if (fsync) {
+            writer.force(false);
+        }
+        writerBytes += bytes.length;
+        totalBytes += bytes.length;
+        writeSeq++;
+        notifyAll();
+        return true;
+    }
+
+    private void roll() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+        Path path = directory.resolve(String.format("%020d", writeSeq) + SEGMENT_SUFFIX);
+        writer = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        writerBytes = writer.size();
+        segments.put(writeSeq, path);
+    }
+
+    /**
+     * Waits up to the timeout for the next record.  The caller must {@link #complete(Record)} it.
+     *
+     * @return the next record, or null if none was appended within the timeout
+     */
+    synchronized Record take(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (readSeq >= writeSeq) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        Map.Entry<Long, Path> segment = segments.floorEntry(readSeq);
+        if (reader == null || reader.baseSeq != segment.getKey()) {
+            if (reader != null) {
+                reader.close();
+            }
+            reader = new SegmentReader(segment.getKey(), segment.getValue());
+            for (long seq = segment.getKey(); seq < readSeq; seq++) {
+                reader.readLine();
+            }
+        }
+        Record record = new Record(readSeq, reader.readLine());
+        inFlight.put(record.seq, record.value);
+        readSeq++;
+        return record;
+    }
+
+    void complete(Record record) {
+        inFlight.remove(record.seq);
+    }
+
+    /**
+     * Saves the sequence of the oldest incomplete record, and deletes the segments before it.
+     */
+    synchronized void checkpoint() throws IOException {
+        long seq = getOldestSeq();
+        if (seq == checkpointSeq) {
+            return;
+        }
+        Path temp = directory.resolve(CHECKPOINT + ".tmp");
+        Files.write(temp, Long.toString(seq).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, directory.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        checkpointSeq = seq;
+        deleteCompleteSegments();
+    }
+
+    private void deleteCompleteSegments() throws IOException {
+        while (segments.size() > 1) {
+            Map.Entry<Long, Path> first = segments.firstEntry();
+            long nextBaseSeq = segments.higherKey(first.getKey());
+            if (nextBaseSeq > checkpointSeq || (reader != null && reader.baseSeq == first.getKey())) {
+                return;
+            }
+            totalBytes -= Files.size(first.getValue());
+            Files.delete(first.getValue());
+            segments.remove(first.getKey());
+            logger.debug("deleted segment {}", first.getValue());
+        }
+    }
+
+    private synchronized long getOldestSeq() {
+        return inFlight.isEmpty() ? readSeq : Math.min(readSeq, inFlight.firstKey());
+    }
+
+    /**
+     * @return the number of records which are not complete, including those in flight
+     */
+    synchronized long getDepth() {
+        return writeSeq - getOldestSeq();
+    }
+
+    synchronized long getBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return the oldest record in flight, or null
+     */
+    String getOldestInFlight() {
+        Map.Entry<Long, String> entry = inFlight.firstEntry();
+        return entry == null ? null : entry.getValue();
+    }
+
+    synchronized void close() throws IOException {
+        checkpoint();
+        writer.close();
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+
+    private static long getBaseSeq(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    static class Record {
+        private final long seq;
+        private final String value;
+
+        Record(long seq, String value) {
+            this.seq = seq;
+            this.value = value;
+        }
+
+        String getValue() {
+            return value;
+        }
+
+        public String toString() {
+            return seq + " " + value;
+        }
+    }
+
+    /**
+     * Reads records through a FileChannel, which sees records appended after the reader was opened.
+     */
+    private static class SegmentReader {
+        private final long baseSeq;
+        private final Path path;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+        SegmentReader(long baseSeq, Path path) throws IOException {
+            this.baseSeq = baseSeq;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            buffer.flip();
+        }
+
+        String readLine() throws IOException {
+            line.reset();
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    buffer.clear();
+                    int read = channel.read(buffer);
+                    buffer.flip();
+                    if (read <= 0) {
+                        throw new IOException("unexpected end of segment " + path);
+                    }
+                }
+                byte b = buffer.get();
+                if (b == '\n') {
+                    return new String(line.toByteArray(), StandardCharsets.UTF_8);
+                }
+                line.write(b);
+            }
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -11,6 +11,8 @@ import com.google.inject.Inject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -30,10 +32,18 @@ public class HubS3Client {
     @Inject
     private S3BucketName s3BucketName;
 
+    @Inject
+    private S3Governor governor;
+
     public HubS3Client(S3BucketName s3BucketName, AmazonS3 s3Client, MetricsService metricsService) {
+        this(s3BucketName, s3Client, metricsService, new S3Governor(metricsService, () -> 1));
+    }
+
+    HubS3Client(S3BucketName s3BucketName, AmazonS3 s3Client, MetricsService metricsService, S3Governor governor) {
         this.s3BucketName = s3BucketName;
         this.s3Client = s3Client;
         this.metricsService = metricsService;
+        this.governor = governor;
     }
 
     public HubS3Client() {
@@ -52,7 +62,7 @@ public class HubS3Client {
 
     InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
         try {
-            return s3Client.initiateMultipartUpload(request);
+            return governor.call(S3Governor.Operation.PUT, () -> s3Client.initiateMultipartUpload(request));
         } catch (SdkClientException e) {
             countError(e, request, "initiateMultipartUpload", Arrays.asList("bucket:" + request.getBucketName(), "key:" + request.getKey()));
             throw e;
@@ -61,7 +71,7 @@ public class HubS3Client {
 
     UploadPartResult uploadPart(UploadPartRequest request) {
         try {
-            return s3Client.uploadPart(request);
+            return governor.call(S3Governor.Operation.PUT, () -> s3Client.uploadPart(request), getRewind(request.getInputStream()));
         } catch (SdkClientException e) {
             countError(e, request, "uploadPart", Arrays.asList("bucket:" + request.getBucketName(), "key:" + request.getKey()));
             throw e;
@@ -70,7 +80,7 @@ public class HubS3Client {
 
     CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
         try {
-            return s3Client.completeMultipartUpload(request);
+            return governor.call(S3Governor.Operation.PUT, () -> s3Client.completeMultipartUpload(request));
         } catch (SdkClientException e) {
             countError(e, request, "completeMultipartUpload", Arrays.asList("bucket:" + request.getBucketName(), "key:" + request.getKey()));
             throw e;
@@ -79,7 +89,10 @@ public class HubS3Client {
 
     void abortMultipartUpload(AbortMultipartUploadRequest request) {
         try {
-            s3Client.abortMultipartUpload(request);
+            governor.call(S3Governor.Operation.DELETE, () -> {
+                s3Client.abortMultipartUpload(request);
+                return null;
+            });
         } catch (SdkClientException e) {
             countError(e, request, "abortMultipartUpload", Arrays.asList("bucket:" + request.getBucketName(), "key:" + request.getKey()));
             throw e;
@@ -88,7 +101,7 @@ public class HubS3Client {
 
     S3Object getObject(GetObjectRequest request) {
         try {
-            return s3Client.getObject(request);
+            return governor.call(S3Governor.Operation.GET, () -> s3Client.getObject(request));
         } catch (SdkClientException e) {
             countError(e, request, "getObject", Arrays.asList("bucket:" + request.getBucketName(), "key:" + request.getKey()));
             throw e;
@@ -97,7 +110,10 @@ public class HubS3Client {
 
     void deleteObject(DeleteObjectRequest request) {
         try {
-            s3Client.deleteObject(request);
+            governor.call(S3Governor.Operation.DELETE, () -> {
+                s3Client.deleteObject(request);
+                return null;
+            });
         } catch (SdkClientException e) {
             countError(e, request, "deleteObject", Arrays.asList("bucket:" + request.getBucketName(), "key:" + request.getKey()));
             throw e;
@@ -106,7 +122,7 @@ public class HubS3Client {
 
     DeleteObjectsResult deleteObjects(DeleteObjectsRequest request) {
         try {
-            return s3Client.deleteObjects(request);
+            return governor.call(S3Governor.Operation.DELETE, () -> s3Client.deleteObjects(request));
         } catch (SdkClientException e) {
             List<String> tags = new ArrayList<>();
             tags.add("bucket:" + request.getBucketName());
@@ -121,7 +137,7 @@ public class HubS3Client {
 
     ObjectListing listObjects(ListObjectsRequest request) {
         try {
-            return s3Client.listObjects(request);
+            return governor.call(S3Governor.Operation.LIST, () -> s3Client.listObjects(request));
         } catch (SdkClientException e) {
             countError(e, request, "listObjects", Arrays.asList("bucket:" + request.getBucketName(), "key:" + request.getPrefix()));
             throw e;
@@ -130,7 +146,7 @@ public class HubS3Client {
 
     PutObjectResult putObject(PutObjectRequest request) {
         try {
-            return s3Client.putObject(request);
+            return governor.call(S3Governor.Operation.PUT, () -> s3Client.putObject(request), getRewind(request.getInputStream()));
         } catch (SdkClientException e) {
             countError(e, request, "putObject", Arrays.asList("bucket:" + request.getBucketName(), "key:" + request.getKey()));
             throw e;
@@ -139,13 +155,36 @@ public class HubS3Client {
 
     void setBucketLifecycleConfiguration(SetBucketLifecycleConfigurationRequest request) {
         try {
-            s3Client.setBucketLifecycleConfiguration(request);
+            governor.call(S3Governor.Operation.PUT, () -> {
+                s3Client.setBucketLifecycleConfiguration(request);
+                return null;
+            });
         } catch (SdkClientException e) {
             countError(e, request, "setBucketLifecycleConfiguration", Collections.singletonList("bucket:" + request.getBucketName()));
             throw e;
         }
     }
 
+    /**
+     * Streams which support mark and reset can be sent again, others can not.
+     */
+    private static Runnable getRewind(InputStream stream) {
+        if (stream == null) {
+            return () -> {
+            };
+        }
+        if (!stream.markSupported()) {
+            return null;
+        }
+        return () -> {
+            try {
+                stream.reset();
+            } catch (IOException e) {
+                throw new SdkClientException("unable to reset request stream", e);
+            }
+        };
+    }
+
     S3ResponseMetadata getCachedResponseMetadata(AmazonWebServiceRequest request) {
         return s3Client.getCachedResponseMetadata(request);
     }
@@ -0,0 +1,39 @@
+package com.flightstats.hub.dao.aws;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.flightstats.hub.app.HubProvider;
+
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.Map;
+
+@Path("/internal/s3Delete")
+public class InternalS3DeleteResource {
+
+    private static final S3DeleteService s3DeleteService = HubProvider.getInstance(S3DeleteService.class);
+    private static final ObjectMapper mapper = HubProvider.getInstance(ObjectMapper.class);
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response get() {
+        ObjectNode root = mapper.createObjectNode();
+        for (Map.Entry<String, Map<String, String>> entry : s3DeleteService.getJobs().entrySet()) {
+            ObjectNode job = root.putObject(entry.getKey());
+            entry.getValue().forEach(job::put);
+        }
+        return Response.ok(root).build();
+    }
+
+    @DELETE
+    @Path("/{channel}")
+    public Response cancel(@PathParam("channel") String channel) {
+        s3DeleteService.cancel(channel);
+        return Response.accepted().build();
+    }
+}
@@ -30,6 +30,7 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
@@ -41,6 +42,7 @@ public class S3BatchContentDao implements ContentDao {
     private final static Logger logger = LoggerFactory.getLogger(S3BatchContentDao.class);
     private static final String BATCH_INDEX = "Batch/index/";
     private static final String BATCH_ITEMS = "Batch/items/";
+    private static final String OFFSETS = "offsets";
     private static final ObjectMapper mapper = new ObjectMapper();
 
     private final boolean useEncrypted = HubProperties.isAppEncrypted();
@@ -51,6 +53,13 @@ public class S3BatchContentDao implements ContentDao {
     private S3BucketName s3BucketName;
     @Inject
     private MetricsService metricsService;
+    @Inject
+    private S3QueryCache s3QueryCache;
+    @Inject
+    private S3FetchScheduler s3FetchScheduler;
+    @Inject
+    private S3DeleteService s3DeleteService;
+    private S3BatchRollup rollup;
 
     @Override
     public ContentKey insert(String channelName, Content content) throws Exception {
@@ -75,9 +84,45 @@ public class S3BatchContentDao implements ContentDao {
         }
     }
 
+    /**
+     * Batches with offsets in their index are read with a ranged get of the item's zip entry.
+     * Older batches, and batches without a readable index, are read whole.
+     */
     private Content getS3Object(String channel, ContentKey key) throws IOException {
         logger.trace("S3BatchContentDao.getS3Object {} {}", channel, key);
-        return readBatch(channel, key).get(key);
+        MinutePath minutePath = new MinutePath(key.getTime());
+        JsonNode index = getIndex(channel, minutePath, ActiveTraces.getLocal());
+        JsonNode range = index == null ? null : index.path(OFFSETS).get(key.toUrl());
+        if (range != null && range.size() == 2) {
+            Content content = getRange(channel, minutePath, key, range.get(0).asLong(), range.get(1).asLong());
+            if (content != null) {
+                return content;
+            }
+        }
+        return mapMinute(channel, minutePath).get(key);
+    }
+
+    private Content getRange(String channel, MinutePath minutePath, ContentKey key, long start, long end) throws IOException {
+        ActiveTraces.getLocal().add("S3BatchContentDao.getRange", key, start, end);
+        long time = System.currentTimeMillis();
+        GetObjectRequest request = new GetObjectRequest(s3BucketName.getS3BucketName(), getS3BatchItemsKey(channel, minutePath))
+                .withRange(start, end - 1);
+        try (S3Object object = s3Client.getObject(request);
+             ZipInputStream zipStream = new ZipInputStream(new BufferedInputStream(object.getObjectContent()))) {
+            ZipEntry entry = zipStream.getNextEntry();
+            if (entry == null || !entry.getName().equals(key.toUrl())) {
+                logger.warn("unexpected zip entry {} for {} {}", entry, channel, key);
+                return null;
+            }
+            return getContent(key, zipStream, entry);
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() != 404) {
+                logger.warn("AmazonS3Exception : unable to read range " + channel + " " + key, e);
+            }
+            return null;
+        } finally {
+            metricsService.time(channel, "s3.get", time, end - start, "type:batchRange");
+        }
     }
 
     @Override
@@ -199,17 +244,32 @@ public class S3BatchContentDao implements ContentDao {
             keys = new ContentKeySet(query.getCount(), query.getLimitKey());
         }
 
-        DateTime rounded = query.getUnit().round(query.getStartTime());
+        TimeUtil.Unit unit = query.getUnit();
+        DateTime rounded = unit.round(query.getStartTime());
         String channel = query.getChannelName();
-        traces.add("S3BatchContentDao.queryHourPlus starting ", channel, rounded, query.getUnit());
-        ListObjectsRequest request = new ListObjectsRequest()
-                .withBucketName(s3BucketName.getS3BucketName())
-                .withPrefix(channel + BATCH_INDEX + query.getUnit().format(rounded))
-                .withMaxKeys(s3MaxQueryItems);
-        SortedSet<MinutePath> minutePaths = listMinutePaths(channel, request, traces, true);
-        for (MinutePath minutePath : minutePaths) {
-            getKeysForMinute(channel, minutePath, keys, traces);
+        traces.add("S3BatchContentDao.queryHourPlus starting ", channel, rounded, unit);
+        S3BatchRollup.Rollup periodRollup = null;
+        if (unit.equals(TimeUtil.Unit.HOURS)) {
+            periodRollup = getRollup().getHour(channel, rounded, traces);
+        } else if (unit.equals(TimeUtil.Unit.DAYS)) {
+            periodRollup = getRollup().getDay(channel, rounded, traces);
+        }
+        if (periodRollup != null) {
+            keys.addAll(periodRollup.getKeys());
+            traces.add("S3BatchContentDao.queryHourPlus found rollup keys", keys);
+            return keys;
         }
+        SortedSet<MinutePath> minutePaths = listPeriod(channel, unit, rounded, traces);
+        String period = unit.format(rounded);
+        SortedSet<ContentKey> found = keys;
+        s3FetchScheduler.fetch(groupMinutes(minutePaths).iterator(), group -> readMinutes(channel, group, traces), minuteKeys -> {
+            for (ContentKey key : minuteKeys.keys) {
+                if (unit.format(key.getTime()).equals(period)) {
+                    found.add(key);
+                }
+            }
+            return true;
+        });
         traces.add("S3BatchContentDao.queryHourPlus found keys", keys);
         return keys;
     }
@@ -238,17 +298,86 @@ public class S3BatchContentDao implements ContentDao {
         });
     }
 
+    /**
+     * Groups the minutes which share a rollup, so each group can be read on its own.
+     */
+    private List<List<MinutePath>> groupMinutes(Collection<MinutePath> minutePaths) {
+        Map<DateTime, List<MinutePath>> groups = new LinkedHashMap<>();
+        for (MinutePath minutePath : minutePaths) {
+            groups.computeIfAbsent(getRollup().getBucket(minutePath.getTime()), bucket -> new ArrayList<>()).add(minutePath);
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    /**
+     * Adds the keys in each minute, or in the whole closed day or hour containing it, using a rollup.
+     * Once an hour has no rollup, its other minutes are read without looking for one.
+     */
+    private MinuteKeys readMinutes(String channel, List<MinutePath> minutePaths, Traces traces) {
+        SortedSet<ContentKey> keys = new TreeSet<>();
+        DateTime added = null;
+        DateTime noRollupBefore = null;
+        for (MinutePath minutePath : minutePaths) {
+            DateTime time = minutePath.getTime();
+            if (added != null && !time.isAfter(added)) {
+                continue;
+            }
+            S3BatchRollup.Rollup minuteRollup = null;
+            if (noRollupBefore == null || !time.isBefore(noRollupBefore)) {
+                minuteRollup = getRollup().find(channel, time, traces);
+                noRollupBefore = minuteRollup == null ? TimeUtil.Unit.HOURS.round(time).plusHours(1) : null;
+            }
+            if (minuteRollup == null) {
+                readMinuteKeys(channel, minutePath, traces, keys::add);
+                added = time;
+            } else {
+                keys.addAll(minuteRollup.getKeys());
+                added = minuteRollup.getLastMinute();
+            }
+        }
+        return new MinuteKeys(keys, added);
+    }
+
+    private void readMinuteKeys(String channel, MinutePath minutePath, Traces traces, Consumer<ContentKey> consumer) {
+        getKeysForMinute(channel, minutePath, traces, item -> consumer.accept(ContentKey.fromUrl(item.asText()).get()));
+    }
+
     private void getKeysForMinute(String channel, MinutePath minutePath, Traces traces, Consumer<JsonNode> itemNodeConsumer) {
-        long start = System.currentTimeMillis();
-        GetObjectRequest request = new GetObjectRequest(s3BucketName.getS3BucketName(), getS3BatchIndexKey(channel, minutePath));
-        try (S3Object object = s3Client.getObject(request)) {
-            byte[] bytes = ByteStreams.toByteArray(object.getObjectContent());
-            JsonNode root = mapper.readTree(bytes);
+        JsonNode root = getIndex(channel, minutePath, traces);
+        if (root != null) {
             JsonNode items = root.get("items");
             for (JsonNode item : items) {
                 itemNodeConsumer.accept(item);
             }
             traces.add("S3BatchContentDao.getKeysForMinute ", minutePath, items.size());
+        }
+    }
+
+    /**
+     * @return the minute's index, or null if there is none
+     */
+    private JsonNode getIndex(String channel, MinutePath minutePath, Traces traces) {
+        String cacheKey = "batch/index/" + minutePath.toUrl();
+        boolean immutable = s3QueryCache.isImmutable(channel, minutePath.getTime(), minutePath.getTime().plusMinutes(1));
+        if (immutable) {
+            byte[] cached = s3QueryCache.get(channel, cacheKey);
+            if (cached != null) {
+                try {
+                    return mapper.readTree(cached);
+                } catch (IOException e) {
+                    logger.warn("unable to parse cached index " + channel + " " + minutePath, e);
+                }
+            }
+        }
+        long start = System.currentTimeMillis();
+        GetObjectRequest request = new GetObjectRequest(s3BucketName.getS3BucketName(), getS3BatchIndexKey(channel, minutePath));
+        try (S3Object object = s3Client.getObject(request)) {
+            byte[] bytes = ByteStreams.toByteArray(object.getObjectContent());
+            JsonNode index = mapper.readTree(bytes);
+            if (immutable) {
+                s3QueryCache.put(channel, cacheKey, bytes);
+            }
+            return index;
         } catch (AmazonS3Exception e) {
             if (e.getStatusCode() != 404) {
                 logger.warn("unable to get index " + channel, minutePath, e);
@@ -262,6 +391,7 @@ public class S3BatchContentDao implements ContentDao {
         } finally {
             metricsService.time(channel, "s3.get", start, "type:batch");
         }
+        return null;
     }
 
     @Override
@@ -273,7 +403,7 @@ public class S3BatchContentDao implements ContentDao {
             if (query.isNext()) {
                 contentKeys = handleNext(query);
             } else {
-                contentKeys = S3Util.queryPrevious(query, this);
+                contentKeys = S3Util.queryPrevious(query, this, s3FetchScheduler);
             }
             traces.add("S3BatchContentDao.query completed", contentKeys);
         } catch (Exception e) {
@@ -297,27 +427,57 @@ public class S3BatchContentDao implements ContentDao {
                     .withMarker(channel + BATCH_INDEX + TimeUtil.Unit.MINUTES.format(markerTime))
                     .withMaxKeys(queryItems);
             SortedSet<MinutePath> paths = listMinutePaths(channel, request, traces, false);
-
+            DateTime covered = markerTime;
+            paths.removeIf(path -> !path.getTime().isAfter(covered));
             if (paths.isEmpty()) {
                 return keys;
             }
-            for (MinutePath path : paths) {
-                getKeysForMinute(channel, path, traces, item -> {
-                    ContentKey contentKey = ContentKey.fromUrl(item.asText()).get();
+            AtomicReference<DateTime> added = new AtomicReference<>(markerTime);
+            s3FetchScheduler.fetch(groupMinutes(paths).iterator(), group -> readMinutes(channel, group, traces), minuteKeys -> {
+                for (ContentKey contentKey : minuteKeys.keys) {
                     if (contentKey.compareTo(query.getStartKey()) > 0
                             && keys.size() < query.getCount()) {
                         keys.add(contentKey);
                     }
-                });
-                if (keys.size() >= query.getCount()) {
-                    break;
                 }
-                markerTime = path.getTime();
-            }
+                added.set(minuteKeys.lastMinute);
+                return keys.size() < query.getCount();
+            });
+            markerTime = added.get();
         } while (keys.size() < query.getCount() && markerTime.isBefore(endTime));
         return keys;
     }
 
+    /**
+     * Listings of immutable hours and days are cached.
+     */
+    private SortedSet<MinutePath> listPeriod(String channel, TimeUtil.Unit unit, DateTime rounded, Traces traces) {
+        String timePath = unit.format(rounded);
+        boolean immutable = !unit.equals(TimeUtil.Unit.MONTHS)
+                && s3QueryCache.isImmutable(channel, rounded, rounded.plus(unit.getDuration()));
+        String cacheKey = "batch/list/" + timePath;
+        if (immutable) {
+            byte[] cached = s3QueryCache.get(channel, cacheKey);
+            if (cached != null) {
+                SortedSet<MinutePath> paths = new TreeSet<>();
+                for (String url : StringUtils.split(new String(cached, StandardCharsets.UTF_8), '\n')) {
+                    paths.add(MinutePath.fromUrl(url).get());
+                }
+                return paths;
+            }
+        }
+        ListObjectsRequest request = new ListObjectsRequest()
+                .withBucketName(s3BucketName.getS3BucketName())
+                .withPrefix(channel + BATCH_INDEX + timePath)
+                .withMaxKeys(s3MaxQueryItems);
+        SortedSet<MinutePath> paths = listMinutePaths(channel, request, traces, true);
+        if (immutable) {
+            String value = paths.stream().map(MinutePath::toUrl).collect(Collectors.joining("\n"));
+            s3QueryCache.put(channel, cacheKey, value.getBytes(StandardCharsets.UTF_8));
+        }
+        return paths;
+    }
+
     private SortedSet<MinutePath> listMinutePaths(String channel, ListObjectsRequest request, Traces traces, boolean iterate) {
         SortedSet<MinutePath> paths = new TreeSet<>();
         traces.add("S3BatchContentDao.listMinutePaths ", request.getPrefix(), request.getMarker(), iterate);
@@ -344,8 +504,9 @@ public class S3BatchContentDao implements ContentDao {
     @Override
     public void deleteBefore(String channel, ContentKey limitKey) {
         try {
-            S3Util.delete(channel + BATCH_ITEMS, limitKey, s3BucketName.getS3BucketName(), s3Client);
-            S3Util.delete(channel + BATCH_INDEX, limitKey, s3BucketName.getS3BucketName(), s3Client);
+            for (String prefix : getPrefixes(channel)) {
+                s3DeleteService.deleteBefore(prefix, limitKey);
+            }
             logger.info("completed deleteBefore of " + channel);
         } catch (Exception e) {
             logger.warn("unable to delete " + channel + " in " + s3BucketName.getS3BucketName(), e);
@@ -354,13 +515,16 @@ public class S3BatchContentDao implements ContentDao {
 
     @Override
     public void delete(String channel) {
-        Traces traces = ActiveTraces.getLocal();
-        new Thread(() -> {
-            ContentKey limitKey = new ContentKey(TimeUtil.now().plusHours(1), "ZZZZZZ");
-            ActiveTraces.start("S3BatchContentDao.delete", traces, limitKey);
-            deleteBefore(channel, limitKey);
-            ActiveTraces.end();
-        }).start();
+        s3QueryCache.invalidate(channel);
+        ContentKey limitKey = new ContentKey(TimeUtil.now().plusHours(1), "ZZZZZZ");
+        for (String prefix : getPrefixes(channel)) {
+            s3DeleteService.delete(prefix, limitKey);
+        }
+    }
+
+    private static List<String> getPrefixes(String channel) {
+        return Arrays.asList(channel + BATCH_ITEMS, channel + BATCH_INDEX,
+                channel + S3BatchRollup.BATCH_HOURS, channel + S3BatchRollup.BATCH_DAYS);
     }
 
     @Override
@@ -379,7 +543,8 @@ public class S3BatchContentDao implements ContentDao {
         try {
             logger.debug("writing {} batch {} keys {} bytes {}", channel, path, keys.size(), bytes.length);
             writeBatchItems(channel, path, bytes);
-            writeBatchIndex(channel, path, keys);
+            writeBatchIndex(channel, path, keys, ZipDirectory.read(bytes));
+            getRollup().written(channel, path.getTime());
         } catch (Exception e) {
             logger.warn("unable to write batch to S3 " + channel + " " + path, e);
             throw e;
@@ -388,13 +553,21 @@ public class S3BatchContentDao implements ContentDao {
         }
     }
 
-    private void writeBatchIndex(String channel, ContentPath path, Collection<ContentKey> keys) {
+    /**
+     * The index lists the keys in the batch, and the byte range of each key's zip entry in offsets.
+     */
+    private void writeBatchIndex(String channel, ContentPath path, Collection<ContentKey> keys, Map<String, long[]> directory) {
         String batchIndexKey = getS3BatchIndexKey(channel, path);
         ObjectNode root = mapper.createObjectNode();
         root.put("id", path.toUrl());
         ArrayNode items = root.putArray("items");
+        ObjectNode offsets = root.putObject(OFFSETS);
         for (ContentKey key : keys) {
             items.add(key.toUrl());
+            long[] range = directory.get(key.toUrl());
+            if (range != null) {
+                offsets.putArray(key.toUrl()).add(range[0]).add(range[1]);
+            }
         }
         String index = root.toString();
         logger.trace("index is {} {}", batchIndexKey, index);
@@ -423,6 +596,21 @@ public class S3BatchContentDao implements ContentDao {
         }
     }
 
+    /**
+     * Builds the rollups of the written periods which have passed, without waiting for the schedule.
+     */
+    void buildRollups() {
+        getRollup().buildPending();
+    }
+
+    private synchronized S3BatchRollup getRollup() {
+        if (rollup == null) {
+            rollup = new S3BatchRollup(s3Client, s3BucketName.getS3BucketName(), metricsService, s3QueryCache,
+                    BATCH_INDEX, this::readMinuteKeys);
+        }
+        return rollup;
+    }
+
     private String getS3BatchItemsKey(String channel, ContentPath path) {
         return channel + BATCH_ITEMS + path.toUrl();
     }
@@ -431,4 +619,13 @@ public class S3BatchContentDao implements ContentDao {
         return channel + BATCH_INDEX + path.toUrl();
     }
 
+    private static class MinuteKeys {
+        private final SortedSet<ContentKey> keys;
+        private final DateTime lastMinute;
+
+        MinuteKeys(SortedSet<ContentKey> keys, DateTime lastMinute) {
+            this.keys = keys;
+            this.lastMinute = lastMinute;
+        }
+    }
 }
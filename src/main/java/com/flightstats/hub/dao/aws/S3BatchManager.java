@@ -1,5 +1,6 @@
 package com.flightstats.hub.dao.aws;
 
+import com.flightstats.hub.app.HubProperties;
 import com.flightstats.hub.app.HubServices;
 import com.flightstats.hub.dao.ChannelService;
 import com.flightstats.hub.model.ChannelConfig;
@@ -31,6 +32,8 @@ public class S3BatchManager {
     private HubUtils hubUtils;
     @Inject
     private ActiveWebhooks activeWebhooks;
+    @Inject
+    private S3BatchWriter s3BatchWriter;
 
     @Inject
     public S3BatchManager() {
@@ -64,6 +67,8 @@ public class S3BatchManager {
                     logger.debug("turning off batch webhook {}", channel.getDisplayName());
                     s3Batch.stop();
                 }
+            } else if (HubProperties.isS3BatchNative()) {
+                initializeNative(channel);
             } else {
                 logger.info("batching channel {}", channel.getDisplayName());
                 s3Batch.start();
@@ -76,4 +81,12 @@ public class S3BatchManager {
         }
     }
 
+    /**
+     * Hand the channel to the S3BatchWriter, starting from its S3Batch webhook's progress if it has any.
+     */
+    void initializeNative(ChannelConfig channel) {
+        S3Batch s3Batch = new S3Batch(channel, hubUtils);
+        s3BatchWriter.initialize(channel.getDisplayName(), webhookService.getLastCompleted(s3Batch.getGroupName()));
+    }
+
 }
@@ -0,0 +1,391 @@
+package com.flightstats.hub.dao.aws;
+
+import com.amazonaws.services.s3.model.*;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.metrics.MetricsService;
+import com.flightstats.hub.metrics.Traces;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.model.MinutePath;
+import com.flightstats.hub.util.TimeUtil;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * S3BatchRollup keeps a manifest of the keys in each hour and day of a batch channel, so queries over long
+ * ranges read one object per hour or day, instead of one index per minute.
+ * <p>
+ * A rollup is only built once its period ended more than s3.batch.rollup.minAgeMinutes ago.  Writing a minute
+ * marks its hour and day, which a background job builds once they have passed.  Reads never build rollups,
+ * and fall back to the minute indexes when one is missing.  Periods without items have no rollup.
+ * Writing a minute deletes the rollups which cover it, and a build lists its sources before and after writing
+ * the rollup, deleting the rollup if any source changed, so a late minute can not leave a stale rollup behind.
+ * <p>
+ * Rollups are named by the first minute of their period, so they are removed with the minute indexes.
+ */
+class S3BatchRollup {
+
+    private final static Logger logger = LoggerFactory.getLogger(S3BatchRollup.class);
+
+    static final String BATCH_HOURS = "Batch/hours/";
+    static final String BATCH_DAYS = "Batch/days/";
+    private static final String E_TAG = "eTag";
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final boolean enabled = HubProperties.getProperty("s3.batch.rollup.enabled", true);
+    private final int minAgeMinutes = HubProperties.getProperty("s3.batch.rollup.minAgeMinutes", 10);
+    private final boolean useEncrypted = HubProperties.isAppEncrypted();
+    private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("S3BatchRollup-%d").setDaemon(true).build());
+    private final Map<String, Set<DateTime>> pendingHours = new ConcurrentHashMap<>();
+    private final Map<String, Set<DateTime>> pendingDays = new ConcurrentHashMap<>();
+
+    private final HubS3Client s3Client;
+    private final String bucketName;
+    private final MetricsService metricsService;
+    private final S3QueryCache s3QueryCache;
+    private final String indexPrefix;
+    private final IndexReader indexReader;
+
+    /**
+     * Reads the keys of one minute index.
+     */
+    interface IndexReader {
+        void read(String channel, MinutePath minutePath, Traces traces, Consumer<ContentKey> consumer);
+    }
+
+    S3BatchRollup(HubS3Client s3Client, String bucketName, MetricsService metricsService, S3QueryCache s3QueryCache,
+                  String indexPrefix, IndexReader indexReader) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.metricsService = metricsService;
+        this.s3QueryCache = s3QueryCache;
+        this.indexPrefix = indexPrefix;
+        this.indexReader = indexReader;
+        if (enabled) {
+            executorService.scheduleWithFixedDelay(this::buildPending, 1, 1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * @return true if the period starting at start is old enough to have a rollup
+     */
+    boolean isClosed(DateTime start, TimeUtil.Unit unit) {
+        DateTime end = unit.round(start).plus(unit.getDuration());
+        return enabled && !end.isAfter(TimeUtil.now().minusMinutes(minAgeMinutes));
+    }
+
+    /**
+     * @return the start of the closed day or hour containing time, or the minute if its hour is still open
+     */
+    DateTime getBucket(DateTime time) {
+        if (isClosed(time, TimeUtil.Unit.DAYS)) {
+            return TimeUtil.Unit.DAYS.round(time);
+        }
+        if (isClosed(time, TimeUtil.Unit.HOURS)) {
+            return TimeUtil.Unit.HOURS.round(time);
+        }
+        return TimeUtil.Unit.MINUTES.round(time);
+    }
+
+    /**
+     * @return the rollup of the day containing time, or of the hour if the day has none, or null if neither has one
+     */
+    Rollup find(String channel, DateTime time, Traces traces) {
+        Rollup rollup = getDay(channel, time, traces);
+        if (rollup == null) {
+            rollup = getHour(channel, time, traces);
+        }
+        return rollup;
+    }
+
+    /**
+     * @return the keys in the hour, or null if the hour is open or has no rollup
+     */
+    Rollup getHour(String channel, DateTime time, Traces traces) {
+        DateTime hour = TimeUtil.Unit.HOURS.round(time);
+        if (!isClosed(hour, TimeUtil.Unit.HOURS)) {
+            return null;
+        }
+        return read(channel, hour, TimeUtil.Unit.HOURS, traces);
+    }
+
+    /**
+     * @return the keys in the day, or null if the day is open or has no rollup
+     */
+    Rollup getDay(String channel, DateTime time, Traces traces) {
+        DateTime day = TimeUtil.Unit.DAYS.round(time);
+        if (!isClosed(day, TimeUtil.Unit.DAYS)) {
+            return null;
+        }
+        return read(channel, day, TimeUtil.Unit.DAYS, traces);
+    }
+
+    /**
+     * Builds the marked hours, then the marked days, which have passed.
+     */
+    void buildPending() {
+        S3Governor.setPriority(S3Governor.Priority.BATCH);
+        build(pendingHours, TimeUtil.Unit.HOURS);
+        build(pendingDays, TimeUtil.Unit.DAYS);
+    }
+
+    private void build(Map<String, Set<DateTime>> pending, TimeUtil.Unit unit) {
+        for (Map.Entry<String, Set<DateTime>> entry : pending.entrySet()) {
+            String channel = entry.getKey();
+            for (DateTime start : entry.getValue()) {
+                if (!isClosed(start, unit) || !entry.getValue().remove(start)) {
+                    continue;
+                }
+                try {
+                    Traces traces = new Traces(channel, start);
+                    if (unit == TimeUtil.Unit.HOURS) {
+                        buildHour(channel, start, traces);
+                    } else {
+                        buildDay(channel, start, traces);
+                    }
+                } catch (Exception e) {
+                    logger.warn("unable to roll up " + channel + " " + start, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The hour is built from the minute indexes, which are listed again afterwards to detect a concurrent write.
+     */
+    private Rollup buildHour(String channel, DateTime hour, Traces traces) {
+        long start = System.currentTimeMillis();
+        String prefix = channel + indexPrefix + TimeUtil.Unit.HOURS.format(hour) + "/";
+        Map<String, String> before = listETags(prefix);
+        SortedSet<ContentKey> keys = new TreeSet<>();
+        for (String s3Key : before.keySet()) {
+            Optional<MinutePath> minutePath = MinutePath.fromUrl(StringUtils.substringAfter(s3Key, channel + indexPrefix));
+            if (minutePath.isPresent()) {
+                indexReader.read(channel, minutePath.get(), traces, keys::add);
+            }
+        }
+        if (keys.isEmpty()) {
+            return null;
+        }
+        Rollup rollup = write(channel, hour, TimeUtil.Unit.HOURS, keys);
+        rollup = verify(channel, rollup, before.equals(listETags(prefix)));
+        metricsService.time(channel, "s3.batch.rollup", start, "unit:hour");
+        traces.add("S3BatchRollup.buildHour", channel, hour, keys.size());
+        return rollup;
+    }
+
+    /**
+     * The day is built from the rollups of its hours with minute indexes, building any which are missing.
+     * The minute indexes and the ETags of the hours read are listed again afterwards to detect a concurrent write.
+     */
+    private Rollup buildDay(String channel, DateTime day, Traces traces) {
+        long start = System.currentTimeMillis();
+        String indexes = channel + indexPrefix + TimeUtil.Unit.DAYS.format(day) + "/";
+        Map<String, String> before = listETags(indexes);
+        Set<DateTime> hours = new TreeSet<>();
+        for (String s3Key : before.keySet()) {
+            Optional<MinutePath> minutePath = MinutePath.fromUrl(StringUtils.substringAfter(s3Key, channel + indexPrefix));
+            if (minutePath.isPresent()) {
+                hours.add(TimeUtil.Unit.HOURS.round(minutePath.get().getTime()));
+            }
+        }
+        Map<String, String> read = new TreeMap<>();
+        SortedSet<ContentKey> keys = new TreeSet<>();
+        for (DateTime hour : hours) {
+            Rollup rollup = getHour(channel, hour, traces);
+            if (rollup == null) {
+                rollup = buildHour(channel, hour, traces);
+            }
+            if (rollup == null) {
+                logger.info("unable to build day {} {}, missing hour {}", channel, day, hour);
+                return null;
+            }
+            keys.addAll(rollup.getKeys());
+            read.put(getKey(channel, hour, TimeUtil.Unit.HOURS), rollup.getETag());
+        }
+        if (keys.isEmpty()) {
+            return null;
+        }
+        String prefix = channel + BATCH_HOURS + TimeUtil.Unit.DAYS.format(day) + "/";
+        Rollup rollup = write(channel, day, TimeUtil.Unit.DAYS, keys);
+        rollup = verify(channel, rollup, before.equals(listETags(indexes)) && read.equals(listETags(prefix)));
+        metricsService.time(channel, "s3.batch.rollup", start, "unit:day");
+        traces.add("S3BatchRollup.buildDay", channel, day, keys.size());
+        return rollup;
+    }
+
+    private Rollup write(String channel, DateTime start, TimeUtil.Unit unit, SortedSet<ContentKey> keys) {
+        ObjectNode root = mapper.createObjectNode();
+        root.put("id", new MinutePath(start).toUrl());
+        ArrayNode items = root.putArray("items");
+        for (ContentKey key : keys) {
+            items.add(key.toUrl());
+        }
+        byte[] bytes = root.toString().getBytes(StandardCharsets.UTF_8);
+        String s3Key = getKey(channel, start, unit);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(bytes.length);
+        if (useEncrypted) {
+            metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+        }
+        PutObjectResult result = s3Client.putObject(new PutObjectRequest(bucketName, s3Key, new ByteArrayInputStream(bytes), metadata));
+        return new Rollup(start, unit, keys, result.getETag());
+    }
+
+    /**
+     * A rollup whose sources changed after they were listed is removed, and the caller reads the minutes instead.
+     */
+    private Rollup verify(String channel, Rollup rollup, boolean unchanged) {
+        if (unchanged) {
+            return rollup;
+        }
+        String s3Key = getKey(channel, rollup.start, rollup.unit);
+        logger.info("sources changed during rollup, removing {}", s3Key);
+        metricsService.increment("s3.batch.rollup.conflict", "unit:" + rollup.unit.getName());
+        delete(s3Key);
+        return null;
+    }
+
+    /**
+     * Rollups of immutable periods are cached with their ETag.
+     */
+    private Rollup read(String channel, DateTime start, TimeUtil.Unit unit, Traces traces) {
+        String s3Key = getKey(channel, start, unit);
+        String cacheKey = "batch/" + unit.getName() + "/" + new MinutePath(start).toUrl();
+        boolean immutable = s3QueryCache.isImmutable(channel, start, start.plus(unit.getDuration()));
+        if (immutable) {
+            byte[] cached = s3QueryCache.get(channel, cacheKey);
+            if (cached != null) {
+                try {
+                    return parse(start, unit, mapper.readTree(cached));
+                } catch (IOException e) {
+                    logger.warn("unable to parse cached rollup " + s3Key, e);
+                }
+            }
+        }
+        long time = System.currentTimeMillis();
+        try (S3Object object = s3Client.getObject(new GetObjectRequest(bucketName, s3Key))) {
+            ObjectNode root = (ObjectNode) mapper.readTree(ByteStreams.toByteArray(object.getObjectContent()));
+            root.put(E_TAG, object.getObjectMetadata().getETag());
+            Rollup rollup = parse(start, unit, root);
+            if (immutable) {
+                s3QueryCache.put(channel, cacheKey, root.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            traces.add("S3BatchRollup.read", s3Key, rollup.getKeys().size());
+            return rollup;
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() != 404) {
+                logger.warn("unable to read rollup " + s3Key, e);
+            }
+        } catch (IOException e) {
+            logger.warn("unable to read rollup " + s3Key, e);
+        } finally {
+            metricsService.time(channel, "s3.get", time, "type:rollup");
+        }
+        return null;
+    }
+
+    private Rollup parse(DateTime start, TimeUtil.Unit unit, JsonNode root) {
+        SortedSet<ContentKey> keys = new TreeSet<>();
+        for (JsonNode item : root.get("items")) {
+            keys.add(ContentKey.fromUrl(item.asText()).get());
+        }
+        return new Rollup(start, unit, keys, root.path(E_TAG).asText(null));
+    }
+
+    private Map<String, String> listETags(String prefix) {
+        Map<String, String> eTags = new TreeMap<>();
+        ListObjectsRequest request = new ListObjectsRequest()
+                .withBucketName(bucketName)
+                .withPrefix(prefix);
+        ObjectListing listing = s3Client.listObjects(request);
+        while (true) {
+            for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                eTags.put(summary.getKey(), summary.getETag());
+            }
+            if (!listing.isTruncated()) {
+                return eTags;
+            }
+            listing = s3Client.listObjects(request.withMarker(listing.getNextMarker()));
+        }
+    }
+
+    /**
+     * Called after a minute is written.  Removes the rollups covering the minute, and marks its hour and day
+     * to be built once they have passed.
+     */
+    void written(String channel, DateTime minute) {
+        if (!enabled) {
+            return;
+        }
+        if (isClosed(minute, TimeUtil.Unit.HOURS)) {
+            delete(getKey(channel, minute, TimeUtil.Unit.HOURS));
+        }
+        if (isClosed(minute, TimeUtil.Unit.DAYS)) {
+            delete(getKey(channel, minute, TimeUtil.Unit.DAYS));
+        }
+        pendingHours.computeIfAbsent(channel, name -> ConcurrentHashMap.newKeySet()).add(TimeUtil.Unit.HOURS.round(minute));
+        pendingDays.computeIfAbsent(channel, name -> ConcurrentHashMap.newKeySet()).add(TimeUtil.Unit.DAYS.round(minute));
+    }
+
+    private void delete(String s3Key) {
+        try {
+            s3Client.deleteObject(new DeleteObjectRequest(bucketName, s3Key));
+        } catch (AmazonS3Exception e) {
+            logger.warn("unable to delete rollup " + s3Key, e);
+        }
+    }
+
+    String getKey(String channel, DateTime time, TimeUtil.Unit unit) {
+        String prefix = unit == TimeUtil.Unit.DAYS ? BATCH_DAYS : BATCH_HOURS;
+        return channel + prefix + new MinutePath(unit.round(time)).toUrl();
+    }
+
+    static class Rollup {
+        private final DateTime start;
+        private final TimeUtil.Unit unit;
+        private final SortedSet<ContentKey> keys;
+        private final String eTag;
+
+        Rollup(DateTime start, TimeUtil.Unit unit, SortedSet<ContentKey> keys, String eTag) {
+            this.start = start;
+            this.unit = unit;
+            this.keys = keys;
+            this.eTag = eTag;
+        }
+
+        SortedSet<ContentKey> getKeys() {
+            return keys;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @return the last minute in the rollup's period
+         */
+        DateTime getLastMinute() {
+            return start.plus(unit.getDuration()).minusMinutes(1);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.app.HubServices;
+import com.flightstats.hub.channel.ZipBulkBuilder;
+import com.flightstats.hub.cluster.Cluster;
+import com.flightstats.hub.cluster.LastContentPath;
+import com.flightstats.hub.dao.ChannelService;
+import com.flightstats.hub.dao.ContentDao;
+import com.flightstats.hub.metrics.ActiveTraces;
+import com.flightstats.hub.metrics.MetricsService;
+import com.flightstats.hub.model.*;
+import com.flightstats.hub.spoke.SpokeStore;
+import com.flightstats.hub.util.TimeUtil;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * S3BatchWriter writes each closed minute of a batch channel to S3 from within the hub, reading the items
+ * from the spoke write cache, instead of the S3Batch webhook calling back to {@link S3BatchResource}.
+ * It runs when s3.batch.pipeline=native.
+ * <p>
+ * Channels are partitioned across the hub cluster by name, and the last minute written for each channel is
+ * kept in ZooKeeper, so a channel moving to another hub continues where it left off.
+ * Batch writes are idempotent, so a minute written twice during a cluster change is harmless.
+ */
+@Singleton
+public class S3BatchWriter {
+
+    static final String LAST_BATCH_WRITTEN = "/S3BatchWriterLastWritten/";
+    static final String LAG_METRIC_NAME = "s3.batch.lag";
+    private final static Logger logger = LoggerFactory.getLogger(S3BatchWriter.class);
+
+    private final int threads = HubProperties.getProperty("s3.batchWriter.threads", 5);
+    private final int maxMinutes = HubProperties.getProperty("s3.batchWriter.maxMinutes", 60);
+    private final int delaySeconds = HubProperties.getProperty("s3.batchWriter.delaySeconds", 15);
+    private final ExecutorService channelThreadPool = Executors.newFixedThreadPool(threads,
+            new ThreadFactoryBuilder().setNameFormat("S3BatchWriter-%d").build());
+    private final Set<String> activeChannels = ConcurrentHashMap.newKeySet();
+
+    @Inject
+    private LastContentPath lastContentPath;
+    @Inject
+    private ChannelService channelService;
+    @Inject
+    @Named(ContentDao.WRITE_CACHE)
+    private ContentDao spokeWriteContentDao;
+    @Inject
+    @Named(ContentDao.BATCH_LONG_TERM)
+    private ContentDao s3BatchContentDao;
+    @Inject
+    @Named("HubCluster")
+    private Cluster hubCluster;
+    @Inject
+    private MetricsService metricsService;
+
+    public S3BatchWriter() {
+        if (HubProperties.isS3BatchNative()) {
+            HubServices.register(new S3BatchWriterService(), HubServices.TYPE.AFTER_HEALTHY_START, HubServices.TYPE.PRE_STOP);
+        }
+    }
+
+    /**
+     * Start the channel from the last minute completed by its S3Batch webhook, if it has no progress of its own.
+     */
+    void initialize(String channel, ContentPath webhookLastCompleted) {
+        if (webhookLastCompleted != null) {
+            lastContentPath.initialize(channel, new MinutePath(webhookLastCompleted.getTime()), LAST_BATCH_WRITTEN);
+        }
+    }
+
+    private void writeChannels() {
+        List<String> servers = new ArrayList<>(hubCluster.getAllServers());
+        String localServer = Cluster.getHost(true);
+        for (ChannelConfig channel : channelService.getChannels()) {
+            String name = channel.getDisplayName();
+            if (channel.isSingle() || !isOwner(name, servers, localServer)) {
+                continue;
+            }
+            if (!activeChannels.add(name)) {
+                logger.debug("channel is still being written {}", name);
+                continue;
+            }
+            channelThreadPool.submit(() -> {
+                String threadName = Thread.currentThread().getName();
+                Thread.currentThread().setName(threadName + "|" + name);
+                S3Governor.setPriority(S3Governor.Priority.BATCH);
+                try {
+                    writeChannel(channel, TimeUtil.now());
+                } catch (Exception e) {
+                    logger.warn("unable to write batches for " + name, e);
+                } finally {
+                    activeChannels.remove(name);
+                    Thread.currentThread().setName(threadName);
+                }
+            });
+        }
+    }
+
+    /**
+     * Each channel belongs to exactly one of the servers, chosen by the hash of the channel name.
+     */
+    static boolean isOwner(String channel, Collection<String> servers, String server) {
+        if (!servers.contains(server)) {
+            return false;
+        }
+        List<String> sorted = new ArrayList<>(servers);
+        Collections.sort(sorted);
+        int index = Math.floorMod(channel.toLowerCase().hashCode(), sorted.size());
+        return sorted.get(index).equals(server);
+    }
+
+    /**
+     * Write the closed minutes after the last minute written, up to s3.batchWriter.maxMinutes.
+     * A minute with missing items is retried until it falls out of the spoke write cache, and is then skipped.
+     *
+     * @return the number of minutes written
+     */
+    int writeChannel(ChannelConfig channel, DateTime now) {
+        String name = channel.getDisplayName();
+        DateTime stable = channelService.getLastUpdated(name, new MinutePath(now.minusSeconds(delaySeconds))).getTime();
+        MinutePath lastClosed = new MinutePath(stable.minusMinutes(1));
+        MinutePath defaultPath = new MinutePath(stable.minusMinutes(2));
+        MinutePath lastWritten = (MinutePath) lastContentPath.get(name, defaultPath, LAST_BATCH_WRITTEN);
+        MinutePath spokeTtlPath = new MinutePath(now.minusMinutes(HubProperties.getSpokeTtlMinutes(SpokeStore.WRITE) - 2));
+        if (lastWritten.compareTo(spokeTtlPath) < 0) {
+            logger.warn("skipping minutes past the spoke ttl {} {} {}", name, lastWritten, spokeTtlPath);
+            metricsService.increment("s3.batch.skipped", "channel:" + name);
+            lastWritten = spokeTtlPath;
+        }
+        int written = 0;
+        MinutePath minute = lastWritten.addMinute();
+        while (minute.compareTo(lastClosed) <= 0 && written < maxMinutes) {
+            if (!writeMinute(name, minute)) {
+                break;
+            }
+            lastContentPath.updateIncrease(minute, name, LAST_BATCH_WRITTEN);
+            lastWritten = minute;
+            minute = minute.addMinute();
+            written++;
+        }
+        long lag = stable.getMillis() - lastWritten.addMinute().getTime().getMillis();
+        metricsService.gauge(LAG_METRIC_NAME, Math.max(0, lag), "channel:" + name);
+        return written;
+    }
+
+    /**
+     * @return true if the minute was written, or had no items
+     */
+    boolean writeMinute(String channel, MinutePath minute) {
+        long start = System.currentTimeMillis();
+        ActiveTraces.getLocal().add("S3BatchWriter.writeMinute", channel, minute);
+        TimeQuery timeQuery = TimeQuery.builder()
+                .channelName(channel)
+                .startTime(minute.getTime())
+                .unit(TimeUtil.Unit.MINUTES)
+                .build();
+        SortedSet<ContentKey> keys = spokeWriteContentDao.queryByTime(timeQuery);
+        if (keys.isEmpty()) {
+            logger.trace("no items {} {}", channel, minute);
+            return true;
+        }
+        byte[] bytes = zip(channel, keys);
+        if (bytes == null) {
+            return false;
+        }
+        s3BatchContentDao.writeBatch(channel, minute, keys, bytes);
+        metricsService.time(channel, "s3.batch.write", start, bytes.length);
+        return true;
+    }
+
+    private byte[] zip(String channel, Collection<ContentKey> keys) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ZipOutputStream output = new ZipOutputStream(baos)) {
+            output.setLevel(Deflater.DEFAULT_COMPRESSION);
+            for (ContentKey key : keys) {
+                Content content = spokeWriteContentDao.get(channel, key);
+                if (content == null) {
+                    logger.warn("missing content for batch {} {}", channel, key);
+                    return null;
+                }
+                ZipBulkBuilder.createZipEntry(output, content);
+            }
+        } catch (IOException e) {
+            logger.warn("unable to zip batch " + channel, e);
+            return null;
+        }
+        return baos.toByteArray();
+    }
+
+    private class S3BatchWriterService extends AbstractScheduledService {
+
+        @Override
+        protected void runOneIteration() throws Exception {
+            writeChannels();
+        }
+
+        @Override
+        protected Scheduler scheduler() {
+            return Scheduler.newFixedDelaySchedule(0, delaySeconds, TimeUnit.SECONDS);
+        }
+
+        @Override
+        protected void shutDown() throws Exception {
+            channelThreadPool.shutdown();
+        }
+    }
+}
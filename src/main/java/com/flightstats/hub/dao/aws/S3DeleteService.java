@@ -0,0 +1,408 @@
+package com.flightstats.hub.dao.aws;
+
+import com.amazonaws.services.s3.model.*;
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.app.HubServices;
+import com.flightstats.hub.cluster.Cluster;
+import com.flightstats.hub.cluster.LastContentPath;
+import com.flightstats.hub.metrics.MetricsService;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.model.ContentPath;
+import com.flightstats.hub.model.MinutePath;
+import com.flightstats.hub.util.RuntimeInterruptedException;
+import com.flightstats.hub.util.TimeUtil;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.KeeperException;
+import org.joda.time.DateTime;
+import org.joda.time.Days;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * S3DeleteService deletes the keys under a prefix which are before a limit key.
+ * <p>
+ * Keys are deleted a day at a time.  The next day is found by listing a single key after the last day deleted,
+ * so the listing never walks the keys which are kept.  Each page of up to 1000 keys is deleted with one request on a
+ * shared pool, with at most s3.delete.concurrency requests in flight for a prefix.
+ * <p>
+ * {@link #delete(String, ContentKey)} saves the job in ZooKeeper, and the hub which owns the prefix runs it,
+ * saving the last day deleted after each day, so the deletion continues where it left off after a restart.
+ * {@link #cancel(String)} stops and removes a channel's deletions.
+ */
+@Singleton
+public class S3DeleteService {
+
+    private final static Logger logger = LoggerFactory.getLogger(S3DeleteService.class);
+
+    static final String JOBS = "/S3Delete/jobs";
+    static final String PROGRESS = "/S3Delete/progress/";
+    private static final int MAX_KEYS = 1000;
+
+    private final int concurrency = Math.max(1, HubProperties.getProperty("s3.delete.concurrency", 4));
+    private final ExecutorService deletePool = Executors.newFixedThreadPool(HubProperties.getProperty("s3.delete.threads", 16),
+            new ThreadFactoryBuilder().setNameFormat("S3Delete-%d").setDaemon(true).build());
+    private final ExecutorService jobPool = Executors.newFixedThreadPool(HubProperties.getProperty("s3.delete.jobThreads", 2),
+            new ThreadFactoryBuilder().setNameFormat("S3DeleteJob-%d").setDaemon(true).build());
+    private final Set<Job> running = ConcurrentHashMap.newKeySet();
+    private final Set<String> activeJobs = ConcurrentHashMap.newKeySet();
+    private final HubS3Client s3Client;
+    private final S3BucketName s3BucketName;
+    private final LastContentPath lastContentPath;
+    private final CuratorFramework curator;
+    private final MetricsService metricsService;
+    private final Cluster hubCluster;
+    private volatile boolean stopping;
+
+    @Inject
+    public S3DeleteService(HubS3Client s3Client, S3BucketName s3BucketName, LastContentPath lastContentPath,
+                           CuratorFramework curator, MetricsService metricsService, @Named("HubCluster") Cluster hubCluster) {
+        this.s3Client = s3Client;
+        this.s3BucketName = s3BucketName;
+        this.lastContentPath = lastContentPath;
+        this.curator = curator;
+        this.metricsService = metricsService;
+        this.hubCluster = hubCluster;
+        HubServices.register(new S3DeleteJobService(), HubServices.TYPE.AFTER_HEALTHY_START, HubServices.TYPE.PRE_STOP);
+    }
+
+    /**
+     * Deletes the keys under prefix before limitKey, returning when they are deleted or the channel is cancelled.
+     */
+    public void deleteBefore(String prefix, ContentKey limitKey) {
+        new Job(prefix, limitKey, false).run();
+    }
+
+    /**
+     * Saves a job to delete the keys under prefix before limitKey, which runs in the background on the owning hub.
+     */
+    public void delete(String prefix, ContentKey limitKey) {
+        String name = encode(prefix);
+        logger.info("saving delete job {} before {}", prefix, limitKey);
+        lastContentPath.update(limitKey, name, JOBS + "/");
+        jobPool.submit(this::runJobs);
+    }
+
+    /**
+     * Removes the saved jobs of a channel, and stops its running deletions after their current page.
+     */
+    public void cancel(String channel) {
+        for (String prefix : getJobs().keySet()) {
+            if (isChannel(prefix, channel)) {
+                logger.info("cancelling delete job {}", prefix);
+                lastContentPath.delete(encode(prefix), JOBS + "/");
+                lastContentPath.delete(encode(prefix), PROGRESS);
+            }
+        }
+        for (Job job : running) {
+            if (isChannel(job.prefix, channel)) {
+                job.cancelled = true;
+            }
+        }
+    }
+
+    /**
+     * @return the saved jobs, by prefix, with the limit key and the last day deleted
+     */
+    public Map<String, Map<String, String>> getJobs() {
+        Map<String, Map<String, String>> jobs = new TreeMap<>();
+        for (String name : getJobNames()) {
+            ContentPath limitKey = lastContentPath.getOrNull(name, JOBS + "/");
+            if (limitKey == null) {
+                continue;
+            }
+            Map<String, String> job = new LinkedHashMap<>();
+            job.put("limitKey", limitKey.toUrl());
+            ContentPath progress = lastContentPath.getOrNull(name, PROGRESS);
+            if (progress != null) {
+                job.put("deletedThrough", TimeUtil.Unit.DAYS.format(progress.getTime()));
+            }
+            job.put("running", String.valueOf(activeJobs.contains(name)));
+            jobs.put(decode(name), job);
+        }
+        return jobs;
+    }
+
+    private List<String> getJobNames() {
+        try {
+            return curator.getChildren().forPath(JOBS);
+        } catch (KeeperException.NoNodeException e) {
+            return Collections.emptyList();
+        } catch (Exception e) {
+            logger.warn("unable to list delete jobs", e);
+            return Collections.emptyList();
+        }
+    }
+
+    private static boolean isChannel(String prefix, String channel) {
+        return prefix.startsWith(channel + "/") || prefix.startsWith(channel + "Batch/");
+    }
+
+    private synchronized void runJobs() {
+        if (stopping) {
+            return;
+        }
+        List<String> servers = new ArrayList<>(hubCluster.getAllServers());
+        String localServer = Cluster.getHost(true);
+        for (String name : getJobNames()) {
+            String prefix = decode(name);
+            if (!S3BatchWriter.isOwner(prefix, servers, localServer) || !activeJobs.add(name)) {
+                continue;
+            }
+            ContentPath limitKey = lastContentPath.getOrNull(name, JOBS + "/");
+            if (!(limitKey instanceof ContentKey)) {
+                activeJobs.remove(name);
+                continue;
+            }
+            jobPool.submit(() -> {
+                String threadName = Thread.currentThread().getName();
+                Thread.currentThread().setName(threadName + "|" + prefix);
+                try {
+                    new Job(prefix, (ContentKey) limitKey, true).run();
+                } catch (Exception e) {
+                    logger.warn("unable to delete " + prefix + ", will retry", e);
+                } finally {
+                    activeJobs.remove(name);
+                    Thread.currentThread().setName(threadName);
+                }
+            });
+        }
+    }
+
+    static String encode(String prefix) {
+        try {
+            return URLEncoder.encode(prefix, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String decode(String name) {
+        try {
+            return URLDecoder.decode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private class Job {
+
+        private final String prefix;
+        private final String name;
+        private final ContentKey limitKey;
+        private final boolean saved;
+        private final String channelTag;
+        private final Semaphore inFlight = new Semaphore(concurrency);
+        private final AtomicLong deleted = new AtomicLong();
+        private volatile boolean cancelled;
+
+        private Job(String prefix, ContentKey limitKey, boolean saved) {
+            this.prefix = prefix;
+            this.name = encode(prefix);
+            this.limitKey = limitKey;
+            this.saved = saved;
+            this.channelTag = "channel:" + StringUtils.removeEnd(StringUtils.substringBefore(prefix, "/"), "Batch");
+        }
+
+        private boolean isStopped() {
+            return cancelled || stopping;
+        }
+
+        void run() {
+            S3Governor.Priority previous = S3Governor.setPriority(S3Governor.Priority.BATCH);
+            running.add(this);
+            long start = System.currentTimeMillis();
+            try {
+                String marker = null;
+                if (saved) {
+                    ContentPath progress = lastContentPath.getOrNull(name, PROGRESS);
+                    if (progress != null) {
+                        marker = prefix + TimeUtil.Unit.DAYS.format(progress.getTime()) + "/~";
+                    }
+                }
+                while (!isStopped()) {
+                    DateTime day = nextDay(marker);
+                    if (day == null) {
+                        break;
+                    }
+                    boolean reachedLimit = deleteDay(day);
+                    if (saved) {
+                        saveProgress(day);
+                    }
+                    metricsService.gauge("s3.delete.daysRemaining",
+                            Math.max(0, Days.daysBetween(day, limitKey.getTime()).getDays()), channelTag);
+                    if (reachedLimit) {
+                        break;
+                    }
+                    marker = prefix + TimeUtil.Unit.DAYS.format(day) + "/~";
+                }
+                if (saved && !isStopped()) {
+                    complete();
+                }
+                logger.info("deleted {} keys from {} before {} in {} ms {}", deleted.get(), prefix, limitKey,
+                        System.currentTimeMillis() - start, cancelled ? "cancelled" : "");
+            } finally {
+                running.remove(this);
+                S3Governor.setPriority(previous);
+            }
+        }
+
+        /**
+         * @return the start of the day of the first key after marker, or null if there is none before the limit
+         */
+        private DateTime nextDay(String marker) {
+            ListObjectsRequest request = new ListObjectsRequest()
+                    .withBucketName(s3BucketName.getS3BucketName())
+                    .withPrefix(prefix)
+                    .withMarker(marker)
+                    .withMaxKeys(1);
+            List<S3ObjectSummary> summaries = s3Client.listObjects(request).getObjectSummaries();
+            if (summaries.isEmpty()) {
+                return null;
+            }
+            Optional<ContentPath> path = parse(summaries.get(0).getKey());
+            if (!path.isPresent() || path.get().compareTo(limitKey) >= 0) {
+                return null;
+            }
+            return TimeUtil.Unit.DAYS.round(path.get().getTime());
+        }
+
+        private Optional<ContentPath> parse(String key) {
+            return ContentPath.fromUrl(StringUtils.substringAfter(key, prefix));
+        }
+
+        /**
+         * @return true if a key at or after the limit was found
+         */
+        private boolean deleteDay(DateTime day) {
+            String dayPrefix = prefix + TimeUtil.Unit.DAYS.format(day) + "/";
+            List<Future<?>> futures = new ArrayList<>();
+            AtomicReference<Exception> failure = new AtomicReference<>();
+            boolean reachedLimit = false;
+            String marker = null;
+            ObjectListing listing;
+            do {
+                ListObjectsRequest request = new ListObjectsRequest()
+                        .withBucketName(s3BucketName.getS3BucketName())
+                        .withPrefix(dayPrefix)
+                        .withMarker(marker)
+                        .withMaxKeys(MAX_KEYS);
+                listing = s3Client.listObjects(request);
+                List<DeleteObjectsRequest.KeyVersion> keys = new ArrayList<>();
+                for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                    marker = summary.getKey();
+                    Optional<ContentPath> path = parse(summary.getKey());
+                    if (!path.isPresent()) {
+                        logger.warn("skipping unexpected key {}", summary.getKey());
+                    } else if (path.get().compareTo(limitKey) >= 0) {
+                        reachedLimit = true;
+                        break;
+                    } else {
+                        keys.add(new DeleteObjectsRequest.KeyVersion(summary.getKey()));
+                    }
+                }
+                if (!keys.isEmpty()) {
+                    futures.add(submit(keys, failure));
+                }
+            } while (listing.isTruncated() && !reachedLimit && !isStopped());
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeInterruptedException(e);
+                } catch (ExecutionException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+            if (failure.get() != null) {
+                throw new RuntimeException("unable to delete " + dayPrefix, failure.get());
+            }
+            return reachedLimit;
+        }
+
+        private Future<?> submit(List<DeleteObjectsRequest.KeyVersion> keys, AtomicReference<Exception> failure) {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeInterruptedException(e);
+            }
+            return deletePool.submit(() -> {
+                S3Governor.Priority previous = S3Governor.setPriority(S3Governor.Priority.BATCH);
+                try {
+                    DeleteObjectsRequest request = new DeleteObjectsRequest(s3BucketName.getS3BucketName());
+                    request.setKeys(keys);
+                    int count = keys.size();
+                    try {
+                        s3Client.deleteObjects(request);
+                    } catch (MultiObjectDeleteException e) {
+                        count -= e.getErrors().size();
+                        failure.compareAndSet(null, e);
+                    }
+                    deleted.addAndGet(count);
+                    metricsService.count("s3.delete.keys", count, channelTag);
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    inFlight.release();
+                    S3Governor.setPriority(previous);
+                }
+            });
+        }
+
+        private void saveProgress(DateTime day) {
+            if (lastContentPath.getOrNull(name, JOBS + "/") == null) {
+                logger.info("delete job {} was removed", prefix);
+                cancelled = true;
+                return;
+            }
+            lastContentPath.updateIncrease(new MinutePath(day), name, PROGRESS);
+        }
+
+        private void complete() {
+            ContentPath current = lastContentPath.getOrNull(name, JOBS + "/");
+            if (current != null && current.compareTo(limitKey) != 0) {
+                logger.info("delete job {} has a new limit {}", prefix, current);
+                return;
+            }
+            lastContentPath.delete(name, JOBS + "/");
+            lastContentPath.delete(name, PROGRESS);
+        }
+    }
+
+    private class S3DeleteJobService extends AbstractScheduledService {
+
+        @Override
+        protected void runOneIteration() throws Exception {
+            runJobs();
+        }
+
+        @Override
+        protected Scheduler scheduler() {
+            return Scheduler.newFixedDelaySchedule(0, HubProperties.getProperty("s3.delete.scanSeconds", 60), TimeUnit.SECONDS);
+        }
+
+        @Override
+        protected void shutDown() throws Exception {
+            stopping = true;
+            jobPool.shutdown();
+            jobPool.awaitTermination(1, TimeUnit.MINUTES);
+            deletePool.shutdown();
+        }
+    }
+}
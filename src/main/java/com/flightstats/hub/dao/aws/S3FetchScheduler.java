@@ -0,0 +1,143 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.metrics.ActiveTraces;
+import com.flightstats.hub.metrics.MetricsService;
+import com.flightstats.hub.metrics.Traces;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * S3FetchScheduler runs the S3 reads of a query in parallel, while handing the results back in order.
+ * <p>
+ * Each query keeps up to s3.fetch.queryConcurrency reads in flight ahead of the one it is waiting on, and stops
+ * reading once it has what it needs.  All queries share a budget of s3.fetch.maxConcurrent reads; when it is
+ * used up, a query makes its reads on its own thread, one at a time.
+ */
+@Singleton
+public class S3FetchScheduler {
+
+    private final static Logger logger = LoggerFactory.getLogger(S3FetchScheduler.class);
+
+    private final int queryConcurrency;
+    private final Semaphore budget;
+    private final ExecutorService executorService;
+    private final MetricsService metricsService;
+
+    @Inject
+    public S3FetchScheduler(MetricsService metricsService) {
+        this(metricsService, HubProperties.getProperty("s3.fetch.queryConcurrency", 8),
+                HubProperties.getProperty("s3.fetch.maxConcurrent", 100));
+    }
+
+    S3FetchScheduler(MetricsService metricsService, int queryConcurrency, int maxConcurrent) {
+        this(metricsService, queryConcurrency, maxConcurrent, Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("S3Fetch-%d").setDaemon(true).build()));
+    }
+
+    S3FetchScheduler(MetricsService metricsService, int queryConcurrency, int maxConcurrent, ExecutorService executorService) {
+        this.metricsService = metricsService;
+        this.executorService = executorService;
+        this.queryConcurrency = Math.max(1, queryConcurrency);
+        this.budget = new Semaphore(maxConcurrent);
+    }
+
+    /**
+     * Calls fetcher for each task, and passes the results to consumer in task order, until consumer returns false
+     * or the tasks run out.  Tasks are only taken from the iterator as they are needed.
+     */
+    <T, R> void fetch(Iterator<T> tasks, Function<T, R> fetcher, Predicate<R> consumer) {
+        Traces traces = ActiveTraces.getLocal();
+        S3Governor.Priority priority = S3Governor.getPriority();
+        Deque<Future<R>> window = new ArrayDeque<>();
+        try {
+            fill(tasks, fetcher, traces, priority, window);
+            while (!window.isEmpty()) {
+                R result = getResult(window.poll());
+                if (!consumer.test(result)) {
+                    return;
+                }
+                fill(tasks, fetcher, traces, priority, window);
+            }
+        } finally {
+            for (Future<R> future : window) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private <T, R> void fill(Iterator<T> tasks, Function<T, R> fetcher, Traces traces, S3Governor.Priority priority,
+                             Deque<Future<R>> window) {
+        while (window.size() < queryConcurrency && tasks.hasNext()) {
+            T task = tasks.next();
+            if (budget.tryAcquire()) {
+                window.add(submit(() -> {
+                    ActiveTraces.setLocal(traces);
+                    S3Governor.setPriority(priority);
+                    return fetcher.apply(task);
+                }));
+            } else {
+                metricsService.increment("s3.fetch.inline");
+                window.add(Futures.immediateFuture(fetcher.apply(task)));
+            }
+        }
+    }
+
+    /**
+     * Runs the fetch with a permit from the budget, which is released exactly once, when the fetch finishes,
+     * or when it is cancelled before it starts.
+     */
+    private <R> Future<R> submit(Callable<R> fetch) {
+        AtomicBoolean claimed = new AtomicBoolean();
+        FutureTask<R> future = new FutureTask<R>(() -> {
+            if (!claimed.compareAndSet(false, true)) {
+                return null;
+            }
+            try {
+                return fetch.call();
+            } finally {
+                budget.release();
+            }
+        }) {
+            @Override
+            protected void done() {
+                if (claimed.compareAndSet(false, true)) {
+                    budget.release();
+                }
+            }
+        };
+        executorService.execute(future);
+        return future;
+    }
+
+    private static <R> R getResult(Future<R> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            logger.debug("fetch failed", e.getCause());
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    int getAvailable() {
+        return budget.availablePermits();
+    }
+}
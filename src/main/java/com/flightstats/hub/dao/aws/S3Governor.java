@@ -0,0 +1,346 @@
+package com.flightstats.hub.dao.aws;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.app.HubServices;
+import com.flightstats.hub.cluster.Cluster;
+import com.flightstats.hub.metrics.MetricsService;
+import com.flightstats.hub.util.RuntimeInterruptedException;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * S3Governor controls how hard this hub pushes S3.
+ * <p>
+ * Each class of operation has its own concurrency limit, which is halved when S3 throttles us (503 SlowDown),
+ * and grows back by one for every limit's worth of successful requests.
+ * When a limit is reached, requests wait in priority order, and lower priorities may only use part of the limit,
+ * so user reads always have room ahead of write-behind, batch and verifier traffic.
+ * <p>
+ * Throttled requests are retried here, instead of in the AWS client, while the retry budget allows.
+ * The budget earns s3.governor.retryRatio of a retry for each success, plus this hub's share of
+ * s3.governor.clusterRetriesPerSecond, so retries across the cluster stay near that rate when S3 is struggling.
+ */
+@Singleton
+public class S3Governor {
+
+    private final static Logger logger = LoggerFactory.getLogger(S3Governor.class);
+    private static final Set<String> THROTTLING_ERROR_CODES = new HashSet<>(Arrays.asList(
+            "SlowDown", "Throttling", "ThrottlingException", "RequestLimitExceeded", "RequestThrottled",
+            "TooManyRequestsException", "BandwidthLimitExceeded"));
+
+    /**
+     * Traffic in order of importance, set per thread with {@link #setPriority(Priority)}.
+     */
+    public enum Priority {
+        READ(1.0), WRITE(0.9), BATCH(0.7), VERIFIER(0.5);
+
+        private final double share;
+
+        Priority(double share) {
+            this.share = HubProperties.getProperty("s3.governor." + name().toLowerCase() + ".share", share);
+        }
+    }
+
+    enum Operation {
+        GET(50), LIST(25), PUT(50), DELETE(10);
+
+        private final int maxConcurrent;
+
+        Operation(int maxConcurrent) {
+            this.maxConcurrent = HubProperties.getProperty("s3.governor." + name().toLowerCase() + ".maxConcurrent", maxConcurrent);
+        }
+    }
+
+    private static final ThreadLocal<Priority> priority = ThreadLocal.withInitial(() -> Priority.READ);
+
+    private final int maxRetries = HubProperties.getProperty("s3.governor.maxRetries", 3);
+    private final long maxWaitMillis = TimeUnit.SECONDS.toMillis(HubProperties.getProperty("s3.governor.maxWaitSeconds", 60));
+    private final int retryDelayMillis = HubProperties.getProperty("s3.governor.retryDelayMillis", 500);
+    private final Map<Operation, Limiter> limiters = new EnumMap<>(Operation.class);
+    private final RetryBudget retryBudget;
+    private final MetricsService metricsService;
+    private final IntSupplier clusterSize;
+
+    @Inject
+    public S3Governor(MetricsService metricsService, @Named("HubCluster") Cluster cluster) {
+        this(metricsService, () -> cluster.getAllServers().size());
+        HubServices.register(new S3GovernorService());
+    }
+
+    S3Governor(MetricsService metricsService, IntSupplier clusterSize) {
+        this.metricsService = metricsService;
+        this.clusterSize = clusterSize;
+        int minConcurrent = HubProperties.getProperty("s3.governor.minConcurrent", 2);
+        for (Operation operation : Operation.values()) {
+            limiters.put(operation, new Limiter(minConcurrent, operation.maxConcurrent));
+        }
+        retryBudget = new RetryBudget(HubProperties.getProperty("s3.governor.retryRatio", 0.1),
+                HubProperties.getProperty("s3.governor.clusterRetriesPerSecond", 50));
+        updateClusterSize();
+    }
+
+    public static Priority getPriority() {
+        return priority.get();
+    }
+
+    /**
+     * @return the previous priority, to restore when done
+     */
+    public static Priority setPriority(Priority newPriority) {
+        Priority previous = priority.get();
+        priority.set(newPriority);
+        return previous;
+    }
+
+    <T> T call(Operation operation, Supplier<T> request) {
+        return call(operation, request, () -> {
+        });
+    }
+
+    /**
+     * Makes the request within the operation's limit, retrying if it is throttled.
+     * rewind is run before each retry, to reset the request body, and a null rewind means the request can not be sent twice.
+     */
+    <T> T call(Operation operation, Supplier<T> request, Runnable rewind) {
+        Limiter limiter = limiters.get(operation);
+        Priority current = getPriority();
+        String operationTag = "operation:" + operation.name().toLowerCase();
+        for (int attempt = 0; ; attempt++) {
+            long start = System.currentTimeMillis();
+            if (!limiter.acquire(current, maxWaitMillis)) {
+                metricsService.increment("s3.governor.timeout", operationTag, "priority:" + current.name().toLowerCase());
+                throw new SdkClientException("timed out waiting to call S3 " + operation + " at " + current);
+            }
+            metricsService.time("s3.governor.wait", start, operationTag);
+            try {
+                T result = request.get();
+                limiter.success();
+                retryBudget.success();
+                return result;
+            } catch (AmazonServiceException e) {
+                if (!isThrottled(e)) {
+                    throw e;
+                }
+                limiter.throttled();
+                metricsService.increment("s3.governor.throttled", operationTag);
+                if (rewind == null || attempt >= maxRetries || !retryBudget.tryRetry()) {
+                    metricsService.increment("s3.governor.retryDenied", operationTag);
+                    throw e;
+                }
+                logger.debug("retrying throttled {} attempt {}", operation, attempt);
+            } finally {
+                limiter.release();
+            }
+            metricsService.increment("s3.governor.retry", operationTag);
+            sleep(attempt);
+            rewind.run();
+        }
+    }
+
+    /**
+     * Callers which retry failed requests themselves should only do so when this returns true.
+     */
+    public boolean tryRetry() {
+        if (retryBudget.tryRetry()) {
+            return true;
+        }
+        metricsService.increment("s3.governor.retryDenied", "operation:caller");
+        return false;
+    }
+
+    static boolean isThrottled(AmazonServiceException e) {
+        return e.getStatusCode() == 503 || e.getStatusCode() == 429 || THROTTLING_ERROR_CODES.contains(e.getErrorCode());
+    }
+
+    private void sleep(int attempt) {
+        long maxDelay = (long) retryDelayMillis << Math.min(attempt, 10);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(maxDelay / 2, maxDelay + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeInterruptedException(e);
+        }
+    }
+
+    int getLimit(Operation operation) {
+        return (int) limiters.get(operation).limit;
+    }
+
+    double getRetryTokens() {
+        return retryBudget.getTokens();
+    }
+
+    private void updateClusterSize() {
+        try {
+            retryBudget.setClusterSize(clusterSize.getAsInt());
+        } catch (Exception e) {
+            logger.warn("unable to get cluster size", e);
+        }
+    }
+
+    private void refresh() {
+        updateClusterSize();
+        for (Map.Entry<Operation, Limiter> entry : limiters.entrySet()) {
+            String operationTag = "operation:" + entry.getKey().name().toLowerCase();
+            metricsService.gauge("s3.governor.limit", entry.getValue().limit, operationTag);
+            metricsService.gauge("s3.governor.inFlight", entry.getValue().inFlight, operationTag);
+        }
+        metricsService.gauge("s3.governor.retryTokens", retryBudget.getTokens());
+    }
+
+    /**
+     * An additive increase, multiplicative decrease concurrency limit.
+     */
+    private static class Limiter {
+
+        private final int minLimit;
+        private final int maxLimit;
+        private final double backoff = HubProperties.getProperty("s3.governor.backoffRatio", 0.5);
+        private final long decreaseMillis = HubProperties.getProperty("s3.governor.decreaseMillis", 1000);
+        private final int[] waiting = new int[Priority.values().length];
+        private volatile double limit;
+        private volatile int inFlight;
+        private long lastDecrease;
+
+        private Limiter(int minLimit, int maxLimit) {
+            this.maxLimit = Math.max(1, maxLimit);
+            this.minLimit = Math.max(1, Math.min(minLimit, this.maxLimit));
+            this.limit = this.maxLimit;
+        }
+
+        synchronized boolean acquire(Priority priority, long maxWaitMillis) {
+            long deadline = System.currentTimeMillis() + maxWaitMillis;
+            waiting[priority.ordinal()]++;
+            try {
+                while (!canRun(priority)) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    wait(remaining);
+                }
+                inFlight++;
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeInterruptedException(e);
+            } finally {
+                waiting[priority.ordinal()]--;
+            }
+        }
+
+        private boolean canRun(Priority priority) {
+            for (int i = 0; i < priority.ordinal(); i++) {
+                if (waiting[i] > 0) {
+                    return false;
+                }
+            }
+            return inFlight < Math.max(1, (int) Math.ceil(limit * priority.share));
+        }
+
+        synchronized void release() {
+            inFlight--;
+            notifyAll();
+        }
+
+        synchronized void success() {
+            if (limit < maxLimit) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+                notifyAll();
+            }
+        }
+
+        /**
+         * Requests already in flight are likely to be throttled too, so only back off once per decreaseMillis.
+         */
+        synchronized void throttled() {
+            long now = System.currentTimeMillis();
+            if (now - lastDecrease >= decreaseMillis) {
+                limit = Math.max(minLimit, limit * backoff);
+                lastDecrease = now;
+            }
+        }
+    }
+
+    /**
+     * A token bucket, holding at most ten seconds of this hub's share of the cluster retry rate.
+     */
+    private static class RetryBudget {
+
+        private final double ratio;
+        private final double clusterPerSecond;
+        private double perSecond;
+        private double tokens;
+        private long lastRefill = System.currentTimeMillis();
+
+        private RetryBudget(double ratio, double clusterPerSecond) {
+            this.ratio = ratio;
+            this.clusterPerSecond = clusterPerSecond;
+            setClusterSize(1);
+            tokens = getMaxTokens();
+        }
+
+        synchronized void setClusterSize(int size) {
+            refill();
+            perSecond = clusterPerSecond / Math.max(1, size);
+            tokens = Math.min(tokens, getMaxTokens());
+        }
+
+        private double getMaxTokens() {
+            return Math.max(1, perSecond * 10);
+        }
+
+        private void refill() {
+            long now = System.currentTimeMillis();
+            tokens = Math.min(getMaxTokens(), tokens + perSecond * (now - lastRefill) / 1000);
+            lastRefill = now;
+        }
+
+        synchronized void success() {
+            tokens = Math.min(getMaxTokens(), tokens + ratio);
+        }
+
+        synchronized boolean tryRetry() {
+            refill();
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        synchronized double getTokens() {
+            refill();
+            return tokens;
+        }
+    }
+
+    private class S3GovernorService extends AbstractScheduledService {
+
+        @Override
+        protected void runOneIteration() throws Exception {
+            refresh();
+        }
+
+        @Override
+        protected Scheduler scheduler() {
+            return Scheduler.newFixedDelaySchedule(0, 10, TimeUnit.SECONDS);
+        }
+    }
+}
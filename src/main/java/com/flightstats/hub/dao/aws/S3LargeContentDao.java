@@ -12,8 +12,10 @@ import com.flightstats.hub.model.ContentKey;
 import com.flightstats.hub.model.DirectionQuery;
 import com.flightstats.hub.model.TimeQuery;
 import com.flightstats.hub.util.ChunkOutputStream;
+import com.flightstats.hub.util.ChunkPool;
 import com.flightstats.hub.util.TimeUtil;
 import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import org.apache.commons.io.IOUtils;
@@ -21,19 +23,40 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.SocketTimeoutException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * S3LargeContentDao writes large items to S3 as multipart uploads, and reads them back with parallel ranged GETs.
+ * <p>
+ * Parts are buffered in a {@link ChunkPool} shared by all uploads, which holds at most s3.large.bufferPoolMB,
+ * and are sent on an executor of s3.large.sharedThreads, also shared with reads.  Each part is sent with its MD5,
+ * so S3 rejects any part which does not arrive intact.
+ * Reads fetch s3.large.readRangeMB at a time, with up to s3.large.readAhead ranges in flight.
+ */
 @SuppressWarnings("Duplicates")
 @Singleton
 public class S3LargeContentDao implements ContentDao {
 
     private final static Logger logger = LoggerFactory.getLogger(S3LargeContentDao.class);
 
+    private static final int MEGABYTES = 1024 * 1024;
+    private static final ChunkPool chunkPool = new ChunkPool(5 * MEGABYTES,
+            HubProperties.getProperty("s3.large.bufferPoolMB", 256) / 5,
+            HubProperties.getProperty("s3.large.offHeap", false),
+            HubProperties.getProperty("s3.large.bufferWaitMillis", 10_000));
+    private static final ExecutorService executorService = Executors.newFixedThreadPool(
+            HubProperties.getProperty("s3.large.sharedThreads", 32),
+            new ThreadFactoryBuilder().setNameFormat("S3Large-%d").setDaemon(true).build());
+
     private final boolean useEncrypted = HubProperties.isAppEncrypted();
+    private final int readRangeBytes = HubProperties.getProperty("s3.large.readRangeMB", 8) * MEGABYTES;
+    private final int readAhead = HubProperties.getProperty("s3.large.readAhead", 4);
 
     @Inject
     private MetricsService metricsService;
@@ -41,6 +64,8 @@ public class S3LargeContentDao implements ContentDao {
     private HubS3Client s3Client;
     @Inject
     private S3BucketName s3BucketName;
+    @Inject
+    private S3DeleteService s3DeleteService;
 
     @java.beans.ConstructorProperties({"metricsService", "s3Client", "s3BucketName"})
     public S3LargeContentDao(MetricsService metricsService, HubS3Client s3Client, S3BucketName s3BucketName) {
@@ -72,30 +97,31 @@ public class S3LargeContentDao implements ContentDao {
         long start = System.currentTimeMillis();
         int length = 0;
         List<PartETag> partETags = Collections.synchronizedList(new ArrayList<>());
+        AtomicLong uploaded = new AtomicLong();
         String s3Key = getS3ContentKey(channelName, key, content.isHistorical());
         String name = s3BucketName.getS3BucketName();
         String uploadId = "";
-        boolean completed = false;
+        ChunkOutputStream outputStream = null;
         try {
             ObjectMetadata metadata = S3SingleContentDao.createObjectMetadata(content, useEncrypted);
             InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(name, s3Key, metadata);
             InitiateMultipartUploadResult initResponse = s3Client.initiateMultipartUpload(initRequest);
             uploadId = initResponse.getUploadId();
-            ChunkOutputStream outputStream = new ChunkOutputStream(content.getThreads(), chunk -> {
+            outputStream = new ChunkOutputStream(content.getThreads(), chunkPool, executorService, chunk -> {
                 try {
-                    byte[] bytes = chunk.getBytes();
-                    logger.info("got bytes {} {}", s3Key, bytes.length);
-                    ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
+                    logger.info("got bytes {} {}", s3Key, chunk.getSize());
                     UploadPartRequest uploadRequest = new UploadPartRequest()
                             .withBucketName(name)
                             .withKey(s3Key)
                             .withUploadId(initResponse.getUploadId())
                             .withPartNumber(chunk.getCount())
-                            .withInputStream(bais)
-                            .withPartSize(bytes.length);
+                            .withInputStream(chunk.getStream())
+                            .withPartSize(chunk.getSize())
+                            .withMD5Digest(chunk.getMd5());
                     UploadPartResult uploadPart = s3Client.uploadPart(uploadRequest);
                     partETags.add(uploadPart.getPartETag());
-                    logger.info("wrote chunk {} {} {}", s3Key, chunk.getCount(), bytes.length);
+                    uploaded.addAndGet(chunk.getSize());
+                    logger.info("wrote chunk {} {} {}", s3Key, chunk.getCount(), chunk.getSize());
                     return "ok";
                 } catch (Exception e) {
                     logger.warn("what happened POST to " + channelName + " for chunk " + chunk.getCount(), e);
@@ -108,31 +134,30 @@ public class S3LargeContentDao implements ContentDao {
             ActiveTraces.getLocal().add("S3LargeContentDao.write processed", copied);
             logger.info("before complete key {} with {} parts", s3Key, partETags.size());
             outputStream.close();
+            if (uploaded.get() != copied) {
+                String message = "parts are not the correct size. expected " + copied + ", uploaded " + uploaded.get();
+                logger.warn(message);
+                throw new RuntimeException(message);
+            }
+            partETags.sort(Comparator.comparingInt(PartETag::getPartNumber));
             CompleteMultipartUploadRequest compRequest = new CompleteMultipartUploadRequest(name, s3Key, uploadId, partETags);
             s3Client.completeMultipartUpload(compRequest);
             S3ResponseMetadata completedMetaData = s3Client.getCachedResponseMetadata(compRequest);
-            logger.info("completed key {} request id {} with {} parts", s3Key, completedMetaData.getRequestId(), partETags.size());
-            completed = true;
+            logger.info("completed key {} request id {} with {} parts", s3Key,
+                    completedMetaData == null ? null : completedMetaData.getRequestId(), partETags.size());
+            ActiveTraces.getLocal().add("S3LargeContentDao.write completed length ", copied);
             content.setSize(copied);
-            long s3Length = getLength(s3Key, name);
-            if (s3Length != copied) {
-                String message = "object is not the correct size. expected " + copied + ", found " + s3Length;
-                logger.warn(message);
-                throw new RuntimeException(message);
-            }
             return key;
         } catch (Exception e) {
             logger.warn("unable to write large item to S3 " + channelName + " " + key, e);
             ActiveTraces.getLocal().add("S3LargeContentDao.error ", e.getMessage());
+            if (outputStream != null) {
+                outputStream.abort();
+            }
             if (StringUtils.isNotBlank(uploadId)) {
-                if (completed) {
-                    logger.warn("deleting multipart " + channelName + " " + key, e);
-                    delete(channelName, key);
-                } else {
-                    logger.warn("aborting multipart " + channelName + " " + key, e);
-                    AbortMultipartUploadRequest request = new AbortMultipartUploadRequest(name, s3Key, uploadId);
-                    s3Client.abortMultipartUpload(request);
-                }
+                logger.warn("aborting multipart " + channelName + " " + key, e);
+                AbortMultipartUploadRequest request = new AbortMultipartUploadRequest(name, s3Key, uploadId);
+                s3Client.abortMultipartUpload(request);
             }
             throw new RuntimeException(e);
         } finally {
@@ -140,21 +165,6 @@ public class S3LargeContentDao implements ContentDao {
         }
     }
 
-    private long getLength(String s3Key, String name) throws IOException {
-        GetObjectRequest request = new GetObjectRequest(name, s3Key);
-        try (S3Object object = s3Client.getObject(request)) {
-            ObjectMetadata metadata = object.getObjectMetadata();
-            long contentLength = metadata.getContentLength();
-            S3ResponseMetadata responseMetadata = s3Client.getCachedResponseMetadata(request);
-            logger.info("{} {} get content length {} {}", name, s3Key, contentLength, responseMetadata.getRequestId());
-            ActiveTraces.getLocal().add("S3LargeContentDao.write completed length ", contentLength);
-            return contentLength;
-        } catch (Exception e) {
-            logger.warn("unable to get length" + name + " " + s3Key, e);
-            return 0;
-        }
-    }
-
     @Override
     public void delete(String channelName, ContentKey key) {
         String s3ContentKey = getS3ContentKey(channelName, key, false);
@@ -186,7 +196,9 @@ public class S3LargeContentDao implements ContentDao {
     private Content getS3Object(String channelName, ContentKey key) throws IOException {
         long start = System.currentTimeMillis();
         try {
-            GetObjectRequest request = new GetObjectRequest(s3BucketName.getS3BucketName(), getS3ContentKey(channelName, key, false));
+            String bucketName = s3BucketName.getS3BucketName();
+            String s3Key = getS3ContentKey(channelName, key, false);
+            GetObjectRequest request = new GetObjectRequest(bucketName, s3Key).withRange(0, readRangeBytes - 1);
             S3Object object = s3Client.getObject(request);
             ObjectMetadata metadata = object.getObjectMetadata();
             Map<String, String> userData = metadata.getUserMetadata();
@@ -196,7 +208,12 @@ public class S3LargeContentDao implements ContentDao {
                 builder.withContentType(type);
             }
             builder.withContentKey(key);
-            builder.withStream(object.getObjectContent());
+            InputStream stream = object.getObjectContent();
+            long length = metadata.getInstanceLength();
+            if (length > readRangeBytes) {
+                stream = new S3RangedInputStream(s3Client, bucketName, s3Key, stream, length, readRangeBytes, readAhead, executorService);
+            }
+            builder.withStream(stream);
             builder.withLarge(true);
             return builder.build();
         } catch (AmazonS3Exception e) {
@@ -228,7 +245,7 @@ public class S3LargeContentDao implements ContentDao {
     @Override
     public void deleteBefore(String channel, ContentKey limitKey) {
         try {
-            S3Util.delete(channel + "/large/", limitKey, s3BucketName.getS3BucketName(), s3Client);
+            s3DeleteService.deleteBefore(channel + "/large/", limitKey);
             logger.info("completed deletion of " + channel);
         } catch (Exception e) {
             logger.warn("unable to delete " + channel + " in " + s3BucketName.getS3BucketName(), e);
@@ -241,16 +258,7 @@ public class S3LargeContentDao implements ContentDao {
     }
 
     public void delete(String channel) {
-        Traces traces = ActiveTraces.getLocal();
-        new Thread(() -> {
-            try {
-                ContentKey limitKey = new ContentKey(TimeUtil.now(), "ZZZZZZ");
-                ActiveTraces.start("S3LargeontentDao.delete", traces, limitKey);
-                deleteBefore(channel, limitKey);
-            } finally {
-                ActiveTraces.end();
-            }
-        }).start();
+        s3DeleteService.delete(channel + "/large/", new ContentKey(TimeUtil.now(), "ZZZZZZ"));
     }
 
     public static class S3LargeContentDaoBuilder {
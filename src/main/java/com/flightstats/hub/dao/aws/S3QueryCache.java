@@ -0,0 +1,365 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.app.HubServices;
+import com.flightstats.hub.cluster.WatchManager;
+import com.flightstats.hub.cluster.Watcher;
+import com.flightstats.hub.dao.ChannelService;
+import com.flightstats.hub.metrics.MetricsService;
+import com.flightstats.hub.model.ChannelConfig;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.spoke.SpokeStore;
+import com.flightstats.hub.util.TimeUtil;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.zookeeper.data.Stat;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * S3QueryCache keeps S3 listings and batch index documents for periods which can no longer change, so repeated
+ * queries over old data do not go back to S3.
+ * <p>
+ * A period is immutable once it ended more than s3.queryCache.minAgeMinutes ago, which defaults to the spoke
+ * write ttl, after which nothing new can be copied to S3.  For historical channels, only periods after the
+ * mutableTime are immutable.
+ * <p>
+ * Entries are kept in memory up to s3.queryCache.maxMB, and on disk under s3.queryCache.path up to
+ * s3.queryCache.diskMB, for at most s3.queryCache.ttlHours.
+ * <p>
+ * Entries are keyed by the channel's creation date, so a channel recreated with the same name never sees the old
+ * channel's entries.  When a channel is deleted, or has an item deleted or a historical insert, every hub removes
+ * its entries, using a watched ZooKeeper node.  Each change to the node bumps its version, and a hub which missed
+ * a version, including while it was down, clears its whole cache.
+ */
+@Singleton
+public class S3QueryCache {
+
+    private final static Logger logger = LoggerFactory.getLogger(S3QueryCache.class);
+    private static final String INVALIDATED_PATH = "/S3QueryCache/invalidated";
+    private static final String VERSION_FILE = "invalidated.version";
+
+    private final int minAgeMinutes = HubProperties.getProperty("s3.queryCache.minAgeMinutes",
+            HubProperties.getSpokeTtlMinutes(SpokeStore.WRITE));
+    private final long ttlMillis = TimeUnit.HOURS.toMillis(HubProperties.getProperty("s3.queryCache.ttlHours", 24));
+    private final long diskMaxBytes = HubProperties.getProperty("s3.queryCache.diskMB", 1024) * 1024L * 1024L;
+    private final Path root = Paths.get(HubProperties.getProperty("s3.queryCache.path", "/spoke/s3QueryCache"));
+    private final AtomicLong diskBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final Cache<String, byte[]> memory;
+    private final ChannelService channelService;
+    private final MetricsService metricsService;
+    private final CuratorFramework curator;
+    private final WatchManager watchManager;
+
+    @Inject
+    public S3QueryCache(ChannelService channelService, MetricsService metricsService,
+                        CuratorFramework curator, WatchManager watchManager) {
+        this.channelService = channelService;
+        this.metricsService = metricsService;
+        this.curator = curator;
+        this.watchManager = watchManager;
+        memory = CacheBuilder.newBuilder()
+                .maximumWeight(HubProperties.getProperty("s3.queryCache.maxMB", 64) * 1024L * 1024L)
+                .weigher((String key, byte[] value) -> key.length() + value.length)
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .build();
+        HubServices.register(new S3QueryCacheService());
+    }
+
+    /**
+     * @return true if nothing can be added to the channel between start and end
+     */
+    boolean isImmutable(String channel, DateTime start, DateTime end) {
+        if (end.isAfter(TimeUtil.now().minusMinutes(minAgeMinutes))) {
+            return false;
+        }
+        ChannelConfig config = channelService.getCachedChannelConfig(channel);
+        if (config == null) {
+            return false;
+        }
+        return !config.isHistorical() || !start.isBefore(config.getMutableTime());
+    }
+
+    byte[] get(String channel, String key) {
+        String generationKey = getGeneration(channel) + "/" + key;
+        String memoryKey = channel + "/" + generationKey;
+        byte[] value = memory.getIfPresent(memoryKey);
+        if (value != null) {
+            hit("memory");
+            return value;
+        }
+        value = readDisk(channel, generationKey);
+        if (value != null) {
+            memory.put(memoryKey, value);
+            hit("disk");
+            return value;
+        }
+        misses.incrementAndGet();
+        metricsService.increment("s3.queryCache.miss");
+        return null;
+    }
+
+    void put(String channel, String key, byte[] value) {
+        String generationKey = getGeneration(channel) + "/" + key;
+        memory.put(channel + "/" + generationKey, value);
+        writeDisk(channel, generationKey, value);
+    }
+
+    private long getGeneration(String channel) {
+        ChannelConfig config = channelService.getCachedChannelConfig(channel);
+        if (config == null || config.getCreationDate() == null) {
+            return 0;
+        }
+        return config.getCreationDate().getTime();
+    }
+
+    /**
+     * @return the cached keys, or null if there are none
+     */
+    SortedSet<ContentKey> getKeys(String channel, String key) {
+        byte[] value = get(channel, key);
+        if (value == null) {
+            return null;
+        }
+        SortedSet<ContentKey> keys = new TreeSet<>();
+        for (String line : StringUtils.split(new String(value, StandardCharsets.UTF_8), '\n')) {
+            Optional<ContentKey> contentKey = ContentKey.fromUrl(line);
+            if (contentKey.isPresent()) {
+                keys.add(contentKey.get());
+            }
+        }
+        return keys;
+    }
+
+    void putKeys(String channel, String key, Collection<ContentKey> keys) {
+        String value = keys.stream().map(ContentKey::toUrl).collect(Collectors.joining("\n"));
+        put(channel, key, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Removes the channel's entries on this hub, and then on every other hub.
+     */
+    void invalidate(String channel) {
+        invalidateLocal(channel);
+        try {
+            curator.setData().forPath(INVALIDATED_PATH, channel.getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            logger.warn("unable to invalidate " + channel + " on other hubs", e);
+        }
+    }
+
+    private void invalidateLocal(String channel) {
+        String prefix = channel + "/";
+        memory.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+        File directory = root.resolve(channel).toFile();
+        if (directory.exists()) {
+            long size = FileUtils.sizeOfDirectory(directory);
+            if (FileUtils.deleteQuietly(directory)) {
+                diskBytes.addAndGet(-size);
+            }
+        }
+        logger.debug("invalidated {}", channel);
+    }
+
+    private void invalidateAll() {
+        memory.invalidateAll();
+        File[] directories = root.toFile().listFiles(File::isDirectory);
+        if (directories != null) {
+            for (File directory : directories) {
+                FileUtils.deleteQuietly(directory);
+            }
+        }
+        diskBytes.set(0);
+        logger.info("invalidated all channels");
+    }
+
+    /**
+     * Applies the latest change to the invalidated node, or clears everything if a change was missed.
+     */
+    synchronized void invalidated() {
+        try {
+            Stat stat = new Stat();
+            byte[] data = curator.getData().storingStatIn(stat).forPath(INVALIDATED_PATH);
+            int lastVersion = readVersion();
+            if (stat.getVersion() == lastVersion) {
+                return;
+            }
+            if (stat.getVersion() == lastVersion + 1 && data != null) {
+                invalidateLocal(new String(data, StandardCharsets.UTF_8));
+            } else {
+                logger.info("missed invalidations {} {}", lastVersion, stat.getVersion());
+                invalidateAll();
+            }
+            writeVersion(stat.getVersion());
+        } catch (Exception e) {
+            logger.warn("unable to read invalidations", e);
+            invalidateAll();
+        }
+    }
+
+    /**
+     * The last version is kept with the disk tier, so entries invalidated while this hub was down are removed.
+     */
+    private int readVersion() {
+        Path path = root.resolve(VERSION_FILE);
+        try {
+            if (Files.exists(path)) {
+                return Integer.parseInt(new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim());
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.warn("unable to read " + path, e);
+        }
+        return -2;
+    }
+
+    private void writeVersion(int version) {
+        Path path = root.resolve(VERSION_FILE);
+        try {
+            Files.createDirectories(root);
+            Files.write(path, Integer.toString(version).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.warn("unable to write " + path, e);
+        }
+    }
+
+    private void hit(String tier) {
+        hits.incrementAndGet();
+        metricsService.increment("s3.queryCache.hit", "tier:" + tier);
+    }
+
+    private Path getPath(String channel, String key) {
+        return root.resolve(channel).resolve(key.replace('/', '_'));
+    }
+
+    private byte[] readDisk(String channel, String key) {
+        if (diskMaxBytes <= 0) {
+            return null;
+        }
+        Path path = getPath(channel, key);
+        try {
+            if (!Files.exists(path)) {
+                return null;
+            }
+            if (Files.getLastModifiedTime(path).toMillis() < System.currentTimeMillis() - ttlMillis) {
+                return null;
+            }
+            return Files.readAllBytes(path);
+        } catch (IOException e) {
+            logger.warn("unable to read " + path, e);
+            return null;
+        }
+    }
+
+    private void writeDisk(String channel, String key, byte[] value) {
+        if (diskMaxBytes <= 0) {
+            return;
+        }
+        Path path = getPath(channel, key);
+        try {
+            Files.createDirectories(path.getParent());
+            Path temp = Files.createTempFile(path.getParent(), "tmp", ".part");
+            Files.write(temp, value);
+            long previous = Files.exists(path) ? Files.size(path) : 0;
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            diskBytes.addAndGet(value.length - previous);
+        } catch (IOException e) {
+            logger.warn("unable to write " + path, e);
+        }
+    }
+
+    /**
+     * Removes expired files, and the oldest files when the disk tier is over s3.queryCache.diskMB.
+     */
+    void cleanup() {
+        if (diskMaxBytes <= 0 || !Files.exists(root)) {
+            return;
+        }
+        List<File> files;
+        try (Stream<Path> paths = Files.walk(root)) {
+            files = paths.map(Path::toFile)
+                    .filter(File::isFile)
+                    .filter(file -> !file.getName().equals(VERSION_FILE))
+                    .sorted(Comparator.comparingLong(File::lastModified))
+                    .collect(Collectors.toList());
+        } catch (IOException | UncheckedIOException e) {
+            logger.warn("unable to walk " + root, e);
+            return;
+        }
+        long total = files.stream().mapToLong(File::length).sum();
+        long expired = System.currentTimeMillis() - ttlMillis;
+        for (File file : files) {
+            if (file.lastModified() >= expired && total <= diskMaxBytes * 9 / 10) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+        diskBytes.set(total);
+    }
+
+    private void reportMetrics() {
+        long hitCount = hits.getAndSet(0);
+        long requests = hitCount + misses.getAndSet(0);
+        metricsService.gauge("s3.queryCache.hitRatio", requests == 0 ? 1 : (double) hitCount / requests);
+        metricsService.gauge("s3.queryCache.memory.items", memory.size());
+        metricsService.gauge("s3.queryCache.disk.bytes", diskBytes.get());
+    }
+
+    private class S3QueryCacheService extends AbstractScheduledService {
+
+        @Override
+        protected void startUp() throws Exception {
+            watchManager.register(new Watcher() {
+                @Override
+                public void callback(CuratorEvent event) {
+                    invalidated();
+                }
+
+                @Override
+                public String getPath() {
+                    return INVALIDATED_PATH;
+                }
+            });
+            invalidated();
+        }
+
+        @Override
+        protected void runOneIteration() throws Exception {
+            try {
+                cleanup();
+            } catch (Exception e) {
+                logger.warn("unable to clean up cache", e);
+            }
+            reportMetrics();
+        }
+
+        @Override
+        protected Scheduler scheduler() {
+            return Scheduler.newFixedDelaySchedule(1, 1, TimeUnit.MINUTES);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.flightstats.hub.dao.aws;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.flightstats.hub.util.RuntimeInterruptedException;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * S3RangedInputStream reads a large object as a series of ranged GETs, keeping up to readAhead ranges in flight
+ * after the one being read, so at most readAhead + 1 ranges are held in memory.
+ */
+class S3RangedInputStream extends InputStream {
+
+    private final HubS3Client s3Client;
+    private final String bucketName;
+    private final String s3Key;
+    private final long length;
+    private final int rangeBytes;
+    private final int readAhead;
+    private final ExecutorService executorService;
+    private final S3Governor.Priority priority = S3Governor.getPriority();
+    private final Deque<Future<byte[]>> window = new ArrayDeque<>();
+    private InputStream current;
+    private long nextStart;
+
+    /**
+     * @param first the stream of the first range, which starts at zero and is rangeBytes long
+     */
+    S3RangedInputStream(HubS3Client s3Client, String bucketName, String s3Key, InputStream first, long length,
+                        int rangeBytes, int readAhead, ExecutorService executorService) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.s3Key = s3Key;
+        this.current = first;
+        this.length = length;
+        this.rangeBytes = rangeBytes;
+        this.readAhead = Math.max(1, readAhead);
+        this.executorService = executorService;
+        this.nextStart = rangeBytes;
+        fill();
+    }
+
+    private void fill() {
+        while (window.size() < readAhead && nextStart < length) {
+            long start = nextStart;
+            long end = Math.min(start + rangeBytes, length) - 1;
+            window.add(executorService.submit(() -> getRange(start, end)));
+            nextStart = end + 1;
+        }
+    }
+
+    private byte[] getRange(long start, long end) throws IOException {
+        S3Governor.setPriority(priority);
+        GetObjectRequest request = new GetObjectRequest(bucketName, s3Key).withRange(start, end);
+        try (S3Object object = s3Client.getObject(request)) {
+            byte[] bytes = ByteStreams.toByteArray(object.getObjectContent());
+            if (bytes.length != end - start + 1) {
+                throw new IOException("expected " + (end - start + 1) + " bytes from " + s3Key + " at " + start + ", found " + bytes.length);
+            }
+            return bytes;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] bytes = new byte[1];
+        return read(bytes, 0, 1) == -1 ? -1 : bytes[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int len) throws IOException {
+        while (current != null) {
+            int read = current.read(bytes, offset, len);
+            if (read != -1) {
+                return read;
+            }
+            next();
+        }
+        return -1;
+    }
+
+    private void next() throws IOException {
+        current.close();
+        current = null;
+        Future<byte[]> future = window.poll();
+        if (future == null) {
+            return;
+        }
+        try {
+            current = new ByteArrayInputStream(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeInterruptedException(e);
+        } catch (ExecutionException e) {
+            throw new IOException("unable to read " + s3Key, e.getCause());
+        }
+        fill();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Future<byte[]> future : window) {
+            future.cancel(true);
+        }
+        window.clear();
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+}
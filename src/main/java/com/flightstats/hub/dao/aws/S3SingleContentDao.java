@@ -18,6 +18,7 @@ import com.google.common.io.ByteStreams;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,6 +33,7 @@ public class S3SingleContentDao implements ContentDao {
 
     private final static Logger logger = LoggerFactory.getLogger(S3SingleContentDao.class);
     private static final int MAX_ITEMS = 1000 * 1000;
+    private static final Set<TimeUtil.Unit> CACHED_UNITS = EnumSet.of(TimeUtil.Unit.MINUTES, TimeUtil.Unit.HOURS, TimeUtil.Unit.DAYS);
     private final boolean useEncrypted = HubProperties.isAppEncrypted();
     private final int s3MaxQueryItems = HubProperties.getProperty("s3.maxQueryItems", 1000);
 
@@ -41,6 +43,12 @@ public class S3SingleContentDao implements ContentDao {
     private HubS3Client s3Client;
     @Inject
     private S3BucketName s3BucketName;
+    @Inject
+    private S3QueryCache s3QueryCache;
+    @Inject
+    private S3FetchScheduler s3FetchScheduler;
+    @Inject
+    private S3DeleteService s3DeleteService;
 
     public void initialize() {
         s3Client.initialize();
@@ -93,6 +101,7 @@ public class S3SingleContentDao implements ContentDao {
         String s3ContentKey = getS3ContentKey(channelName, key);
         DeleteObjectRequest request = new DeleteObjectRequest(s3BucketName.getS3BucketName(), s3ContentKey);
         s3Client.deleteObject(request);
+        s3QueryCache.invalidate(channelName);
         ActiveTraces.getLocal().add("S3SingleContentDao.deleted", s3ContentKey);
     }
 
@@ -149,23 +158,74 @@ public class S3SingleContentDao implements ContentDao {
         logger.debug("queryByTime {} ", query);
         Traces traces = ActiveTraces.getLocal();
         traces.add("S3SingleContentDao.queryByTime", query);
-        String timePath = query.getUnit().format(query.getStartTime());
+        String channel = query.getChannelName();
+        TimeUtil.Unit unit = query.getUnit();
+        DateTime startTime = query.getStartTime();
         ListObjectsRequest request = new ListObjectsRequest()
                 .withBucketName(s3BucketName.getS3BucketName())
                 .withMaxKeys(s3MaxQueryItems);
         ContentKey limitKey = query.getLimitKey();
+        SortedSet<ContentKey> keys;
         if (limitKey == null) {
-            request.withPrefix(query.getChannelName() + "/" + timePath);
-            limitKey = ContentKey.lastKey(query.getStartTime().plus(query.getUnit().getDuration()));
+            limitKey = ContentKey.lastKey(startTime.plus(unit.getDuration()));
+            SortedSet<ContentKey> cached = getImmutablePeriod(channel, unit, startTime);
+            if (cached != null) {
+                keys = new ContentKeySet(query.getCount(), limitKey);
+                keys.addAll(cached);
+            } else {
+                request.withPrefix(channel + "/" + unit.format(startTime));
+                keys = iterateListObjects(channel, request, MAX_ITEMS, query.getCount(), limitKey);
+            }
         } else {
-            request.withPrefix(query.getChannelName() + "/");
-            request.withMarker(query.getChannelName() + "/" + timePath);
+            SortedSet<ContentKey> cached = new TreeSet<>();
+            while (startTime.isBefore(limitKey.getTime())) {
+                SortedSet<ContentKey> periodKeys = getImmutablePeriod(channel, unit, startTime);
+                if (periodKeys == null) {
+                    break;
+                }
+                cached.addAll(periodKeys);
+                startTime = unit.round(startTime).plus(unit.getDuration());
+            }
+            keys = new ContentKeySet(query.getCount(), limitKey);
+            keys.addAll(cached);
+            if (startTime.isBefore(limitKey.getTime())) {
+                request.withPrefix(channel + "/");
+                request.withMarker(channel + "/" + unit.format(startTime));
+                keys.addAll(iterateListObjects(channel, request, MAX_ITEMS, query.getCount(), limitKey));
+            }
         }
-        SortedSet<ContentKey> keys = iterateListObjects(query.getChannelName(), request, MAX_ITEMS, query.getCount(), limitKey);
         traces.add("S3SingleContentDao.queryByTime completed", keys);
         return keys;
     }
 
+    /**
+     * @return all of the keys in the period containing time, or null if the period can still change
+     */
+    private SortedSet<ContentKey> getImmutablePeriod(String channel, TimeUtil.Unit unit, DateTime time) {
+        if (!CACHED_UNITS.contains(unit)) {
+            return null;
+        }
+        DateTime start = unit.round(time);
+        DateTime end = start.plus(unit.getDuration());
+        if (!s3QueryCache.isImmutable(channel, start, end)) {
+            return null;
+        }
+        String timePath = unit.format(start);
+        String cacheKey = "single/" + timePath;
+        SortedSet<ContentKey> keys = s3QueryCache.getKeys(channel, cacheKey);
+        if (keys == null) {
+            ListObjectsRequest request = new ListObjectsRequest()
+                    .withBucketName(s3BucketName.getS3BucketName())
+                    .withPrefix(channel + "/" + timePath)
+                    .withMaxKeys(s3MaxQueryItems);
+            keys = iterateListObjects(channel, request, MAX_ITEMS, 0, ContentKey.lastKey(end));
+            if (keys.size() < MAX_ITEMS) {
+                s3QueryCache.putKeys(channel, cacheKey, keys);
+            }
+        }
+        return keys;
+    }
+
     private SortedSet<ContentKey> iterateListObjects(String channel, ListObjectsRequest request,
                                                      int maxItems, int count, ContentKey limitKey) {
         Traces traces = ActiveTraces.getLocal();
@@ -226,7 +286,7 @@ public class S3SingleContentDao implements ContentDao {
         if (query.isNext()) {
             contentKeys = next(query);
         } else {
-            contentKeys = S3Util.queryPrevious(query, this);
+            contentKeys = S3Util.queryPrevious(query, this, s3FetchScheduler);
         }
         traces.add("S3SingleContentDao.query completed", contentKeys);
         return contentKeys;
@@ -249,7 +309,7 @@ public class S3SingleContentDao implements ContentDao {
     @Override
     public void deleteBefore(String channel, ContentKey limitKey) {
         try {
-            S3Util.delete(channel + "/", limitKey, s3BucketName.getS3BucketName(), s3Client);
+            s3DeleteService.deleteBefore(channel + "/", limitKey);
             logger.info("completed deletion of " + channel);
         } catch (Exception e) {
             logger.warn("unable to delete " + channel + " in " + s3BucketName.getS3BucketName(), e);
@@ -258,20 +318,14 @@ public class S3SingleContentDao implements ContentDao {
 
     @Override
     public ContentKey insertHistorical(String channelName, Content content) throws Exception {
-        return insert(channelName, content);
+        ContentKey key = insert(channelName, content);
+        s3QueryCache.invalidate(channelName);
+        return key;
     }
 
     public void delete(String channel) {
-        Traces traces = ActiveTraces.getLocal();
-        new Thread(() -> {
-            try {
-                ContentKey limitKey = new ContentKey(TimeUtil.now(), "ZZZZZZ");
-                ActiveTraces.start("S3SingleContentDao.delete", traces, limitKey);
-                deleteBefore(channel, limitKey);
-            } finally {
-                ActiveTraces.end();
-            }
-        }).start();
+        s3QueryCache.invalidate(channel);
+        s3DeleteService.delete(channel + "/", new ContentKey(TimeUtil.now(), "ZZZZZZ"));
     }
 
     static ObjectMetadata createObjectMetadata(Content content, boolean useEncrypted) {
@@ -1,21 +1,18 @@
 package com.flightstats.hub.dao.aws;
 
-import com.amazonaws.services.s3.model.*;
 import com.flightstats.hub.dao.ContentDao;
 import com.flightstats.hub.dao.ContentKeyUtil;
 import com.flightstats.hub.metrics.ActiveTraces;
 import com.flightstats.hub.model.ContentKey;
-import com.flightstats.hub.model.ContentPath;
 import com.flightstats.hub.model.DirectionQuery;
+import com.flightstats.hub.model.TimeQuery;
 import com.flightstats.hub.util.TimeUtil;
-import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
 import org.joda.time.Duration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Iterator;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -23,12 +20,48 @@ class S3Util {
 
     private final static Logger logger = LoggerFactory.getLogger(S3Util.class);
 
-    static SortedSet<ContentKey> queryPrevious(DirectionQuery query, ContentDao dao) {
-        DateTime endTime = query.getStartKey().getTime();
-        DateTime queryTime = endTime;
+    /**
+     * Walks back from the start key by hours, then days, then months, reading the periods ahead in parallel
+     * until enough keys are found.
+     */
+    static SortedSet<ContentKey> queryPrevious(DirectionQuery query, ContentDao dao, S3FetchScheduler fetchScheduler) {
         SortedSet<ContentKey> keys = new TreeSet<>();
-        DateTime earliestTime = query.getEarliestTime().minusHours(1);
-        while (keys.size() < query.getCount() && queryTime.isAfter(earliestTime)) {
+        fetchScheduler.fetch(new PreviousPeriods(query), dao::queryByTime, contentKeys -> {
+            SortedSet<ContentKey> merged = new TreeSet<>(contentKeys);
+            merged.addAll(keys);
+            SortedSet<ContentKey> filtered = ContentKeyUtil.filter(merged, query);
+            keys.clear();
+            keys.addAll(filtered);
+            return keys.size() < query.getCount();
+        });
+        ActiveTraces.getLocal().add("queryPrevious returning", keys);
+        return keys;
+    }
+
+    /**
+     * Each period's query is limited to the end of the period, so periods read ahead do not overlap.
+     */
+    private static class PreviousPeriods implements Iterator<TimeQuery> {
+
+        private final DirectionQuery query;
+        private final DateTime endTime;
+        private DateTime queryTime;
+        private DateTime earliestTime;
+
+        PreviousPeriods(DirectionQuery query) {
+            this.query = query;
+            endTime = query.getStartKey().getTime();
+            queryTime = endTime;
+            earliestTime = query.getEarliestTime().minusHours(1);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return queryTime.isAfter(earliestTime);
+        }
+
+        @Override
+        public TimeQuery next() {
             TimeUtil.Unit unit = TimeUtil.Unit.HOURS;
             Duration duration = new Duration(queryTime, endTime);
             if (duration.getStandardDays() >= 2) {
@@ -38,48 +71,19 @@ class S3Util {
             if (duration.getStandardDays() >= 31) {
                 unit = TimeUtil.Unit.MONTHS;
             }
-            SortedSet<ContentKey> contentKeys = dao.queryByTime(query.convert(queryTime, unit));
-            contentKeys.addAll(keys);
-            keys = ContentKeyUtil.filter(contentKeys, query);
-            queryTime = queryTime.minus(unit.getDuration());
-        }
-
-        ActiveTraces.getLocal().add("queryPrevious returning", keys);
-        return keys;
-    }
-
-    public static void delete(String channelPath, ContentKey limitKey, String s3BucketName, HubS3Client s3Client) {
-        //noinspection StatementWithEmptyBody
-        while (internalDelete(channelPath, limitKey, s3BucketName, s3Client)) {
-        }
-        internalDelete(channelPath, limitKey, s3BucketName, s3Client);
-    }
-
-    private static boolean internalDelete(String channelPath, ContentKey limitKey, String s3BucketName, HubS3Client s3Client) {
-        ListObjectsRequest request = new ListObjectsRequest();
-        request.withBucketName(s3BucketName);
-        request.withPrefix(channelPath);
-        ObjectListing listing = s3Client.listObjects(request);
-        List<DeleteObjectsRequest.KeyVersion> keys = new ArrayList<>();
-        for (S3ObjectSummary objectSummary : listing.getObjectSummaries()) {
-            ContentPath contentKey = ContentPath.fromUrl(StringUtils.substringAfter(objectSummary.getKey(), channelPath)).get();
-            if (contentKey.compareTo(limitKey) < 0) {
-                keys.add(new DeleteObjectsRequest.KeyVersion(objectSummary.getKey()));
+            DateTime periodEnd;
+            if (unit.equals(TimeUtil.Unit.MONTHS)) {
+                periodEnd = TimeUtil.Unit.DAYS.round(queryTime).withDayOfMonth(1).plusMonths(1);
+            } else {
+                periodEnd = unit.round(queryTime).plus(unit.getDuration());
             }
+            ContentKey limitKey = query.getStartKey();
+            if (periodEnd.isBefore(limitKey.getTime())) {
+                limitKey = ContentKey.lastKey(periodEnd.minusMillis(1));
+            }
+            TimeQuery timeQuery = query.convert(unit).startTime(queryTime).limitKey(limitKey).build();
+            queryTime = queryTime.minus(unit.getDuration());
+            return timeQuery;
         }
-        if (keys.isEmpty()) {
-            return false;
-        }
-        DeleteObjectsRequest multiObjectDeleteRequest = new DeleteObjectsRequest(s3BucketName);
-        multiObjectDeleteRequest.setKeys(keys);
-        try {
-            s3Client.deleteObjects(multiObjectDeleteRequest);
-            logger.info("deleting more from " + channelPath + " deleted " + keys.size());
-            ActiveTraces.getLocal().add("S3Util.internalDelete", channelPath, keys.size());
-        } catch (MultiObjectDeleteException e) {
-            logger.info("what happened? " + channelPath, e);
-            return true;
-        }
-        return listing.isTruncated();
     }
 }
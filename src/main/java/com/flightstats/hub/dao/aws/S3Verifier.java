@@ -5,49 +5,53 @@ import com.flightstats.hub.app.HubServices;
 import com.flightstats.hub.cluster.*;
 import com.flightstats.hub.dao.ChannelService;
 import com.flightstats.hub.dao.ContentDao;
-import com.flightstats.hub.dao.QueryResult;
 import com.flightstats.hub.exception.FailedQueryException;
 import com.flightstats.hub.metrics.ActiveTraces;
 import com.flightstats.hub.metrics.MetricsService;
 import com.flightstats.hub.metrics.Traces;
 import com.flightstats.hub.model.*;
 import com.flightstats.hub.spoke.SpokeStore;
-import com.flightstats.hub.util.HubUtils;
 import com.flightstats.hub.util.RuntimeInterruptedException;
-import com.flightstats.hub.util.Sleeper;
 import com.flightstats.hub.util.TimeUtil;
 import com.google.common.util.concurrent.AbstractScheduledService;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
-import com.sun.jersey.api.client.Client;
-import com.sun.jersey.api.client.ClientResponse;
-import org.apache.curator.framework.CuratorFramework;
 import org.joda.time.DateTime;
-import org.joda.time.Duration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.SortedSet;
-import java.util.TreeSet;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
+/**
+ * S3Verifier finds single items which are in Spoke but not in S3, and adds them to the {@link S3WriteQueue}.
+ * <p>
+ * Channels are partitioned across the cluster by the hash of the channel name, the same way as {@link S3BatchWriter},
+ * and each hub verifies its own channels every s3Verifier.offsetMinutes.
+ * A channel's range is compared s3Verifier.windowMinutes at a time, by merging the sorted keys from Spoke and S3,
+ * and the progress is saved in {@link LastContentPath} after each window, so a channel which moves to another hub
+ * continues where it left off.
+ */
 @Singleton
 public class S3Verifier {
 
     static final String LAST_SINGLE_VERIFIED = "/S3VerifierSingleLastVerified/";
     private final static Logger logger = LoggerFactory.getLogger(S3Verifier.class);
-    public static final String LEADER_PATH = "/S3VerifierSingleService";
     public static final String MISSING_ITEM_METRIC_NAME = "s3.verifier.missing";
+    static final String LAG_METRIC_NAME = "s3.verifier.lag";
 
     private final int offsetMinutes = HubProperties.getProperty("s3Verifier.offsetMinutes", 15);
+    private final int windowMinutes = Math.max(1, HubProperties.getProperty("s3Verifier.windowMinutes", 10));
     private final int channelThreads = HubProperties.getProperty("s3Verifier.channelThreads", 3);
     private final ExecutorService channelThreadPool = Executors.newFixedThreadPool(channelThreads, new ThreadFactoryBuilder().setNameFormat("S3VerifierChannel-%d").build());
     private final ExecutorService queryThreadPool = Executors.newFixedThreadPool(channelThreads * 2, new ThreadFactoryBuilder().setNameFormat("S3VerifierQuery-%d").build());
+    private final Set<String> activeChannels = ConcurrentHashMap.newKeySet();
+    private final Map<String, DateTime> lastVerified = new ConcurrentHashMap<>();
     @Inject
     private LastContentPath lastContentPath;
     @Inject
@@ -61,11 +65,8 @@ public class S3Verifier {
     @Inject
     private S3WriteQueue s3WriteQueue;
     @Inject
-    private Client followClient;
-    @Inject
-    private ZooKeeperState zooKeeperState;
-    @Inject
-    private CuratorFramework curator;
+    @Named("HubCluster")
+    private Cluster hubCluster;
     @Inject
     private MetricsService metricsService;
 
@@ -77,41 +78,68 @@ public class S3Verifier {
 
     private void verifySingleChannels() {
         try {
+            List<String> servers = new ArrayList<>(hubCluster.getAllServers());
+            String localServer = Cluster.getHost(true);
+            Set<String> owned = new HashSet<>();
             logger.info("Verifying Single S3 data");
-            Iterable<ChannelConfig> channels = channelService.getChannels();
-            for (ChannelConfig channel : channels) {
-                if (channel.isSingle() || channel.isBoth()) {
-                    channelThreadPool.submit(() -> {
-                        String name = Thread.currentThread().getName();
-                        Thread.currentThread().setName(name + "|" + channel.getDisplayName());
-                        String url = HubProperties.getAppUrl() + "internal/s3Verifier/" + channel.getDisplayName();
-                        logger.debug("calling {}", url);
-                        ClientResponse post = null;
-                        try {
-                            post = followClient.resource(url).post(ClientResponse.class);
-                            logger.debug("response from post {}", post);
-                        } finally {
-                            HubUtils.close(post);
-                            Thread.currentThread().setName(name);
-                        }
-                    });
+            for (ChannelConfig channel : channelService.getChannels()) {
+                String name = channel.getDisplayName();
+                if (!(channel.isSingle() || channel.isBoth()) || !S3BatchWriter.isOwner(name, servers, localServer)) {
+                    continue;
                 }
+                owned.add(name);
+                if (!activeChannels.add(name)) {
+                    logger.debug("channel is still being verified {}", name);
+                    continue;
+                }
+                channelThreadPool.submit(() -> {
+                    String threadName = Thread.currentThread().getName();
+                    Thread.currentThread().setName(threadName + "|" + name);
+                    try {
+                        verifyChannel(name);
+                    } catch (Exception e) {
+                        logger.warn("unable to verify " + name, e);
+                    } finally {
+                        activeChannels.remove(name);
+                        Thread.currentThread().setName(threadName);
+                    }
+                });
             }
+            lastVerified.keySet().retainAll(owned);
+            reportLag(servers, localServer, owned.size());
             logger.info("Completed Verifying Single S3 data");
         } catch (Exception e) {
             logger.error("Error: ", e);
         }
     }
 
+    /**
+     * The lag of this hub's partition is the age of the least recently verified channel it owns.
+     */
+    private void reportLag(List<String> servers, String localServer, int channels) {
+        Collections.sort(servers);
+        String partition = "partition:" + servers.indexOf(localServer);
+        DateTime oldest = lastVerified.values().stream().min(Comparator.naturalOrder()).orElse(null);
+        long lag = oldest == null ? 0 : TimeUtil.now().getMillis() - oldest.getMillis();
+        metricsService.gauge(LAG_METRIC_NAME, lag, partition);
+        metricsService.gauge("s3.verifier.channels", channels, partition);
+        logger.info("{} owns {} channels with lag {} ms", partition, channels, lag);
+    }
+
     void verifyChannel(String channelName) {
-        DateTime now = TimeUtil.now();
-        ChannelConfig channel = channelService.getChannelConfig(channelName, false);
-        if (channel == null) {
-            return;
-        }
-        VerifierRange range = getSingleVerifierRange(now, channel);
-        if (range != null) {
-            verifyChannel(range);
+        S3Governor.Priority previous = S3Governor.setPriority(S3Governor.Priority.VERIFIER);
+        try {
+            DateTime now = TimeUtil.now();
+            ChannelConfig channel = channelService.getChannelConfig(channelName, false);
+            if (channel == null) {
+                return;
+            }
+            VerifierRange range = getSingleVerifierRange(now, channel);
+            if (range != null) {
+                verifyChannel(range);
+            }
+        } finally {
+            S3Governor.setPriority(previous);
         }
     }
 
@@ -131,57 +159,81 @@ public class S3Verifier {
 
     private void verifyChannel(VerifierRange range) {
         String channelName = range.channel.getDisplayName();
-        SortedSet<ContentKey> keysToAdd = getMissing(range.startPath, range.endPath, channelName, s3SingleContentDao, new TreeSet<>());
         logger.debug("verifyChannel.starting {}", range);
-        for (ContentKey key : keysToAdd) {
-            logger.trace("found missing {} {}", channelName, key);
-            metricsService.increment(MISSING_ITEM_METRIC_NAME);
-            s3WriteQueue.add(new ChannelContentKey(channelName, key));
+        MinutePath start = range.startPath;
+        while (start.compareTo(range.endPath) < 0) {
+            MinutePath end = new MinutePath(start.getTime().plusMinutes(windowMinutes));
+            if (end.compareTo(range.endPath) > 0) {
+                end = range.endPath;
+            }
+            int missing = verifyWindow(channelName, start, end);
+            logger.trace("verified {} {} to {} missing {}", channelName, start, end, missing);
+            lastContentPath.updateIncrease(end, channelName, LAST_SINGLE_VERIFIED);
+            lastVerified.put(channelName, end.getTime());
+            start = end;
         }
         logger.debug("verifyChannel.completed {}", range);
-        lastContentPath.updateIncrease(range.endPath, range.channel.getDisplayName(), LAST_SINGLE_VERIFIED);
     }
 
-    private SortedSet<ContentKey> getMissing(MinutePath startPath, MinutePath endPath, String channelName, ContentDao s3ContentDao,
-                                             SortedSet<ContentKey> foundCacheKeys) {
-        QueryResult queryResult = new QueryResult(1);
-        SortedSet<ContentKey> longTermKeys = new TreeSet<>();
-        TimeQuery.TimeQueryBuilder builder = TimeQuery.builder()
+    /**
+     * Adds the keys which are in Spoke and not in S3 between startPath and endPath to the write queue.
+     *
+     * @return the number of missing keys
+     */
+    private int verifyWindow(String channelName, MinutePath startPath, MinutePath endPath) {
+        TimeQuery timeQuery = TimeQuery.builder()
                 .channelName(channelName)
                 .startTime(startPath.getTime())
-                .unit(TimeUtil.Unit.MINUTES);
-        long timeout = 1;
-        if (endPath != null) {
-            Duration duration = new Duration(startPath.getTime(), endPath.getTime());
-            timeout += duration.getStandardDays();
-            builder.limitKey(ContentKey.lastKey(endPath.getTime()));
-        }
-        TimeQuery timeQuery = builder.build();
+                .unit(TimeUtil.Unit.MINUTES)
+                .limitKey(ContentKey.lastKey(endPath.getTime()))
+                .build();
+        AtomicReference<SortedSet<ContentKey>> spokeKeys = new AtomicReference<>();
+        AtomicReference<SortedSet<ContentKey>> longTermKeys = new AtomicReference<>();
         try {
             CountDownLatch latch = new CountDownLatch(2);
-            runInQueryPool(ActiveTraces.getLocal(), latch, () -> {
-                SortedSet<ContentKey> spokeKeys = spokeWriteContentDao.queryByTime(timeQuery);
-                foundCacheKeys.addAll(spokeKeys);
-                queryResult.addKeys(spokeKeys);
-            });
-            runInQueryPool(ActiveTraces.getLocal(), latch, () -> longTermKeys.addAll(s3ContentDao.queryByTime(timeQuery)));
-            latch.await(timeout, TimeUnit.MINUTES);
-            queryResult.getContentKeys().removeAll(longTermKeys);
-            if (queryResult.getContentKeys().size() > 0) {
-                logger.info("missing items {} {}", channelName, queryResult.getContentKeys());
-            }
-            if (queryResult.hadSuccess()) {
-                return queryResult.getContentKeys();
-            }
-            throw new FailedQueryException("unable to query spoke");
+            runInQueryPool(ActiveTraces.getLocal(), latch, () -> spokeKeys.set(spokeWriteContentDao.queryByTime(timeQuery)));
+            runInQueryPool(ActiveTraces.getLocal(), latch, () -> longTermKeys.set(s3SingleContentDao.queryByTime(timeQuery)));
+            latch.await(1, TimeUnit.MINUTES);
         } catch (InterruptedException e) {
             throw new RuntimeInterruptedException(e);
         }
+        if (spokeKeys.get() == null) {
+            throw new FailedQueryException("unable to query spoke " + channelName + " " + startPath);
+        }
+        if (longTermKeys.get() == null) {
+            throw new FailedQueryException("unable to query S3 " + channelName + " " + startPath);
+        }
+        AtomicInteger missing = new AtomicInteger();
+        diff(spokeKeys.get().iterator(), longTermKeys.get().iterator(), key -> {
+            logger.trace("found missing {} {}", channelName, key);
+            metricsService.increment(MISSING_ITEM_METRIC_NAME);
+            s3WriteQueue.add(new ChannelContentKey(channelName, key));
+            missing.incrementAndGet();
+        });
+        return missing.get();
+    }
+
+    /**
+     * Merges two sorted key streams, passing the keys in expected and not in actual to missing.
+     */
+    static void diff(Iterator<ContentKey> expected, Iterator<ContentKey> actual, Consumer<ContentKey> missing) {
+        ContentKey found = actual.hasNext() ? actual.next() : null;
+        while (expected.hasNext()) {
+            ContentKey key = expected.next();
+            while (found != null && found.compareTo(key) < 0) {
+                found = actual.hasNext() ? actual.next() : null;
+            }
+            if (found == null || !found.equals(key)) {
+                missing.accept(key);
+            }
+        }
     }
 
     private void runInQueryPool(Traces traces, CountDownLatch countDownLatch, Runnable runnable) {
+        S3Governor.Priority priority = S3Governor.getPriority();
         queryThreadPool.submit(() -> {
             ActiveTraces.setLocal(traces);
+            S3Governor.setPriority(priority);
             try {
                 runnable.run();
             } finally {
@@ -209,30 +261,22 @@ public class S3Verifier {
         }
     }
 
-    private class S3ScheduledVerifierService extends AbstractScheduledService implements Lockable {
+    private class S3ScheduledVerifierService extends AbstractScheduledService {
 
         @Override
         protected void runOneIteration() throws Exception {
-            CuratorLock curatorLock = new CuratorLock(curator, zooKeeperState, LEADER_PATH);
-            curatorLock.runWithLock(this, 1, TimeUnit.SECONDS);
+            verifySingleChannels();
         }
 
+        @Override
         protected Scheduler scheduler() {
             return Scheduler.newFixedDelaySchedule(0, offsetMinutes, TimeUnit.MINUTES);
         }
 
         @Override
-        public void takeLeadership(Leadership leadership) throws Exception {
-            logger.info("taking leadership");
-            while (leadership.hasLeadership()) {
-                long start = System.currentTimeMillis();
-                verifySingleChannels();
-                long sleep = TimeUnit.MINUTES.toMillis(offsetMinutes) - (System.currentTimeMillis() - start);
-                logger.debug("sleeping for {} ms", sleep);
-                Sleeper.sleep(Math.max(0, sleep));
-                logger.debug("waking up after sleep");
-            }
-            logger.info("lost leadership");
+        protected void shutDown() throws Exception {
+            channelThreadPool.shutdown();
+            queryThreadPool.shutdown();
         }
     }
 }
@@ -0,0 +1,122 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.app.HubServices;
+import com.flightstats.hub.metrics.MetricsService;
+import com.flightstats.hub.model.ChannelContentKey;
+import com.flightstats.hub.model.Content;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * S3WriteBuffer keeps the marshalled bytes of items inserted on this hub until {@link S3WriteQueue} has written
+ * them to S3, so the queue only reads from Spoke when the item has been evicted, or was inserted elsewhere.
+ * The buffer is bounded by s3.writeBuffer.maxMB and s3.writeBuffer.ttlSeconds.
+ */
+@Singleton
+public class S3WriteBuffer {
+
+    private final AtomicLong bytes = new AtomicLong();
+    private final Cache<ChannelContentKey, Entry> cache;
+    private final MetricsService metricsService;
+    private CacheStats lastStats = new CacheStats(0, 0, 0, 0, 0, 0);
+
+    @Inject
+    public S3WriteBuffer(MetricsService metricsService) {
+        this.metricsService = metricsService;
+        long maxBytes = HubProperties.getProperty("s3.writeBuffer.maxMB", 256) * 1024L * 1024L;
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((ChannelContentKey key, Entry entry) -> entry.bytes.length)
+                .expireAfterWrite(HubProperties.getProperty("s3.writeBuffer.ttlSeconds", 300), TimeUnit.SECONDS)
+                .removalListener(notification -> bytes.addAndGet(-notification.getValue().bytes.length))
+                .recordStats()
+                .build();
+        HubServices.register(new S3WriteBufferMetricsService());
+    }
+
+    /**
+     * @param content an item which has already been packaged
+     */
+    void put(String channel, Content content) {
+        byte[] data = content.getData();
+        if (data == null || !content.getContentKey().isPresent()) {
+            return;
+        }
+        cache.put(new ChannelContentKey(channel, content.getContentKey().get()),
+                new Entry(data, content.getContentType(), content.getSize()));
+        bytes.addAndGet(data.length);
+    }
+
+    /**
+     * @return a packaged copy of the item, or null if it is not buffered
+     */
+    Content get(ChannelContentKey key) {
+        Entry entry = cache.getIfPresent(key);
+        if (entry == null) {
+            metricsService.increment("s3.writeBuffer.miss");
+            return null;
+        }
+        metricsService.increment("s3.writeBuffer.hit");
+        Content.Builder builder = Content.builder()
+                .withContentKey(key.getContentKey())
+                .withData(entry.bytes)
+                .withSize(entry.size);
+        if (entry.contentType.isPresent()) {
+            builder.withContentType(entry.contentType.get());
+        }
+        return builder.build();
+    }
+
+    void remove(ChannelContentKey key) {
+        cache.invalidate(key);
+    }
+
+    long getBytes() {
+        return bytes.get();
+    }
+
+    private void reportMetrics() {
+        cache.cleanUp();
+        CacheStats stats = cache.stats();
+        CacheStats interval = stats.minus(lastStats);
+        lastStats = stats;
+        metricsService.gauge("s3.writeBuffer.bytes", bytes.get());
+        metricsService.gauge("s3.writeBuffer.items", cache.size());
+        metricsService.gauge("s3.writeBuffer.hitRatio", interval.requestCount() == 0 ? 1 : interval.hitRate());
+        metricsService.gauge("s3.writeBuffer.evictions", interval.evictionCount());
+    }
+
+    private static class Entry {
+        private final byte[] bytes;
+        private final Optional<String> contentType;
+        private final Long size;
+
+        Entry(byte[] bytes, Optional<String> contentType, Long size) {
+            this.bytes = bytes;
+            this.contentType = contentType;
+            this.size = size;
+        }
+    }
+
+    private class S3WriteBufferMetricsService extends AbstractScheduledService {
+
+        @Override
+        protected void runOneIteration() throws Exception {
+            reportMetrics();
+        }
+
+        @Override
+        protected Scheduler scheduler() {
+            return Scheduler.newFixedDelaySchedule(10, 10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -2,17 +2,20 @@ package com.flightstats.hub.dao.aws;
 
 
 import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.app.HubServices;
 import com.flightstats.hub.dao.ContentDao;
 import com.flightstats.hub.exception.FailedReadException;
 import com.flightstats.hub.metrics.ActiveTraces;
 import com.flightstats.hub.metrics.MetricsService;
 import com.flightstats.hub.model.ChannelContentKey;
 import com.flightstats.hub.model.Content;
+import com.flightstats.hub.spoke.SpokeStore;
 import com.flightstats.hub.util.Sleeper;
 import com.github.rholder.retry.Retryer;
 import com.github.rholder.retry.RetryerBuilder;
 import com.github.rholder.retry.StopStrategies;
 import com.github.rholder.retry.WaitStrategies;
+import com.google.common.util.concurrent.AbstractScheduledService;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -20,12 +23,21 @@ import com.google.inject.name.Named;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.BlockingQueue;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * S3WriteQueue copies single items from the spoke write cache to S3.
+ * <p>
+ * Pending keys are kept in a {@link DiskQueue} under s3.writeQueue.path, so they survive a restart,
+ * and writes which still fail after retrying go back on the queue instead of being dropped.
+ * Keys older than the spoke write ttl can no longer be read, and are skipped.
+ * Items inserted on this hub are read from the {@link S3WriteBuffer}, and from Spoke otherwise.
+ * Failed writes are only retried within the {@link S3Governor} retry budget.
+ */
 @SuppressWarnings("WeakerAccess")
 @Singleton
 public class S3WriteQueue {
@@ -33,11 +45,12 @@ public class S3WriteQueue {
     private final static Logger logger = LoggerFactory.getLogger(S3WriteQueue.class);
 
     private static final int THREADS = HubProperties.getS3WriteQueueThreads();
-    private static final int QUEUE_SIZE = HubProperties.getS3WriteQueueSize();
+    private final long spokeTtlMillis = TimeUnit.MINUTES.toMillis(HubProperties.getSpokeTtlMinutes(SpokeStore.WRITE));
     private Retryer<Void> retryer = buildRetryer();
-    private BlockingQueue<ChannelContentKey> keys = new LinkedBlockingQueue<>(QUEUE_SIZE);
+    private final DiskQueue queue;
     private ExecutorService executorService = Executors.newFixedThreadPool(THREADS,
             new ThreadFactoryBuilder().setNameFormat("S3WriteQueue-%d").build());
+    private volatile boolean running = true;
     @Inject
     @Named(ContentDao.WRITE_CACHE)
     private ContentDao spokeWriteContentDao;
@@ -45,93 +58,177 @@ public class S3WriteQueue {
     @Named(ContentDao.SINGLE_LONG_TERM)
     private ContentDao s3SingleContentDao;
     @Inject
+    private S3WriteBuffer s3WriteBuffer;
+    @Inject
     private MetricsService metricsService;
+    @Inject
+    private S3Governor s3Governor;
 
     @Inject
-    private S3WriteQueue() throws InterruptedException {
-        logger.info("queue size {}", QUEUE_SIZE);
+    private S3WriteQueue() throws IOException {
+        String path = HubProperties.getProperty("s3.writeQueue.path", "/spoke/s3WriteQueue");
+        long maxBytes = HubProperties.getS3WriteQueueMaxMB() * 1024L * 1024L;
+        long segmentBytes = HubProperties.getProperty("s3.writeQueue.segmentMB", 16) * 1024L * 1024L;
+        queue = new DiskQueue(Paths.get(path), maxBytes, segmentBytes, HubProperties.getProperty("s3.writeQueue.fsync", false));
+        logger.info("queue path {} maxMB {} threads {}", path, HubProperties.getS3WriteQueueMaxMB(), THREADS);
         for (int i = 0; i < THREADS; i++) {
             executorService.submit(() -> {
+                S3Governor.setPriority(S3Governor.Priority.WRITE);
                 try {
-                    while (true) {
+                    while (running) {
                         write();
                     }
                 } catch (Exception e) {
                     logger.warn("exited thread", e);
-                    return null;
                 }
+                return null;
             });
         }
+        HubServices.registerPreStop(new S3WriteQueueService());
     }
 
     private void write() throws InterruptedException {
+        DiskQueue.Record record;
+        try {
+            record = queue.take(5, TimeUnit.SECONDS);
+        } catch (IOException e) {
+            logger.warn("unable to read queue", e);
+            Sleeper.sleep(1000);
+            return;
+        }
+        if (record == null) {
+            return;
+        }
         try {
-            ChannelContentKey key = keys.poll(5, TimeUnit.SECONDS);
-            if (key != null) {
-                metricsService.gauge("s3.writeQueue.used", keys.size());
-                metricsService.count("s3.writeQueue.age.removed", key.getAgeMS(), "key:" + key.toString());
+            ChannelContentKey key = ChannelContentKey.fromResourcePath(record.getValue());
+            metricsService.count("s3.writeQueue.age.removed", key.getAgeMS(), "key:" + key.toString());
+            if (key.getAgeMS() > spokeTtlMillis) {
+                logger.warn("skipping key past the spoke ttl {}", key);
+                metricsService.increment("s3.writeQueue.expired");
+                return;
             }
-            retryer.call(() -> {
-                writeContent(key);
-                return null;
-            });
-        } catch (Exception e) {
-            logger.warn("unable to call s3", e);
+            try {
+                retryer.call(() -> {
+                    writeContent(key);
+                    return null;
+                });
+            } catch (Exception e) {
+                logger.warn("unable to call s3, requeueing " + key, e);
+                metricsService.increment("s3.writeQueue.requeued");
+                add(key);
+            }
+        } catch (IllegalArgumentException e) {
+            logger.warn("skipping invalid record " + record, e);
+        } finally {
+            queue.complete(record);
         }
     }
 
     private void writeContent(ChannelContentKey key) throws Exception {
-        if (key != null) {
-            ActiveTraces.start("S3WriteQueue.writeContent", key);
-            try {
-                logger.trace("writing {}", key.getContentKey());
-                Content content = spokeWriteContentDao.get(key.getChannel(), key.getContentKey());
-                content.packageStream();
-                if (content.getData() == null) {
+        ActiveTraces.start("S3WriteQueue.writeContent", key);
+        try {
+            logger.trace("writing {}", key.getContentKey());
+            Content content = s3WriteBuffer.get(key);
+            if (content == null) {
+                content = spokeWriteContentDao.get(key.getChannel(), key.getContentKey());
+                if (content == null) {
                     throw new FailedReadException("unable to read " + key.toString());
                 }
-                s3SingleContentDao.insert(key.getChannel(), content);
-            } finally {
-                ActiveTraces.end();
+                content.packageStream();
+            }
+            if (content.getData() == null) {
+                throw new FailedReadException("unable to read " + key.toString());
             }
+            s3SingleContentDao.insert(key.getChannel(), content);
+            s3WriteBuffer.remove(key);
+        } finally {
+            ActiveTraces.end();
         }
     }
 
+    /**
+     * Keys are only dropped if the queue is out of disk space or unwritable, which S3Verifier repairs later.
+     */
     public void add(ChannelContentKey key) {
-        boolean value = keys.offer(key);
-        if (value) {
-            metricsService.gauge("s3.writeQueue.used", keys.size());
-            metricsService.count("s3.writeQueue.age.added", key.getAgeMS(), "key:" + key.toString());
-        } else {
-            logger.warn("Add to queue failed - out of queue space. key= {}", key);
-            metricsService.increment("s3.writeQueue.dropped");
+        try {
+            if (queue.append(key.toUrl())) {
+                metricsService.count("s3.writeQueue.age.added", key.getAgeMS(), "key:" + key.toString());
+                return;
+            }
+            logger.error("Add to queue failed - out of queue space. key= {}", key);
+        } catch (IOException e) {
+            logger.error("Add to queue failed. key= " + key, e);
         }
+        metricsService.increment("s3.writeQueue.dropped");
     }
 
-    public void close() {
-        int count = 0;
-        while (keys.size() > 0) {
-            count++;
-            logger.info("waiting for keys {}", keys.size());
-            if (count >= 60) {
-                logger.warn("waited too long for keys {}", keys.size());
-                return;
+    private void reportMetrics() {
+        metricsService.gauge("s3.writeQueue.used", queue.getDepth());
+        metricsService.gauge("s3.writeQueue.bytes", queue.getBytes());
+        String oldest = queue.getOldestInFlight();
+        long age = 0;
+        if (oldest != null) {
+            try {
+                age = ChannelContentKey.fromResourcePath(oldest).getAgeMS();
+            } catch (IllegalArgumentException e) {
+                logger.debug("invalid record {}", oldest);
             }
-            Sleeper.sleepQuietly(1000);
         }
+        metricsService.gauge("s3.writeQueue.age", age);
+    }
+
+    /**
+     * Stops the writers, leaving any pending keys on disk for the next start.
+     */
+    public void close() {
+        running = false;
         executorService.shutdown();
+        try {
+            if (!executorService.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.warn("writers did not stop, {} keys pending", queue.getDepth());
+            }
+            queue.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.warn("unable to close queue", e);
+        }
     }
 
     private Retryer<Void> buildRetryer() {
         return RetryerBuilder.<Void>newBuilder()
                 .retryIfException(throwable -> {
-                    if (throwable != null) {
-                        logger.warn("unable to write to S3 " + throwable.getMessage());
+                    if (throwable == null) {
+                        return false;
                     }
-                    return throwable != null;
+                    logger.warn("unable to write to S3 " + throwable.getMessage());
+                    return s3Governor.tryRetry();
                 })
                 .withWaitStrategy(WaitStrategies.exponentialWait(1000, 1, TimeUnit.MINUTES))
                 .withStopStrategy(StopStrategies.stopAfterAttempt(3))
                 .build();
     }
+
+    private class S3WriteQueueService extends AbstractScheduledService {
+
+        @Override
+        protected void runOneIteration() throws Exception {
+            try {
+                queue.checkpoint();
+                reportMetrics();
+            } catch (Exception e) {
+                logger.warn("unable to checkpoint queue", e);
+            }
+        }
+
+        @Override
+        protected Scheduler scheduler() {
+            return Scheduler.newFixedDelaySchedule(1, 1, TimeUnit.SECONDS);
+        }
+
+        @Override
+        protected void shutDown() throws Exception {
+            close();
+        }
+    }
 }
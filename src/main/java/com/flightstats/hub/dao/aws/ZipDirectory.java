@@ -0,0 +1,78 @@
+package com.flightstats.hub.dao.aws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * ZipDirectory reads the central directory of a zip to find the byte range of each entry.
+ * A range covers the entry's local header, data and data descriptor, so the range can be read on its own
+ * with a ZipInputStream.
+ */
+class ZipDirectory {
+
+    private final static Logger logger = LoggerFactory.getLogger(ZipDirectory.class);
+
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int END_LENGTH = 22;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_LENGTH = 46;
+
+    /**
+     * @return the [start, end) range of each entry by name, or an empty map if the zip can not be read, or is a zip64
+     */
+    static Map<String, long[]> read(byte[] zip) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN);
+            int end = findEnd(buffer);
+            if (end < 0) {
+                return Collections.emptyMap();
+            }
+            int entries = buffer.getShort(end + 10) & 0xFFFF;
+            long centralOffset = buffer.getInt(end + 16) & 0xFFFFFFFFL;
+            if (entries == 0xFFFF || centralOffset == 0xFFFFFFFFL) {
+                return Collections.emptyMap();
+            }
+            TreeMap<Long, String> namesByOffset = new TreeMap<>();
+            int position = (int) centralOffset;
+            for (int i = 0; i < entries; i++) {
+                if (buffer.getInt(position) != CENTRAL_SIGNATURE) {
+                    logger.warn("unexpected central directory signature at {}", position);
+                    return Collections.emptyMap();
+                }
+                int nameLength = buffer.getShort(position + 28) & 0xFFFF;
+                int extraLength = buffer.getShort(position + 30) & 0xFFFF;
+                int commentLength = buffer.getShort(position + 32) & 0xFFFF;
+                long localOffset = buffer.getInt(position + 42) & 0xFFFFFFFFL;
+                String name = new String(zip, position + CENTRAL_LENGTH, nameLength, StandardCharsets.UTF_8);
+                namesByOffset.put(localOffset, name);
+                position += CENTRAL_LENGTH + nameLength + extraLength + commentLength;
+            }
+            Map<String, long[]> ranges = new LinkedHashMap<>();
+            for (Map.Entry<Long, String> entry : namesByOffset.entrySet()) {
+                Long next = namesByOffset.higherKey(entry.getKey());
+                long rangeEnd = next == null ? centralOffset : next;
+                ranges.put(entry.getValue(), new long[]{entry.getKey(), rangeEnd});
+            }
+            return ranges;
+        } catch (IndexOutOfBoundsException e) {
+            logger.warn("unable to read zip directory", e);
+            return Collections.emptyMap();
+        }
+    }
+
+    private static int findEnd(ByteBuffer buffer) {
+        int last = buffer.limit() - END_LENGTH;
+        int first = Math.max(0, last - 0xFFFF);
+        for (int i = last; i >= first; i--) {
+            if (buffer.getInt(i) == END_SIGNATURE) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,167 @@
+package com.flightstats.hub.events;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.model.ContentPath;
+import com.flightstats.hub.model.MinutePath;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A local websocket or SSE client of a channel.
+ * Keys are buffered in a bounded queue and sent asynchronously in order.
+ * A subscriber which falls behind by more than broadcast.subscriber.buffer items is closed.
+ * A subscriber with a non-blocking transport overrides {@link #sendAsync(ContentKey)}, so no send thread waits
+ * on a slow client, and has one send outstanding at a time.
+ */
+public abstract class BroadcastSubscriber {
+
+    private final static Logger logger = LoggerFactory.getLogger(BroadcastSubscriber.class);
+
+    private final String id;
+    private final String channel;
+    private final ContentKey startingKey;
+    private final BlockingQueue<ContentPath> queue;
+    private final AtomicBoolean sending = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private ContentKey lastOffered;
+    private Broadcaster broadcaster;
+
+    protected BroadcastSubscriber(String id, String channel, ContentKey startingKey) {
+        this.id = id;
+        this.channel = channel;
+        this.startingKey = startingKey;
+        this.lastOffered = startingKey;
+        this.queue = new ArrayBlockingQueue<>(HubProperties.getProperty("broadcast.subscriber.buffer", 1000));
+    }
+
+    protected abstract void send(ContentKey key) throws Exception;
+
+    /**
+     * @return completes when the key is sent, the next key is not sent until then
+     */
+    protected CompletableFuture<Void> sendAsync(ContentKey key) throws Exception {
+        send(key);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    protected void sendHeartbeat(MinutePath minutePath) throws Exception {
+        //do nothing by default
+    }
+
+    protected abstract void onClose();
+
+    void start(Broadcaster broadcaster) {
+        this.broadcaster = broadcaster;
+    }
+
+    /**
+     * Called by the channel's tail, keys are only queued once and in increasing order.
+     */
+    void offer(ContentPath path) {
+        if (closed.get()) {
+            return;
+        }
+        if (path instanceof ContentKey) {
+            if (path.compareTo(lastOffered) <= 0) {
+                return;
+            }
+            lastOffered = (ContentKey) path;
+        }
+        if (!queue.offer(path)) {
+            logger.info("closing slow subscriber {} with {} queued", id, queue.size());
+            broadcaster.slowSubscriber(this);
+            close();
+            return;
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (sending.compareAndSet(false, true)) {
+            broadcaster.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            ContentPath path;
+            while (!closed.get() && (path = queue.poll()) != null) {
+                if (path instanceof ContentKey) {
+                    CompletableFuture<Void> sent = sendAsync((ContentKey) path);
+                    if (!sent.isDone()) {
+                        sent.whenComplete((result, e) -> sent(e));
+                        return;
+                    }
+                    sent.join();
+                } else {
+                    sendHeartbeat((MinutePath) path);
+                }
+            }
+        } catch (Exception e) {
+            failed(e);
+        }
+        finished();
+    }
+
+    private void sent(Throwable e) {
+        if (e == null) {
+            broadcaster.execute(this::drain);
+        } else {
+            failed(e);
+            finished();
+        }
+    }
+
+    private void failed(Throwable e) {
+        logger.info("unable to send to {} {}", id, e.getMessage());
+        close();
+    }
+
+    private void finished() {
+        sending.set(false);
+        if (!closed.get() && !queue.isEmpty()) {
+            schedule();
+        }
+    }
+
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            logger.info("closing subscriber {}", id);
+            queue.clear();
+            if (broadcaster != null) {
+                broadcaster.unsubscribe(this);
+            }
+            try {
+                onClose();
+            } catch (Exception e) {
+                logger.info("unable to close " + id, e);
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    ContentKey getStartingKey() {
+        return startingKey;
+    }
+
+    public String toString() {
+        return "BroadcastSubscriber(id=" + id + ", channel=" + channel + ")";
+    }
+}
@@ -0,0 +1,158 @@
+package com.flightstats.hub.events;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.app.HubServices;
+import com.flightstats.hub.dao.ChannelService;
+import com.flightstats.hub.dao.ItemRequest;
+import com.flightstats.hub.metrics.MetricsService;
+import com.flightstats.hub.model.ChannelConfig;
+import com.flightstats.hub.model.ChannelContentKey;
+import com.flightstats.hub.model.Content;
+import com.flightstats.hub.model.ContentKey;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Broadcaster fans new items out to the websocket and SSE subscribers on this hub.
+ * Each channel with local subscribers is tailed once, and payloads are read once for all subscribers,
+ * so subscribers do not need a webhook.
+ */
+@Singleton
+public class Broadcaster {
+
+    private final static Logger logger = LoggerFactory.getLogger(Broadcaster.class);
+
+    private final int pollMillis = HubProperties.getProperty("broadcast.pollMillis", 1000);
+    private final int catchUpQueries = HubProperties.getProperty("broadcast.catchUpQueries", 10);
+    private final ScheduledExecutorService tailExecutor = Executors.newScheduledThreadPool(
+            HubProperties.getProperty("broadcast.tail.threads", 2),
+            new ThreadFactoryBuilder().setNameFormat("broadcast-tail-%d").setDaemon(true).build());
+    private final ExecutorService sendExecutor = Executors.newFixedThreadPool(
+            HubProperties.getProperty("broadcast.send.threads", 20),
+            new ThreadFactoryBuilder().setNameFormat("broadcast-send-%d").setDaemon(true).build());
+    private final Cache<ChannelContentKey, Optional<Content>> contentCache = CacheBuilder.newBuilder()
+            .maximumSize(HubProperties.getProperty("broadcast.content.cacheSize", 100))
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .build();
+    private final Map<String, ChannelTail> tails = new HashMap<>();
+    private final Map<ChannelTail, ScheduledFuture<?>> futures = new HashMap<>();
+
+    private final ChannelService channelService;
+    private final MetricsService metricsService;
+
+    @Inject
+    public Broadcaster(ChannelService channelService, MetricsService metricsService) {
+        this.channelService = channelService;
+        this.metricsService = metricsService;
+        HubServices.register(new BroadcasterMetricsService());
+    }
+
+    public void subscribe(BroadcastSubscriber subscriber) {
+        ChannelConfig channelConfig = channelService.getCachedChannelConfig(subscriber.getChannel());
+        logger.info("subscribing {} at {}", subscriber, subscriber.getStartingKey());
+        subscriber.start(this);
+        synchronized (this) {
+            String name = channelConfig.getLowerCaseName();
+            ChannelTail tail = tails.get(name);
+            if (tail == null) {
+                tail = new ChannelTail(channelConfig, channelService, catchUpQueries);
+                tails.put(name, tail);
+                ChannelTail channelTail = tail;
+                futures.put(tail, tailExecutor.scheduleWithFixedDelay(() -> poll(channelTail), 0, pollMillis, TimeUnit.MILLISECONDS));
+            }
+            tail.add(subscriber);
+        }
+    }
+
+    void unsubscribe(BroadcastSubscriber subscriber) {
+        logger.info("unsubscribing {}", subscriber);
+        ChannelTail tail;
+        synchronized (this) {
+            tail = tails.get(subscriber.getChannel().toLowerCase());
+        }
+        if (tail != null) {
+            tail.remove(subscriber);
+        }
+    }
+
+    private void poll(ChannelTail tail) {
+        if (!removeIfEmpty(tail)) {
+            tail.poll();
+        }
+    }
+
+    private synchronized boolean removeIfEmpty(ChannelTail tail) {
+        if (!tail.isEmpty()) {
+            return false;
+        }
+        logger.info("no subscribers for {}", tail.getChannel());
+        tails.remove(tail.getChannel().toLowerCase());
+        ScheduledFuture<?> future = futures.remove(tail);
+        if (future != null) {
+            future.cancel(false);
+        }
+        return true;
+    }
+
+    /**
+     * Read an item once for all of the subscribers which send payloads.
+     */
+    public Optional<Content> getContent(String channel, ContentKey key) {
+        try {
+            return contentCache.get(new ChannelContentKey(channel, key), () -> {
+                Optional<Content> content = channelService.get(ItemRequest.builder().channel(channel).key(key).build());
+                if (content.isPresent()) {
+                    content.get().getData();
+                }
+                return content;
+            });
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    void execute(Runnable runnable) {
+        sendExecutor.execute(runnable);
+    }
+
+    void slowSubscriber(BroadcastSubscriber subscriber) {
+        metricsService.increment("broadcast.slow", "channel:" + subscriber.getChannel());
+    }
+
+    synchronized int getChannelCount() {
+        return tails.size();
+    }
+
+    private synchronized int getSubscriberCount() {
+        int count = 0;
+        for (ChannelTail tail : tails.values()) {
+            count += tail.getSubscriberCount();
+        }
+        return count;
+    }
+
+    private class BroadcasterMetricsService extends AbstractScheduledService {
+
+        @Override
+        protected void runOneIteration() throws Exception {
+            metricsService.gauge("broadcast.channels", getChannelCount());
+            metricsService.gauge("broadcast.subscribers", getSubscriberCount());
+        }
+
+        @Override
+        protected Scheduler scheduler() {
+            return Scheduler.newFixedDelaySchedule(0, 1, TimeUnit.MINUTES);
+        }
+    }
+}
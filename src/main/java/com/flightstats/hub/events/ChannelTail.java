@@ -0,0 +1,122 @@
+package com.flightstats.hub.events;
+
+import com.flightstats.hub.dao.ChannelService;
+import com.flightstats.hub.metrics.ActiveTraces;
+import com.flightstats.hub.model.*;
+import com.flightstats.hub.util.TimeUtil;
+import com.flightstats.hub.webhook.QueryGenerator;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ChannelTail queries a channel once for all of the local subscribers, using the same stable queries as a webhook.
+ * Subscribers which start before the tail catch up with their own queries, then join the shared tail.
+ */
+class ChannelTail {
+
+    private final static Logger logger = LoggerFactory.getLogger(ChannelTail.class);
+
+    private final String channel;
+    private final ChannelService channelService;
+    private final int catchUpQueries;
+    private final boolean live;
+    private final QueryGenerator queryGenerator;
+    private final Set<BroadcastSubscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final Map<BroadcastSubscriber, QueryGenerator> catchingUp = new ConcurrentHashMap<>();
+
+    ChannelTail(ChannelConfig channelConfig, ChannelService channelService, int catchUpQueries) {
+        this.channel = channelConfig.getDisplayName();
+        this.channelService = channelService;
+        this.catchUpQueries = catchUpQueries;
+        this.live = channelConfig.isLive();
+        this.queryGenerator = new QueryGenerator(getLatestStable(), channel);
+    }
+
+    synchronized void add(BroadcastSubscriber subscriber) {
+        DateTime startTime = subscriber.getStartingKey().getTime();
+        if (startTime.isBefore(queryGenerator.getLastQueryTime())) {
+            logger.debug("catching up {} from {}", subscriber, startTime);
+            catchingUp.put(subscriber, new QueryGenerator(startTime, channel));
+        }
+        subscribers.add(subscriber);
+    }
+
+    void remove(BroadcastSubscriber subscriber) {
+        subscribers.remove(subscriber);
+        catchingUp.remove(subscriber);
+    }
+
+    boolean isEmpty() {
+        return subscribers.isEmpty();
+    }
+
+    synchronized void poll() {
+        ActiveTraces.start("ChannelTail", channel);
+        try {
+            DateTime latestStable = getLatestStable();
+            catchUp(latestStable);
+            TimeQuery timeQuery;
+            while ((timeQuery = queryGenerator.getQuery(latestStable)) != null) {
+                SortedSet<ContentKey> keys = channelService.queryByTime(timeQuery);
+                logger.trace("channel {} keys {}", channel, keys);
+                for (BroadcastSubscriber subscriber : subscribers) {
+                    if (!catchingUp.containsKey(subscriber)) {
+                        keys.forEach(subscriber::offer);
+                    }
+                }
+                if (queryGenerator.getLastQueryTime().getSecondOfMinute() == 0) {
+                    MinutePath heartbeat = new MinutePath(queryGenerator.getLastQueryTime().minusMinutes(1));
+                    subscribers.forEach(subscriber -> subscriber.offer(heartbeat));
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("unable to tail " + channel, e);
+        } finally {
+            ActiveTraces.end();
+        }
+    }
+
+    private void catchUp(DateTime latestStable) {
+        DateTime tailTime = queryGenerator.getLastQueryTime();
+        DateTime limit = latestStable.isBefore(tailTime) ? latestStable : tailTime;
+        for (Map.Entry<BroadcastSubscriber, QueryGenerator> entry : catchingUp.entrySet()) {
+            BroadcastSubscriber subscriber = entry.getKey();
+            QueryGenerator generator = entry.getValue();
+            for (int i = 0; i < catchUpQueries && !subscriber.isClosed(); i++) {
+                if (!generator.getLastQueryTime().isBefore(tailTime)) {
+                    break;
+                }
+                TimeQuery timeQuery = generator.getQuery(limit);
+                if (timeQuery == null) {
+                    break;
+                }
+                channelService.queryByTime(timeQuery).forEach(subscriber::offer);
+            }
+            if (!generator.getLastQueryTime().isBefore(tailTime)) {
+                logger.debug("caught up {}", subscriber);
+                catchingUp.remove(subscriber);
+            }
+        }
+    }
+
+    private DateTime getLatestStable() {
+        if (live) {
+            return TimeUtil.stable();
+        }
+        return channelService.getLastUpdated(channel, new MinutePath(TimeUtil.stable())).getTime();
+    }
+
+    String getChannel() {
+        return channel;
+    }
+
+    int getSubscriberCount() {
+        return subscribers.size();
+    }
+}
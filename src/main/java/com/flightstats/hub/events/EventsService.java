@@ -1,96 +1,69 @@
 package com.flightstats.hub.events;
 
-import com.diffplug.common.base.Errors;
-import com.flightstats.hub.dao.ChannelService;
-import com.flightstats.hub.dao.ItemRequest;
-import com.flightstats.hub.model.ChannelContentKey;
+import com.flightstats.hub.app.HubProperties;
 import com.flightstats.hub.model.Content;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.model.MinutePath;
+import com.flightstats.hub.util.HubUtils;
+import com.flightstats.hub.util.StringUtils;
 import com.flightstats.hub.webhook.WebhookService;
 import com.google.common.base.Optional;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
-import org.eclipse.jetty.io.EofException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Consumer;
-
 @Singleton
 public class EventsService {
 
     private final static Logger logger = LoggerFactory.getLogger(EventsService.class);
 
     @Inject
-    private ChannelService channelService;
+    private Broadcaster broadcaster;
     @Inject
     private WebhookService webhookService;
 
-    private Map<String, EventWebhook> outputStreamMap = new ConcurrentHashMap<>();
-
-    void getAndSendData(String uri, String id) {
-        logger.trace("got uri {} {}", uri, id);
-        ChannelContentKey key = ChannelContentKey.fromResourcePath(uri);
-        ItemRequest itemRequest = ItemRequest.builder()
-                .channel(key.getChannel())
-                .key(key.getContentKey())
-                .build();
-        Optional<Content> optional = channelService.get(itemRequest);
-        if (optional.isPresent()) {
-            Content content = optional.get();
-            sendData(id, Errors.rethrow().wrap(contentOutput -> {
-                contentOutput.write(content);
-                logger.trace("sent content {} to {}", id, content.getContentKey());
-            }));
-        }
+    public void register(ContentOutput contentOutput) {
+        String id = "Events_" + HubProperties.getAppEnv() + "_" + contentOutput.getChannel() + "_" + StringUtils.randomAlphaNumeric(6);
+        logger.info("registering events {}", id);
+        broadcaster.subscribe(new EventSubscriber(id, contentOutput));
     }
 
-    void checkHealth(String id) {
-        logger.trace("check health {}", id);
-        sendData(id, Errors.rethrow().wrap(contentOutput -> {
-            contentOutput.writeHeartbeat();
-            logger.trace("sent heartbeat to {}", id);
-        }));
+    /**
+     * Events used to be delivered by a webhook per client, remove any which are left over.
+     */
+    void deleteWebhook(String id) {
+        logger.info("deleting events webhook {}", id);
+        webhookService.delete(id);
     }
 
-    private void sendData(String id, Consumer<ContentOutput> contentConsumer) {
-        try {
-            EventWebhook eventWebhook = outputStreamMap.get(id);
-            if (eventWebhook == null) {
-                logger.info("unable to find id {}", id);
-                unregister(id);
-            } else {
-                contentConsumer.accept(eventWebhook.getContentOutput());
-            }
-        } catch (Errors.WrappedAsRuntimeException e) {
-            if (e.getCause() instanceof EofException) {
-                logger.info("unable to write, closing " + id);
-            } else {
-                logger.warn("unable to send to " + id, e);
+    private class EventSubscriber extends BroadcastSubscriber {
+
+        private final ContentOutput contentOutput;
+
+        EventSubscriber(String id, ContentOutput contentOutput) {
+            super(id, contentOutput.getChannel(), contentOutput.getContentKey());
+            this.contentOutput = contentOutput;
+        }
+
+        @Override
+        protected void send(ContentKey key) throws Exception {
+            Optional<Content> content = broadcaster.getContent(getChannel(), key);
+            if (content.isPresent()) {
+                contentOutput.write(content.get());
+                logger.trace("sent content {} to {}", getId(), key);
             }
-            unregister(id);
-        } catch (Exception e) {
-            logger.warn("unable to send to " + id, e);
-            unregister(id);
         }
-    }
 
-    public void register(ContentOutput contentOutput) {
-        EventWebhook eventWebhook = new EventWebhook(contentOutput);
-        logger.info("registering events {}", eventWebhook.getGroupName());
-        outputStreamMap.put(eventWebhook.getGroupName(), eventWebhook);
-        eventWebhook.start();
-    }
+        @Override
+        protected void sendHeartbeat(MinutePath minutePath) throws Exception {
+            contentOutput.writeHeartbeat();
+            logger.trace("sent heartbeat to {}", getId());
+        }
 
-    private void unregister(String id) {
-        logger.info("unregistering events {}", id);
-        EventWebhook remove = outputStreamMap.remove(id);
-        if (null != remove) {
-            remove.stop();
-        } else {
-            webhookService.delete(id);
+        @Override
+        protected void onClose() {
+            HubUtils.closeQuietly(contentOutput);
         }
     }
-
 }
@@ -22,7 +22,7 @@ public class PeriodicMetricEmitter {
 
         @Override
         protected void runOneIteration() {
-            metricsService.gauge("s3.writeQueue.total", HubProperties.getS3WriteQueueSize());
+            metricsService.gauge("s3.writeQueue.maxMB", HubProperties.getS3WriteQueueMaxMB());
             metricsService.gauge("s3.writeQueue.threads", HubProperties.getS3WriteQueueThreads());
             metricsService.gauge("spoke.write.ttl", HubProperties.getSpokeTtlMinutes(SpokeStore.WRITE));
             metricsService.gauge("spoke.read.ttl", HubProperties.getSpokeTtlMinutes(SpokeStore.READ));
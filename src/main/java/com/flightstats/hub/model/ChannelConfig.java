@@ -46,10 +46,11 @@ public class ChannelConfig implements Serializable, NamedType {
     private boolean protect;
     private DateTime mutableTime;
     private boolean allowZeroBytes;
+    private String codec;
 
     private ChannelConfig(String name, String owner, Date creationDate, long ttlDays, long maxItems, boolean keepForever, String description,
                           Set<String> tags, String replicationSource, String storage,
-                          boolean protect, DateTime mutableTime, boolean allowZeroBytes, String displayName) {
+                          boolean protect, DateTime mutableTime, boolean allowZeroBytes, String displayName, String codec) {
         this.name = StringUtils.trim(name);
         this.displayName = StringUtils.defaultIfBlank(StringUtils.trim(displayName), this.name);
         this.owner = StringUtils.trim(owner);
@@ -71,6 +72,8 @@ public class ChannelConfig implements Serializable, NamedType {
             this.maxItems = maxItems;
         }
 
+        this.codec = StringUtils.upperCase(StringUtils.trimToEmpty(codec));
+
         if (isBlank(storage)) {
             this.storage = SINGLE;
         } else {
@@ -131,6 +134,7 @@ public class ChannelConfig implements Serializable, NamedType {
             builder.mutableTime(HubDateTimeTypeAdapter.deserialize(rootNode.get("mutableTime").asText()));
         }
         if (rootNode.has("allowZeroBytes")) builder.allowZeroBytes(rootNode.get("allowZeroBytes").asBoolean());
+        if (rootNode.has("codec")) builder.codec(getString(rootNode.get("codec")));
         return builder.build();
     }
 
@@ -181,6 +185,17 @@ public class ChannelConfig implements Serializable, NamedType {
         return storage.equals(SINGLE) || storage.equals(BATCH) || storage.equals(BOTH);
     }
 
+    public boolean isValidCodec() {
+        return ContentCodec.isValid(codec);
+    }
+
+    /**
+     * @return the codec for new items, which is the hub default when the channel does not set one
+     */
+    public ContentCodec getContentCodec() {
+        return ContentCodec.fromName(codec);
+    }
+
     public boolean isSingle() {
         return storage.equals(SINGLE);
     }
@@ -249,6 +264,10 @@ public class ChannelConfig implements Serializable, NamedType {
         return this.allowZeroBytes;
     }
 
+    public String getCodec() {
+        return this.codec;
+    }
+
     public String getDisplayName() {
         return displayName;
     }
@@ -294,6 +313,9 @@ public class ChannelConfig implements Serializable, NamedType {
         if (this$mutableTime == null ? other$mutableTime != null : !this$mutableTime.equals(other$mutableTime))
             return false;
         if (this.isAllowZeroBytes() != other.isAllowZeroBytes()) return false;
+        final Object this$codec = this.getCodec();
+        final Object other$codec = other.getCodec();
+        if (this$codec == null ? other$codec != null : !this$codec.equals(other$codec)) return false;
         return true;
     }
 
@@ -324,11 +346,13 @@ public class ChannelConfig implements Serializable, NamedType {
         final Object $mutableTime = this.getMutableTime();
         result = result * PRIME + ($mutableTime == null ? 43 : $mutableTime.hashCode());
         result = result * PRIME + (this.isAllowZeroBytes() ? 79 : 97);
+        final Object $codec = this.getCodec();
+        result = result * PRIME + ($codec == null ? 43 : $codec.hashCode());
         return result;
     }
 
     public String toString() {
-        return "com.flightstats.hub.model.ChannelConfig(name=" + this.getName() + ", owner=" + this.getOwner() + ", creationDate=" + this.getCreationDate() + ", ttlDays=" + this.getTtlDays() + ", maxItems=" + this.getMaxItems() + ", description=" + this.getDescription() + ", tags=" + this.getTags() + ", replicationSource=" + this.getReplicationSource() + ", storage=" + this.getStorage() + ", protect=" + this.isProtect() + ", mutableTime=" + this.getMutableTime() + ", allowZeroBytes=" + this.isAllowZeroBytes() + ")";
+        return "com.flightstats.hub.model.ChannelConfig(name=" + this.getName() + ", owner=" + this.getOwner() + ", creationDate=" + this.getCreationDate() + ", ttlDays=" + this.getTtlDays() + ", maxItems=" + this.getMaxItems() + ", description=" + this.getDescription() + ", tags=" + this.getTags() + ", replicationSource=" + this.getReplicationSource() + ", storage=" + this.getStorage() + ", protect=" + this.isProtect() + ", mutableTime=" + this.getMutableTime() + ", allowZeroBytes=" + this.isAllowZeroBytes() + ", codec=" + this.getCodec() + ")";
     }
 
     public ChannelConfigBuilder toBuilder() {
@@ -351,6 +375,7 @@ public class ChannelConfig implements Serializable, NamedType {
         private long maxItems;
         private DateTime mutableTime;
         private String displayName;
+        private String codec = "";
 
         ChannelConfigBuilder() {
         }
@@ -370,6 +395,7 @@ public class ChannelConfig implements Serializable, NamedType {
             maxItems(config.getMaxItems());
             mutableTime(config.getMutableTime());
             displayName(config.getDisplayName());
+            codec(config.getCodec());
         }
 
         public ChannelConfigBuilder tags(List<String> tagList) {
@@ -449,8 +475,13 @@ public class ChannelConfig implements Serializable, NamedType {
             return this;
         }
 
+        public ChannelConfigBuilder codec(String codec) {
+            this.codec = codec;
+            return this;
+        }
+
         public ChannelConfig build() {
-            return new ChannelConfig(name, owner, creationDate, ttlDays, maxItems, keepForever, description, tags, replicationSource, storage, protect, mutableTime, allowZeroBytes, displayName);
+            return new ChannelConfig(name, owner, creationDate, ttlDays, maxItems, keepForever, description, tags, replicationSource, storage, protect, mutableTime, allowZeroBytes, displayName, codec);
         }
 
     }
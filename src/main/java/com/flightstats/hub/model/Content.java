@@ -29,6 +29,7 @@ public class Content implements Serializable {
     private transient boolean isLarge;
     private transient int threads;
     private transient boolean isHistorical;
+    private transient ContentCodec codec;
     private boolean forceWrite;
     private boolean replicated;
 
@@ -41,6 +42,7 @@ public class Content implements Serializable {
         forceWrite = builder.forceWrite;
         isLarge = builder.large;
         size = builder.size;
+        codec = builder.codec;
     }
 
     public static Builder builder() {
@@ -95,6 +97,17 @@ public class Content implements Serializable {
         replicated = true;
     }
 
+    /**
+     * @return the codec used when the item is packaged, or null for the default codec
+     */
+    public ContentCodec getCodec() {
+        return codec;
+    }
+
+    public void setCodec(ContentCodec codec) {
+        this.codec = codec;
+    }
+
     public InputStream getStream() {
         if (stream == null) {
             return new ByteArrayInputStream(getData());
@@ -205,6 +218,7 @@ public class Content implements Serializable {
         contentBuilder.withForceWrite(content.isForceWrite());
         contentBuilder.withLarge(content.isLarge());
         contentBuilder.withThreads(content.getThreads());
+        contentBuilder.withCodec(content.getCodec());
 
         return contentBuilder.build();
     }
@@ -218,6 +232,7 @@ public class Content implements Serializable {
         private int threads;
         private boolean forceWrite;
         private boolean large;
+        private ContentCodec codec;
 
         public Builder withContentType(String contentType) {
             this.contentType = Optional.fromNullable(contentType);
@@ -268,6 +283,11 @@ public class Content implements Serializable {
             return this;
         }
 
+        public Builder withCodec(ContentCodec codec) {
+            this.codec = codec;
+            return this;
+        }
+
         public Optional<String> getContentType() {
             return this.contentType;
         }
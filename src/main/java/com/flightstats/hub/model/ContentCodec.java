@@ -0,0 +1,104 @@
+package com.flightstats.hub.model;
+
+import com.flightstats.hub.app.HubProperties;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * The compression applied to an item's payload when it is written to Spoke and S3.
+ * A channel can choose its codec, otherwise content.codec is used.
+ */
+public enum ContentCodec {
+    NONE(0, Deflater.NO_COMPRESSION),
+    FAST(1, Deflater.BEST_SPEED),
+    MAX(2, Deflater.BEST_COMPRESSION);
+
+    private static final Logger logger = LoggerFactory.getLogger(ContentCodec.class);
+    private static final ContentCodec defaultCodec = parseDefault(HubProperties.getProperty("content.codec", "FAST"));
+
+    private static final Set<String> incompressibleTypes = ImmutableSet.of(
+            "application/gzip", "application/x-gzip", "application/zip", "application/x-bzip2",
+            "application/x-xz", "application/x-7z-compressed", "application/zstd",
+            "application/protobuf", "application/x-protobuf", "application/vnd.google.protobuf");
+
+    private final byte id;
+    private final int level;
+
+    ContentCodec(int id, int level) {
+        this.id = (byte) id;
+        this.level = level;
+    }
+
+    public byte getId() {
+        return id;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public static ContentCodec fromId(byte id) {
+        for (ContentCodec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("unknown codec id " + id);
+    }
+
+    /**
+     * @return the named codec, or the default codec when the name is blank
+     */
+    public static ContentCodec fromName(String name) {
+        if (StringUtils.isBlank(name)) {
+            return defaultCodec == null ? FAST : defaultCodec;
+        }
+        return valueOf(StringUtils.upperCase(name.trim()));
+    }
+
+    /**
+     * @return the named codec, or FAST if the name is not a codec
+     */
+    static ContentCodec parseDefault(String name) {
+        if (isValid(name)) {
+            return fromName(name);
+        }
+        logger.warn("unknown content.codec {}, using FAST", name);
+        return FAST;
+    }
+
+    public static boolean isValid(String name) {
+        if (StringUtils.isBlank(name)) {
+            return true;
+        }
+        for (ContentCodec codec : values()) {
+            if (codec.name().equalsIgnoreCase(name.trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Payloads which are already compressed are stored as is.
+     */
+    public ContentCodec forContentType(Optional<String> contentType) {
+        if (this == NONE || !contentType.isPresent()) {
+            return this;
+        }
+        String type = StringUtils.substringBefore(contentType.get(), ";").trim().toLowerCase();
+        if (type.startsWith("image/") && !type.equals("image/svg+xml") && !type.equals("image/bmp")) {
+            return NONE;
+        }
+        if (type.startsWith("video/") || type.startsWith("audio/") || incompressibleTypes.contains(type)) {
+            return NONE;
+        }
+        return this;
+    }
+}
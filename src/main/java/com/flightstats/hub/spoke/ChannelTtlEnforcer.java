@@ -1,11 +1,11 @@
 package com.flightstats.hub.spoke;
 
 import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.app.HubProvider;
 import com.flightstats.hub.app.HubServices;
 import com.flightstats.hub.dao.ChannelService;
 import com.flightstats.hub.dao.TtlEnforcer;
 import com.flightstats.hub.model.ChannelConfig;
-import com.flightstats.hub.util.Commander;
 import com.flightstats.hub.util.TimeUtil;
 import com.google.common.util.concurrent.AbstractScheduledService;
 import com.google.inject.Inject;
@@ -14,6 +14,8 @@ import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
@@ -23,6 +25,8 @@ public class ChannelTtlEnforcer {
     private final String spokePath = HubProperties.getSpokePath(SpokeStore.WRITE);
     @Inject
     private ChannelService channelService;
+    @Inject
+    private SpokeEvictor spokeEvictor;
 
     @Inject
     public ChannelTtlEnforcer() {
@@ -31,14 +35,21 @@ public class ChannelTtlEnforcer {
         }
     }
 
-    private Consumer<ChannelConfig> handleCleanup() {
+    private Consumer<ChannelConfig> handleCleanup(List<Runnable> evictions) {
+        FileSpokeStore fileSpokeStore = HubProvider.getInstance(FileSpokeStore.class, SpokeStore.WRITE.name());
         return channel -> {
             if (channel.getTtlDays() > 0) {
-                String channelPath = spokePath + "/" + channel.getDisplayName();
-                DateTime channelTTL = TimeUtil.stable().minusDays((int) channel.getTtlDays());
-                for (int i = 0; i < 3; i++) {
-                    Commander.run(new String[]{"rm", "-rf", channelPath + "/" + TimeUtil.days(channelTTL.minusDays(i))}, 1);
-                }
+                evictions.add(() -> {
+                    long start = System.currentTimeMillis();
+                    SpokeEvictor.Eviction eviction = new SpokeEvictor.Eviction();
+                    String channelPath = spokePath + "/" + channel.getDisplayName();
+                    DateTime channelTTL = TimeUtil.stable().minusDays((int) channel.getTtlDays());
+                    for (int i = 0; i < 3; i++) {
+                        spokeEvictor.delete(channelPath + "/" + TimeUtil.days(channelTTL.minusDays(i)), eviction);
+                    }
+                    fileSpokeStore.evictedBefore(channel.getDisplayName(), TimeUtil.Unit.DAYS.round(channelTTL).plusDays(1));
+                    spokeEvictor.report(SpokeStore.WRITE.name(), channel.getDisplayName(), start, eviction);
+                });
             }
         };
     }
@@ -49,7 +60,10 @@ public class ChannelTtlEnforcer {
             try {
                 long start = System.currentTimeMillis();
                 logger.info("running channel cleanup");
-                TtlEnforcer.enforce(spokePath, channelService, handleCleanup());
+                List<Runnable> evictions = new ArrayList<>();
+                TtlEnforcer.enforce(spokePath, channelService, handleCleanup(evictions),
+                        path -> spokeEvictor.delete(path, new SpokeEvictor.Eviction()));
+                spokeEvictor.evictAll(evictions);
                 logger.info("completed channel cleanup {}", (System.currentTimeMillis() - start));
             } catch (Exception e) {
                 logger.info("issue cleaning up channels in spoke", e);
@@ -1,21 +1,33 @@
 package com.flightstats.hub.spoke;
 
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.dao.ContentKeyUtil;
 import com.flightstats.hub.model.ContentKey;
 import com.flightstats.hub.model.MinutePath;
 import com.flightstats.hub.util.TimeUtil;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.WildcardFileFilter;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.NotFoundException;
 import java.io.*;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Direct interactions with the file system
@@ -23,13 +35,41 @@ import java.util.Collection;
 public class FileSpokeStore {
 
     private final static Logger logger = LoggerFactory.getLogger(FileSpokeStore.class);
-    private final String spokePath;
-    private final int spokeTtlMinutes;
+    private static final DateTimeFormatter[] bucketFormatters = {
+            DateTimeFormat.forPattern("yyyy").withZoneUTC(),
+            DateTimeFormat.forPattern("yyyy/MM").withZoneUTC(),
+            DateTimeFormat.forPattern("yyyy/MM/dd").withZoneUTC(),
+            DateTimeFormat.forPattern("yyyy/MM/dd/HH").withZoneUTC(),
+            DateTimeFormat.forPattern("yyyy/MM/dd/HH/mm").withZoneUTC(),
+            DateTimeFormat.forPattern("yyyy/MM/dd/HH/mm/ss").withZoneUTC()};
+    final String spokePath;
+    final int spokeTtlMinutes;
+    private final SpokeKeyIndex keyIndex;
 
     public FileSpokeStore(String spokePath, int spokeTtlMinutes) {
+        this(spokePath, spokeTtlMinutes, true);
+    }
+
+    FileSpokeStore(String spokePath, int spokeTtlMinutes, boolean initialize) {
         this.spokePath = StringUtils.appendIfMissing(spokePath, "/");
         this.spokeTtlMinutes = spokeTtlMinutes;
+        this.keyIndex = HubProperties.getProperty("spoke.keyIndex", true) ? new SpokeKeyIndex() : null;
         logger.info("starting with storage path " + this.spokePath);
+        if (initialize) {
+            initialize();
+        }
+    }
+
+    void initialize() {
+        checkPermissions();
+        if (keyIndex != null) {
+            Thread thread = new Thread(this::loadKeyIndex, "spoke-key-index");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    void checkPermissions() {
         if (!insert("hub-startup/" + new ContentKey().toUrl(), ("" + System.currentTimeMillis()).getBytes())) {
             throw new RuntimeException("unable to create startup file");
         }
@@ -44,6 +84,19 @@ public class FileSpokeStore {
     }
 
     public boolean insert(String path, InputStream input) {
+        if (!writeItem(path, input)) {
+            return false;
+        }
+        if (keyIndex != null) {
+            Optional<ContentKey> key = ContentKeyUtil.convertKey(path);
+            if (key.isPresent()) {
+                keyIndex.add(channel(path), key.get());
+            }
+        }
+        return true;
+    }
+
+    boolean writeItem(String path, InputStream input) {
         File file = spokeFilePathPart(path);
         logger.trace("insert {} {} {}", file, file.getParentFile().mkdirs(), file.canExecute());
         try (FileOutputStream output = new FileOutputStream(file)) {
@@ -94,13 +147,137 @@ public class FileSpokeStore {
 
     public boolean delete(String path) throws Exception {
         FileUtils.deleteDirectory(new File(spokePath + path));
+        if (keyIndex != null) {
+            String channel = channel(path);
+            if (channel.equals(StringUtils.strip(path, "/"))) {
+                keyIndex.removeChannel(channel);
+            } else {
+                try {
+                    long[] range = bucketRange(StringUtils.split(path, "/"));
+                    keyIndex.removeRange(channel, range[0], range[1]);
+                } catch (Exception e) {
+                    logger.info("unable to remove " + path + " from the key index", e);
+                    reindex(channel);
+                }
+            }
+        }
         return true;
     }
 
     public boolean deleteFile(String path) throws Exception {
+        if (keyIndex != null) {
+            Optional<ContentKey> key = ContentKeyUtil.convertKey(path);
+            if (key.isPresent()) {
+                keyIndex.remove(channel(path), key.get());
+            }
+        }
+        return deleteItem(path);
+    }
+
+    boolean deleteItem(String path) throws Exception {
         return FileUtils.deleteQuietly(spokeFilePathPart(path));
     }
 
+    /**
+     * Called after items before limitTime have been removed from the channel outside of this store.
+     */
+    public void evictedBefore(String channel, DateTime limitTime) {
+        if (keyIndex != null) {
+            keyIndex.removeBefore(channel, limitTime.getMillis());
+        }
+    }
+
+    /**
+     * Called after files have been removed from the channel outside of this store.
+     * A segment file removes every key in its minute.
+     */
+    public void evicted(String channel, Collection<Path> files) {
+        if (keyIndex == null) {
+            return;
+        }
+        for (Path file : files) {
+            try {
+                if (SpokeSegment.isSegmentFile(file.getFileName().toString())) {
+                    String minute = spokeKeyFromPath(file.getParent().toString());
+                    long[] range = bucketRange(StringUtils.split(minute, "/"));
+                    keyIndex.removeRange(channel, range[0], range[1]);
+                } else {
+                    Optional<ContentKey> key = ContentKeyUtil.convertKey(spokeKeyFromPath(file.toString()));
+                    if (!key.isPresent()) {
+                        throw new IllegalArgumentException("not an item");
+                    }
+                    keyIndex.remove(channel, key.get());
+                }
+            } catch (Exception e) {
+                logger.info("unable to remove evicted " + file + " from the key index " + e.getMessage());
+                reindex(channel);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replaces the channel's keys with a listing of the disk, for when the index can not be kept up to date.
+     */
+    void reindex(String channel) {
+        if (keyIndex != null && keyIndex.isLoaded()) {
+            keyIndex.load(channel, () -> keysOnDisk(channel));
+        }
+    }
+
+    private void loadKeyIndex() {
+        long start = System.currentTimeMillis();
+        String[] channels = new File(spokePath).list();
+        if (channels == null) {
+            channels = new String[0];
+        }
+        int threads = HubProperties.getProperty("spoke.keyIndex.threads", 8);
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("spoke-key-index-%d").build());
+        for (String channel : channels) {
+            executor.submit(() -> {
+                try {
+                    keyIndex.load(channel, () -> keysOnDisk(channel));
+                } catch (Exception e) {
+                    logger.warn("unable to index " + channel, e);
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.DAYS);
+            keyIndex.loaded();
+            logger.info("indexed {} channels in {} in {} ms", channels.length, spokePath, System.currentTimeMillis() - start);
+        } catch (InterruptedException e) {
+            logger.warn("interrupted indexing " + spokePath);
+        }
+    }
+
+    private Collection<ContentKey> keysOnDisk(String channel) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        listKeysInBucket(channel, baos);
+        List<ContentKey> keys = new ArrayList<>();
+        ContentKeyUtil.convertKeyStrings(baos.toString(), keys);
+        return keys;
+    }
+
+    @VisibleForTesting
+    boolean awaitKeyIndex(long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        while (keyIndex != null && !keyIndex.isLoaded() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        return keyIndex == null || keyIndex.isLoaded();
+    }
+
+    private SpokeKeyIndex.ChannelKeys indexedKeys(String channel) {
+        return keyIndex == null ? null : keyIndex.get(channel);
+    }
+
+    private static String channel(String path) {
+        return StringUtils.substringBefore(StringUtils.removeStart(path, "/"), "/");
+    }
+
     // given a url containing a key, return the file format
     // example: "test_0_4274725520517677/2014/11/18/00/57/24/015/NV2cl5"
     @VisibleForTesting
@@ -136,7 +313,54 @@ public class FileSpokeStore {
         return path;
     }
 
-    private void keysInBucket(String key, OutputStream output) {
+    void keysInBucket(String key, OutputStream output) {
+        String channel = channel(key);
+        SpokeKeyIndex.ChannelKeys indexed = indexedKeys(channel);
+        if (indexed != null) {
+            try {
+                long[] range = bucketRange(StringUtils.split(key, "/"));
+                for (ContentKey contentKey : indexed.range(range[0], range[1])) {
+                    writeKey(output, channel + "/" + contentKey.toUrl());
+                }
+                return;
+            } catch (Exception e) {
+                logger.info("unable to use key index for " + key, e);
+            }
+        }
+        listKeysInBucket(key, output);
+    }
+
+    /**
+     * @param split a channel, followed by the parts of a time bucket, if any
+     * @return the start millis, inclusive, and end millis, exclusive, of the bucket
+     */
+    private static long[] bucketRange(String[] split) {
+        if (split.length <= 1) {
+            return new long[]{Long.MIN_VALUE, Long.MAX_VALUE};
+        }
+        String timePath = StringUtils.join(split, "/", 1, split.length);
+        DateTime bucket = bucketFormatters[split.length - 2].parseDateTime(timePath);
+        return new long[]{bucket.getMillis(), bucketEnd(bucket, split.length - 2).getMillis()};
+    }
+
+    private static DateTime bucketEnd(DateTime bucket, int depth) {
+        switch (depth) {
+            case 0:
+                return bucket.plusYears(1);
+            case 1:
+                return bucket.plusMonths(1);
+            case 2:
+                return bucket.plusDays(1);
+            case 3:
+                return bucket.plusHours(1);
+            case 4:
+                return bucket.plusMinutes(1);
+            default:
+                return bucket.plusSeconds(1);
+        }
+    }
+
+    void listKeysInBucket(String key, OutputStream output) {
         String path = spokeFilePathPart(key).getAbsolutePath();
         logger.trace("path {}", path);
         String resolution = SpokePathUtil.smallestTimeResolution(key);
@@ -165,7 +389,7 @@ public class FileSpokeStore {
         }
     }
 
-    private void writeKey(OutputStream output, String keyFromPath) throws IOException {
+    static void writeKey(OutputStream output, String keyFromPath) throws IOException {
         output.write(keyFromPath.getBytes());
         output.write(",".getBytes());
     }
@@ -181,6 +405,14 @@ public class FileSpokeStore {
     public String getLatest(String channel, String limitPath) {
         logger.trace("latest {} {}", channel, limitPath);
         ContentKey limitKey = ContentKey.fromUrl(limitPath).get();
+        SpokeKeyIndex.ChannelKeys indexed = indexedKeys(channel);
+        if (indexed != null) {
+            DateTime ttlHour = TimeUtil.Unit.HOURS.round(TimeUtil.now().minusMinutes(spokeTtlMinutes));
+            DateTime limitHour = TimeUtil.Unit.HOURS.round(limitKey.getTime());
+            long floorMillis = Math.min(ttlHour.getMillis(), limitHour.getMillis());
+            ContentKey latest = indexed.latest(limitKey, floorMillis);
+            return latest == null ? null : channel + "/" + latest.toUrl();
+        }
         return getLatest(channel, limitPath, limitKey.getTime());
     }
 
@@ -196,10 +428,10 @@ public class FileSpokeStore {
         logger.trace("looking at {} {}", fullHoursPath, minutes);
         for (int i = minutes.length - 1; i >= 0; i--) {
             String minute = minutes[i];
-            String[] fileNames = new File(fullHoursPath + "/" + minute).list();
-            Arrays.sort(fileNames);
-            for (int j = fileNames.length - 1; j >= 0; j--) {
-                String spokeKeyFromPath = spokeKeyFromPath(hoursPath + "/" + minute + "/" + fileNames[j]);
+            String[] itemKeys = keysInMinute(new File(fullHoursPath + "/" + minute));
+            Arrays.sort(itemKeys);
+            for (int j = itemKeys.length - 1; j >= 0; j--) {
+                String spokeKeyFromPath = hoursPath + "/" + minute + "/" + itemKeys[j];
                 logger.trace("looking at file {} ", spokeKeyFromPath);
                 if (spokeKeyFromPath.compareTo(limitPath) < 0) {
                     return channel + "/" + spokeKeyFromPath;
@@ -223,6 +455,14 @@ public class FileSpokeStore {
         String channelPath = spokePath + channel + "/";
         logger.trace("next {} {} {}", channel, startKey, now);
         ContentKey start = ContentKey.fromUrl(startKey).get();
+        SpokeKeyIndex.ChannelKeys indexed = indexedKeys(channel);
+        if (indexed != null) {
+            long endMillis = new MinutePath(now).getTime().plusMinutes(1).getMillis();
+            for (ContentKey key : indexed.next(start, count, endMillis)) {
+                writeKey(output, channel + "/" + key.toUrl());
+            }
+            return;
+        }
         int found = 0;
         MinutePath minutePath = new MinutePath(start.getTime());
         boolean firstMinute = true;
@@ -231,20 +471,17 @@ public class FileSpokeStore {
             String minuteUrl = minutePath.toUrl();
             String minute = channelPath + minuteUrl;
             logger.trace("minute {}", minute);
-            String[] items = new File(minute).list();
-            if (items != null) {
-                for (String item : items) {
-                    String keyFromPath = spokeKeyFromPath(minuteUrl + "/" + item);
-                    if (firstMinute) {
-                        ContentKey key = ContentKey.fromUrl(keyFromPath).get();
-                        if (key.compareTo(start) > 0) {
-                            found++;
-                            writeKey(output, channel + "/" + keyFromPath);
-                        }
-                    } else {
+            for (String item : keysInMinute(new File(minute))) {
+                String keyFromPath = minuteUrl + "/" + item;
+                if (firstMinute) {
+                    ContentKey key = ContentKey.fromUrl(keyFromPath).get();
+                    if (key.compareTo(start) > 0) {
                         found++;
                         writeKey(output, channel + "/" + keyFromPath);
                     }
+                } else {
+                    found++;
+                    writeKey(output, channel + "/" + keyFromPath);
                 }
             }
             minutePath = new MinutePath(minutePath.getTime().plusMinutes(1));
@@ -252,7 +489,26 @@ public class FileSpokeStore {
         } while (found < count && minutePath.getTime().isBefore(now));
     }
 
+    /**
+     * @return the keys stored in a minute directory, in the format "ss/SSS/hash", unsorted
+     */
+    String[] keysInMinute(File minuteDirectory) {
+        String[] fileNames = minuteDirectory.list();
+        if (fileNames == null) {
+            return new String[0];
+        }
+        for (int i = 0; i < fileNames.length; i++) {
+            fileNames[i] = keyFromFileName(fileNames[i]);
+        }
+        return fileNames;
+    }
+
+    static String keyFromFileName(String fileName) {
+        return fileName.substring(0, 2) + "/" + fileName.substring(2, 5) + "/" + fileName.substring(5);
+    }
+
     void enforceTtl(String channel, DateTime dateTime) {
+        evictedBefore(channel, new MinutePath(dateTime).getTime().plusMinutes(1));
         String limitPath = TimeUtil.minutes(dateTime);
         logger.debug("enforceTtl {} {}", channel, limitPath);
         String[] split = StringUtils.split(limitPath, "/");
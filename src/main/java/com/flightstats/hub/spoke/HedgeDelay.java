@@ -0,0 +1,46 @@
+package com.flightstats.hub.spoke;
+
+import java.util.Arrays;
+
+/**
+ * HedgeDelay tracks the latency of recent spoke reads, and provides the time to wait before
+ * hedging a read with a request to another server.
+ * The delay is a percentile of the recent latencies, recalculated every recalculate samples.
+ */
+class HedgeDelay {
+
+    private final long[] samples;
+    private final double percentile;
+    private final long minMillis;
+    private final long maxMillis;
+    private final int recalculate;
+    private int position;
+    private int count;
+    private volatile long delayMillis;
+
+    HedgeDelay(int size, double percentile, long minMillis, long maxMillis, long initialMillis) {
+        this.samples = new long[size];
+        this.percentile = percentile;
+        this.minMillis = minMillis;
+        this.maxMillis = maxMillis;
+        this.recalculate = Math.max(1, size / 10);
+        this.delayMillis = initialMillis;
+    }
+
+    synchronized void add(long millis) {
+        samples[position] = millis;
+        position = (position + 1) % samples.length;
+        count++;
+        if (count % recalculate == 0) {
+            long[] sorted = Arrays.copyOf(samples, Math.min(count, samples.length));
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            long value = sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+            delayMillis = Math.max(minMillis, Math.min(maxMillis, value));
+        }
+    }
+
+    long getMillis() {
+        return delayMillis;
+    }
+}
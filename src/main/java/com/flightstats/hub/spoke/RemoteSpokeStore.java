@@ -13,50 +13,53 @@ import com.flightstats.hub.metrics.MetricsService;
 import com.flightstats.hub.metrics.Traces;
 import com.flightstats.hub.model.Content;
 import com.flightstats.hub.model.ContentKey;
-import com.flightstats.hub.rest.RestClient;
-import com.flightstats.hub.util.HubUtils;
+import com.flightstats.hub.spoke.SpokeClient.SpokeResponse;
 import com.flightstats.hub.util.RuntimeInterruptedException;
 import com.google.common.base.Optional;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
-import com.sun.jersey.api.client.Client;
-import com.sun.jersey.api.client.ClientHandlerException;
-import com.sun.jersey.api.client.ClientResponse;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.ConnectException;
 import java.net.UnknownHostException;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.SortedSet;
-import java.util.TreeSet;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @SuppressWarnings({"Convert2streamapi", "Convert2Lambda"})
 public class RemoteSpokeStore {
 
     private final static Logger logger = LoggerFactory.getLogger(RemoteSpokeStore.class);
 
-    private final static Client write_client = RestClient.createClient(1, 5, true, false);
-    private final static Client query_client = RestClient.createClient(5, 15, true, true);
+    private static final int WRITE_TIMEOUT = 5;
+    private static final int QUERY_TIMEOUT = 15;
+    private static final int DELETE_TIMEOUT = 60;
 
     private final CuratorCluster cluster;
     private final MetricsService metricsService;
-    private final ExecutorService executorService;
+    private final SpokeClient spokeClient;
     private final int stableSeconds = HubProperties.getProperty("app.stable_seconds", 5);
+    private final boolean hedgeEnabled = HubProperties.getProperty("spoke.hedge.enabled", true);
+    private final HedgeDelay hedgeDelay = new HedgeDelay(1000,
+            HubProperties.getProperty("spoke.hedge.percentile", 95.0),
+            HubProperties.getProperty("spoke.hedge.minMillis", 5),
+            HubProperties.getProperty("spoke.hedge.maxMillis", 1000),
+            HubProperties.getProperty("spoke.hedge.initialMillis", 50));
+    private final ScheduledExecutorService hedgeExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("spoke-hedge-%d").setDaemon(true).build());
+
+    private final SpokePlacement placement;
 
     @Inject
-    public RemoteSpokeStore(@Named("SpokeCuratorCluster") CuratorCluster cluster, MetricsService metricsService) {
+    public RemoteSpokeStore(@Named("SpokeCuratorCluster") CuratorCluster cluster, MetricsService metricsService,
+                            SpokeClient spokeClient) {
         this.cluster = cluster;
         this.metricsService = metricsService;
-        executorService = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("RemoteSpokeStore-%d").build());
+        this.spokeClient = spokeClient;
+        this.placement = HubProperties.getProperty("spoke.placement.enabled", true) ? new SpokePlacement(cluster) : null;
     }
 
     void testOne(Collection<String> server) throws InterruptedException {
@@ -102,7 +105,7 @@ public class RemoteSpokeStore {
             try {
                 logger.info("calling server {} path {}", server, path);
                 String url = HubHost.getScheme() + server + "/internal/spoke/test/" + path;
-                ClientResponse response = query_client.resource(url).get(ClientResponse.class);
+                SpokeResponse response = spokeClient.get(url, QUERY_TIMEOUT).get();
                 if (response.getStatus() == 200) {
                     logger.info("success calling {}", response);
                 } else if (response.getStatus() == 404) {
@@ -121,229 +124,311 @@ public class RemoteSpokeStore {
     }
 
     public boolean insert(SpokeStore spokeStore, String path, byte[] payload, String spokeApi, String channel) {
-        return insert(spokeStore, path, payload, cluster.getWriteServers(), ActiveTraces.getLocal(), spokeApi, channel);
+        return insert(spokeStore, path, payload, getWriteServers(spokeStore, channel), ActiveTraces.getLocal(), spokeApi, channel);
+    }
+
+    private Collection<String> getWriteServers(SpokeStore spokeStore, String channel) {
+        if (placement != null && spokeStore == SpokeStore.WRITE) {
+            return placement.getWriteServers(channel);
+        }
+        return cluster.getWriteServers();
+    }
+
+    /**
+     * Only the write store is placed, items in the read store are cached on the server which read them.
+     */
+    private Collection<String> getServers(SpokeStore spokeStore, String channel) {
+        if (placement != null && spokeStore == SpokeStore.WRITE) {
+            return placement.getReadServers(channel);
+        }
+        return cluster.getAllServers();
     }
 
     public boolean insert(SpokeStore spokeStore, String path, byte[] payload, Collection<String> servers, Traces traces,
                           String spokeApi, String channel) {
         int quorum = getQuorum(servers.size());
-        CountDownLatch quorumLatch = new CountDownLatch(quorum);
-        AtomicBoolean firstComplete = new AtomicBoolean();
+        CompletableFuture<Void> quorumFuture = new CompletableFuture<>();
+        AtomicInteger successes = new AtomicInteger();
+        AtomicInteger remaining = new AtomicInteger(servers.size());
         for (final String server : servers) {
-            executorService.submit(new Runnable() {
-                @Override
-                public void run() {
-                    setThread(path);
-                    String uri = HubHost.getScheme() + server + "/internal/spoke/" + spokeStore + "/" + spokeApi + "/" + path;
-                    traces.add(uri);
-                    ClientResponse response = null;
-                    try {
-                        response = write_client.resource(uri).put(ClientResponse.class, payload);
-                        traces.add(server, response.getEntity(String.class));
-                        if (response.getStatus() == 201) {
-                            if (firstComplete.compareAndSet(false, true)) {
-                                metricsService.time(channel, "heisenberg", traces.getStart());
-                            }
-                            quorumLatch.countDown();
-                            logger.trace("server {} path {} response {}", server, path, response);
-                        } else {
-                            logger.info("write failed: server {} path {} response {}", server, path, response);
-                        }
-                    } catch (Exception e) {
-                        traces.add(server, e.getMessage());
-                        logger.warn("write failed: " + server + " " + path, e);
-                    } finally {
-                        HubUtils.close(response);
-                        resetThread();
+            String uri = HubHost.getScheme() + server + "/internal/spoke/" + spokeStore + "/" + spokeApi + "/" + path;
+            traces.add(uri);
+            spokeClient.put(uri, payload, WRITE_TIMEOUT).whenComplete((response, throwable) -> {
+                if (throwable != null) {
+                    traces.add(server, throwable.getMessage());
+                    logger.warn("write failed: " + server + " " + path, throwable);
+                } else if (response.getStatus() == 201) {
+                    traces.add(server, response.getContentAsString());
+                    if (successes.incrementAndGet() == 1) {
+                        metricsService.time(channel, "heisenberg", traces.getStart());
                     }
-
+                    if (successes.get() >= quorum) {
+                        quorumFuture.complete(null);
+                    }
+                    logger.trace("server {} path {} response {}", server, path, response);
+                } else {
+                    traces.add(server, response.getContentAsString());
+                    logger.info("write failed: server {} path {} response {}", server, path, response);
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    quorumFuture.complete(null);
                 }
             });
         }
+        await(quorumFuture, stableSeconds);
+        metricsService.time(channel, "consistent", traces.getStart());
+        return successes.get() > 0;
+    }
+
+    static int getQuorum(int size) {
+        return (int) Math.max(1, Math.ceil(size / 2.0));
+    }
+
+    public Content get(SpokeStore spokeStore, String path, ContentKey key) {
+        CompletableFuture<Content> future = new HedgedGet(spokeStore, path, key, getReadServers(spokeStore, path)).start();
         try {
-            quorumLatch.await(stableSeconds, TimeUnit.SECONDS);
+            return future.get();
         } catch (InterruptedException e) {
             throw new RuntimeInterruptedException(e);
+        } catch (ExecutionException e) {
+            logger.warn("unable to get content " + path, e);
+            return null;
         }
-        metricsService.time(channel, "consistent", traces.getStart());
-        return quorumLatch.getCount() != quorum;
     }
 
-    private void setThread(String name) {
-        Thread thread = Thread.currentThread();
-        thread.setName(thread.getName() + "|" + name);
+    /**
+     * @return the servers which should have the item in a random order, with the local server first,
+     * followed by the rest of the servers in case the item is elsewhere.
+     */
+    private List<String> getReadServers(SpokeStore spokeStore, String path) {
+        List<String> servers = cluster.getRandomServers();
+        List<String> owners = new ArrayList<>(getServers(spokeStore, StringUtils.substringBefore(path, "/")));
+        Collections.shuffle(owners);
+        String localServer = Cluster.getHost(false);
+        if (owners.remove(localServer)) {
+            owners.add(0, localServer);
+        }
+        servers.removeAll(owners);
+        owners.addAll(servers);
+        return owners;
     }
 
-    private void resetThread() {
-        Thread thread = Thread.currentThread();
-        thread.setName(StringUtils.substringBefore(thread.getName(), "|"));
-    }
+    /**
+     * HedgedGet reads from the first server, and if it has not responded within the hedge delay,
+     * also reads from the next server. The first response with the content wins, and the other is cancelled.
+     * A server without the content, or which fails, is replaced by the next server.
+     * Only the first request is sampled for the hedge delay, whichever request wins, so the delay follows the
+     * latency of a read without hedging.  When it loses, the time until it is cancelled is a lower bound of it.
+     */
+    private class HedgedGet {
 
-    static int getQuorum(int size) {
-        return (int) Math.max(1, Math.ceil(size / 2.0));
-    }
+        private final SpokeStore spokeStore;
+        private final String path;
+        private final ContentKey key;
+        private final Iterator<String> servers;
+        private final CompletableFuture<Content> result = new CompletableFuture<>();
+        private final List<CompletableFuture<SpokeResponse>> requests = new ArrayList<>();
+        private final String storeTag;
+        private int outstanding;
 
-    public Content get(SpokeStore spokeStore, String path, ContentKey key) {
-        Collection<String> servers = cluster.getRandomServers();
-        for (String server : servers) {
-            ClientResponse response = null;
+        HedgedGet(SpokeStore spokeStore, String path, ContentKey key, List<String> servers) {
+            this.spokeStore = spokeStore;
+            this.path = path;
+            this.key = key;
+            this.servers = servers.iterator();
+            this.storeTag = "store:" + spokeStore;
+        }
+
+        CompletableFuture<Content> start() {
+            metricsService.increment("spoke.get", storeTag);
+            send(false);
+            if (hedgeEnabled) {
+                ScheduledFuture<?> hedge = hedgeExecutor.schedule(() -> send(true), hedgeDelay.getMillis(), TimeUnit.MILLISECONDS);
+                result.whenComplete((content, throwable) -> hedge.cancel(false));
+            }
+            result.whenComplete((content, throwable) -> cancelRequests());
+            return result;
+        }
+
+        private synchronized void send(boolean hedge) {
+            if (result.isDone()) {
+                return;
+            }
+            if (!servers.hasNext()) {
+                if (outstanding == 0) {
+                    result.complete(null);
+                }
+                return;
+            }
+            if (hedge) {
+                metricsService.increment("spoke.get.hedged", storeTag);
+            }
+            String server = servers.next();
+            String url = HubHost.getScheme() + server + "/internal/spoke/" + spokeStore + "/payload/" + path;
+            long start = System.currentTimeMillis();
+            boolean first = requests.isEmpty();
+            outstanding++;
+            CompletableFuture<SpokeResponse> request = spokeClient.get(url, QUERY_TIMEOUT);
+            requests.add(request);
+            request.whenComplete((response, throwable) -> handle(server, hedge, first, start, response, throwable));
+        }
+
+        private void handle(String server, boolean hedge, boolean first, long start, SpokeResponse response, Throwable throwable) {
+            Content content = null;
             try {
-                setThread(path);
-                String url = HubHost.getScheme() + server + "/internal/spoke/" + spokeStore + "/payload/" + path;
-                response = query_client.resource(url).get(ClientResponse.class);
-                logger.trace("server {} path {} response {}", server, path, response);
-                if (response.getStatus() == 200) {
-                    byte[] entity = response.getEntity(byte[].class);
-                    if (entity.length > 0) {
-                        return ContentMarshaller.toContent(entity, key);
+                if (throwable != null) {
+                    if (throwable instanceof CancellationException) {
+                        if (first) {
+                            hedgeDelay.add(System.currentTimeMillis() - start);
+                        }
+                    } else {
+                        logFailure(server, path, throwable);
+                    }
+                } else {
+                    logger.trace("server {} path {} response {}", server, path, response);
+                    if (first && response.getStatus() < 500) {
+                        hedgeDelay.add(System.currentTimeMillis() - start);
+                    }
+                    if (response.getStatus() == 200 && response.getContent().length > 0) {
+                        content = ContentMarshaller.toContent(response.getContent(), key);
                     }
                 }
             } catch (JsonMappingException e) {
                 logger.info("JsonMappingException for " + path);
-            } catch (ClientHandlerException e) {
-                if (e.getCause() != null && e.getCause() instanceof ConnectException) {
-                    logger.warn("connection exception " + server);
-                } else {
-                    logger.warn("unable to get content " + server + " " + path, e);
-                }
             } catch (Exception e) {
                 logger.warn("unable to get content " + path, e);
-            } finally {
-                HubUtils.close(response);
-                resetThread();
+            }
+            synchronized (this) {
+                outstanding--;
+                if (content != null) {
+                    if (result.complete(content) && hedge) {
+                        metricsService.increment("spoke.get.hedge.win", storeTag);
+                    }
+                    return;
+                }
+            }
+            send(false);
+        }
+
+        private synchronized void cancelRequests() {
+            for (CompletableFuture<SpokeResponse> request : requests) {
+                request.cancel(true);
             }
         }
-        return null;
     }
 
     QueryResult readTimeBucket(SpokeStore spokeStore, String channel, String timePath) throws InterruptedException {
-        return getKeys("/internal/spoke/" + spokeStore + "/time/" + channel + "/" + timePath);
+        return getKeys(getServers(spokeStore, channel), "/internal/spoke/" + spokeStore + "/time/" + channel + "/" + timePath);
     }
 
     SortedSet<ContentKey> getNext(String channel, int count, String startKey) throws InterruptedException {
-        return getKeys("/internal/spoke/next/" + channel + "/" + count + "/" + startKey).getContentKeys();
+        return getKeys(getServers(SpokeStore.WRITE, channel), "/internal/spoke/next/" + channel + "/" + count + "/" + startKey).getContentKeys();
     }
 
-    private QueryResult getKeys(final String path) throws InterruptedException {
+    private QueryResult getKeys(Collection<String> servers, final String path) throws InterruptedException {
         Traces traces = ActiveTraces.getLocal();
-        Collection<String> servers = cluster.getAllServers();
-        CountDownLatch countDownLatch = new CountDownLatch(servers.size());
         QueryResult queryResult = new QueryResult(servers.size());
+        List<CompletableFuture<?>> futures = new ArrayList<>();
         for (final String server : servers) {
-            executorService.submit(new Runnable() {
-                @Override
-                public void run() {
-                    ClientResponse response = null;
-                    try {
-                        setThread(path);
-                        traces.add("spoke calling", server, path);
-                        response = query_client.resource(HubHost.getScheme() + server + path).get(ClientResponse.class);
-                        traces.add("spoke server response", server, response);
-                        if (response.getStatus() == 200) {
-                            SortedSet<ContentKey> keySet = new TreeSet<>();
-                            String keysString = response.getEntity(String.class);
-                            ContentKeyUtil.convertKeyStrings(keysString, keySet);
-                            traces.add(server, keySet);
-                            queryResult.addKeys(keySet);
-                        }
-                    } catch (ClientHandlerException e) {
-                        if (e.getCause() != null && e.getCause() instanceof ConnectException) {
-                            logger.warn("connection exception " + server);
-                        } else {
-                            logger.warn("unable to get content " + path, e);
-                        }
-                        traces.add("ClientHandlerException", e.getMessage(), server);
-                    } catch (Exception e) {
-                        logger.warn("unable to handle " + server + " " + path, e);
-                        traces.add("unable to handle ", server, path, e);
-                    } finally {
-                        HubUtils.close(response);
-                        resetThread();
-                        countDownLatch.countDown();
-                    }
+            traces.add("spoke calling", server, path);
+            futures.add(spokeClient.get(HubHost.getScheme() + server + path, QUERY_TIMEOUT).whenComplete((response, throwable) -> {
+                if (throwable != null) {
+                    logFailure(server, path, throwable);
+                    traces.add("unable to handle ", server, path, throwable.getMessage());
+                    return;
                 }
-            });
+                traces.add("spoke server response", server, response);
+                if (response.getStatus() == 200) {
+                    SortedSet<ContentKey> keySet = new TreeSet<>();
+                    ContentKeyUtil.convertKeyStrings(response.getContentAsString(), keySet);
+                    traces.add(server, keySet);
+                    queryResult.addKeys(keySet);
+                }
+            }));
         }
-        countDownLatch.await(20, TimeUnit.SECONDS);
+        await(allOf(futures), 20);
         return queryResult;
     }
 
     public Optional<ContentKey> getLatest(String channel, String path, Traces traces) throws InterruptedException {
-        Collection<String> servers = cluster.getAllServers();
-        CountDownLatch countDownLatch = new CountDownLatch(servers.size());
+        Collection<String> servers = getServers(SpokeStore.WRITE, channel);
         SortedSet<ContentKey> orderedKeys = Collections.synchronizedSortedSet(new TreeSet<>());
+        List<CompletableFuture<?>> futures = new ArrayList<>();
         for (final String server : servers) {
-            executorService.submit(new Runnable() {
-                @Override
-                public void run() {
-                    ClientResponse response = null;
-                    try {
-                        setThread(path);
-                        traces.add("spoke calling", server, channel);
-                        response = query_client.resource(HubHost.getScheme() + server + "/internal/spoke/latest/" + path)
-                                .get(ClientResponse.class);
-                        traces.add("spoke server response", server, response);
-                        if (response.getStatus() == 200) {
-                            String key = response.getEntity(String.class);
-                            if (StringUtils.isNotEmpty(key)) {
-                                orderedKeys.add(ContentKeyUtil.convertKey(key).get());
-                            }
-                            traces.add(server, key);
-                        }
-                    } catch (ClientHandlerException e) {
-                        if (e.getCause() != null && e.getCause() instanceof ConnectException) {
-                            logger.warn("connection exception " + server);
-                        } else {
-                            logger.warn("unable to get content " + path, e);
-                        }
-                        traces.add("ClientHandlerException", e.getMessage(), server);
-                    } catch (Exception e) {
-                        logger.warn("unable to handle " + server + " " + channel, e);
-                        traces.add("unable to handle ", server, channel, e);
-                    } finally {
-                        HubUtils.close(response);
-                        resetThread();
-                        countDownLatch.countDown();
+            traces.add("spoke calling", server, channel);
+            String url = HubHost.getScheme() + server + "/internal/spoke/latest/" + path;
+            futures.add(spokeClient.get(url, QUERY_TIMEOUT).whenComplete((response, throwable) -> {
+                if (throwable != null) {
+                    logFailure(server, channel, throwable);
+                    traces.add("unable to handle ", server, channel, throwable.getMessage());
+                    return;
+                }
+                traces.add("spoke server response", server, response);
+                if (response.getStatus() == 200) {
+                    String key = response.getContentAsString();
+                    if (StringUtils.isNotEmpty(key)) {
+                        orderedKeys.add(ContentKeyUtil.convertKey(key).get());
                     }
+                    traces.add(server, key);
                 }
-            });
+            }));
         }
-        countDownLatch.await(5, TimeUnit.SECONDS);
+        await(allOf(futures), 5);
         if (orderedKeys.isEmpty()) {
             return Optional.absent();
         }
-        return Optional.of(orderedKeys.last());
+        synchronized (orderedKeys) {
+            return Optional.of(orderedKeys.last());
+        }
     }
 
+    /**
+     * Deletes go to every server, to also remove any items left from before a change in placement.
+     */
     public boolean delete(SpokeStore spokeStore, String path) throws Exception {
         Collection<String> servers = cluster.getAllServers();
-        int quorum = servers.size();
-        CountDownLatch countDownLatch = new CountDownLatch(quorum);
+        AtomicInteger successes = new AtomicInteger();
+        List<CompletableFuture<?>> futures = new ArrayList<>();
         for (final String server : servers) {
-            executorService.submit(new Runnable() {
-                @Override
-                public void run() {
-                    ClientResponse response = null;
-                    try {
-                        setThread(path);
-                        response = query_client.resource(HubHost.getScheme() + server + "/internal/spoke/" + spokeStore + "/payload/" + path)
-                                .delete(ClientResponse.class);
-
-                        if (response.getStatus() < 400) {
-                            countDownLatch.countDown();
-                        }
-                        logger.trace("server {} path {} response {}", server, path, response);
-                    } catch (Exception e) {
-                        logger.warn("unable to delete " + path, e);
-                    } finally {
-                        HubUtils.close(response);
-                        resetThread();
-                    }
+            String url = HubHost.getScheme() + server + "/internal/spoke/" + spokeStore + "/payload/" + path;
+            futures.add(spokeClient.delete(url, DELETE_TIMEOUT).whenComplete((response, throwable) -> {
+                if (throwable != null) {
+                    logger.warn("unable to delete " + path, throwable);
+                    return;
                 }
-            });
+                if (response.getStatus() < 400) {
+                    successes.incrementAndGet();
+                }
+                logger.trace("server {} path {} response {}", server, path, response);
+            }));
         }
+        await(allOf(futures), DELETE_TIMEOUT);
+        return successes.get() == servers.size();
+    }
 
-        return countDownLatch.await(60, TimeUnit.SECONDS);
+    private CompletableFuture<Void> allOf(List<CompletableFuture<?>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Wait for the future, ignoring its outcome, which the callers track themselves.
+     */
+    private void await(CompletableFuture<?> future, int seconds) {
+        try {
+            future.get(seconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeInterruptedException(e);
+        } catch (ExecutionException | TimeoutException e) {
+            logger.trace("await {}", e.getMessage());
+        }
+    }
+
+    private void logFailure(String server, String path, Throwable throwable) {
+        if (throwable instanceof ConnectException) {
+            logger.warn("connection exception " + server);
+        } else {
+            logger.warn("unable to handle " + server + " " + path, throwable);
+        }
     }
 
 }
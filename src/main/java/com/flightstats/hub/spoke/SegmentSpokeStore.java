@@ -0,0 +1,267 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.model.ContentKey;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.NotFoundException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SegmentSpokeStore writes all of the items for a channel minute into one append only {@link SpokeSegment},
+ * instead of a file per item.
+ * The directory layout down to the minute is the same as {@link FileSpokeStore}, so TTL enforcement
+ * and channel deletes still remove whole minutes, hours or days, which now means whole segments.
+ * Items written by the file per item layout are still readable, which allows switching a running cluster.
+ * <p>
+ * There is only ever one SpokeSegment for a minute directory.  The cache bounds how many segments keep their
+ * files open, and a segment evicted while it is in use stays pinned until its last user releases it.
+ */
+public class SegmentSpokeStore extends FileSpokeStore {
+
+    private final static Logger logger = LoggerFactory.getLogger(SegmentSpokeStore.class);
+
+    private final LoadingCache<String, SpokeSegment> segments;
+    private final Map<String, PinnedSegment> pinned = new ConcurrentHashMap<>();
+
+    public SegmentSpokeStore(String spokePath, int spokeTtlMinutes) {
+        super(spokePath, spokeTtlMinutes, false);
+        RemovalListener<String, SpokeSegment> closer = notification -> notification.getValue().close();
+        segments = CacheBuilder.newBuilder()
+                .maximumSize(HubProperties.getProperty("spoke.segment.maxOpen", 1000))
+                .expireAfterAccess(HubProperties.getProperty("spoke.segment.idleSeconds", 120), TimeUnit.SECONDS)
+                .removalListener(closer)
+                .build(new CacheLoader<String, SpokeSegment>() {
+                    @Override
+                    public SpokeSegment load(String minuteDirectory) {
+                        return new SpokeSegment(new File(minuteDirectory));
+                    }
+                });
+        initialize();
+    }
+
+    @Override
+    void checkPermissions() {
+        if (!insert("hub-startup/" + new ContentKey().toUrl(), ("" + System.currentTimeMillis()).getBytes())) {
+            throw new RuntimeException("unable to create startup segment");
+        }
+    }
+
+    @Override
+    boolean writeItem(String path, InputStream input) {
+        File minuteDirectory = minuteDirectory(path);
+        SpokeSegment segment = acquire(minuteDirectory, true);
+        try {
+            boolean appended = segment.append(itemKey(path), input);
+            logger.trace("insert {} {}", path, appended);
+            return appended;
+        } catch (IOException e) {
+            logger.info("unable to write to " + path, e);
+            return false;
+        } finally {
+            release(minuteDirectory);
+        }
+    }
+
+    @Override
+    public void read(String path, OutputStream output) {
+        logger.trace("reading {}", path);
+        File minuteDirectory = minuteDirectory(path);
+        SpokeSegment segment = acquire(minuteDirectory, false);
+        if (segment != null) {
+            try {
+                if (segment.read(itemKey(path), output)) {
+                    return;
+                }
+            } catch (IOException e) {
+                logger.info("unable to read from " + path, e);
+                return;
+            } finally {
+                release(minuteDirectory);
+            }
+        }
+        super.read(path, output);
+    }
+
+    @Override
+    public boolean delete(String path) throws Exception {
+        String directory = new File(spokePath + path).getPath();
+        for (String minuteDirectory : new ArrayList<>(segments.asMap().keySet())) {
+            if (minuteDirectory.startsWith(directory)) {
+                segments.invalidate(minuteDirectory);
+            }
+        }
+        return super.delete(path);
+    }
+
+    @Override
+    boolean deleteItem(String path) throws Exception {
+        File minuteDirectory = minuteDirectory(path);
+        SpokeSegment segment = acquire(minuteDirectory, false);
+        if (segment != null) {
+            try {
+                if (segment.delete(itemKey(path))) {
+                    return true;
+                }
+            } finally {
+                release(minuteDirectory);
+            }
+        }
+        return super.deleteItem(path);
+    }
+
+    @Override
+    void listKeysInBucket(String key, OutputStream output) {
+        File directory = spokeFilePathPart(key);
+        logger.trace("path {}", directory);
+        if (!directory.exists()) {
+            return;
+        }
+        try {
+            if ("second".equals(SpokePathUtil.smallestTimeResolution(key))) {
+                writeMinuteKeys(directory, SpokePathUtil.second(key) + "/", output);
+            } else {
+                List<File> minuteDirectories = new ArrayList<>();
+                findMinuteDirectories(directory, minuteDirectories);
+                for (File minuteDirectory : minuteDirectories) {
+                    writeMinuteKeys(minuteDirectory, "", output);
+                }
+            }
+        } catch (Exception e) {
+            logger.info("error with " + directory, e);
+        }
+    }
+
+    @Override
+    String[] keysInMinute(File minuteDirectory) {
+        List<String> keys = new ArrayList<>();
+        String[] fileNames = minuteDirectory.list();
+        if (fileNames == null) {
+            return new String[0];
+        }
+        for (String fileName : fileNames) {
+            if (!SpokeSegment.isSegmentFile(fileName)) {
+                keys.add(keyFromFileName(fileName));
+            }
+        }
+        SpokeSegment segment = acquire(minuteDirectory, false);
+        if (segment != null) {
+            try {
+                keys.addAll(segment.entries().keySet());
+            } catch (IOException e) {
+                logger.warn("unable to read segment " + minuteDirectory, e);
+            } finally {
+                release(minuteDirectory);
+            }
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    @Override
+    void enforceTtl(String channel, DateTime dateTime) {
+        super.enforceTtl(channel, dateTime);
+        for (SpokeSegment segment : new ArrayList<>(segments.asMap().values())) {
+            if (!segment.exists()) {
+                segments.asMap().values().remove(segment);
+            }
+        }
+    }
+
+    private void writeMinuteKeys(File minuteDirectory, String prefix, OutputStream output) throws IOException {
+        String minuteKey = spokeKeyFromPath(minuteDirectory.getAbsolutePath());
+        for (String key : keysInMinute(minuteDirectory)) {
+            if (key.startsWith(prefix)) {
+                writeKey(output, minuteKey + "/" + key);
+            }
+        }
+    }
+
+    private void findMinuteDirectories(File directory, List<File> minuteDirectories) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        boolean hasItems = false;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                findMinuteDirectories(file, minuteDirectories);
+            } else {
+                hasItems = true;
+            }
+        }
+        if (hasItems) {
+            minuteDirectories.add(directory);
+        }
+    }
+
+    /**
+     * Pins the segment for the minute, so the same instance is used until it is released,
+     * even if the cache evicts it in the meantime.
+     *
+     * @param create false to return null for a minute without a segment
+     */
+    private SpokeSegment acquire(File minuteDirectory, boolean create) {
+        PinnedSegment pinnedSegment = pinned.compute(minuteDirectory.getPath(), (path, existing) -> {
+            if (existing != null) {
+                existing.users++;
+                return existing;
+            }
+            SpokeSegment segment = segments.getIfPresent(path);
+            if (segment == null) {
+                if (!create && !new File(minuteDirectory, SpokeSegment.INDEX).exists()) {
+                    return null;
+                }
+                segment = segments.getUnchecked(path);
+            }
+            return new PinnedSegment(segment);
+        });
+        return pinnedSegment == null ? null : pinnedSegment.segment;
+    }
+
+    private void release(File minuteDirectory) {
+        pinned.computeIfPresent(minuteDirectory.getPath(), (path, existing) -> --existing.users == 0 ? null : existing);
+    }
+
+    /**
+     * users is only changed within the pinned map's compute methods.
+     */
+    private static class PinnedSegment {
+        private final SpokeSegment segment;
+        private int users = 1;
+
+        private PinnedSegment(SpokeSegment segment) {
+            this.segment = segment;
+        }
+    }
+
+    // given "channel/yyyy/MM/dd/HH/mm/ss/SSS/hash", return the minute directory
+    private File minuteDirectory(String path) {
+        String[] split = StringUtils.split(path, "/");
+        if (split.length < 9) {
+            throw new NotFoundException("not an item path " + path);
+        }
+        return new File(spokePath + split[0] + "/" + split[1] + "/" + split[2] + "/" + split[3] + "/" + split[4]
+                + "/" + split[5]);
+    }
+
+    // given "channel/yyyy/MM/dd/HH/mm/ss/SSS/hash", return "ss/SSS/hash"
+    private String itemKey(String path) {
+        String[] split = StringUtils.split(path, "/");
+        return split[6] + "/" + split[7] + "/" + split[8];
+    }
+}
@@ -0,0 +1,156 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.app.HubServices;
+import com.flightstats.hub.metrics.MetricsService;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.eclipse.jetty.client.DuplexConnectionPool;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpDestination;
+import org.eclipse.jetty.client.api.Destination;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SpokeClient is the non-blocking transport used by {@link RemoteSpokeStore} to call the /internal/spoke
+ * endpoints on the other spoke servers.
+ * Each server has its own bounded connection pool and request queue, and requests complete a future
+ * instead of holding a thread while waiting on the response.
+ */
+@Singleton
+public class SpokeClient {
+
+    private final static Logger logger = LoggerFactory.getLogger(SpokeClient.class);
+
+    private final HttpClient httpClient;
+    private final MetricsService metricsService;
+    private final int maxResponseBytes = (int) Math.min(Integer.MAX_VALUE, HubProperties.getLargePayload() * 2);
+
+    @Inject
+    public SpokeClient(MetricsService metricsService) {
+        this.metricsService = metricsService;
+        QueuedThreadPool threadPool = new QueuedThreadPool(HubProperties.getProperty("spoke.client.threads", 64), 8);
+        threadPool.setName("SpokeClient");
+        threadPool.setDaemon(true);
+        httpClient = new HttpClient(new SslContextFactory(true));
+        httpClient.setExecutor(threadPool);
+        httpClient.setMaxConnectionsPerDestination(HubProperties.getProperty("spoke.client.maxConnections", 64));
+        httpClient.setMaxRequestsQueuedPerDestination(HubProperties.getProperty("spoke.client.maxQueued", 1024));
+        httpClient.setConnectTimeout(HubProperties.getProperty("spoke.client.connectTimeoutMillis", 5000));
+        httpClient.setIdleTimeout(HubProperties.getProperty("spoke.client.idleTimeoutMillis", 60000));
+        try {
+            httpClient.start();
+        } catch (Exception e) {
+            logger.error("unable to start spoke client", e);
+            throw new RuntimeException(e);
+        }
+        HubServices.register(new SpokeClientMetricsService());
+    }
+
+    CompletableFuture<SpokeResponse> put(String uri, byte[] payload, int timeoutSeconds) {
+        return send(httpClient.newRequest(uri)
+                .method(HttpMethod.PUT)
+                .content(new BytesContentProvider(payload)), timeoutSeconds);
+    }
+
+    CompletableFuture<SpokeResponse> get(String uri, int timeoutSeconds) {
+        return send(httpClient.newRequest(uri).method(HttpMethod.GET), timeoutSeconds);
+    }
+
+    CompletableFuture<SpokeResponse> delete(String uri, int timeoutSeconds) {
+        return send(httpClient.newRequest(uri).method(HttpMethod.DELETE), timeoutSeconds);
+    }
+
+    /**
+     * Cancelling the returned future aborts the request.
+     */
+    private CompletableFuture<SpokeResponse> send(Request request, int timeoutSeconds) {
+        CompletableFuture<SpokeResponse> future = new CompletableFuture<>();
+        request.timeout(timeoutSeconds, TimeUnit.SECONDS)
+                .send(new BufferingResponseListener(maxResponseBytes) {
+                    @Override
+                    public void onComplete(Result result) {
+                        if (result.isFailed()) {
+                            future.completeExceptionally(result.getFailure());
+                        } else {
+                            future.complete(new SpokeResponse(result.getResponse().getStatus(), getContent()));
+                        }
+                    }
+                });
+        future.whenComplete((response, throwable) -> {
+            if (future.isCancelled()) {
+                request.abort(throwable);
+            }
+        });
+        return future;
+    }
+
+    private void reportMetrics() {
+        for (Destination destination : httpClient.getDestinations()) {
+            HttpDestination httpDestination = (HttpDestination) destination;
+            String server = "server:" + httpDestination.getHost() + ":" + httpDestination.getPort();
+            metricsService.gauge("spoke.client.queued", httpDestination.getQueuedRequestCount(), server);
+            if (httpDestination.getConnectionPool() instanceof DuplexConnectionPool) {
+                DuplexConnectionPool pool = (DuplexConnectionPool) httpDestination.getConnectionPool();
+                metricsService.gauge("spoke.client.active", pool.getActiveConnectionCount(), server);
+                metricsService.gauge("spoke.client.idle", pool.getIdleConnectionCount(), server);
+            }
+        }
+    }
+
+    static class SpokeResponse {
+        private final int status;
+        private final byte[] content;
+
+        SpokeResponse(int status, byte[] content) {
+            this.status = status;
+            this.content = content;
+        }
+
+        int getStatus() {
+            return status;
+        }
+
+        byte[] getContent() {
+            return content;
+        }
+
+        String getContentAsString() {
+            return new String(content, StandardCharsets.UTF_8);
+        }
+
+        public String toString() {
+            return "SpokeResponse(status=" + status + ", bytes=" + content.length + ")";
+        }
+    }
+
+    private class SpokeClientMetricsService extends AbstractScheduledService {
+
+        @Override
+        protected void runOneIteration() throws Exception {
+            try {
+                reportMetrics();
+            } catch (Exception e) {
+                logger.info("unable to report spoke client metrics", e);
+            }
+        }
+
+        @Override
+        protected Scheduler scheduler() {
+            return Scheduler.newFixedDelaySchedule(0, 10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.metrics.MetricsService;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * SpokeEvictor removes expired spoke files from within the JVM, instead of running rm and find.
+ * Channels are evicted in parallel, and all deletes share a budget of spoke.evict.filesPerSecond,
+ * so a large eviction can not starve reads and writes of disk I/O.
+ */
+@Singleton
+public class SpokeEvictor {
+
+    private final static Logger logger = LoggerFactory.getLogger(SpokeEvictor.class);
+
+    private final RateLimiter deleteLimiter = RateLimiter.create(HubProperties.getProperty("spoke.evict.filesPerSecond", 5000));
+    private final ExecutorService executorService = Executors.newFixedThreadPool(HubProperties.getProperty("spoke.evict.threads", 4),
+            new ThreadFactoryBuilder().setNameFormat("spoke-evict-%d").setDaemon(true).build());
+
+    @Inject
+    private MetricsService metricsService;
+
+    /**
+     * Run the evictions for each channel in parallel, and wait for all of them to complete.
+     */
+    void evictAll(List<Runnable> evictions) {
+        List<Future<?>> futures = new ArrayList<>();
+        for (Runnable eviction : evictions) {
+            futures.add(executorService.submit(eviction));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.warn("unable to evict", e);
+            }
+        }
+    }
+
+    /**
+     * Delete a file, or a directory and everything below it.
+     */
+    void delete(String path, Eviction eviction) {
+        delete(Paths.get(path), attributes -> true, true, eviction);
+    }
+
+    /**
+     * Delete the files and directories below path which were last modified before the time.
+     * path itself is kept.
+     */
+    void deleteModifiedBefore(String path, long modifiedBeforeMillis, Eviction eviction) {
+        Predicate<BasicFileAttributes> expired = attributes -> attributes.lastModifiedTime().toMillis() < modifiedBeforeMillis;
+        delete(Paths.get(path), expired, false, eviction);
+    }
+
+    private void delete(Path root, Predicate<BasicFileAttributes> filter, boolean deleteRoot, Eviction eviction) {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+                private final Map<Path, Boolean> expiredDirectories = new HashMap<>();
+
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                    expiredDirectories.put(dir, filter.test(attributes));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                    if (filter.test(attributes)) {
+                        deleteLimiter.acquire();
+                        if (Files.deleteIfExists(file)) {
+                            eviction.add(file, attributes.size());
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    if (!(e instanceof NoSuchFileException)) {
+                        logger.info("unable to visit {} {}", file, e.getMessage());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    boolean expired = expiredDirectories.remove(dir);
+                    if (!expired || (dir.equals(root) && !deleteRoot)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    try {
+                        deleteLimiter.acquire();
+                        Files.deleteIfExists(dir);
+                    } catch (DirectoryNotEmptyException | NoSuchFileException ignore) {
+                        //the directory still has current items, or has already been removed
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            logger.warn("unable to delete " + root, e);
+        }
+    }
+
+    /**
+     * Report the eviction of a channel, if anything was removed.
+     */
+    void report(String store, String channel, long start, Eviction eviction) {
+        if (eviction.getItems() > 0) {
+            String[] tags = {"store:" + store, "channel:" + channel};
+            metricsService.count("spoke.evict.items", eviction.getItems(), tags);
+            metricsService.count("spoke.evict.bytes", eviction.getBytes(), tags);
+            metricsService.time("spoke.evict", start, tags);
+        }
+    }
+
+    /**
+     * The number of items and bytes removed, a segment counts as one item.
+     * The files removed are kept when the caller needs them.
+     */
+    static class Eviction {
+        private final AtomicLong items = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final Queue<Path> files;
+
+        Eviction() {
+            this(false);
+        }
+
+        Eviction(boolean keepFiles) {
+            files = keepFiles ? new ConcurrentLinkedQueue<>() : null;
+        }
+
+        void add(Path file, long size) {
+            if (!SpokeSegment.INDEX.equals(file.getFileName().toString())) {
+                items.incrementAndGet();
+            }
+            bytes.addAndGet(size);
+            if (files != null) {
+                files.add(file);
+            }
+        }
+
+        Collection<Path> getFiles() {
+            return files == null ? Collections.emptyList() : files;
+        }
+
+        long getItems() {
+            return items.get();
+        }
+
+        long getBytes() {
+            return bytes.get();
+        }
+    }
+}
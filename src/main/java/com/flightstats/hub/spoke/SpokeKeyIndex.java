@@ -0,0 +1,477 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.model.ContentKey;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * SpokeKeyIndex keeps the ContentKeys for each channel in a FileSpokeStore in memory, sorted,
+ * so time, latest and next queries are binary searches instead of directory walks.
+ * <p>
+ * Keys are held in parallel primitive arrays of millis and packed hash.  Alphanumeric hashes of up to
+ * twenty characters are packed six bits per character into two longs, preserving String ordering;
+ * any other hash is kept as a String.
+ * <p>
+ * A channel is only used for queries once it is ready, meaning the keys on disk have been loaded.
+ * Until then, callers should fall back to the file system.
+ * Keys removed while a channel is loading are remembered, and removed from the loaded keys before they are used,
+ * so a listing which saw a file before it was deleted can not bring the key back.
+ */
+class SpokeKeyIndex {
+
+    private final ConcurrentMap<String, ChannelKeys> channels = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Removals> loading = new ConcurrentHashMap<>();
+    private volatile boolean loaded;
+
+    /**
+     * @return the keys for the channel, or null if the channel's keys are not ready
+     */
+    ChannelKeys get(String channel) {
+        ChannelKeys keys = channels.get(channel);
+        if (keys == null) {
+            return loaded ? ChannelKeys.EMPTY : null;
+        }
+        return keys.ready ? keys : null;
+    }
+
+    void add(String channel, ContentKey key) {
+        channels.computeIfAbsent(channel, name -> new ChannelKeys(loaded)).add(key);
+    }
+
+    void remove(String channel, ContentKey key) {
+        Removals removals = loading.get(channel);
+        if (removals != null) {
+            removals.keys.add(key);
+        }
+        ChannelKeys keys = channels.get(channel);
+        if (keys != null) {
+            keys.remove(key);
+        }
+    }
+
+    void removeBefore(String channel, long millis) {
+        removeRange(channel, Long.MIN_VALUE, millis);
+    }
+
+    /**
+     * Removes keys with a time from startMillis, inclusive, to endMillis, exclusive.
+     */
+    void removeRange(String channel, long startMillis, long endMillis) {
+        Removals removals = loading.get(channel);
+        if (removals != null) {
+            removals.ranges.add(new long[]{startMillis, endMillis});
+        }
+        ChannelKeys keys = channels.get(channel);
+        if (keys != null) {
+            keys.removeRange(startMillis, endMillis);
+        }
+    }
+
+    void removeChannel(String channel) {
+        channels.remove(channel);
+    }
+
+    /**
+     * Replace the channel's keys with what is on disk.  Keys added while the load is running are kept,
+     * and keys removed while it is running are left out.
+     */
+    void load(String channel, Supplier<Collection<ContentKey>> keysOnDisk) {
+        Removals removals = new Removals();
+        loading.put(channel, removals);
+        try {
+            Collection<ContentKey> onDisk = keysOnDisk.get();
+            ChannelKeys keys = new ChannelKeys(false);
+            ChannelKeys previous = channels.put(channel, keys);
+            for (ContentKey key : onDisk) {
+                keys.add(key);
+            }
+            if (previous != null) {
+                previous.copyTo(keys);
+            }
+            for (ContentKey key : removals.keys) {
+                keys.remove(key);
+            }
+            for (long[] range : removals.ranges) {
+                keys.removeRange(range[0], range[1]);
+            }
+            keys.ready = true;
+        } finally {
+            loading.remove(channel, removals);
+        }
+    }
+
+    /**
+     * Called once every channel on disk has been loaded.
+     */
+    void loaded() {
+        for (ChannelKeys keys : channels.values()) {
+            keys.ready = true;
+        }
+        loaded = true;
+    }
+
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    private static class Removals {
+        private final Queue<ContentKey> keys = new ConcurrentLinkedQueue<>();
+        private final Queue<long[]> ranges = new ConcurrentLinkedQueue<>();
+    }
+
+    static class ChannelKeys {
+
+        private static final ChannelKeys EMPTY = new ChannelKeys(true);
+        private static final int CHARS_PER_LONG = 10;
+
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private long[] millis = new long[16];
+        private long[] hashHigh = new long[16];
+        private long[] hashLow = new long[16];
+        private String[] unpacked;
+        private int start;
+        private int end;
+        private volatile boolean ready;
+
+        ChannelKeys(boolean ready) {
+            this.ready = ready;
+        }
+
+        int size() {
+            lock.readLock().lock();
+            try {
+                return end - start;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        boolean add(ContentKey key) {
+            Packed packed = new Packed(key);
+            lock.writeLock().lock();
+            try {
+                int index = search(packed);
+                if (index < end && compare(index, packed) == 0) {
+                    return false;
+                }
+                makeRoom();
+                index = search(packed);
+                System.arraycopy(millis, index, millis, index + 1, end - index);
+                System.arraycopy(hashHigh, index, hashHigh, index + 1, end - index);
+                System.arraycopy(hashLow, index, hashLow, index + 1, end - index);
+                if (unpacked != null) {
+                    System.arraycopy(unpacked, index, unpacked, index + 1, end - index);
+                    unpacked[index] = null;
+                }
+                set(index, packed);
+                end++;
+                return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        boolean remove(ContentKey key) {
+            Packed packed = new Packed(key);
+            lock.writeLock().lock();
+            try {
+                int index = search(packed);
+                if (index >= end || compare(index, packed) != 0) {
+                    return false;
+                }
+                System.arraycopy(millis, index + 1, millis, index, end - index - 1);
+                System.arraycopy(hashHigh, index + 1, hashHigh, index, end - index - 1);
+                System.arraycopy(hashLow, index + 1, hashLow, index, end - index - 1);
+                if (unpacked != null) {
+                    System.arraycopy(unpacked, index + 1, unpacked, index, end - index - 1);
+                    unpacked[end - 1] = null;
+                }
+                end--;
+                return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void removeBefore(long limitMillis) {
+            lock.writeLock().lock();
+            try {
+                int limit = lowerBound(limitMillis);
+                if (unpacked != null) {
+                    for (int i = start; i < limit; i++) {
+                        unpacked[i] = null;
+                    }
+                }
+                start = limit;
+                if (start == end) {
+                    start = 0;
+                    end = 0;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void removeRange(long startMillis, long endMillis) {
+            lock.writeLock().lock();
+            try {
+                int first = lowerBound(startMillis);
+                int last = lowerBound(endMillis);
+                if (first == start) {
+                    removeBefore(endMillis);
+                    return;
+                }
+                if (first >= last) {
+                    return;
+                }
+                System.arraycopy(millis, last, millis, first, end - last);
+                System.arraycopy(hashHigh, last, hashHigh, first, end - last);
+                System.arraycopy(hashLow, last, hashLow, first, end - last);
+                if (unpacked != null) {
+                    System.arraycopy(unpacked, last, unpacked, first, end - last);
+                    for (int i = end - (last - first); i < end; i++) {
+                        unpacked[i] = null;
+                    }
+                }
+                end -= last - first;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * @return keys with a time from startMillis, inclusive, to endMillis, exclusive
+         */
+        List<ContentKey> range(long startMillis, long endMillis) {
+            lock.readLock().lock();
+            try {
+                int last = lowerBound(endMillis);
+                List<ContentKey> keys = new ArrayList<>();
+                for (int i = lowerBound(startMillis); i < last; i++) {
+                    keys.add(key(i));
+                }
+                return keys;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @return the greatest key before limitKey, with a time at or after floorMillis, or null
+         */
+        ContentKey latest(ContentKey limitKey, long floorMillis) {
+            lock.readLock().lock();
+            try {
+                int index = search(new Packed(limitKey)) - 1;
+                if (index >= start && millis[index] >= floorMillis) {
+                    return key(index);
+                }
+                return null;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Mirrors the file system behavior of returning the remainder of the minute of the count'th key.
+         *
+         * @return keys after startKey, with a time before endMillis
+         */
+        List<ContentKey> next(ContentKey startKey, int count, long endMillis) {
+            lock.readLock().lock();
+            try {
+                List<ContentKey> keys = new ArrayList<>();
+                Packed packed = new Packed(startKey);
+                int index = search(packed);
+                if (index < end && compare(index, packed) == 0) {
+                    index++;
+                }
+                long minuteEnd = Long.MAX_VALUE;
+                for (int i = index; i < end && millis[i] < endMillis && millis[i] < minuteEnd; i++) {
+                    keys.add(key(i));
+                    if (keys.size() == count) {
+                        minuteEnd = millis[i] - Math.floorMod(millis[i], 60_000L) + 60_000L;
+                    }
+                }
+                return keys;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private void copyTo(ChannelKeys other) {
+            lock.readLock().lock();
+            try {
+                for (int i = start; i < end; i++) {
+                    other.add(key(i));
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private ContentKey key(int index) {
+            String hash = unpacked != null && unpacked[index] != null
+                    ? unpacked[index] : unpack(hashHigh[index], hashLow[index]);
+            return new ContentKey(new DateTime(millis[index], DateTimeZone.UTC), hash);
+        }
+
+        private void set(int index, Packed packed) {
+            millis[index] = packed.millis;
+            hashHigh[index] = packed.high;
+            hashLow[index] = packed.low;
+            if (packed.hash != null) {
+                if (unpacked == null) {
+                    unpacked = new String[millis.length];
+                }
+                unpacked[index] = packed.hash;
+            }
+        }
+
+        private void makeRoom() {
+            if (end < millis.length) {
+                return;
+            }
+            int size = end - start;
+            int capacity = size * 2 < millis.length ? millis.length : millis.length * 2;
+            millis = moveTo(millis, new long[capacity], size);
+            hashHigh = moveTo(hashHigh, new long[capacity], size);
+            hashLow = moveTo(hashLow, new long[capacity], size);
+            if (unpacked != null) {
+                String[] moved = new String[capacity];
+                System.arraycopy(unpacked, start, moved, 0, size);
+                unpacked = moved;
+            }
+            start = 0;
+            end = size;
+        }
+
+        private long[] moveTo(long[] from, long[] to, int size) {
+            System.arraycopy(from, start, to, 0, size);
+            return to;
+        }
+
+        // the first index with a time at or after the millis
+        private int lowerBound(long limitMillis) {
+            int low = start;
+            int high = end;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (millis[mid] < limitMillis) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        // the first index at or after the key
+        private int search(Packed packed) {
+            int low = lowerBound(packed.millis);
+            int high = end;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compare(mid, packed) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private int compare(int index, Packed packed) {
+            int diff = Long.compare(millis[index], packed.millis);
+            if (diff != 0) {
+                return diff;
+            }
+            String indexHash = unpacked == null ? null : unpacked[index];
+            if (indexHash == null && packed.hash == null) {
+                diff = Long.compare(hashHigh[index], packed.high);
+                return diff != 0 ? diff : Long.compare(hashLow[index], packed.low);
+            }
+            if (indexHash == null) {
+                indexHash = unpack(hashHigh[index], hashLow[index]);
+            }
+            return indexHash.compareTo(packed.getHash());
+        }
+
+        private static String unpack(long high, long low) {
+            StringBuilder builder = new StringBuilder(CHARS_PER_LONG * 2);
+            unpack(high, builder);
+            unpack(low, builder);
+            return builder.toString();
+        }
+
+        private static void unpack(long packed, StringBuilder builder) {
+            for (int i = 0; i < CHARS_PER_LONG; i++) {
+                int code = (int) (packed >>> (6 * (CHARS_PER_LONG - 1 - i))) & 0x3F;
+                if (code == 0) {
+                    return;
+                }
+                builder.append(decode(code));
+            }
+        }
+
+        // codes are in ASCII order, with 0 reserved for the end of the hash
+        private static int encode(char c) {
+            if (c >= '0' && c <= '9') return c - '0' + 1;
+            if (c >= 'A' && c <= 'Z') return c - 'A' + 11;
+            if (c >= 'a' && c <= 'z') return c - 'a' + 37;
+            return -1;
+        }
+
+        private static char decode(int code) {
+            if (code <= 10) return (char) ('0' + code - 1);
+            if (code <= 36) return (char) ('A' + code - 11);
+            return (char) ('a' + code - 37);
+        }
+
+        private static class Packed {
+            private final long millis;
+            private long high;
+            private long low;
+            private String hash;
+
+            Packed(ContentKey key) {
+                millis = key.getMillis();
+                String keyHash = key.getHash();
+                if (keyHash.length() > CHARS_PER_LONG * 2) {
+                    hash = keyHash;
+                    return;
+                }
+                for (int i = 0; i < keyHash.length(); i++) {
+                    int code = encode(keyHash.charAt(i));
+                    if (code < 0) {
+                        hash = keyHash;
+                        high = 0;
+                        low = 0;
+                        return;
+                    }
+                    int shift = 6 * (CHARS_PER_LONG - 1 - (i % CHARS_PER_LONG));
+                    if (i < CHARS_PER_LONG) {
+                        high |= ((long) code) << shift;
+                    } else {
+                        low |= ((long) code) << shift;
+                    }
+                }
+            }
+
+            String getHash() {
+                return hash != null ? hash : unpack(high, low);
+            }
+        }
+    }
+}
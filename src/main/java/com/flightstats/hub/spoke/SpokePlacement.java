@@ -0,0 +1,109 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.cluster.CuratorCluster;
+import com.flightstats.hub.util.Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SpokePlacement assigns each channel to spoke.write.factor servers, using rendezvous hashing of the
+ * channel name with each active server, so that queries only need to call the servers which hold a channel.
+ * <p>
+ * When servers join or leave, only the channels on those servers move.
+ * Items written before a change remain on the previous owners until they expire, so the sets of active servers
+ * are kept for the spoke ttl, and reads go to the owners from each of them.
+ * Until this hub has seen the full spoke ttl, reads go to every server.
+ */
+class SpokePlacement {
+
+    private final static Logger logger = LoggerFactory.getLogger(SpokePlacement.class);
+
+    private final CuratorCluster cluster;
+    private final int replicas;
+    private final long historyMillis;
+    private final long startMillis;
+    private final LinkedList<Membership> history = new LinkedList<>();
+
+    SpokePlacement(CuratorCluster cluster) {
+        this(cluster, HubProperties.getProperty("spoke.write.factor", 3),
+                TimeUnit.MINUTES.toMillis(HubProperties.getSpokeTtlMinutes(SpokeStore.WRITE) + 2), System.currentTimeMillis());
+    }
+
+    SpokePlacement(CuratorCluster cluster, int replicas, long historyMillis, long startMillis) {
+        this.cluster = cluster;
+        this.replicas = replicas;
+        this.historyMillis = historyMillis;
+        this.startMillis = startMillis;
+    }
+
+    /**
+     * @return the servers to write the channel to
+     */
+    List<String> getWriteServers(String channel) {
+        return getOwners(channel, update(System.currentTimeMillis()), replicas);
+    }
+
+    /**
+     * @return the servers which may have items for the channel
+     */
+    Collection<String> getReadServers(String channel) {
+        return getReadServers(channel, System.currentTimeMillis());
+    }
+
+    synchronized Collection<String> getReadServers(String channel, long now) {
+        update(now);
+        Set<String> servers = cluster.getAllServers();
+        if (now - startMillis < historyMillis) {
+            return servers;
+        }
+        Set<String> owners = new TreeSet<>();
+        for (Membership membership : history) {
+            owners.addAll(getOwners(channel, membership.servers, replicas));
+        }
+        owners.retainAll(servers);
+        return owners;
+    }
+
+    private synchronized Set<String> update(long now) {
+        Set<String> active = new TreeSet<>(cluster.getActiveServers());
+        if (history.isEmpty() || !history.getLast().servers.equals(active)) {
+            logger.info("spoke servers changed to {}", active);
+            history.add(new Membership(now, active));
+        }
+        while (history.size() > 1 && history.get(1).start < now - historyMillis) {
+            history.removeFirst();
+        }
+        return active;
+    }
+
+    /**
+     * The owners of a channel are the servers with the highest hash of the server with the channel name.
+     */
+    static List<String> getOwners(String channel, Collection<String> servers, int replicas) {
+        String name = channel.toLowerCase();
+        List<String> owners = new ArrayList<>(servers);
+        if (owners.size() <= replicas) {
+            return owners;
+        }
+        Map<String, Long> weights = new HashMap<>();
+        for (String server : owners) {
+            weights.put(server, Hash.hash(name + "/" + server));
+        }
+        owners.sort((first, second) -> Long.compare(weights.get(second), weights.get(first)));
+        return new ArrayList<>(owners.subList(0, replicas));
+    }
+
+    private static class Membership {
+        private final long start;
+        private final Set<String> servers;
+
+        private Membership(long start, Set<String> servers) {
+            this.start = start;
+            this.servers = servers;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.flightstats.hub.spoke;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A SpokeSegment holds all of the items for one channel minute in a single append only data file,
+ * with a separate append only index file of key, offset and length.
+ * An item is only visible to readers once its index entry has been written, which replaces the
+ * executable bit used by the file per item layout.
+ * A negative length in the index is a tombstone for a deleted item.
+ */
+class SpokeSegment {
+
+    static final String DATA = "segment.data";
+    static final String INDEX = "segment.index";
+
+    private final static Logger logger = LoggerFactory.getLogger(SpokeSegment.class);
+    private static final int COPY_BUFFER = 64 * 1024;
+
+    private final File directory;
+    private final File dataFile;
+    private final File indexFile;
+    private final NavigableMap<String, long[]> entries = new ConcurrentSkipListMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private FileChannel data;
+    private FileChannel index;
+    private boolean loaded;
+    private boolean evicted;
+
+    SpokeSegment(File directory) {
+        this.directory = directory;
+        this.dataFile = new File(directory, DATA);
+        this.indexFile = new File(directory, INDEX);
+    }
+
+    static boolean isSegmentFile(String fileName) {
+        return DATA.equals(fileName) || INDEX.equals(fileName);
+    }
+
+    boolean exists() {
+        return indexFile.exists();
+    }
+
+    /**
+     * @param key the item key within the minute, "ss/SSS/hash"
+     */
+    boolean append(String key, InputStream input) throws IOException {
+        lock.writeLock().lock();
+        try {
+            open();
+            long offset = data.size();
+            long length = copy(input, offset);
+            if (length < 0) {
+                return false;
+            }
+            writeIndex(key, offset, length);
+            entries.put(key, new long[]{offset, length});
+            return true;
+        } finally {
+            closeIfEvicted();
+            lock.writeLock().unlock();
+        }
+    }
+
+    boolean delete(String key) throws IOException {
+        lock.writeLock().lock();
+        try {
+            open();
+            if (!entries.containsKey(key)) {
+                return false;
+            }
+            writeIndex(key, 0, -1);
+            entries.remove(key);
+            return true;
+        } finally {
+            closeIfEvicted();
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return false if the key is not in this segment
+     */
+    boolean read(String key, OutputStream output) throws IOException {
+        lock.readLock().lock();
+        try {
+            if (!loaded || evicted) {
+                lock.readLock().unlock();
+                lock.writeLock().lock();
+                try {
+                    open();
+                } finally {
+                    lock.readLock().lock();
+                    lock.writeLock().unlock();
+                }
+            }
+            long[] entry = entries.get(key);
+            if (entry == null) {
+                return false;
+            }
+            WritableByteChannel target = Channels.newChannel(output);
+            long position = entry[0];
+            long remaining = entry[1];
+            while (remaining > 0) {
+                long transferred = data.transferTo(position, remaining, target);
+                if (transferred <= 0) {
+                    throw new IOException("unexpected end of segment " + dataFile + " " + key);
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+            return true;
+        } finally {
+            lock.readLock().unlock();
+            if (evicted) {
+                lock.writeLock().lock();
+                try {
+                    closeIfEvicted();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the keys in this segment, "ss/SSS/hash", in sorted order
+     */
+    NavigableMap<String, long[]> entries() throws IOException {
+        lock.writeLock().lock();
+        try {
+            open();
+            return entries;
+        } finally {
+            closeIfEvicted();
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Called when the segment falls out of the cache.  A segment still in use by a reader or writer
+     * will reopen its files, and close them again when it is done.
+     */
+    void close() {
+        lock.writeLock().lock();
+        try {
+            evicted = true;
+            closeChannels();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void open() throws IOException {
+        if (loaded && !indexFile.exists()) {
+            logger.debug("segment was removed {}", directory);
+            closeChannels();
+            entries.clear();
+            loaded = false;
+        }
+        if (data != null) {
+            return;
+        }
+        directory.mkdirs();
+        data = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (!loaded) {
+            loadIndex();
+            loaded = true;
+        }
+    }
+
+    private void closeIfEvicted() {
+        if (evicted) {
+            closeChannels();
+        }
+    }
+
+    private void closeChannels() {
+        closeQuietly(data);
+        closeQuietly(index);
+        data = null;
+        index = null;
+    }
+
+    private void closeQuietly(FileChannel channel) {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            logger.info("unable to close " + directory, e);
+        }
+    }
+
+    private long copy(InputStream input, long offset) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(input);
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER);
+        long position = offset;
+        try {
+            while (source.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += data.write(buffer, position);
+                }
+                buffer.clear();
+            }
+            return position - offset;
+        } catch (IOException e) {
+            logger.info("unable to append to " + dataFile, e);
+            data.truncate(offset);
+            return -1;
+        }
+    }
+
+    private void writeIndex(String key, long offset, long length) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(2 + keyBytes.length + 16);
+        buffer.putShort((short) keyBytes.length);
+        buffer.put(keyBytes);
+        buffer.putLong(offset);
+        buffer.putLong(length);
+        buffer.flip();
+        long position = index.size();
+        while (buffer.hasRemaining()) {
+            position += index.write(buffer, position);
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        long size = index.size();
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining() && index.read(buffer, buffer.position()) > 0) {
+        }
+        buffer.flip();
+        long valid = 0;
+        while (buffer.remaining() >= 2) {
+            int keyLength = buffer.getShort();
+            if (buffer.remaining() < keyLength + 16) {
+                break;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            buffer.get(keyBytes);
+            long offset = buffer.getLong();
+            long length = buffer.getLong();
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+            if (length < 0) {
+                entries.remove(key);
+            } else {
+                entries.put(key, new long[]{offset, length});
+            }
+            valid = buffer.position();
+        }
+        if (valid < size) {
+            logger.warn("truncating partial index entry {} {} {}", indexFile, valid, size);
+            index.truncate(valid);
+        }
+    }
+
+}
@@ -1,13 +1,14 @@
 package com.flightstats.hub.spoke;
 
 import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.app.HubProvider;
 import com.flightstats.hub.app.HubServices;
 import com.flightstats.hub.dao.ChannelService;
 import com.flightstats.hub.dao.TtlEnforcer;
 import com.flightstats.hub.metrics.MetricsService;
 import com.flightstats.hub.model.ChannelConfig;
 import com.flightstats.hub.model.ChannelContentKey;
-import com.flightstats.hub.util.FileUtils;
+import com.flightstats.hub.model.MinutePath;
 import com.flightstats.hub.util.TimeUtil;
 import com.google.common.base.Optional;
 import com.google.common.util.concurrent.AbstractScheduledService;
@@ -17,7 +18,9 @@ import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
@@ -40,6 +43,9 @@ public class SpokeTtlEnforcer {
     @Inject
     private SpokeContentDao spokeContentDao;
 
+    @Inject
+    private SpokeEvictor spokeEvictor;
+
     public SpokeTtlEnforcer(SpokeStore spokeStore) {
         this.spokeStore = spokeStore;
         this.storagePath = HubProperties.getSpokePath(spokeStore);
@@ -49,30 +55,33 @@ public class SpokeTtlEnforcer {
         }
     }
 
-    private Consumer<ChannelConfig> handleCleanup(AtomicLong evictionCounter) {
-        return channel -> {
-            int itemsEvicted = 0;
+    private Consumer<ChannelConfig> handleCleanup(AtomicLong evictionCounter, List<Runnable> evictions) {
+        FileSpokeStore fileSpokeStore = HubProvider.getInstance(FileSpokeStore.class, spokeStore.name());
+        return channel -> evictions.add(() -> {
+            long start = System.currentTimeMillis();
+            SpokeEvictor.Eviction eviction = new SpokeEvictor.Eviction(!channel.isLive());
             String channelPath = storagePath + "/" + channel.getDisplayName();
             if (channel.isLive()) {
                 DateTime ttlDateTime = TimeUtil.stable().minusMinutes(ttlMinutes + 1);
                 for (int i = 0; i < 2; i++) {
-                    itemsEvicted += removeFromChannelByTime(channelPath, TimeUtil.minutes(ttlDateTime.minusMinutes(i)));
-                    itemsEvicted += removeFromChannelByTime(channelPath, TimeUtil.hours(ttlDateTime.minusHours(i + 1)));
-                    itemsEvicted += removeFromChannelByTime(channelPath, TimeUtil.days(ttlDateTime.minusDays(i + 1)));
-                    itemsEvicted += removeFromChannelByTime(channelPath, TimeUtil.months(ttlDateTime.minusMonths(i + 1)));
+                    removeFromChannelByTime(channelPath, TimeUtil.minutes(ttlDateTime.minusMinutes(i)), eviction);
+                    removeFromChannelByTime(channelPath, TimeUtil.hours(ttlDateTime.minusHours(i + 1)), eviction);
+                    removeFromChannelByTime(channelPath, TimeUtil.days(ttlDateTime.minusDays(i + 1)), eviction);
+                    removeFromChannelByTime(channelPath, TimeUtil.months(ttlDateTime.minusMonths(i + 1)), eviction);
                 }
+                fileSpokeStore.evictedBefore(channel.getDisplayName(), new MinutePath(ttlDateTime).getTime().plusMinutes(1));
             } else {
-                int waitTimeSeconds = 3;
-                itemsEvicted += FileUtils.deleteFilesByAge(channelPath, ttlMinutes, waitTimeSeconds);
+                long modifiedBefore = TimeUtil.now().minusMinutes(ttlMinutes).getMillis();
+                spokeEvictor.deleteModifiedBefore(channelPath, modifiedBefore, eviction);
+                fileSpokeStore.evicted(channel.getDisplayName(), eviction.getFiles());
             }
-            evictionCounter.getAndAdd(itemsEvicted);
-        };
+            evictionCounter.getAndAdd(eviction.getItems());
+            spokeEvictor.report(spokeStore.name(), channel.getDisplayName(), start, eviction);
+        });
     }
 
-    private long removeFromChannelByTime(String channelPath, String timePath) {
-        String path = channelPath + "/" + timePath;
-        int waitTimeSeconds = 3;
-        return FileUtils.deleteFiles(path, waitTimeSeconds);
+    private void removeFromChannelByTime(String channelPath, String timePath, SpokeEvictor.Eviction eviction) {
+        spokeEvictor.delete(channelPath + "/" + timePath, eviction);
     }
 
     private void updateOldestItemMetric() {
@@ -94,7 +103,10 @@ public class SpokeTtlEnforcer {
                 long start = System.currentTimeMillis();
                 AtomicLong evictionCounter = new AtomicLong(0);
                 logger.info("running ttl cleanup");
-                TtlEnforcer.enforce(storagePath, channelService, handleCleanup(evictionCounter));
+                List<Runnable> evictions = new ArrayList<>();
+                TtlEnforcer.enforce(storagePath, channelService, handleCleanup(evictionCounter, evictions),
+                        path -> spokeEvictor.delete(path, new SpokeEvictor.Eviction()));
+                spokeEvictor.evictAll(evictions);
                 updateOldestItemMetric();
                 metricsService.gauge(buildMetricName("evicted"), evictionCounter.get());
                 long runtime = (System.currentTimeMillis() - start);
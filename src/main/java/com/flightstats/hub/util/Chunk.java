@@ -1,16 +1,42 @@
 package com.flightstats.hub.util;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * A Chunk holds one part of a multipart upload in buffers from a {@link ChunkPool}, and the MD5 of its bytes.
+ * A chunk which has filled one buffer is full early when the pool has none left, so it can be sent and free its buffers.
+ */
 public class Chunk {
 
-    private int count;
-    private int chunkSize;
-    private byte[] bytes;
-    private int index = 0;
+    private final int count;
+    private final int chunkSize;
+    private final ChunkPool pool;
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private final MessageDigest md5;
+    private final byte[] single = new byte[1];
+    private int size = 0;
+    private boolean full;
+    private String digest;
 
     Chunk(int count, int chunkSize) {
+        this(count, chunkSize, new ChunkPool(chunkSize, 1, false));
+    }
+
+    Chunk(int count, int chunkSize, ChunkPool pool) {
         this.count = count;
         this.chunkSize = chunkSize;
-        bytes = new byte[chunkSize];
+        this.pool = pool;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
@@ -18,32 +44,145 @@ public class Chunk {
      * @return false if the byte is not added.
      */
     boolean add(int b) {
-        if (isFull()) {
-            return false;
+        single[0] = (byte) b;
+        return write(single, 0, 1) == 1;
+    }
+
+    /**
+     * @return the number of bytes added, which is less than len once the chunk is full
+     */
+    int write(byte[] bytes, int offset, int len) {
+        int written = 0;
+        while (written < len && !isFull()) {
+            ByteBuffer buffer = getBuffer();
+            if (buffer == null) {
+                full = true;
+                break;
+            }
+            int length = Math.min(len - written, Math.min(buffer.remaining(), chunkSize - size));
+            buffer.put(bytes, offset + written, length);
+            md5.update(bytes, offset + written, length);
+            size += length;
+            written += length;
+        }
+        return written;
+    }
+
+    private ByteBuffer getBuffer() {
+        if (!buffers.isEmpty()) {
+            ByteBuffer last = buffers.get(buffers.size() - 1);
+            if (last.hasRemaining()) {
+                return last;
+            }
         }
-        bytes[index] = (byte) b;
-        index++;
-        return true;
+        ByteBuffer buffer = buffers.isEmpty() ? pool.acquire() : pool.tryAcquire();
+        if (buffer != null) {
+            buffers.add(buffer);
+        }
+        return buffer;
     }
 
     boolean isFull() {
-        return index >= chunkSize;
+        return full || size >= chunkSize;
     }
 
     boolean hasData() {
-        return index > 0;
+        return size > 0;
     }
 
     public byte[] getBytes() {
-        if (isFull()) {
-            return bytes;
+        byte[] bytes = new byte[size];
+        int offset = 0;
+        for (ByteBuffer buffer : buffers) {
+            ByteBuffer read = (ByteBuffer) buffer.duplicate().flip();
+            int length = read.remaining();
+            read.get(bytes, offset, length);
+            offset += length;
         }
-        byte[] partial = new byte[index];
-        System.arraycopy(this.bytes, 0, partial, 0, index);
-        return partial;
+        return bytes;
+    }
+
+    /**
+     * @return a stream of the chunk's bytes, which supports mark and reset
+     */
+    public InputStream getStream() {
+        return new ChunkInputStream();
+    }
+
+    /**
+     * @return the base64 encoded MD5 of the bytes, for Content-MD5
+     */
+    public String getMd5() {
+        if (digest == null) {
+            digest = Base64.getEncoder().encodeToString(md5.digest());
+        }
+        return digest;
+    }
+
+    public int getSize() {
+        return size;
     }
 
     public int getCount() {
         return count;
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the buffers to the pool.  The chunk can not be read afterwards.
+     */
+    void release() {
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        buffers.clear();
+    }
+
+    private class ChunkInputStream extends InputStream {
+
+        private int position = 0;
+        private int mark = 0;
+
+        @Override
+        public int read() {
+            byte[] bytes = new byte[1];
+            return read(bytes, 0, 1) == -1 ? -1 : bytes[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int len) {
+            if (position >= size) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int bufferBytes = pool.getBufferBytes();
+            ByteBuffer read = buffers.get(position / bufferBytes).duplicate();
+            read.position(position % bufferBytes);
+            int length = Math.min(len, Math.min(size - position, bufferBytes - read.position()));
+            read.get(bytes, offset, length);
+            position += length;
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return size - position;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            mark = position;
+        }
+
+        @Override
+        public synchronized void reset() {
+            position = mark;
+        }
+    }
+}
@@ -1,9 +1,5 @@
 package com.flightstats.hub.util;
 
-import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -12,51 +8,134 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 
+/**
+ * ChunkOutputStream splits a stream into {@link Chunk}s, and passes each one to chunkFunction on the shared executor.
+ * At most threads chunks are sent at once, and writes wait for one of them to finish before starting another.
+ */
 public class ChunkOutputStream extends OutputStream {
     private static final Logger logger = LoggerFactory.getLogger(ChunkOutputStream.class);
 
-    private ListeningExecutorService service;
-    private List<ListenableFuture<String>> futures = new ArrayList<>();
-    private int count = 1;
-    private Chunk chunk = new Chunk(count, ChunkStrategy.getSize(count));
+    private final ExecutorService service;
+    private final ChunkPool pool;
+    private final Semaphore inFlight;
+    private final List<Future<String>> futures = new ArrayList<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private volatile boolean aborted;
+    private int count = 0;
+    private Chunk chunk;
     private Function<Chunk, String> chunkFunction;
 
-    public ChunkOutputStream(int threads, Function<Chunk, String> chunkFunction) {
+    public ChunkOutputStream(int threads, ChunkPool pool, ExecutorService service, Function<Chunk, String> chunkFunction) {
         this.chunkFunction = chunkFunction;
-        service = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threads));
+        this.pool = pool;
+        this.service = service;
+        this.inFlight = new Semaphore(Math.max(1, threads));
         logger.info("creating ChunkOutputStream with {} threads", threads);
     }
 
     public void write(int b) throws IOException {
-        if (!chunk.add(b)) {
-            sendChunk(chunk);
+        while (!getChunk().add(b)) {
+            sendChunk();
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int len) throws IOException {
+        while (len > 0) {
+            int written = getChunk().write(bytes, offset, len);
+            offset += written;
+            len -= written;
+            if (getChunk().isFull()) {
+                sendChunk();
+            }
+        }
+    }
+
+    private Chunk getChunk() throws IOException {
+        if (chunk == null) {
+            checkFailure();
             count++;
-            chunk = new Chunk(count, ChunkStrategy.getSize(count));
-            chunk.add(b);
+            chunk = new Chunk(count, ChunkStrategy.getSize(count), pool);
+        }
+        return chunk;
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable throwable = failure.get();
+        if (throwable != null) {
+            throw new IOException("unable to send chunk", throwable);
         }
     }
 
-    private void sendChunk(Chunk chunk) {
-        futures.add(service.submit(() -> chunkFunction.apply(chunk)));
+    private void sendChunk() throws IOException {
+        Chunk toSend = chunk;
+        chunk = null;
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            toSend.release();
+            Thread.currentThread().interrupt();
+            throw new RuntimeInterruptedException(e);
+        }
+        futures.add(service.submit(() -> {
+            try {
+                if (aborted) {
+                    return "aborted";
+                }
+                return chunkFunction.apply(toSend);
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+                throw e;
+            } finally {
+                toSend.release();
+                inFlight.release();
+            }
+        }));
+        checkFailure();
     }
 
     @Override
     public void close() throws IOException {
-        if (chunk.hasData()) {
-            sendChunk(chunk);
+        if (chunk != null && chunk.hasData()) {
+            sendChunk();
         }
-        ListenableFuture<String> allFutures = Futures.whenAllSucceed(futures).call(() -> "ok", MoreExecutors.directExecutor());
+        discard();
         try {
-            allFutures.get();
+            for (Future<String> future : futures) {
+                future.get();
+            }
         } catch (InterruptedException e) {
             throw new RuntimeInterruptedException(e);
         } catch (ExecutionException e) {
             throw new RuntimeException(e);
-        } finally {
-            service.shutdown();
+        }
+    }
+
+    /**
+     * Stops sending chunks after a failure, and waits for the chunks already sent, so their buffers are returned.
+     */
+    public void abort() {
+        aborted = true;
+        discard();
+        for (Future<String> future : futures) {
+            try {
+                future.get();
+            } catch (Exception e) {
+                logger.trace("aborted chunk", e);
+            }
+        }
+    }
+
+    private void discard() {
+        if (chunk != null) {
+            chunk.release();
+            chunk = null;
         }
     }
 }
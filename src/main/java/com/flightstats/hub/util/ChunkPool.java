@@ -0,0 +1,96 @@
+package com.flightstats.hub.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChunkPool hands out fixed size buffers for {@link Chunk}s, and reuses them once returned.
+ * At most maxBuffers exist at once, so the memory used by all chunks together is fixed, whatever the chunk sizes.
+ * Buffers are allocated outside the heap when direct is true.
+ * A chunk which waits more than waitMillis for its first buffer gets a heap buffer from outside the pool instead,
+ * so uploads which stall while holding buffers can not block the others indefinitely.
+ */
+public class ChunkPool {
+
+    private final static Logger logger = LoggerFactory.getLogger(ChunkPool.class);
+
+    private final int bufferBytes;
+    private final boolean direct;
+    private final Semaphore permits;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final Set<ByteBuffer> unpooled = Collections.newSetFromMap(Collections.synchronizedMap(new IdentityHashMap<>()));
+    private final long waitMillis;
+
+    public ChunkPool(int bufferBytes, int maxBuffers, boolean direct) {
+        this(bufferBytes, maxBuffers, direct, TimeUnit.MINUTES.toMillis(1));
+    }
+
+    public ChunkPool(int bufferBytes, int maxBuffers, boolean direct, long waitMillis) {
+        this.bufferBytes = bufferBytes;
+        this.direct = direct;
+        this.permits = new Semaphore(Math.max(1, maxBuffers));
+        this.waitMillis = waitMillis;
+    }
+
+    /**
+     * @return a buffer, or null if they are all in use
+     */
+    ByteBuffer tryAcquire() {
+        if (!permits.tryAcquire()) {
+            return null;
+        }
+        return take();
+    }
+
+    /**
+     * Waits up to waitMillis for a buffer to be returned if they are all in use.
+     */
+    ByteBuffer acquire() {
+        try {
+            if (permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+                return take();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeInterruptedException(e);
+        }
+        logger.info("no chunk buffer available after {} ms, using the heap", waitMillis);
+        ByteBuffer buffer = ByteBuffer.allocate(bufferBytes);
+        unpooled.add(buffer);
+        return buffer;
+    }
+
+    private ByteBuffer take() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return direct ? ByteBuffer.allocateDirect(bufferBytes) : ByteBuffer.allocate(bufferBytes);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        if (unpooled.remove(buffer)) {
+            return;
+        }
+        free.add(buffer);
+        permits.release();
+    }
+
+    int getBufferBytes() {
+        return bufferBytes;
+    }
+
+    public int getAvailable() {
+        return permits.availablePermits();
+    }
+}
@@ -33,6 +33,10 @@ public class TimeUtil {
         return now().minusSeconds(stableSeconds).withMillisOfSecond(0);
     }
 
+    public static int getStableSeconds() {
+        return stableSeconds;
+    }
+
     public static DateTime time(boolean stable) {
         return stable ? stable() : now();
     }
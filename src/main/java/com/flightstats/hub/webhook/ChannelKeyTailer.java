@@ -0,0 +1,233 @@
+package com.flightstats.hub.webhook;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.dao.ChannelService;
+import com.flightstats.hub.exception.NoSuchChannelException;
+import com.flightstats.hub.model.ChannelConfig;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.model.MinutePath;
+import com.flightstats.hub.model.TimeQuery;
+import com.flightstats.hub.util.TimeUtil;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ChannelKeyTailer queries each channel with webhooks on this hub once per tick, and keeps its recent keys,
+ * so all of the webhooks on a channel read the same keys instead of each querying the channel.
+ * <p>
+ * Each webhook keeps its own position.  A webhook which is before the keys kept by the {@link Tail}
+ * queries the channel itself until it catches up.
+ */
+@Singleton
+class ChannelKeyTailer {
+
+    private final static Logger logger = LoggerFactory.getLogger(ChannelKeyTailer.class);
+
+    private final int tickMillis = HubProperties.getProperty("webhook.tailer.tickMillis", 1000);
+    private final ScheduledExecutorService executorService = Executors.newScheduledThreadPool(
+            HubProperties.getProperty("webhook.tailer.threads", 2),
+            new ThreadFactoryBuilder().setNameFormat("ChannelKeyTailer-%d").setDaemon(true).build());
+    private final Map<String, Tail> tails = new HashMap<>();
+    private final ChannelService channelService;
+
+    @Inject
+    ChannelKeyTailer(ChannelService channelService) {
+        this.channelService = channelService;
+    }
+
+    /**
+     * @param retainSeconds how long the caller needs keys kept after they are read from the channel
+     */
+    synchronized Tail subscribe(String channel, int retainSeconds) {
+        Tail tail = tails.get(channel.toLowerCase());
+        if (tail == null) {
+            tail = new Tail(channel);
+            tail.future = executorService.scheduleWithFixedDelay(tail::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+            tails.put(channel.toLowerCase(), tail);
+            logger.info("tailing {}", channel);
+        }
+        tail.retentions.add(retainSeconds);
+        return tail;
+    }
+
+    synchronized void unsubscribe(Tail tail, int retainSeconds) {
+        tail.retentions.remove(Integer.valueOf(retainSeconds));
+        if (tail.retentions.isEmpty()) {
+            tail.future.cancel(false);
+            tails.remove(tail.channel.toLowerCase());
+            logger.info("stopped tailing {}", tail.channel);
+        }
+    }
+
+    /**
+     * Reads the channel as soon as key is stable, if it is tailed here.
+     */
+    void newKey(String channel, ContentKey key) {
+        Tail tail;
+        synchronized (this) {
+            tail = tails.get(channel.toLowerCase());
+        }
+        if (tail != null) {
+            tail.wakeFor(key);
+        }
+    }
+
+    int getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * A Tail holds the keys of a channel from start (inclusive) to end (exclusive).
+     */
+    class Tail {
+
+        private final String channel;
+        private final List<Integer> retentions = new ArrayList<>();
+        private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+        private final NavigableSet<ContentKey> keys = new TreeSet<>();
+        private final Object tickLock = new Object();
+        private final AtomicLong wakeMillis = new AtomicLong();
+        private final QueryGenerator queryGenerator;
+        private volatile DateTime start;
+        private volatile DateTime end;
+        private volatile boolean failed;
+        private ScheduledFuture<?> future;
+
+        private Tail(String channel) {
+            this.channel = channel;
+            start = TimeUtil.stable();
+            end = start;
+            queryGenerator = new QueryGenerator(start, channel);
+        }
+
+        void tick() {
+            synchronized (tickLock) {
+                try {
+                    DateTime stable = TimeUtil.stable();
+                    ChannelConfig channelConfig = channelService.getCachedChannelConfig(channel);
+                    if (channelConfig != null && !channelConfig.isLive()) {
+                        stable = channelService.getLastUpdated(channel, MinutePath.NONE).getTime();
+                    }
+                    TimeQuery timeQuery;
+                    while ((timeQuery = queryGenerator.getQuery(stable)) != null) {
+                        add(channelService.queryByTime(timeQuery), queryGenerator.getLastQueryTime());
+                    }
+                    failed = false;
+                } catch (NoSuchChannelException e) {
+                    logger.debug("no channel {}", channel);
+                    restart();
+                } catch (Exception e) {
+                    logger.warn("unable to tail " + channel, e);
+                    restart();
+                }
+            }
+        }
+
+        /**
+         * TimeUtil.stable() passes a key one second after the key's second plus the stable seconds.
+         */
+        private void wakeFor(ContentKey key) {
+            if (key.getTime().isBefore(end)) {
+                return;
+            }
+            long stableMillis = key.getTime().withMillisOfSecond(0)
+                    .plusSeconds(1 + TimeUtil.getStableSeconds()).getMillis();
+            if (wakeMillis.getAndAccumulate(stableMillis, Math::max) >= stableMillis) {
+                return;
+            }
+            long delay = Math.max(0, stableMillis - System.currentTimeMillis());
+            executorService.schedule(this::tick, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void add(Collection<ContentKey> found, DateTime queried) {
+            keys.addAll(found);
+            end = queried;
+            DateTime retainFrom = end.minusSeconds(getRetainSeconds());
+            if (retainFrom.isAfter(start)) {
+                start = retainFrom;
+                keys.headSet(new ContentKey(start, ""), false).clear();
+            }
+            notifyAll();
+            listeners.forEach(Runnable::run);
+        }
+
+        /**
+         * A failed query leaves a gap, so the keys before it are dropped, and readers query the channel themselves.
+         */
+        private synchronized void restart() {
+            failed = true;
+            keys.clear();
+            start = queryGenerator.getLastQueryTime();
+            end = start;
+            notifyAll();
+            listeners.forEach(Runnable::run);
+        }
+
+        private int getRetainSeconds() {
+            synchronized (ChannelKeyTailer.this) {
+                return retentions.stream().max(Integer::compare).orElse(0);
+            }
+        }
+
+        /**
+         * listener is called each time the tail reads the channel, and should return quickly.
+         */
+        void listen(Runnable listener) {
+            listeners.add(listener);
+        }
+
+        void unlisten(Runnable listener) {
+            listeners.remove(listener);
+        }
+
+        /**
+         * @return true if the keys from time on are held
+         */
+        boolean contains(DateTime time) {
+            return !failed && !time.isBefore(start);
+        }
+
+        DateTime getEnd() {
+            return end;
+        }
+
+        /**
+         * Waits up to waitMillis for the tail to read past time.
+         */
+        synchronized void await(DateTime time, long waitMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + waitMillis;
+            long remaining = waitMillis;
+            while (!end.isAfter(time) && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * @return the keys from (inclusive) to (exclusive), or null if the tail does not hold all of them
+         * within waitMillis
+         */
+        synchronized Collection<ContentKey> get(DateTime from, DateTime to, long waitMillis) throws InterruptedException {
+            if (!contains(from)) {
+                return null;
+            }
+            await(to.minusMillis(1), waitMillis);
+            if (!contains(from) || end.isBefore(to)) {
+                return null;
+            }
+            return new ArrayList<>(keys.subSet(new ContentKey(from, ""), true, new ContentKey(to, ""), false));
+        }
+    }
+}
@@ -1,19 +1,20 @@
 package com.flightstats.hub.webhook;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.flightstats.hub.app.HubProvider;
+import com.flightstats.hub.model.ContentKey;
 import com.flightstats.hub.model.ContentPath;
+import com.google.common.base.Optional;
 import org.joda.time.DateTime;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.*;
+import java.io.IOException;
 import java.net.URI;
-import java.util.Collection;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
 
 import static com.flightstats.hub.util.StaleUtil.addStaleEntities;
@@ -27,6 +28,7 @@ public class InternalWebhookResource {
     private final static ObjectMapper mapper = HubProvider.getInstance(ObjectMapper.class);
     private final static WebhookService webhookService = HubProvider.getInstance(WebhookService.class);
     private final static LocalWebhookManager LOCAL_WEBHOOK_MANAGER = HubProvider.getInstance(LocalWebhookManager.class);
+    private final static NewKeyNotifier newKeyNotifier = HubProvider.getInstance(NewKeyNotifier.class);
 
     @Context
     private UriInfo uriInfo;
@@ -43,6 +45,7 @@ public class InternalWebhookResource {
         directions.put("errors", "HTTP GET to /internal/webhook/errors to list all webhooks with recent errors.");
         directions.put("run/{name}", "HTTP PUT to /internal/webhook/run/{name} to start processing this webhook.");
         directions.put("delete/{name}", "HTTP PUT to /internal/webhook/delete/{name} to stop processing this webhook on this server.");
+        directions.put("notify", "HTTP POST to /internal/webhook/notify with the latest key by channel, to read those channels when the keys are stable.");
 
         ObjectNode links = root.putObject("_links");
         addLink(links, "self", uriInfo.getRequestUri().toString());
@@ -144,6 +147,23 @@ public class InternalWebhookResource {
         return Response.ok().build();
     }
 
+    @POST
+    @Path("/notify")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response notify(String body) throws IOException {
+        Map<String, ContentKey> keys = new HashMap<>();
+        Iterator<Map.Entry<String, JsonNode>> fields = mapper.readTree(body).fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            Optional<ContentKey> key = ContentKey.fromUrl(field.getValue().asText());
+            if (key.isPresent()) {
+                keys.put(field.getKey(), key.get());
+            }
+        }
+        newKeyNotifier.received(keys);
+        return Response.ok().build();
+    }
+
     @GET
     @Path("/count")
     public Response count() {
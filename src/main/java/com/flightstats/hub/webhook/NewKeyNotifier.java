@@ -0,0 +1,186 @@
+package com.flightstats.hub.webhook;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.flightstats.hub.app.HubHost;
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.app.HubServices;
+import com.flightstats.hub.dao.Dao;
+import com.flightstats.hub.metrics.MetricsService;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.rest.RestClient;
+import com.flightstats.hub.util.HubUtils;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.MediaType;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * NewKeyNotifier tells the hubs which lead webhooks on a channel about the channel's new keys, so their
+ * {@link ChannelKeyTailer} reads the keys as soon as they are stable, instead of on its next tick.
+ * <p>
+ * The latest key of each channel is sent to each hub every webhook.notify.millis.
+ * Each hub has at most one send at a time, and keys for a hub which is still sending are merged into its
+ * next send, so a slow hub does not hold up notifications to the others.
+ * Notifications are only a hint, and the tailer still polls each channel.
+ */
+@Singleton
+public class NewKeyNotifier {
+
+    private final static Logger logger = LoggerFactory.getLogger(NewKeyNotifier.class);
+
+    private final boolean enabled = HubProperties.getProperty("webhook.notify.enabled", true);
+    private final int notifyMillis = HubProperties.getProperty("webhook.notify.millis", 100);
+    private final Map<String, ContentKey> pending = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, ContentKey>> unsent = new ConcurrentHashMap<>();
+    private final Set<String> sending = ConcurrentHashMap.newKeySet();
+    private final Client client = RestClient.createClient(5, 5, true, false);
+    private final ExecutorService sendExecutor = Executors.newFixedThreadPool(
+            HubProperties.getProperty("webhook.notify.threads", 4),
+            new ThreadFactoryBuilder().setNameFormat("NewKeyNotifier-%d").setDaemon(true).build());
+    private final LoadingCache<String, Set<String>> channelServers = CacheBuilder.newBuilder()
+            .expireAfterWrite(HubProperties.getProperty("webhook.notify.serversCacheSeconds", 30), TimeUnit.SECONDS)
+            .build(new CacheLoader<String, Set<String>>() {
+                @Override
+                public Set<String> load(String channel) {
+                    return getServers(channel);
+                }
+            });
+
+    @Inject
+    @Named("Webhook")
+    private Dao<Webhook> webhookDao;
+    @Inject
+    private ActiveWebhooks activeWebhooks;
+    @Inject
+    private Provider<ChannelKeyTailer> channelKeyTailer;
+    @Inject
+    private ObjectMapper mapper;
+    @Inject
+    private MetricsService metricsService;
+
+    public NewKeyNotifier() {
+        if (enabled) {
+            HubServices.register(new NewKeyNotifierService(), HubServices.TYPE.AFTER_HEALTHY_START);
+        }
+    }
+
+    public void notify(String channel, ContentKey key) {
+        if (enabled) {
+            pending.merge(channel.toLowerCase(), key, NewKeyNotifier::latest);
+        }
+    }
+
+    private static ContentKey latest(ContentKey existing, ContentKey added) {
+        return added.compareTo(existing) > 0 ? added : existing;
+    }
+
+    private void flush() {
+        try {
+            Map<String, Map<String, ContentKey>> byServer = new HashMap<>();
+            for (String channel : new ArrayList<>(pending.keySet())) {
+                ContentKey key = pending.remove(channel);
+                for (String server : channelServers.getUnchecked(channel)) {
+                    byServer.computeIfAbsent(server, s -> new HashMap<>()).put(channel, key);
+                }
+            }
+            for (Map.Entry<String, Map<String, ContentKey>> entry : byServer.entrySet()) {
+                if (entry.getKey().equals(HubHost.getLocalAddressPort())) {
+                    received(entry.getValue());
+                } else {
+                    unsent.compute(entry.getKey(), (server, keys) -> {
+                        Map<String, ContentKey> merged = keys == null ? new HashMap<>() : keys;
+                        entry.getValue().forEach((channel, key) -> merged.merge(channel, key, NewKeyNotifier::latest));
+                        return merged;
+                    });
+                    submit(entry.getKey());
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("unable to notify", e);
+        }
+    }
+
+    private Set<String> getServers(String channel) {
+        Set<String> servers = new HashSet<>();
+        for (Webhook webhook : webhookDao.getAll(true)) {
+            if (!webhook.isTagPrototype() && !webhook.isPaused() && webhook.getChannelName().equalsIgnoreCase(channel)) {
+                servers.addAll(activeWebhooks.getServers(webhook.getName()));
+            }
+        }
+        return servers;
+    }
+
+    private void submit(String server) {
+        if (sending.add(server)) {
+            sendExecutor.submit(() -> send(server));
+        }
+    }
+
+    private void send(String server) {
+        try {
+            Map<String, ContentKey> keys = unsent.remove(server);
+            if (keys != null) {
+                send(server, keys);
+            }
+        } finally {
+            sending.remove(server);
+        }
+        if (unsent.containsKey(server)) {
+            submit(server);
+        }
+    }
+
+    private void send(String server, Map<String, ContentKey> keys) {
+        ObjectNode root = mapper.createObjectNode();
+        keys.forEach((channel, key) -> root.put(channel, key.toUrl()));
+        String url = HubHost.getScheme() + server + "/internal/webhook/notify";
+        ClientResponse response = null;
+        try {
+            response = client.resource(url)
+                    .type(MediaType.APPLICATION_JSON_TYPE)
+                    .post(ClientResponse.class, root.toString());
+            if (response.getStatus() != 200) {
+                logger.info("unexpected response {} {}", url, response);
+            }
+        } catch (Exception e) {
+            metricsService.increment("webhook.notify.error");
+            logger.info("unable to notify {} {}", url, e.getMessage());
+        } finally {
+            HubUtils.close(response);
+        }
+    }
+
+    /**
+     * @param keys the latest key by channel
+     */
+    void received(Map<String, ContentKey> keys) {
+        keys.forEach(channelKeyTailer.get()::newKey);
+    }
+
+    private class NewKeyNotifierService extends AbstractScheduledService {
+
+        @Override
+        protected void runOneIteration() throws Exception {
+            flush();
+        }
+
+        @Override
+        protected Scheduler scheduler() {
+            return Scheduler.newFixedDelaySchedule(notifyMillis, notifyMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
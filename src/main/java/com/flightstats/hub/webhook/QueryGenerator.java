@@ -19,7 +19,7 @@ public class QueryGenerator {
         this.channel = channel;
     }
 
-    TimeQuery getQuery(DateTime latestStableInChannel) {
+    public TimeQuery getQuery(DateTime latestStableInChannel) {
         logger.trace("iterating last {} stable {} ", lastQueryTime, latestStableInChannel);
         if (lastQueryTime.isBefore(latestStableInChannel)) {
             TimeUtil.Unit unit = getStepUnit(latestStableInChannel);
@@ -52,7 +52,14 @@ public class QueryGenerator {
         return TimeUtil.Unit.SECONDS;
     }
 
-    DateTime getLastQueryTime() {
+    public DateTime getLastQueryTime() {
         return lastQueryTime;
     }
+
+    /**
+     * Moves past keys which were read elsewhere, such as from the {@link ChannelKeyTailer}.
+     */
+    void skipTo(DateTime queryTime) {
+        lastQueryTime = queryTime;
+    }
 }
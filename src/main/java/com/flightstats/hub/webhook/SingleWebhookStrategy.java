@@ -3,25 +3,22 @@ package com.flightstats.hub.webhook;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.flightstats.hub.app.HubProperties;
 import com.flightstats.hub.app.HubProvider;
 import com.flightstats.hub.cluster.LastContentPath;
 import com.flightstats.hub.dao.ChannelService;
-import com.flightstats.hub.exception.NoSuchChannelException;
 import com.flightstats.hub.metrics.ActiveTraces;
 import com.flightstats.hub.model.*;
-import com.flightstats.hub.util.RuntimeInterruptedException;
-import com.flightstats.hub.util.Sleeper;
 import com.flightstats.hub.util.TimeUtil;
 import com.google.common.base.Optional;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
-import java.util.concurrent.*;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
 
 class SingleWebhookStrategy implements WebhookStrategy {
 
@@ -30,19 +27,28 @@ class SingleWebhookStrategy implements WebhookStrategy {
     private final Webhook webhook;
     private final LastContentPath lastContentPath;
     private final ChannelService channelService;
+    private final ChannelKeyTailer channelKeyTailer;
+    private final int retainSeconds = HubProperties.getProperty("webhook.tailer.singleRetainSeconds", 60);
+    private final int queriesPerRun = HubProperties.getProperty("webhook.scheduler.queriesPerRun", 10);
     private AtomicBoolean shouldExit = new AtomicBoolean(false);
-    private AtomicReference<Exception> exceptionReference = new AtomicReference<>();
-    private BlockingQueue<ContentPath> queue;
+    private AtomicBoolean subscribed = new AtomicBoolean(false);
+    private Queue<ContentPath> queue = new ConcurrentLinkedQueue<>();
+    private final int capacity;
     private String channel;
     private QueryGenerator queryGenerator;
-    private ExecutorService executorService;
-
-
-    SingleWebhookStrategy(Webhook webhook, LastContentPath lastContentPath, ChannelService channelService) {
+    private ChannelKeyTailer.Tail tail;
+    private WebhookScheduler.Task task;
+    private Runnable listener;
+    private ContentPath lastAdded;
+    private ChannelConfig channelConfig;
+
+    SingleWebhookStrategy(Webhook webhook, LastContentPath lastContentPath, ChannelService channelService,
+                          ChannelKeyTailer channelKeyTailer) {
         this.webhook = webhook;
         this.lastContentPath = lastContentPath;
         this.channelService = channelService;
-        this.queue = new ArrayBlockingQueue<>(webhook.getParallelCalls() * 2);
+        this.channelKeyTailer = channelKeyTailer;
+        this.capacity = webhook.getParallelCalls() * 2;
     }
 
     @Override
@@ -81,92 +87,125 @@ class SingleWebhookStrategy implements WebhookStrategy {
         return contentPath;
     }
 
+    /**
+     * Reads more of the channel when the queue is empty, and never waits.
+     */
     public Optional<ContentPath> next() throws Exception {
-        Exception e = exceptionReference.get();
-        if (e != null) {
-            logger.error("unable to determine next " + webhook.getName(), e);
-            throw e;
+        if (queue.isEmpty() && !shouldExit.get()) {
+            fill();
         }
-        return Optional.fromNullable(queue.poll(10, TimeUnit.SECONDS));
+        return Optional.fromNullable(queue.poll());
     }
 
-    public void start(Webhook webhook, ContentPath startingPath) {
+    public void start(Webhook webhook, ContentPath startingPath, WebhookScheduler.Task task) {
         channel = webhook.getChannelName();
         queryGenerator = new QueryGenerator(startingPath.getTime(), channel);
-        ThreadFactory factory = new ThreadFactoryBuilder().setNameFormat("single-webhook-" + webhook.getName() + "-%s").build();
-        executorService = Executors.newSingleThreadExecutor(factory);
-        executorService.submit(new Runnable() {
-
-            ContentPath lastAdded = startingPath;
-            ChannelConfig channelConfig = channelService.getChannelConfig(channel, true);
-
-            @Override
-            public void run() {
-                try {
-                    while (!shouldExit.get()) {
-                        if (!doWork()) {
-                            Sleeper.sleep(1000);
-                        }
-                    }
-                } catch (InterruptedException | RuntimeInterruptedException e) {
-                    exceptionReference.set(e);
-                    logger.info("InterruptedException with " + webhook.getName());
-                } catch (NoSuchChannelException e) {
-                    exceptionReference.set(e);
-                    logger.debug("NoSuchChannelException for " + webhook.getName());
-                } catch (Exception e) {
-                    exceptionReference.set(e);
-                    logger.warn("unexpected issue with " + webhook.getName(), e);
-                }
-            }
+        lastAdded = startingPath;
+        channelConfig = channelService.getChannelConfig(channel, true);
+        this.task = task;
+        listener = task::wake;
+        tail = channelKeyTailer.subscribe(channel, retainSeconds);
+        subscribed.set(true);
+        tail.listen(listener);
+    }
 
-            private boolean doWork() throws InterruptedException {
-                ActiveTraces.start("SingleWebhookStrategy", webhook);
-                try {
-                    DateTime latestStableInChannel = TimeUtil.stable();
-                    if (!channelConfig.isLive()) {
-                        latestStableInChannel = channelService.getLastUpdated(channel, MinutePath.NONE).getTime();
-                    }
-                    TimeQuery timeQuery = queryGenerator.getQuery(latestStableInChannel);
-                    if (timeQuery != null) {
-                        addKeys(channelService.queryByTime(timeQuery));
-                        if (webhook.isHeartbeat() && queryGenerator.getLastQueryTime().getSecondOfMinute() == 0) {
-                            MinutePath minutePath = new MinutePath(queryGenerator.getLastQueryTime().minusMinutes(1));
-                            logger.debug("sending heartbeat {}", minutePath);
-                            addKey(minutePath);
-                        }
-                        return true;
-                    }
-                    return false;
-                } finally {
-                    ActiveTraces.end();
-                }
+    /**
+     * Adds paths until the queue is full or the channel has no more, with up to queriesPerRun reads,
+     * then arranges for the task to run again.
+     */
+    private void fill() throws InterruptedException {
+        for (int i = 0; i < queriesPerRun; i++) {
+            if (queue.size() >= capacity) {
+                return;
             }
+            if (!doWork()) {
+                task.wakeAfter(1000);
+                return;
+            }
+        }
+        task.wake();
+    }
 
-            private void addKeys(Collection<ContentKey> keys) throws InterruptedException {
-                logger.debug("channel {} keys {}", channel, keys);
-                if (logger.isTraceEnabled()) {
-                    ActiveTraces.getLocal().log(logger);
+    private boolean doWork() throws InterruptedException {
+        ActiveTraces.start("SingleWebhookStrategy", webhook);
+        try {
+            DateTime from = queryGenerator.getLastQueryTime();
+            if (tail.contains(from)) {
+                DateTime to = tail.getEnd();
+                if (!to.isAfter(from)) {
+                    return false;
                 }
-                for (ContentKey key : keys) {
-                    addKey(key);
+                Collection<ContentKey> keys = tail.get(from, to, 0);
+                if (keys != null) {
+                    addTailedKeys(keys, from, to);
+                    queryGenerator.skipTo(to);
+                    return true;
                 }
             }
-
-            private void addKey(ContentPath key) throws InterruptedException {
-                if (key.compareTo(lastAdded) > 0) {
-                    queue.put(key);
-                    lastAdded = key;
+            DateTime latestStableInChannel = TimeUtil.stable();
+            if (!channelConfig.isLive()) {
+                latestStableInChannel = channelService.getLastUpdated(channel, MinutePath.NONE).getTime();
+            }
+            TimeQuery timeQuery = queryGenerator.getQuery(latestStableInChannel);
+            if (timeQuery != null) {
+                addKeys(channelService.queryByTime(timeQuery));
+                if (webhook.isHeartbeat() && queryGenerator.getLastQueryTime().getSecondOfMinute() == 0) {
+                    MinutePath minutePath = new MinutePath(queryGenerator.getLastQueryTime().minusMinutes(1));
+                    logger.debug("sending heartbeat {}", minutePath);
+                    addKey(minutePath);
                 }
+                return true;
             }
+            return false;
+        } finally {
+            ActiveTraces.end();
+        }
+    }
+
+    private void addKeys(Collection<ContentKey> keys) {
+        logger.debug("channel {} keys {}", channel, keys);
+        if (logger.isTraceEnabled()) {
+            ActiveTraces.getLocal().log(logger);
+        }
+        for (ContentKey key : keys) {
+            addKey(key);
+        }
+    }
 
-        });
+    /**
+     * Adds the keys read from the tail, with a heartbeat for each minute which ends after from and by to.
+     */
+    private void addTailedKeys(Collection<ContentKey> keys, DateTime from, DateTime to) {
+        logger.debug("channel {} tailed keys {}", channel, keys);
+        DateTime minute = TimeUtil.Unit.MINUTES.round(from).plusMinutes(1);
+        for (ContentKey key : keys) {
+            minute = addHeartbeats(minute, key.getTime());
+            addKey(key);
+        }
+        addHeartbeats(minute, to);
+    }
 
+    private DateTime addHeartbeats(DateTime minute, DateTime through) {
+        while (webhook.isHeartbeat() && !minute.isAfter(through)) {
+            addKey(new MinutePath(minute.minusMinutes(1)));
+            minute = minute.plusMinutes(1);
+        }
+        return minute;
     }
 
+    private void addKey(ContentPath key) {
+        if (key.compareTo(lastAdded) > 0) {
+            queue.add(key);
+            lastAdded = key;
+        }
+    }
 
     @Override
     public void close() {
-        WebhookStrategy.close(shouldExit, executorService, queue);
+        WebhookStrategy.close(shouldExit, queue);
+        if (subscribed.compareAndSet(true, false)) {
+            tail.unlisten(listener);
+            channelKeyTailer.unsubscribe(tail, retainSeconds);
+        }
     }
 }
@@ -3,16 +3,14 @@ package com.flightstats.hub.webhook;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.flightstats.hub.app.HubProperties;
 import com.flightstats.hub.app.HubProvider;
 import com.flightstats.hub.cluster.LastContentPath;
 import com.flightstats.hub.dao.ChannelService;
-import com.flightstats.hub.exception.NoSuchChannelException;
 import com.flightstats.hub.metrics.ActiveTraces;
 import com.flightstats.hub.model.*;
-import com.flightstats.hub.util.RuntimeInterruptedException;
 import com.flightstats.hub.util.TimeUtil;
 import com.google.common.base.Optional;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.joda.time.DateTime;
 import org.joda.time.Duration;
 import org.joda.time.Minutes;
@@ -21,9 +19,10 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.*;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -37,11 +36,24 @@ class TimedWebhookStrategy implements WebhookStrategy {
     private final Webhook webhook;
     private final LastContentPath lastContentPath;
     private final ChannelService channelService;
+    private final ChannelKeyTailer channelKeyTailer;
+    private final int retainSeconds;
+    private final int capacity;
+    private final int queriesPerRun = HubProperties.getProperty("webhook.scheduler.queriesPerRun", 10);
     private AtomicBoolean shouldExit = new AtomicBoolean(false);
-    private AtomicReference<Exception> exceptionReference = new AtomicReference<>();
-    private BlockingQueue<ContentPathKeys> queue;
+    private AtomicBoolean subscribed = new AtomicBoolean(false);
+    private Queue<ContentPathKeys> queue = new ConcurrentLinkedQueue<>();
     private String channel;
-    private ScheduledExecutorService executorService;
+    private ChannelKeyTailer.Tail tail;
+    private WebhookScheduler.Task task;
+    private Runnable listener;
+    private ContentPath lastAdded;
+    private ChannelConfig channelConfig;
+    private long periodMillis;
+    private long nextRunMillis;
+    private boolean behind;
+    private long tailWaitStart;
+    private int queries;
 
     // time unit specific functions
     private TimeUtil.Unit unit;
@@ -53,12 +65,17 @@ class TimedWebhookStrategy implements WebhookStrategy {
     private Function<DateTime, DateTime> getNextTime;
     private Duration duration;
 
-    TimedWebhookStrategy(Webhook webhook, LastContentPath lastContentPath, ChannelService channelService) {
+    TimedWebhookStrategy(Webhook webhook, LastContentPath lastContentPath, ChannelService channelService,
+                         ChannelKeyTailer channelKeyTailer) {
         this.webhook = webhook;
         this.channel = webhook.getChannelName();
         this.lastContentPath = lastContentPath;
         this.channelService = channelService;
-        this.queue = new ArrayBlockingQueue<>(webhook.getParallelCalls() * 2);
+        this.channelKeyTailer = channelKeyTailer;
+        this.retainSeconds = webhook.isMinute()
+                ? HubProperties.getProperty("webhook.tailer.minuteRetainSeconds", 180)
+                : HubProperties.getProperty("webhook.tailer.secondRetainSeconds", 60);
+        this.capacity = webhook.getParallelCalls() * 2;
         if (webhook.isSecond()) {
             secondConfig();
         } else {
@@ -143,69 +160,117 @@ class TimedWebhookStrategy implements WebhookStrategy {
     }
 
     @Override
-    public void start(Webhook webhook, ContentPath startingPath) {
-        ThreadFactory factory = new ThreadFactoryBuilder().setNameFormat(webhook.getBatch() + "-webhook-" + webhook.getName() + "-%s").build();
-        executorService = Executors.newSingleThreadScheduledExecutor(factory);
+    public void start(Webhook webhook, ContentPath startingPath, WebhookScheduler.Task task) {
         logger.info("starting {} with starting path {}", webhook, startingPath);
-        executorService.scheduleAtFixedRate(new Runnable() {
-
-            ContentPath lastAdded = startingPath;
-            ChannelConfig channelConfig = channelService.getChannelConfig(channel, true);
+        lastAdded = startingPath;
+        channelConfig = channelService.getChannelConfig(channel, true);
+        periodMillis = TimeUnit.SECONDS.toMillis(period);
+        nextRunMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(getOffsetSeconds.get());
+        this.task = task;
+        listener = task::wake;
+        tail = channelKeyTailer.subscribe(channel, retainSeconds);
+        subscribed.set(true);
+        tail.listen(listener);
+    }
 
-            @Override
-            public void run() {
-                try {
-                    if (!shouldExit.get()) {
-                        doWork();
-                    }
-                } catch (InterruptedException | RuntimeInterruptedException e) {
-                    exceptionReference.set(e);
-                    logger.info("InterruptedException with " + webhook.getName());
-                } catch (NoSuchChannelException e) {
-                    exceptionReference.set(e);
-                    logger.debug("NoSuchChannelException for " + webhook.getName());
-                } catch (Exception e) {
-                    exceptionReference.set(e);
-                    logger.warn("unexpected issue with " + webhook.getName(), e);
+    /**
+     * Adds the periods which are stable once each period, or sooner if the last run stopped with more to add.
+     * Never waits.
+     */
+    @Override
+    public Optional<ContentPath> next() throws Exception {
+        if (queue.isEmpty() && !shouldExit.get()) {
+            long now = System.currentTimeMillis();
+            if (behind || now >= nextRunMillis) {
+                while (nextRunMillis <= now) {
+                    nextRunMillis += periodMillis;
                 }
+                behind = doWork();
             }
+            if (!behind) {
+                task.wakeAfter(nextRunMillis - now);
+            }
+        }
+        return Optional.fromNullable(queue.poll());
+    }
 
-            private void doWork() throws InterruptedException {
-                DateTime nextTime = getNextTime.apply(lastAdded.getTime());
-                if (lastAdded instanceof ContentKey) {
-                    nextTime = lastAdded.getTime();
-                }
-                DateTime stable = TimeUtil.stable().minus(duration);
-                if (!channelConfig.isLive()) {
-                    ContentPath contentPath = channelService.getLastUpdated(channel, getNone.get());
-                    DateTime replicatedStable = getReplicatingStable.apply(contentPath);
-                    if (replicatedStable.isBefore(stable)) {
-                        stable = replicatedStable;
-                    }
-                    logger.debug("replicating {} stable {}", contentPath, stable);
+    /**
+     * @return true if it stopped before adding all of the stable periods
+     */
+    private boolean doWork() throws InterruptedException {
+        DateTime nextTime = getNextTime.apply(lastAdded.getTime());
+        if (lastAdded instanceof ContentKey) {
+            nextTime = lastAdded.getTime();
+        }
+        DateTime stable = TimeUtil.stable().minus(duration);
+        if (!channelConfig.isLive()) {
+            ContentPath contentPath = channelService.getLastUpdated(channel, getNone.get());
+            DateTime replicatedStable = getReplicatingStable.apply(contentPath);
+            if (replicatedStable.isBefore(stable)) {
+                stable = replicatedStable;
+            }
+            logger.debug("replicating {} stable {}", contentPath, stable);
+        }
+        logger.debug("lastAdded {} nextTime {} stable {}", lastAdded, nextTime, stable);
+        queries = 0;
+        while (nextTime.isBefore(stable)) {
+            if (queue.size() >= capacity) {
+                return true;
+            }
+            try {
+                ActiveTraces.start("TimedWebhookStrategy.doWork", webhook);
+                Collection<ContentKey> tailed = tailedKeys(nextTime);
+                if (tailed == null) {
+                    return true;
                 }
-                logger.debug("lastAdded {} nextTime {} stable {}", lastAdded, nextTime, stable);
-                while (nextTime.isBefore(stable)) {
-                    try {
-                        ActiveTraces.start("TimedWebhookStrategy.doWork", webhook);
-                        Collection<ContentKey> keys = queryKeys(nextTime)
-                                .stream()
-                                .filter(key -> key.compareTo(lastAdded) > 0)
-                                .collect(Collectors.toCollection(ArrayList::new));
+                Collection<ContentKey> keys = tailed
+                        .stream()
+                        .filter(key -> key.compareTo(lastAdded) > 0)
+                        .collect(Collectors.toCollection(ArrayList::new));
 
-                        ContentPathKeys nextPath = newTime.apply(nextTime, keys);
-                        logger.trace("results {} {} {}", channel, nextPath, nextPath.getKeys());
-                        queue.put(nextPath);
-                        lastAdded = nextPath;
-                        determineStrategy(lastAdded.getTime());
-                        nextTime = getNextTime.apply(lastAdded.getTime());
-                    } finally {
-                        ActiveTraces.end();
-                    }
-                }
+                ContentPathKeys nextPath = newTime.apply(nextTime, keys);
+                logger.trace("results {} {} {}", channel, nextPath, nextPath.getKeys());
+                queue.add(nextPath);
+                lastAdded = nextPath;
+                determineStrategy(lastAdded.getTime());
+                nextTime = getNextTime.apply(lastAdded.getTime());
+            } finally {
+                ActiveTraces.end();
             }
+        }
+        return false;
+    }
 
-        }, getOffsetSeconds.get(), period, TimeUnit.SECONDS);
+    /**
+     * Reads the keys from the tail when it has them, allowing the tail up to a tick to reach the end of the period.
+     * Otherwise queries for them, up to webhook.scheduler.queriesPerRun times per run.
+     *
+     * @return null while the tail is allowed more time, or when this run has used its queries
+     */
+    private Collection<ContentKey> tailedKeys(DateTime time) throws InterruptedException {
+        Collection<ContentKey> keys = tail.get(time, time.plus(unit.getDuration()), 0);
+        if (keys != null) {
+            tailWaitStart = 0;
+            return keys;
+        }
+        long now = System.currentTimeMillis();
+        if (tail.contains(time)) {
+            if (tailWaitStart == 0) {
+                tailWaitStart = now;
+            }
+            long waitMillis = tailWaitStart + channelKeyTailer.getTickMillis() - now;
+            if (waitMillis > 0) {
+                task.wakeAfter(waitMillis);
+                return null;
+            }
+        }
+        tailWaitStart = 0;
+        if (queries >= queriesPerRun) {
+            task.wake();
+            return null;
+        }
+        queries++;
+        return queryKeys(time);
     }
 
     private Collection<ContentKey> queryKeys(DateTime time) {
@@ -219,16 +284,6 @@ class TimedWebhookStrategy implements WebhookStrategy {
         return channelService.queryByTime(timeQuery);
     }
 
-    @Override
-    public Optional<ContentPath> next() throws Exception {
-        Exception e = exceptionReference.get();
-        if (e != null) {
-            logger.error("unable to determine next " + webhook.getName(), e);
-            throw e;
-        }
-        return Optional.fromNullable(queue.poll(10, TimeUnit.MINUTES));
-    }
-
     @Override
     public ObjectNode createResponse(ContentPath contentPath) {
         ObjectNode response = mapper.createObjectNode();
@@ -259,6 +314,10 @@ class TimedWebhookStrategy implements WebhookStrategy {
 
     @Override
     public void close() throws Exception {
-        WebhookStrategy.close(shouldExit, executorService, queue);
+        WebhookStrategy.close(shouldExit, queue);
+        if (subscribed.compareAndSet(true, false)) {
+            tail.unlisten(listener);
+            channelKeyTailer.unsubscribe(tail, retainSeconds);
+        }
     }
 }
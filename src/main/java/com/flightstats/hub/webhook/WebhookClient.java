@@ -0,0 +1,179 @@
+package com.flightstats.hub.webhook;
+
+import com.flightstats.hub.app.HubHost;
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.app.HubServices;
+import com.flightstats.hub.metrics.MetricsService;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.eclipse.jetty.client.DuplexConnectionPool;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpDestination;
+import org.eclipse.jetty.client.api.Destination;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.util.StringContentProvider;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.MediaType;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WebhookClient is the shared, non-blocking transport for webhook callbacks.
+ * Each callback host has its own bounded connection pool, and a request completes a future instead of
+ * holding a thread while the callback responds.  Retries wait on a timer wheel instead of a sleeping thread.
+ * <p>
+ * The client's own threads only complete futures.  Work which can block, such as recording errors in ZooKeeper,
+ * runs on a separate bounded pool through {@link #execute(Runnable)}.
+ */
+@Singleton
+class WebhookClient {
+
+    private final static Logger logger = LoggerFactory.getLogger(WebhookClient.class);
+
+    private final HttpClient httpClient;
+    private final HashedWheelTimer timer;
+    private final ThreadPoolExecutor callbackExecutor;
+    private final AtomicInteger pendingRetries = new AtomicInteger();
+    private final AtomicInteger requeued = new AtomicInteger();
+    private final int requeueMillis = HubProperties.getProperty("webhook.client.requeueMillis", 100);
+    private final MetricsService metricsService;
+
+    @Inject
+    WebhookClient(MetricsService metricsService) {
+        this.metricsService = metricsService;
+        QueuedThreadPool threadPool = new QueuedThreadPool(HubProperties.getProperty("webhook.client.threads", 32), 4);
+        threadPool.setName("WebhookClient");
+        threadPool.setDaemon(true);
+        httpClient = new HttpClient(new SslContextFactory(true));
+        httpClient.setExecutor(threadPool);
+        httpClient.setMaxConnectionsPerDestination(HubProperties.getProperty("webhook.client.maxConnections", 64));
+        httpClient.setMaxRequestsQueuedPerDestination(HubProperties.getProperty("webhook.client.maxQueued", 8192));
+        httpClient.setConnectTimeout(TimeUnit.SECONDS.toMillis(HubProperties.getProperty("webhook.connectTimeoutSeconds", 60)));
+        httpClient.setIdleTimeout(HubProperties.getProperty("webhook.client.idleTimeoutMillis", 60000));
+        try {
+            httpClient.start();
+        } catch (Exception e) {
+            logger.error("unable to start webhook client", e);
+            throw new RuntimeException(e);
+        }
+        timer = new HashedWheelTimer(new ThreadFactoryBuilder().setNameFormat("WebhookRetryTimer-%d").setDaemon(true).build(),
+                HubProperties.getProperty("webhook.retry.tickMillis", 100), TimeUnit.MILLISECONDS,
+                HubProperties.getProperty("webhook.retry.ticksPerWheel", 512));
+        int callbackThreads = HubProperties.getProperty("webhook.client.callbackThreads", 16);
+        callbackExecutor = new ThreadPoolExecutor(callbackThreads, callbackThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(HubProperties.getProperty("webhook.client.callbackQueue", 8192)),
+                new ThreadFactoryBuilder().setNameFormat("WebhookCallback-%d").setDaemon(true).build(),
+                (task, executor) -> requeue(task));
+        HubServices.register(new WebhookClientMetricsService());
+    }
+
+    /**
+     * @param readTimeoutSeconds the longest the callback can go without sending any of its response
+     * @return the response status
+     */
+    CompletableFuture<Integer> post(String url, String payload, int readTimeoutSeconds) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        Request request;
+        try {
+            request = httpClient.newRequest(url)
+                    .method(HttpMethod.POST)
+                    .header("Hub-Node", HubHost.getLocalNamePort())
+                    .content(new StringContentProvider(MediaType.APPLICATION_JSON, payload, StandardCharsets.UTF_8))
+                    .idleTimeout(readTimeoutSeconds, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        request.send(result -> {
+            if (result.isFailed()) {
+                future.completeExceptionally(result.getFailure());
+            } else {
+                future.complete(result.getResponse().getStatus());
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Runs task with {@link #execute(Runnable)} after delayMillis.
+     */
+    Timeout schedule(Runnable task, long delayMillis) {
+        pendingRetries.incrementAndGet();
+        return timer.newTimeout(timeout -> {
+            pendingRetries.decrementAndGet();
+            execute(task);
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if the scheduled task will not run
+     */
+    boolean cancel(Timeout timeout) {
+        timeout.cancel();
+        if (timeout.isCancelled()) {
+            pendingRetries.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Runs task on the callback pool.  When the pool's queue is full, the task is offered again after
+     * webhook.client.requeueMillis, so it never runs on a client or timer thread.
+     */
+    void execute(Runnable task) {
+        callbackExecutor.execute(task);
+    }
+
+    private void requeue(Runnable task) {
+        requeued.incrementAndGet();
+        timer.newTimeout(timeout -> execute(task), requeueMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void reportMetrics() {
+        for (Destination destination : httpClient.getDestinations()) {
+            HttpDestination httpDestination = (HttpDestination) destination;
+            String host = "host:" + httpDestination.getHost() + ":" + httpDestination.getPort();
+            metricsService.gauge("webhook.client.queued", httpDestination.getQueuedRequestCount(), host);
+            if (httpDestination.getConnectionPool() instanceof DuplexConnectionPool) {
+                DuplexConnectionPool pool = (DuplexConnectionPool) httpDestination.getConnectionPool();
+                metricsService.gauge("webhook.client.active", pool.getActiveConnectionCount(), host);
+                metricsService.gauge("webhook.client.idle", pool.getIdleConnectionCount(), host);
+            }
+        }
+        metricsService.gauge("webhook.retry.pending", pendingRetries.get());
+        metricsService.gauge("webhook.client.callbacks.queued", callbackExecutor.getQueue().size());
+        metricsService.gauge("webhook.client.callbacks.active", callbackExecutor.getActiveCount());
+        metricsService.gauge("webhook.client.callbacks.requeued", requeued.getAndSet(0));
+    }
+
+    private class WebhookClientMetricsService extends AbstractScheduledService {
+
+        @Override
+        protected void runOneIteration() throws Exception {
+            try {
+                reportMetrics();
+            } catch (Exception e) {
+                logger.info("unable to report webhook client metrics", e);
+            }
+        }
+
+        @Override
+        protected Scheduler scheduler() {
+            return Scheduler.newFixedDelaySchedule(0, 10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -21,7 +21,10 @@ class WebhookContentPathSet {
         this.curator = curator;
     }
 
-    public void add(String webhookName, ContentPath key) {
+    /**
+     * @return false if the path may not have been created
+     */
+    public boolean add(String webhookName, ContentPath key) {
         String path = getPath(webhookName, key);
         try {
             curator.create().creatingParentsIfNeeded().forPath(path);
@@ -29,7 +32,9 @@ class WebhookContentPathSet {
             logger.info("node exists " + path);
         } catch (Exception e) {
             logger.warn("unable to create " + path, e);
+            return false;
         }
+        return true;
     }
 
     public void remove(String webhookName, ContentPath key) {
@@ -1,13 +1,15 @@
 package com.flightstats.hub.webhook;
 
+import com.flightstats.hub.app.HubProperties;
 import com.flightstats.hub.cluster.*;
 import com.flightstats.hub.dao.ChannelService;
 import com.flightstats.hub.metrics.ActiveTraces;
 import com.flightstats.hub.metrics.MetricsService;
+import com.flightstats.hub.metrics.Traces;
 import com.flightstats.hub.model.ChannelConfig;
+import com.flightstats.hub.model.ContentKey;
 import com.flightstats.hub.model.ContentPath;
 import com.flightstats.hub.util.RuntimeInterruptedException;
-import com.flightstats.hub.util.Sleeper;
 import com.flightstats.hub.util.TimeUtil;
 import com.google.common.base.Optional;
 import com.google.inject.Inject;
@@ -16,17 +18,20 @@ import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
 
-class WebhookLeader implements Lockable {
+class WebhookLeader {
     private final static Logger logger = LoggerFactory.getLogger(WebhookLeader.class);
     static final String WEBHOOK_LAST_COMPLETED = "/GroupLastCompleted/";
     public static final String LEADER_PATH = "/WebhookLeader";
 
     private final AtomicBoolean deleteOnExit = new AtomicBoolean();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean exiting;
 
     @Inject
     private CuratorFramework curator;
@@ -41,19 +46,32 @@ class WebhookLeader implements Lockable {
     @Inject
     private LastContentPath lastContentPath;
     @Inject
+    private WebhookProgress webhookProgress;
+    @Inject
     private WebhookContentPathSet webhookInProcess;
     @Inject
     private WebhookError webhookError;
+    @Inject
+    private ChannelKeyTailer channelKeyTailer;
+    @Inject
+    private WebhookScheduler webhookScheduler;
 
     private Webhook webhook;
 
-    private ExecutorService executorService;
     private Semaphore semaphore;
+    private int parallelCalls;
     private Leadership leadership;
     private WebhookRetryer retryer;
 
     private WebhookStrategy webhookStrategy;
-    private AtomicReference<ContentPath> lastUpdated = new AtomicReference<>();
+    private volatile WebhookProgress.Journal journal;
+    private final Queue<ContentPath> inProcess = new ArrayDeque<>();
+    private final int quantum = HubProperties.getProperty("webhook.scheduler.quantum", 100);
+    private final int queriesPerRun = HubProperties.getProperty("webhook.scheduler.queriesPerRun", 10);
+    private WebhookScheduler.Task task;
+    private volatile State state = State.STARTING;
+    private long idleUntil;
+    private long stopDeadline;
     private String channelName;
     private CuratorLock curatorLock;
 
@@ -67,31 +85,119 @@ class WebhookLeader implements Lockable {
         if (webhook.isPaused()) {
             logger.info("not starting paused webhook " + webhook);
             return false;
-        } else {
-            curatorLock = new CuratorLock(curator, zooKeeperState, getLeaderPath());
-            return curatorLock.runWithLock(this, 1, TimeUnit.SECONDS);
+        }
+        curatorLock = createLock();
+        if (curatorLock.tryLock(1, TimeUnit.SECONDS)) {
+            leadership = curatorLock.getLeadership();
+            task = webhookScheduler.register(webhook.getName(), this::run);
+            task.wake();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Each run of the task does one step, and sends up to webhook.scheduler.quantum items,
+     * so the webhooks led by this hub take turns on the shared {@link WebhookScheduler}.
+     */
+    private void run() {
+        try {
+            switch (state) {
+                case STARTING:
+                    takeLeadership();
+                    break;
+                case RUNNING:
+                    sendAvailable();
+                    break;
+                case STOPPING:
+                    stopWhenIdle();
+                    break;
+                default:
+                    break;
+            }
+        } catch (Exception e) {
+            logger.warn("Execption for " + webhook.getName(), e);
+            if (state == State.STOPPING) {
+                task.wakeAfter(1000);
+            } else {
+                stopping();
+            }
         }
     }
 
-    @Override
-    public void takeLeadership(Leadership leadership) {
-        this.leadership = leadership;
+    private void takeLeadership() {
         Optional<Webhook> foundWebhook = webhookService.get(webhook.getName());
         channelName = webhook.getChannelName();
         if (!foundWebhook.isPresent() || !channelService.channelExists(channelName)) {
             logger.info("webhook or channel is missing, exiting " + webhook.getName());
-            Sleeper.sleep(60 * 1000);
+            idleUntil = System.currentTimeMillis() + 60 * 1000;
+            stopping();
             return;
         }
         this.webhook = foundWebhook.get();
         if (webhook.isPaused()) {
             logger.info("webhook is paused " + webhook.getName());
+            stopping();
             return;
         }
         logger.info("taking leadership {} {}", webhook, leadership.hasLeadership());
-        executorService = Executors.newCachedThreadPool();
-        semaphore = new Semaphore(webhook.getParallelCalls());
-        retryer = WebhookRetryer.builder()
+        parallelCalls = webhook.getParallelCalls();
+        semaphore = new Semaphore(parallelCalls);
+        retryer = createRetryer();
+        webhookStrategy = createStrategy();
+        ContentPath lastCompletedPath = webhookStrategy.getStartingPath();
+        logger.info("last completed at {} {}", lastCompletedPath, webhook.getName());
+        journal = webhookProgress.open(webhook.getName(), lastCompletedPath, WebhookStrategy.createContentPath(webhook));
+        if (!leadership.hasLeadership()) {
+            stopping();
+            return;
+        }
+        addInProcess(lastCompletedPath);
+        webhookStrategy.start(webhook, lastCompletedPath, task);
+        state = State.RUNNING;
+        task.wake();
+    }
+
+    /**
+     * Sends while there are calls available and items ready.  A completed call, or the strategy, wakes the task
+     * when it stopped for lack of either.
+     * Each in process item replayed is a query, so up to webhook.scheduler.queriesPerRun are replayed per run.
+     */
+    private void sendAvailable() throws Exception {
+        int replayed = 0;
+        for (int sent = 0; sent < quantum; sent++) {
+            if (!leadership.hasLeadership()) {
+                stopping();
+                return;
+            }
+            if (!inProcess.isEmpty() && replayed++ >= queriesPerRun) {
+                break;
+            }
+            if (!semaphore.tryAcquire()) {
+                return;
+            }
+            Optional<ContentPath> nextOptional;
+            try {
+                nextOptional = next();
+            } catch (Exception e) {
+                semaphore.release();
+                throw e;
+            }
+            if (!nextOptional.isPresent()) {
+                semaphore.release();
+                return;
+            }
+            send(nextOptional.get());
+        }
+        task.wake();
+    }
+
+    CuratorLock createLock() {
+        return new CuratorLock(curator, zooKeeperState, getLeaderPath());
+    }
+
+    WebhookRetryer createRetryer() {
+        return WebhookRetryer.builder()
                 .readTimeoutSeconds(webhook.getCallbackTimeoutSeconds())
                 .tryLaterIf(this::doesNotHaveLeadership)
                 .tryLaterIf(this::webhookIsPaused)
@@ -99,37 +205,66 @@ class WebhookLeader implements Lockable {
                 .giveUpIf(this::channelTTLExceeded)
                 .giveUpIf(this::maxAttemptsReached)
                 .build();
-        webhookStrategy = WebhookStrategy.getStrategy(webhook, lastContentPath, channelService);
+    }
+
+    WebhookStrategy createStrategy() {
+        return WebhookStrategy.getStrategy(webhook, lastContentPath, channelService, channelKeyTailer);
+    }
+
+    private Optional<ContentPath> next() throws Exception {
+        ContentPath toSend = inProcess.poll();
+        if (toSend == null) {
+            return webhookStrategy.next();
+        }
+        ActiveTraces.start("WebhookLeader inProcess", webhook);
         try {
-            ContentPath lastCompletedPath = webhookStrategy.getStartingPath();
-            lastUpdated.set(lastCompletedPath);
-            logger.info("last completed at {} {}", lastCompletedPath, webhook.getName());
-            if (leadership.hasLeadership()) {
-                sendInProcess(lastCompletedPath);
-                webhookStrategy.start(webhook, lastCompletedPath);
-                while (leadership.hasLeadership()) {
-                    Optional<ContentPath> nextOptional = webhookStrategy.next();
-                    if (nextOptional.isPresent()) {
-                        send(nextOptional.get());
-                    }
-                }
-            }
-        } catch (RuntimeInterruptedException | InterruptedException e) {
-            logger.info("saw InterruptedException for " + webhook.getName());
-        } catch (Exception e) {
-            logger.warn("Execption for " + webhook.getName(), e);
+            return Optional.of(webhookStrategy.inProcess(toSend));
         } finally {
-            logger.info("stopping last completed at {} {}", webhookStrategy.getLastCompleted(), webhook.getName());
-            leadership.setLeadership(false);
-            closeStrategy();
-            if (deleteOnExit.get()) {
-                delete();
-            }
-            stopExecutor();
-            logger.info("stopped last completed at {} {}", webhookStrategy.getLastCompleted(), webhook.getName());
-            webhookStrategy = null;
-            executorService = null;
+            ActiveTraces.end();
+        }
+    }
+
+    private void stopping() {
+        state = State.STOPPING;
+        logger.info("stopping last completed at {} {}", getLastCompleted(), webhook.getName());
+        leadership.setLeadership(false);
+        closeStrategy();
+        if (deleteOnExit.get()) {
+            delete();
+        }
+        if (retryer != null) {
+            retryer.stop();
+        }
+        if (semaphore != null) {
+            stopDeadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(webhook.getCallbackTimeoutSeconds() + 10);
+        }
+        stopWhenIdle();
+    }
+
+    /**
+     * Finishes once the calls in flight complete, or callbackTimeoutSeconds plus 10 seconds pass.
+     */
+    private void stopWhenIdle() {
+        long now = System.currentTimeMillis();
+        if (now < idleUntil && !exiting) {
+            task.wakeAfter(idleUntil - now);
+            return;
         }
+        if (semaphore != null && semaphore.availablePermits() < parallelCalls && now < stopDeadline) {
+            task.wakeAfter(Math.min(1000, stopDeadline - now));
+            return;
+        }
+        closeJournal();
+        state = State.STOPPED;
+        task.cancel();
+        curatorLock.unlock();
+        stopped.countDown();
+        logger.info("stopped last completed at {} {}", getLastCompleted(), webhook.getName());
+    }
+
+    private ContentPath getLastCompleted() {
+        WebhookStrategy strategy = webhookStrategy;
+        return strategy == null ? null : strategy.getLastCompleted();
     }
 
     private boolean doesNotHaveLeadership(DeliveryAttempt attempt) {
@@ -187,100 +322,93 @@ class WebhookLeader implements Lockable {
         }
     }
 
-    private void sendInProcess(ContentPath lastCompletedPath) throws InterruptedException {
-        Set<ContentPath> inProcessSet = webhookInProcess.getSet(webhook.getName(), lastCompletedPath);
+    private void addInProcess(ContentPath lastCompletedPath) {
+        Set<ContentPath> inProcessSet = journal.getInFlight();
         logger.debug("sending in process {} to {}", inProcessSet, webhook.getName());
         for (ContentPath toSend : inProcessSet) {
             if (toSend.compareTo(lastCompletedPath) < 0) {
-                ActiveTraces.start("WebhookLeader inProcess", webhook);
-                ContentPath contentPath;
-                try {
-                    contentPath = webhookStrategy.inProcess(toSend);
-                } finally {
-                    ActiveTraces.end();
-                }
-                send(contentPath);
+                inProcess.add(toSend);
             } else {
-                webhookInProcess.remove(webhook.getName(), toSend);
+                journal.complete(toSend, false);
             }
         }
     }
 
-    private void send(ContentPath contentPath) throws InterruptedException {
-        semaphore.acquire();
+    /**
+     * The caller acquires a call from the semaphore, which is released when the delivery completes.
+     */
+    private void send(ContentPath contentPath) {
         logger.trace("sending {} to {}", contentPath, webhook.getName());
-        String parentName = Thread.currentThread().getName();
-        executorService.submit(() -> {
-            String workerName = Thread.currentThread().getName();
-            Thread.currentThread().setName(workerName + "|" + parentName);
-            ActiveTraces.start("WebhookLeader.send", webhook, contentPath);
-            webhookInProcess.add(webhook.getName(), contentPath);
-            try {
-                metricsService.time("webhook.delta", contentPath.getTime().getMillis(), "name:" + webhook.getName());
-                long start = System.currentTimeMillis();
-                boolean shouldGoToNextItem = retryer.send(webhook, contentPath, webhookStrategy.createResponse(contentPath));
-                metricsService.time("webhook", start, "name:" + webhook.getName());
-                if (shouldGoToNextItem) {
-                    if (increaseLastUpdated(contentPath)) {
-                        if (!deleteOnExit.get()) {
-                            lastContentPath.updateIncrease(contentPath, webhook.getName(), WEBHOOK_LAST_COMPLETED);
+        WebhookProgress.Journal journal = this.journal;
+        journal.start(contentPath);
+        ActiveTraces.start("WebhookLeader.send", webhook, contentPath);
+        Traces traces = ActiveTraces.getLocal();
+        try {
+            metricsService.time("webhook.delta", contentPath.getTime().getMillis(), "name:" + webhook.getName());
+            long start = System.currentTimeMillis();
+            retryer.send(webhook, contentPath, webhookStrategy.createResponse(contentPath))
+                    .whenComplete((shouldGoToNextItem, e) -> {
+                        ActiveTraces.setLocal(traces);
+                        try {
+                            if (e != null) {
+                                logger.warn("exception sending " + contentPath + " to " + webhook.getName(), e);
+                                return;
+                            }
+                            metricsService.time("webhook", start, "name:" + webhook.getName());
+                            if (shouldGoToNextItem && contentPath instanceof ContentKey) {
+                                metricsService.time("webhook.latency", contentPath.getTime().getMillis(), "name:" + webhook.getName());
+                            }
+                            journal.complete(contentPath, shouldGoToNextItem);
+                            logger.trace("done sending {} to {} ", contentPath, webhook.getName());
+                        } finally {
+                            semaphore.release();
+                            task.wake();
+                            ActiveTraces.end();
                         }
-                    }
-                }
-                webhookInProcess.remove(webhook.getName(), contentPath);
-                logger.trace("done sending {} to {} ", contentPath, webhook.getName());
-            } catch (Exception e) {
-                logger.warn("exception sending " + contentPath + " to " + webhook.getName(), e);
-            } finally {
-                semaphore.release();
-                ActiveTraces.end();
-                Thread.currentThread().setName(workerName);
-            }
-            return null;
-        });
-    }
-
-    private boolean increaseLastUpdated(ContentPath newPath) {
-        AtomicBoolean changed = new AtomicBoolean(false);
-        lastUpdated.getAndUpdate(existingPath -> {
-            if (newPath.compareTo(existingPath) > 0) {
-                changed.set(true);
-                return newPath;
-            }
-            changed.set(false);
-            return existingPath;
-        });
-        return changed.get();
+                    });
+        } catch (Exception e) {
+            logger.warn("exception sending " + contentPath + " to " + webhook.getName(), e);
+            semaphore.release();
+            task.wake();
+            ActiveTraces.end();
+        } finally {
+            ActiveTraces.setLocal(null);
+        }
     }
 
+    /**
+     * Stops the task, and waits for it to finish its calls, write its progress and release the lock,
+     * so a new leader never starts while this one is still stopping.
+     */
     void exit(boolean delete) {
         String name = webhook.getName();
         logger.info("exiting webhook " + name + "deleting " + delete);
         deleteOnExit.set(delete);
-        if (null != curatorLock) {
-            curatorLock.stopWorking();
-        }
-        closeStrategy();
-        stopExecutor();
-        if (null != curatorLock) {
-            curatorLock.delete();
-        }
-        logger.info("exited webhook " + name);
-    }
-
-    private void stopExecutor() {
-        if (executorService == null) {
+        exiting = true;
+        if (null == task) {
             return;
         }
-        String name = webhook.getName();
-        logger.info("stopExecutor " + name);
+        curatorLock.stopWorking();
+        task.wake();
         try {
-            executorService.shutdown();
-            logger.info("awating termination " + name);
-            executorService.awaitTermination(webhook.getCallbackTimeoutSeconds() + 10, TimeUnit.SECONDS);
-            logger.info("stopped Executor " + name);
+            if (stopped.await(webhook.getCallbackTimeoutSeconds() + 30, TimeUnit.SECONDS)) {
+                logger.info("exited webhook " + name);
+            } else {
+                logger.warn("webhook is still stopping " + name);
+            }
         } catch (InterruptedException e) {
-            logger.warn("unable to stop?" + name, e);
+            throw new RuntimeInterruptedException(e);
+        }
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            if (deleteOnExit.get()) {
+                webhookProgress.discard(journal);
+            } else {
+                webhookProgress.close(journal);
+            }
+            journal = null;
         }
     }
 
@@ -301,6 +429,9 @@ class WebhookLeader implements Lockable {
     private void delete() {
         String name = webhook.getName();
         logger.info("deleting " + name);
+        if (journal != null) {
+            webhookProgress.discard(journal);
+        }
         webhookInProcess.delete(name);
         lastContentPath.delete(name, WEBHOOK_LAST_COMPLETED);
         webhookError.delete(name);
@@ -314,4 +445,8 @@ class WebhookLeader implements Lockable {
     boolean hasLeadership() {
         return leadership.hasLeadership();
     }
+
+    private enum State {
+        STARTING, RUNNING, STOPPING, STOPPED
+    }
 }
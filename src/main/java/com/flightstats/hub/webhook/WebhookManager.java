@@ -52,6 +52,8 @@ public class WebhookManager {
     private WebhookError webhookError;
     @Inject
     private WebhookContentPathSet webhookInProcess;
+    @Inject
+    private WebhookProgress webhookProgress;
 
     private final Client client = RestClient.createClient(5, 15, true, true);
 
@@ -201,11 +203,20 @@ public class WebhookManager {
     }
 
     public void getStatus(Webhook webhook, WebhookStatus.WebhookStatusBuilder statusBuilder) {
-        statusBuilder.lastCompleted(lastContentPath.get(webhook.getName(), WebhookStrategy.createContentPath(webhook), WebhookLeader.WEBHOOK_LAST_COMPLETED));
+        WebhookProgress.Journal journal = webhookProgress.get(webhook.getName());
+        if (journal != null) {
+            statusBuilder.lastCompleted(journal.getLastCompleted());
+        } else {
+            statusBuilder.lastCompleted(lastContentPath.get(webhook.getName(), WebhookStrategy.createContentPath(webhook), WebhookLeader.WEBHOOK_LAST_COMPLETED));
+        }
         try {
             statusBuilder.errors(webhookError.get(webhook.getName()));
-            ArrayList<ContentPath> inFlight = new ArrayList<>(new TreeSet<>(webhookInProcess.getSet(webhook.getName(), WebhookStrategy.createContentPath(webhook))));
-            statusBuilder.inFlight(inFlight);
+            if (journal != null) {
+                statusBuilder.inFlight(new ArrayList<>(journal.getInFlight()));
+            } else {
+                ArrayList<ContentPath> inFlight = new ArrayList<>(new TreeSet<>(webhookInProcess.getSet(webhook.getName(), WebhookStrategy.createContentPath(webhook))));
+                statusBuilder.inFlight(inFlight);
+            }
         } catch (Exception e) {
             logger.warn("unable to get status " + webhook.getName(), e);
             statusBuilder.errors(Collections.emptyList());
@@ -0,0 +1,222 @@
+package com.flightstats.hub.webhook;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.app.HubServices;
+import com.flightstats.hub.cluster.LastContentPath;
+import com.flightstats.hub.metrics.MetricsService;
+import com.flightstats.hub.model.ContentPath;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.flightstats.hub.webhook.WebhookLeader.WEBHOOK_LAST_COMPLETED;
+
+/**
+ * WebhookProgress keeps the in flight and last completed paths of the webhooks led by this hub in memory,
+ * and writes a checkpoint of each {@link Journal} to ZooKeeper every webhook.progress.flushMillis,
+ * or after webhook.progress.flushItems changes, instead of writing on every item.
+ * <p>
+ * A checkpoint creates the new in flight paths before it moves last completed, so a new leader resends
+ * every item which was not complete at the last checkpoint.  Items completed after the last checkpoint
+ * may be sent again.
+ */
+@Singleton
+class WebhookProgress {
+
+    private final static Logger logger = LoggerFactory.getLogger(WebhookProgress.class);
+
+    private final int flushMillis = HubProperties.getProperty("webhook.progress.flushMillis", 1000);
+    private final int flushItems = HubProperties.getProperty("webhook.progress.flushItems", 1000);
+    private final Map<String, Journal> journals = new ConcurrentHashMap<>();
+    private final ExecutorService flushExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("WebhookProgress-%d").setDaemon(true).build());
+
+    private final LastContentPath lastContentPath;
+    private final WebhookContentPathSet webhookInProcess;
+    private final MetricsService metricsService;
+
+    @Inject
+    WebhookProgress(LastContentPath lastContentPath, WebhookContentPathSet webhookInProcess, MetricsService metricsService) {
+        this.lastContentPath = lastContentPath;
+        this.webhookInProcess = webhookInProcess;
+        this.metricsService = metricsService;
+        HubServices.register(new WebhookProgressService(), HubServices.TYPE.AFTER_HEALTHY_START);
+    }
+
+    /**
+     * Starts a journal with the in flight paths left by the previous leader.
+     */
+    Journal open(String name, ContentPath lastCompleted, ContentPath type) {
+        Journal journal = new Journal(name, lastCompleted, webhookInProcess.getSet(name, type));
+        journals.put(name, journal);
+        return journal;
+    }
+
+    /**
+     * Writes the final checkpoint of journal.
+     */
+    void close(Journal journal) {
+        journals.remove(journal.name, journal);
+        journal.close(true);
+    }
+
+    /**
+     * Stops journal without writing, for a webhook which is being deleted.
+     * Waits for a flush in progress, so nothing is written once this returns.
+     */
+    void discard(Journal journal) {
+        journal.close(false);
+        journals.remove(journal.name, journal);
+    }
+
+    /**
+     * @return the journal of a webhook led by this hub, or null
+     */
+    Journal get(String name) {
+        return journals.get(name);
+    }
+
+    void flush() {
+        for (Journal journal : journals.values()) {
+            if (journal.isChanged()) {
+                journal.flush();
+            }
+        }
+    }
+
+    class Journal {
+
+        private final String name;
+        private final Set<ContentPath> inFlight = new HashSet<>();
+        private final Set<ContentPath> persisted = new HashSet<>();
+        private final AtomicBoolean flushQueued = new AtomicBoolean();
+        private final Object flushLock = new Object();
+        private ContentPath lastCompleted;
+        private ContentPath persistedLastCompleted;
+        private int changes;
+        private volatile boolean closed;
+
+        private Journal(String name, ContentPath lastCompleted, Set<ContentPath> recovered) {
+            this.name = name;
+            this.lastCompleted = lastCompleted;
+            this.persistedLastCompleted = lastCompleted;
+            inFlight.addAll(recovered);
+            persisted.addAll(recovered);
+        }
+
+        synchronized void start(ContentPath path) {
+            inFlight.add(path);
+            changed();
+        }
+
+        /**
+         * @param delivered true if last completed can move to path
+         */
+        synchronized void complete(ContentPath path, boolean delivered) {
+            inFlight.remove(path);
+            if (delivered && (lastCompleted == null || path.compareTo(lastCompleted) > 0)) {
+                lastCompleted = path;
+            }
+            changed();
+        }
+
+        private void changed() {
+            changes++;
+            if (changes >= flushItems && flushQueued.compareAndSet(false, true)) {
+                flushExecutor.submit(this::flush);
+            }
+        }
+
+        private synchronized boolean isChanged() {
+            return changes > 0;
+        }
+
+        synchronized ContentPath getLastCompleted() {
+            return lastCompleted;
+        }
+
+        synchronized SortedSet<ContentPath> getInFlight() {
+            return new TreeSet<>(inFlight);
+        }
+
+        private void close(boolean write) {
+            synchronized (flushLock) {
+                if (write) {
+                    flush();
+                }
+                closed = true;
+            }
+        }
+
+        void flush() {
+            flushQueued.set(false);
+            synchronized (flushLock) {
+                if (closed) {
+                    return;
+                }
+                Set<ContentPath> added;
+                Set<ContentPath> removed;
+                ContentPath completed;
+                synchronized (this) {
+                    added = new HashSet<>(inFlight);
+                    added.removeAll(persisted);
+                    removed = new HashSet<>(persisted);
+                    removed.removeAll(inFlight);
+                    completed = Objects.equals(lastCompleted, persistedLastCompleted) ? null : lastCompleted;
+                    changes = 0;
+                }
+                int ops = 0;
+                boolean created = true;
+                for (ContentPath path : added) {
+                    ops++;
+                    if (webhookInProcess.add(name, path)) {
+                        persisted.add(path);
+                    } else {
+                        created = false;
+                    }
+                }
+                if (completed != null && created) {
+                    ops++;
+                    lastContentPath.updateIncrease(completed, name, WEBHOOK_LAST_COMPLETED);
+                    persistedLastCompleted = completed;
+                } else if (completed != null) {
+                    logger.info("not moving last completed for {} until in flight is created", name);
+                    synchronized (this) {
+                        changes++;
+                    }
+                }
+                for (ContentPath path : removed) {
+                    ops++;
+                    webhookInProcess.remove(name, path);
+                    persisted.remove(path);
+                }
+                if (ops > 0) {
+                    metricsService.count("webhook.zookeeper.ops", ops, "name:" + name);
+                }
+            }
+        }
+    }
+
+    private class WebhookProgressService extends AbstractScheduledService {
+
+        @Override
+        protected void runOneIteration() throws Exception {
+            flush();
+        }
+
+        @Override
+        protected Scheduler scheduler() {
+            return Scheduler.newFixedDelaySchedule(flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
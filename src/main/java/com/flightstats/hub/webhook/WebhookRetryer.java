@@ -1,7 +1,6 @@
 package com.flightstats.hub.webhook;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.flightstats.hub.app.HubHost;
 import com.flightstats.hub.app.HubProperties;
 import com.flightstats.hub.app.HubProvider;
 import com.flightstats.hub.metrics.ActiveTraces;
@@ -9,29 +8,29 @@ import com.flightstats.hub.metrics.DataDog;
 import com.flightstats.hub.metrics.Traces;
 import com.flightstats.hub.model.ContentPath;
 import com.flightstats.hub.model.RecurringTrace;
-import com.flightstats.hub.rest.RestClient;
-import com.flightstats.hub.util.HubUtils;
 import com.google.common.annotations.VisibleForTesting;
-import com.sun.jersey.api.client.Client;
-import com.sun.jersey.api.client.ClientHandlerException;
-import com.sun.jersey.api.client.ClientResponse;
 import com.timgroup.statsd.StatsDClient;
 import lombok.Builder;
 import lombok.Singular;
+import org.jboss.netty.util.Timeout;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 
 /**
  *  This class is responsible for trying to deliver a payload
  *  until a set of configurable criteria is met.
+ *  Attempts are sent with the shared {@link WebhookClient}, and no thread waits on a callback or a retry.
+ *  Responses, retries and the criteria, which can record errors in ZooKeeper, run on the client's callback pool.
  */
 class WebhookRetryer {
 
@@ -42,46 +41,59 @@ class WebhookRetryer {
     private List<Predicate<DeliveryAttempt>> tryLaterIfs = new ArrayList<>();
 
     private WebhookError webhookError;
-    private Client httpClient;
+    private WebhookClient webhookClient;
+    private int readTimeoutSeconds;
+    private final Map<CompletableFuture<Boolean>, Timeout> retries = new ConcurrentHashMap<>();
+    private volatile boolean stopped;
 
     @Builder
     WebhookRetryer(@Singular List<Predicate<DeliveryAttempt>> giveUpIfs,
                    @Singular List<Predicate<DeliveryAttempt>> tryLaterIfs,
-                   Integer connectTimeoutSeconds,
                    Integer readTimeoutSeconds) {
-        this(giveUpIfs, tryLaterIfs, connectTimeoutSeconds, readTimeoutSeconds, HubProvider.getInstance(WebhookError.class));
+        this(giveUpIfs, tryLaterIfs, readTimeoutSeconds, HubProvider.getInstance(WebhookError.class), HubProvider.getInstance(WebhookClient.class));
     }
 
     @VisibleForTesting
     WebhookRetryer(List<Predicate<DeliveryAttempt>> giveUpIfs,
                    List<Predicate<DeliveryAttempt>> tryLaterIfs,
-                   Integer connectTimeoutSeconds,
                    Integer readTimeoutSeconds,
-                   WebhookError webhookError) {
+                   WebhookError webhookError,
+                   WebhookClient webhookClient) {
         this.giveUpIfs = giveUpIfs;
         this.tryLaterIfs = tryLaterIfs;
         this.webhookError = webhookError;
-        if (connectTimeoutSeconds == null) connectTimeoutSeconds = HubProperties.getProperty("webhook.connectTimeoutSeconds", 60);
+        this.webhookClient = webhookClient;
         if (readTimeoutSeconds == null) readTimeoutSeconds = HubProperties.getProperty("webhook.readTimeoutSeconds", 60);
-        this.httpClient = RestClient.createClient(connectTimeoutSeconds, readTimeoutSeconds, true, false);
+        this.readTimeoutSeconds = readTimeoutSeconds;
     }
 
-    boolean send(Webhook webhook, ContentPath contentPath, ObjectNode body) {
+    /**
+     * @return completes with true when the item is done, either delivered or given up on,
+     * and with false when it should be tried later
+     */
+    CompletableFuture<Boolean> send(Webhook webhook, ContentPath contentPath, ObjectNode body) {
         Traces traces = ActiveTraces.getLocal();
         traces.add("WebhookRetryer.send start");
         RecurringTrace recurringTrace = new RecurringTrace("WebhookRetryer.send start");
         traces.add(recurringTrace);
 
-        int attemptNumber = 0;
-        boolean isDoneWithItem = false;
-        boolean isRetrying = true;
-        while (isRetrying) {
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        done.whenComplete((isDoneWithItem, e) -> {
+            retries.remove(done);
+            recurringTrace.update("WebhookRetryer.send completed");
+        });
+        attempt(1, webhook, contentPath, body.toString(), recurringTrace, done);
+        return done;
+    }
 
+    private void attempt(int attemptNumber, Webhook webhook, ContentPath contentPath, String payload,
+                         RecurringTrace recurringTrace, CompletableFuture<Boolean> done) {
+        try {
             DeliveryAttempt attempt = DeliveryAttempt.builder()
-                    .number(++attemptNumber)
+                    .number(attemptNumber)
                     .webhook(webhook)
                     .contentPath(contentPath)
-                    .payload(body.toString())
+                    .payload(payload)
                     .build();
 
             boolean shouldGiveUp = shouldGiveUp(attempt);
@@ -89,60 +101,80 @@ class WebhookRetryer {
 
             if (shouldGiveUp || shouldTryLater) {
                 logger.debug("{} {} stopping delivery before attempt #{}", attempt.getWebhook().getName(), attempt.getContentPath().toUrl(), attempt.getNumber());
-                isRetrying = false;
                 if (shouldGiveUp) {
-                    isDoneWithItem = true;
                     webhookError.publishToErrorChannel(attempt);
                 }
-
-                continue;
+                done.complete(shouldGiveUp);
+                return;
             }
 
-            String payload = body.toString();
             logger.debug("{} {} delivery attempt #{} {} {}", attempt.getWebhook().getName(), attempt.getContentPath().toUrl(), attempt.getNumber(), webhook.getCallbackUrl(), payload);
-            ClientResponse response = null;
-            try {
-                response = httpClient.resource(attempt.getWebhook().getCallbackUrl())
-                        .type(MediaType.APPLICATION_JSON_TYPE)
-                        .header("Hub-Node", HubHost.getLocalNamePort())
-                        .post(ClientResponse.class, payload);
-                attempt.setStatusCode(response.getStatus());
-            } catch (ClientHandlerException e) {
-                attempt.setException(e);
-            } finally {
-                HubUtils.close(response);
-            }
+            webhookClient.post(attempt.getWebhook().getCallbackUrl(), payload, readTimeoutSeconds)
+                    .whenCompleteAsync((statusCode, throwable) -> {
+                        if (throwable == null) {
+                            attempt.setStatusCode(statusCode);
+                        } else {
+                            attempt.setException(throwable instanceof Exception ? (Exception) throwable : new RuntimeException(throwable));
+                        }
+                        completed(attempt, recurringTrace, done);
+                    }, webhookClient::execute);
+        } catch (Exception e) {
+            logger.warn("unable to attempt " + contentPath + " to " + webhook.getName(), e);
+            done.completeExceptionally(e);
+        }
+    }
 
+    private void completed(DeliveryAttempt attempt, RecurringTrace recurringTrace, CompletableFuture<Boolean> done) {
+        try {
             String requestResult = determineResult(attempt);
             logger.debug("{} {} to {} response {}", attempt.getWebhook().getName(), attempt.getContentPath().toUrl(), attempt.getWebhook().getCallbackUrl(), requestResult);
             recurringTrace.update("WebhookLeader.send", "attempt " + attempt.getNumber(), ": " + requestResult);
 
             if (attempt.getStatusCode() != null && attempt.getStatusCode() < 400) {
-                isRetrying = false;
-                isDoneWithItem = true;
-                continue;
-            } else {
-                webhookError.add(attempt.getWebhook().getName(), new DateTime() + " " + attempt.getContentPath() + " " + requestResult);
-                statsd.incrementCounter("webhook.errors", "name:" + attempt.getWebhook().getName(), "status:" + attempt.getStatusCode());
+                done.complete(true);
+                return;
             }
+            webhookError.add(attempt.getWebhook().getName(), new DateTime() + " " + attempt.getContentPath() + " " + requestResult);
+            statsd.incrementCounter("webhook.errors", "name:" + attempt.getWebhook().getName(), "status:" + attempt.getStatusCode());
+
+            long exponentialMultiplier = 1000;
+            long maximumSleepTimeMS = TimeUnit.MINUTES.toMillis(attempt.getWebhook().getMaxWaitMinutes());
+            long sleepTimeMS = calculateSleepTimeMS(attempt, exponentialMultiplier, maximumSleepTimeMS);
+            logger.debug("{} {} waiting {} seconds until retrying", attempt.getWebhook().getName(), attempt.getContentPath().toUrl(), TimeUnit.MILLISECONDS.toSeconds(sleepTimeMS));
+            Runnable retry = () -> {
+                if (stopped) {
+                    stopRetrying(attempt, done);
+                } else {
+                    attempt(attempt.getNumber() + 1, attempt.getWebhook(), attempt.getContentPath(), attempt.getPayload(), recurringTrace, done);
+                }
+            };
+            retries.put(done, webhookClient.schedule(retry, sleepTimeMS));
+            if (stopped) {
+                stop();
+            }
+        } catch (Exception e) {
+            logger.warn("unable to complete " + attempt.getContentPath() + " to " + attempt.getWebhook().getName(), e);
+            done.completeExceptionally(e);
+        }
+    }
 
-            try {
-                long exponentialMultiplier = 1000;
-                long maximumSleepTimeMS = TimeUnit.MINUTES.toMillis(attempt.getWebhook().getMaxWaitMinutes());
-                long sleepTimeMS = calculateSleepTimeMS(attempt, exponentialMultiplier, maximumSleepTimeMS);
-                logger.debug("{} {} waiting {} seconds until retrying", attempt.getWebhook().getName(), attempt.getContentPath().toUrl(), TimeUnit.MILLISECONDS.toSeconds(sleepTimeMS));
-                Thread.sleep(sleepTimeMS);
-            } catch (InterruptedException e) {
-                String message = String.format("%s %s to %s interrupted", attempt.getWebhook().getName(), attempt.getContentPath().toUrl(), attempt.getWebhook().getCallbackUrl());
-                logger.debug(message, e);
-                statsd.incrementCounter("webhook.errors", "name:" + webhook.getName(), "status:500");
-                Thread.currentThread().interrupt();
-                isRetrying = false;
+    /**
+     * Ends the waits for retries, which then complete as tried later.
+     */
+    void stop() {
+        stopped = true;
+        for (Map.Entry<CompletableFuture<Boolean>, Timeout> entry : retries.entrySet()) {
+            if (retries.remove(entry.getKey(), entry.getValue()) && webhookClient.cancel(entry.getValue())) {
+                logger.debug("cancelled retry");
+                entry.getKey().complete(false);
             }
         }
+    }
 
-        recurringTrace.update("WebhookRetryer.send completed");
-        return isDoneWithItem;
+    private void stopRetrying(DeliveryAttempt attempt, CompletableFuture<Boolean> done) {
+        logger.debug("{} {} to {} stopped", attempt.getWebhook().getName(), attempt.getContentPath().toUrl(), attempt.getWebhook().getCallbackUrl());
+        statsd.incrementCounter("webhook.errors", "name:" + attempt.getWebhook().getName(), "status:500");
+        done.complete(false);
     }
 
     @VisibleForTesting
@@ -0,0 +1,159 @@
+package com.flightstats.hub.webhook;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.app.HubServices;
+import com.flightstats.hub.metrics.MetricsService;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * WebhookScheduler runs the webhooks led by this hub as {@link Task}s on a fixed number of threads.
+ * <p>
+ * A Task is queued at most once, and ready Tasks run in the order they were woken, so each webhook gets
+ * a turn before any webhook gets a second one.  A Task's run should do a bounded amount of work and return,
+ * waking itself again if it has more to do.
+ */
+@Singleton
+class WebhookScheduler {
+
+    private final static Logger logger = LoggerFactory.getLogger(WebhookScheduler.class);
+
+    private static final int IDLE = 0;
+    private static final int QUEUED = 1;
+    private static final int RUNNING = 2;
+    private static final int RUNNING_WOKEN = 3;
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("WebhookScheduler-timer-%d").setDaemon(true).build());
+    private final AtomicInteger tasks = new AtomicInteger();
+    private final AtomicLong maxLagMillis = new AtomicLong();
+    private final MetricsService metricsService;
+
+    @Inject
+    WebhookScheduler(MetricsService metricsService) {
+        this.metricsService = metricsService;
+        int threads = HubProperties.getProperty("webhook.scheduler.threads", 16);
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("WebhookScheduler-%d").setDaemon(true).build());
+        HubServices.register(new WebhookSchedulerMetricsService());
+    }
+
+    Task register(String name, Runnable body) {
+        tasks.incrementAndGet();
+        return new Task(name, body);
+    }
+
+    class Task {
+
+        private final String name;
+        private final Runnable body;
+        private final AtomicInteger state = new AtomicInteger(IDLE);
+        private final AtomicLong wakeAtMillis = new AtomicLong();
+        private volatile long queuedMillis;
+        private volatile boolean cancelled;
+
+        private Task(String name, Runnable body) {
+            this.name = name;
+            this.body = body;
+        }
+
+        /**
+         * Queues the task to run, or to run again if it is running.
+         */
+        void wake() {
+            while (!cancelled) {
+                int current = state.get();
+                if (current == IDLE) {
+                    if (state.compareAndSet(IDLE, QUEUED)) {
+                        queue();
+                        return;
+                    }
+                } else if (current == RUNNING) {
+                    if (state.compareAndSet(RUNNING, RUNNING_WOKEN)) {
+                        return;
+                    }
+                } else {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Wakes the task after delayMillis, unless an earlier wake is already pending.
+         */
+        void wakeAfter(long delayMillis) {
+            long wakeAt = System.currentTimeMillis() + delayMillis;
+            long pending = wakeAtMillis.get();
+            if (pending > System.currentTimeMillis() && pending <= wakeAt) {
+                return;
+            }
+            wakeAtMillis.set(wakeAt);
+            timer.schedule(() -> {
+                wakeAtMillis.compareAndSet(wakeAt, 0);
+                wake();
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                tasks.decrementAndGet();
+            }
+        }
+
+        private void queue() {
+            queuedMillis = System.currentTimeMillis();
+            executor.execute(this::run);
+        }
+
+        private void run() {
+            state.set(RUNNING);
+            maxLagMillis.accumulateAndGet(System.currentTimeMillis() - queuedMillis, Math::max);
+            try {
+                if (!cancelled) {
+                    body.run();
+                }
+            } catch (Exception e) {
+                logger.warn("unexpected issue with " + name, e);
+            } finally {
+                if (!state.compareAndSet(RUNNING, IDLE)) {
+                    state.set(QUEUED);
+                    queue();
+                }
+            }
+        }
+    }
+
+    private void reportMetrics() {
+        metricsService.gauge("webhook.scheduler.lag", maxLagMillis.getAndSet(0));
+        metricsService.gauge("webhook.scheduler.queued", executor.getQueue().size());
+        metricsService.gauge("webhook.scheduler.active", executor.getActiveCount());
+        metricsService.gauge("webhook.scheduler.tasks", tasks.get());
+    }
+
+    private class WebhookSchedulerMetricsService extends AbstractScheduledService {
+
+        @Override
+        protected void runOneIteration() throws Exception {
+            try {
+                reportMetrics();
+            } catch (Exception e) {
+                logger.info("unable to report webhook scheduler metrics", e);
+            }
+        }
+
+        @Override
+        protected Scheduler scheduler() {
+            return Scheduler.newFixedDelaySchedule(0, 10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -134,6 +134,13 @@ public class WebhookService {
         return builder.build();
     }
 
+    /**
+     * @return the last completed path for the webhook, or null if there is none
+     */
+    public ContentPath getLastCompleted(String name) {
+        return lastContentPath.getOrNull(name, WEBHOOK_LAST_COMPLETED);
+    }
+
     public void delete(String name) {
         logger.info("deleting webhook " + name);
         TagWebhook.deleteInstancesIfTagWebhook(name);
@@ -10,8 +10,7 @@ import com.flightstats.hub.model.SecondPath;
 import com.flightstats.hub.util.TimeUtil;
 import com.google.common.base.Optional;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
+import java.util.Queue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 interface WebhookStrategy extends AutoCloseable {
@@ -20,8 +19,14 @@ interface WebhookStrategy extends AutoCloseable {
 
     ContentPath getLastCompleted();
 
-    void start(Webhook webhook, ContentPath startingKey);
+    /**
+     * @param task the leader's task, which the strategy wakes when it may have more paths
+     */
+    void start(Webhook webhook, ContentPath startingKey, WebhookScheduler.Task task);
 
+    /**
+     * Returns without waiting, absent when no path is ready yet.
+     */
     Optional<ContentPath> next() throws Exception;
 
     ObjectNode createResponse(ContentPath contentPath);
@@ -38,20 +43,18 @@ interface WebhookStrategy extends AutoCloseable {
         return new ContentKey(TimeUtil.now(), "initial");
     }
 
-    static WebhookStrategy getStrategy(Webhook webhook, LastContentPath lastContentPath, ChannelService channelService) {
+    static WebhookStrategy getStrategy(Webhook webhook, LastContentPath lastContentPath, ChannelService channelService,
+                                       ChannelKeyTailer channelKeyTailer) {
         if (webhook.isMinute() || webhook.isSecond()) {
-            return new TimedWebhookStrategy(webhook, lastContentPath, channelService);
+            return new TimedWebhookStrategy(webhook, lastContentPath, channelService, channelKeyTailer);
         }
-        return new SingleWebhookStrategy(webhook, lastContentPath, channelService);
+        return new SingleWebhookStrategy(webhook, lastContentPath, channelService, channelKeyTailer);
     }
 
-    static void close(AtomicBoolean shouldExit, ExecutorService executorService, BlockingQueue queue) {
+    static void close(AtomicBoolean shouldExit, Queue queue) {
         if (!shouldExit.get()) {
             shouldExit.set(true);
         }
-        if (executorService != null) {
-            executorService.shutdownNow();
-        }
         if (queue != null) {
             queue.clear();
         }
@@ -1,10 +1,12 @@
 package com.flightstats.hub.ws;
 
 import com.flightstats.hub.app.HubHost;
+import com.flightstats.hub.app.HubProperties;
 import com.flightstats.hub.app.HubProvider;
+import com.flightstats.hub.events.BroadcastSubscriber;
+import com.flightstats.hub.events.Broadcaster;
 import com.flightstats.hub.model.ContentKey;
 import com.flightstats.hub.util.StringUtils;
-import com.flightstats.hub.webhook.Webhook;
 import com.flightstats.hub.webhook.WebhookService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,18 +15,20 @@ import javax.websocket.Session;
 import javax.ws.rs.core.UriBuilder;
 import java.io.IOException;
 import java.net.URI;
-import java.net.UnknownHostException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 class WebSocketService {
 
     private final static Logger logger = LoggerFactory.getLogger(WebSocketService.class);
     private static WebSocketService instance;
+    private final Broadcaster broadcaster;
     private final WebhookService webhookService;
-    private final Map<String, Session> sessionMap = new HashMap<>();
+    private final Map<String, BroadcastSubscriber> subscriberMap = new ConcurrentHashMap<>();
 
     private WebSocketService() {
+        broadcaster = HubProvider.getInstance(Broadcaster.class);
         webhookService = HubProvider.getInstance(WebhookService.class);
     }
 
@@ -35,23 +39,17 @@ class WebSocketService {
         return instance;
     }
 
-    void createCallback(Session session, String channel) throws UnknownHostException {
+    void createCallback(Session session, String channel) {
         createCallback(session, channel, new ContentKey());
     }
 
-    void createCallback(Session session, String channel, ContentKey startingKey) throws UnknownHostException {
+    void createCallback(Session session, String channel, ContentKey startingKey) {
         String id = setId(session, channel);
         URI uri = session.getRequestURI();
-        logger.info("creating callback {} {} {}", channel, id, uri);
-        sessionMap.put(id, session);
-        Webhook webhook = Webhook.builder()
-                .channelUrl(getChannelUrl(uri))
-                .callbackUrl(getCallbackUrl(id))
-                .parallelCalls(1)
-                .name(id)
-                .startingKey(startingKey)
-                .build();
-        webhookService.upsert(webhook);
+        logger.info("creating subscriber {} {} {}", channel, id, uri);
+        WebSocketSubscriber subscriber = new WebSocketSubscriber(id, channel, startingKey, session, getChannelUrl(uri));
+        subscriberMap.put(id, subscriber);
+        broadcaster.subscribe(subscriber);
     }
 
     private String getChannelUrl(URI uri) {
@@ -63,10 +61,6 @@ class WebSocketService {
         return channelUrl.toString();
     }
 
-    private String getCallbackUrl(String id) throws UnknownHostException {
-        return HubHost.getLocalHttpIpUri() + "/internal/ws/" + id;
-    }
-
     private String setId(Session session, String channel) {
         Map<String, Object> userProperties = session.getUserProperties();
         String id = "WS_" + channel + "_" + System.currentTimeMillis() + "_" + StringUtils.randomAlphaNumeric(6);
@@ -79,35 +73,62 @@ class WebSocketService {
         return (String) userProperties.get("id");
     }
 
-    public void call(String id, String uri) {
-        Session session = sessionMap.get(id);
-        if (session == null) {
-            logger.info("attempting to send to missing session {} {}", id, uri);
-            close(id);
-            return;
-        }
-        try {
-            session.getBasicRemote().sendText(uri);
-        } catch (IOException e) {
-            logger.warn("unable to send to session " + id + " uri " + uri + " " + e.getMessage());
-            close(id);
-        } catch (Exception e) {
-            logger.warn("unable to send to session " + id + " uri " + uri, e);
-            close(id);
-        }
+    /**
+     * Websockets used to be delivered by a webhook per session, remove any which are left over.
+     */
+    void deleteWebhook(String id) {
+        logger.info("deleting ws webhook {}", id);
+        webhookService.delete(id);
     }
 
     public void close(Session session) {
-        close(getId(session));
+        String id = getId(session);
+        BroadcastSubscriber subscriber = subscriberMap.remove(id);
+        if (subscriber != null) {
+            subscriber.close();
+        }
     }
 
-    private void close(String id) {
-        try {
-            logger.info("deleting ws group {}", id);
-            webhookService.delete(id);
-            sessionMap.remove(id);
-        } catch (Exception e) {
-            logger.info("unable to close ws group " + id, e);
+    private class WebSocketSubscriber extends BroadcastSubscriber {
+
+        private final Session session;
+        private final String channelUrl;
+
+        WebSocketSubscriber(String id, String channel, ContentKey startingKey, Session session, String channelUrl) {
+            super(id, channel, startingKey);
+            this.session = session;
+            this.channelUrl = channelUrl;
+            session.getAsyncRemote().setSendTimeout(HubProperties.getProperty("broadcast.send.timeoutMillis", 60 * 1000));
+        }
+
+        @Override
+        protected void send(ContentKey key) throws Exception {
+            sendAsync(key).get();
+        }
+
+        @Override
+        protected CompletableFuture<Void> sendAsync(ContentKey key) {
+            CompletableFuture<Void> sent = new CompletableFuture<>();
+            session.getAsyncRemote().sendText(channelUrl + "/" + key.toUrl(), result -> {
+                if (result.isOK()) {
+                    sent.complete(null);
+                } else {
+                    sent.completeExceptionally(result.getException());
+                }
+            });
+            return sent;
+        }
+
+        @Override
+        protected void onClose() {
+            subscriberMap.remove(getId());
+            if (session.isOpen()) {
+                try {
+                    session.close();
+                } catch (IOException e) {
+                    logger.info("unable to close session {} {}", getId(), e.getMessage());
+                }
+            }
         }
     }
 }
@@ -245,6 +245,18 @@ public class ChannelValidatorTest {
         validator.validate(getBuilder().name("storage").storage("BoTh").build(), null, false);
     }
 
+    @Test
+    public void testValidCodec() {
+        validator.validate(getBuilder().name("codec").codec("none").build(), null, false);
+        validator.validate(getBuilder().name("codec").codec("Fast").build(), null, false);
+        validator.validate(getBuilder().name("codec").codec("MAX").build(), null, false);
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void testInvalidCodec() {
+        validator.validate(getBuilder().name("codec").codec("lz4").build(), null, false);
+    }
+
     @Test(expected = InvalidRequestException.class)
     public void testInvalidStorage() {
         validator.validate(getBuilder().name("storage").storage("stuff").build(), null, false);
@@ -0,0 +1,66 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.cluster.LastContentPath;
+import com.flightstats.hub.dao.ChannelService;
+import com.flightstats.hub.dao.ContentDao;
+import com.flightstats.hub.model.ChannelConfig;
+import com.flightstats.hub.util.HubUtils;
+import com.flightstats.hub.webhook.Webhook;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.name.Names;
+import com.google.inject.util.Providers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class ClusterContentServiceTest {
+
+    private final HubUtils hubUtils = mock(HubUtils.class);
+    private final S3BatchManager s3BatchManager = mock(S3BatchManager.class);
+    private final ChannelConfig batchChannel = ChannelConfig.builder().name("notifyBatch").storage(ChannelConfig.BATCH).build();
+    private ClusterContentService clusterContentService;
+
+    @Before
+    public void setUp() {
+        clusterContentService = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                for (String name : new String[]{ContentDao.WRITE_CACHE, ContentDao.SINGLE_LONG_TERM, ContentDao.READ_CACHE,
+                        ContentDao.BATCH_LONG_TERM, ContentDao.LARGE_PAYLOAD}) {
+                    bind(ContentDao.class).annotatedWith(Names.named(name)).toProvider(Providers.of(mock(ContentDao.class)));
+                }
+                bind(ChannelService.class).toProvider(Providers.of(mock(ChannelService.class)));
+                bind(LastContentPath.class).toProvider(Providers.of(mock(LastContentPath.class)));
+                bind(S3WriteQueue.class).toProvider(Providers.of(mock(S3WriteQueue.class)));
+                bind(S3WriteBuffer.class).toProvider(Providers.of(mock(S3WriteBuffer.class)));
+                bind(HubUtils.class).toProvider(Providers.of(hubUtils));
+                bind(S3BatchManager.class).toProvider(Providers.of(s3BatchManager));
+            }
+        }).getInstance(ClusterContentService.class);
+    }
+
+    @After
+    public void tearDown() {
+        HubProperties.setProperty("s3.batch.pipeline", "webhook");
+    }
+
+    @Test
+    public void testNotifyNativeBatch() {
+        HubProperties.setProperty("s3.batch.pipeline", "native");
+        clusterContentService.notify(batchChannel, null);
+        verify(s3BatchManager).initializeNative(batchChannel);
+        verify(hubUtils, never()).startWebhook(any(Webhook.class));
+    }
+
+    @Test
+    public void testNotifyWebhookBatch() {
+        clusterContentService.notify(batchChannel, null);
+        verify(hubUtils).startWebhook(any(Webhook.class));
+        verifyZeroInteractions(s3BatchManager);
+    }
+}
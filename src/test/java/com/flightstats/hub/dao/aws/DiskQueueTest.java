@@ -0,0 +1,153 @@
+package com.flightstats.hub.dao.aws;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DiskQueueTest {
+
+    private File root;
+
+    @Before
+    public void setUp() {
+        root = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        org.apache.commons.io.FileUtils.deleteDirectory(root);
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        DiskQueue queue = create(1024 * 1024, 1024);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(queue.append("record" + i));
+        }
+        assertEquals(100, queue.getDepth());
+        for (int i = 0; i < 100; i++) {
+            DiskQueue.Record record = queue.take(1, TimeUnit.SECONDS);
+            assertEquals("record" + i, record.getValue());
+            queue.complete(record);
+        }
+        assertNull(queue.take(10, TimeUnit.MILLISECONDS));
+        assertEquals(0, queue.getDepth());
+        queue.close();
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        DiskQueue queue = create(1024 * 1024, 100);
+        for (int i = 0; i < 50; i++) {
+            queue.append("record" + i);
+        }
+        List<DiskQueue.Record> taken = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            taken.add(queue.take(1, TimeUnit.SECONDS));
+        }
+        for (int i = 0; i < 10; i++) {
+            queue.complete(taken.get(i));
+        }
+        queue.complete(taken.get(15));
+        queue.close();
+
+        DiskQueue recovered = create(1024 * 1024, 100);
+        assertEquals(40, recovered.getDepth());
+        assertEquals("record10", recovered.take(1, TimeUnit.SECONDS).getValue());
+        recovered.append("record50");
+        assertEquals(41, recovered.getDepth());
+        recovered.close();
+    }
+
+    @Test
+    public void testPartialRecord() throws Exception {
+        DiskQueue queue = create(1024 * 1024, 1024);
+        queue.append("one");
+        queue.append("two");
+        queue.close();
+        Path segment = java.nio.file.Files.list(root.toPath())
+                .filter(path -> path.toString().endsWith(".log"))
+                .findFirst().get();
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(file.length());
+            file.write("thr".getBytes());
+        }
+
+        DiskQueue recovered = create(1024 * 1024, 1024);
+        assertEquals(2, recovered.getDepth());
+        recovered.append("three");
+        assertEquals("one", recovered.take(1, TimeUnit.SECONDS).getValue());
+        assertEquals("two", recovered.take(1, TimeUnit.SECONDS).getValue());
+        assertEquals("three", recovered.take(1, TimeUnit.SECONDS).getValue());
+        recovered.close();
+    }
+
+    @Test
+    public void testSegmentsAreDeleted() throws Exception {
+        DiskQueue queue = create(1024 * 1024, 100);
+        for (int i = 0; i < 100; i++) {
+            queue.append("record" + i);
+        }
+        assertTrue(countSegments() > 5);
+        for (int i = 0; i < 100; i++) {
+            queue.complete(queue.take(1, TimeUnit.SECONDS));
+        }
+        queue.checkpoint();
+        assertTrue(countSegments() <= 2);
+        queue.close();
+    }
+
+    @Test
+    public void testMaxBytes() throws Exception {
+        DiskQueue queue = create(100, 50);
+        int appended = 0;
+        while (queue.append("record" + appended)) {
+            appended++;
+        }
+        assertTrue(appended > 0);
+        assertTrue(queue.getBytes() <= 100);
+
+        for (int i = 0; i < appended; i++) {
+            queue.complete(queue.take(1, TimeUnit.SECONDS));
+        }
+        queue.checkpoint();
+        assertTrue(queue.append("more"));
+        queue.close();
+    }
+
+    @Test
+    public void testTakeWaitsForAppend() throws Exception {
+        DiskQueue queue = create(1024 * 1024, 1024);
+        new Thread(() -> {
+            try {
+                Thread.sleep(100);
+                queue.append("late");
+            } catch (Exception e) {
+                fail(e.getMessage());
+            }
+        }).start();
+        assertEquals("late", queue.take(5, TimeUnit.SECONDS).getValue());
+        queue.close();
+    }
+
+    private DiskQueue create(long maxBytes, long segmentBytes) throws IOException {
+        return new DiskQueue(root.toPath(), maxBytes, segmentBytes, false);
+    }
+
+    private long countSegments() throws IOException {
+        return java.nio.file.Files.list(root.toPath())
+                .filter(path -> path.toString().endsWith(".log"))
+                .count();
+    }
+}
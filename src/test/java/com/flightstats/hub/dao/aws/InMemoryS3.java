@@ -0,0 +1,216 @@
+package com.flightstats.hub.dao.aws;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.*;
+import com.google.common.io.ByteStreams;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * A local stand in for S3, which keeps objects in memory by key.
+ * Puts, multipart uploads, gets including ranged gets, listing and deletes are supported.
+ * Like S3, parts sent with an MD5 which does not match are rejected.
+ * ETags are a hash of the object's bytes.
+ * {@link #throttle(int)} makes the following requests fail the way S3 does when it is overloaded.
+ */
+class InMemoryS3 {
+
+    private final NavigableMap<String, byte[]> objects = new ConcurrentSkipListMap<>();
+    private final Map<String, Map<String, String>> userMetadata = new ConcurrentHashMap<>();
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final AtomicInteger rangedGets = new AtomicInteger();
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger throttled = new AtomicInteger();
+    private final AmazonS3 amazonS3 = mock(AmazonS3.class);
+
+    InMemoryS3() {
+        when(amazonS3.putObject(any(PutObjectRequest.class))).thenAnswer(invocation -> {
+            call();
+            PutObjectRequest request = (PutObjectRequest) invocation.getArguments()[0];
+            byte[] bytes = ByteStreams.toByteArray(request.getInputStream());
+            objects.put(request.getKey(), bytes);
+            userMetadata.put(request.getKey(), request.getMetadata().getUserMetadata());
+            PutObjectResult result = new PutObjectResult();
+            result.setETag(eTag(bytes));
+            return result;
+        });
+        when(amazonS3.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            call();
+            GetObjectRequest request = (GetObjectRequest) invocation.getArguments()[0];
+            byte[] bytes = objects.get(request.getKey());
+            if (bytes == null) {
+                AmazonS3Exception exception = new AmazonS3Exception("not found " + request.getKey());
+                exception.setStatusCode(404);
+                throw exception;
+            }
+            String eTag = eTag(bytes);
+            int length = bytes.length;
+            long[] range = request.getRange();
+            S3Object object = new S3Object();
+            if (range != null) {
+                rangedGets.incrementAndGet();
+                int end = (int) Math.min(range[1] + 1, bytes.length);
+                bytes = Arrays.copyOfRange(bytes, (int) range[0], end);
+                object.getObjectMetadata().setHeader(Headers.CONTENT_RANGE, "bytes " + range[0] + "-" + (end - 1) + "/" + length);
+            }
+            object.setKey(request.getKey());
+            object.setObjectContent(new ByteArrayInputStream(bytes));
+            object.getObjectMetadata().setHeader("ETag", eTag);
+            object.getObjectMetadata().setContentLength(bytes.length);
+            object.getObjectMetadata().setUserMetadata(userMetadata.getOrDefault(request.getKey(), Collections.emptyMap()));
+            return object;
+        });
+        when(amazonS3.listObjects(any(ListObjectsRequest.class))).thenAnswer(invocation -> {
+            call();
+            ListObjectsRequest request = (ListObjectsRequest) invocation.getArguments()[0];
+            String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+            int maxKeys = request.getMaxKeys() == null ? 1000 : request.getMaxKeys();
+            NavigableMap<String, byte[]> tail = request.getMarker() == null
+                    ? objects.tailMap(prefix, true) : objects.tailMap(request.getMarker(), false);
+            ObjectListing listing = new ObjectListing();
+            listing.setPrefix(prefix);
+            for (Map.Entry<String, byte[]> entry : tail.entrySet()) {
+                if (!entry.getKey().startsWith(prefix)) {
+                    if (entry.getKey().compareTo(prefix) > 0) {
+                        break;
+                    }
+                    continue;
+                }
+                if (listing.getObjectSummaries().size() == maxKeys) {
+                    listing.setTruncated(true);
+                    break;
+                }
+                S3ObjectSummary summary = new S3ObjectSummary();
+                summary.setKey(entry.getKey());
+                summary.setETag(eTag(entry.getValue()));
+                summary.setSize(entry.getValue().length);
+                listing.getObjectSummaries().add(summary);
+                listing.setNextMarker(entry.getKey());
+            }
+            return listing;
+        });
+        doAnswer(invocation -> {
+            call();
+            DeleteObjectRequest request = (DeleteObjectRequest) invocation.getArguments()[0];
+            objects.remove(request.getKey());
+            return null;
+        }).when(amazonS3).deleteObject(any(DeleteObjectRequest.class));
+        when(amazonS3.deleteObjects(any(DeleteObjectsRequest.class))).thenAnswer(invocation -> {
+            call();
+            DeleteObjectsRequest request = (DeleteObjectsRequest) invocation.getArguments()[0];
+            for (DeleteObjectsRequest.KeyVersion keyVersion : request.getKeys()) {
+                objects.remove(keyVersion.getKey());
+            }
+            return new DeleteObjectsResult(Collections.emptyList());
+        });
+        when(amazonS3.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenAnswer(invocation -> {
+            call();
+            InitiateMultipartUploadRequest request = (InitiateMultipartUploadRequest) invocation.getArguments()[0];
+            String uploadId = UUID.randomUUID().toString();
+            uploads.put(uploadId, new Upload(request.getKey(), request.getObjectMetadata().getUserMetadata()));
+            InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId(uploadId);
+            return result;
+        });
+        when(amazonS3.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            call();
+            UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+            byte[] bytes = ByteStreams.toByteArray(request.getInputStream());
+            if (request.getMd5Digest() != null
+                    && !request.getMd5Digest().equals(Base64.getEncoder().encodeToString(DigestUtils.md5(bytes)))) {
+                AmazonS3Exception exception = new AmazonS3Exception("The Content-MD5 you specified did not match what we received.");
+                exception.setStatusCode(400);
+                exception.setErrorCode("BadDigest");
+                throw exception;
+            }
+            uploads.get(request.getUploadId()).parts.put(request.getPartNumber(), bytes);
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag(eTag(bytes));
+            return result;
+        });
+        when(amazonS3.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenAnswer(invocation -> {
+            call();
+            CompleteMultipartUploadRequest request = (CompleteMultipartUploadRequest) invocation.getArguments()[0];
+            Upload upload = uploads.remove(request.getUploadId());
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            for (PartETag partETag : request.getPartETags()) {
+                output.write(upload.parts.get(partETag.getPartNumber()));
+            }
+            objects.put(upload.key, output.toByteArray());
+            userMetadata.put(upload.key, upload.userMetadata);
+            return new CompleteMultipartUploadResult();
+        });
+        doAnswer(invocation -> {
+            call();
+            AbortMultipartUploadRequest request = (AbortMultipartUploadRequest) invocation.getArguments()[0];
+            uploads.remove(request.getUploadId());
+            return null;
+        }).when(amazonS3).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    }
+
+    private void call() {
+        calls.incrementAndGet();
+        if (throttled.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+            AmazonS3Exception exception = new AmazonS3Exception("Please reduce your request rate.");
+            exception.setStatusCode(503);
+            exception.setErrorCode("SlowDown");
+            throw exception;
+        }
+    }
+
+    /**
+     * The next count requests fail with 503 SlowDown.
+     */
+    void throttle(int count) {
+        throttled.set(count);
+    }
+
+    int getCalls() {
+        return calls.get();
+    }
+
+    private static String eTag(byte[] bytes) {
+        return Integer.toHexString(Arrays.hashCode(bytes));
+    }
+
+    AmazonS3 getAmazonS3() {
+        return amazonS3;
+    }
+
+    NavigableMap<String, byte[]> getObjects() {
+        return objects;
+    }
+
+    int getRangedGets() {
+        return rangedGets.get();
+    }
+
+    int getOpenUploads() {
+        return uploads.size();
+    }
+
+    private static class Upload {
+
+        private final String key;
+        private final Map<String, String> userMetadata;
+        private final Map<Integer, byte[]> parts = new ConcurrentHashMap<>();
+
+        private Upload(String key, Map<String, String> userMetadata) {
+            this.key = key;
+            this.userMetadata = userMetadata;
+        }
+    }
+}
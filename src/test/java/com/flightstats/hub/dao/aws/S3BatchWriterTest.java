@@ -0,0 +1,349 @@
+package com.flightstats.hub.dao.aws;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.cluster.Cluster;
+import com.flightstats.hub.cluster.LastContentPath;
+import com.flightstats.hub.dao.ChannelService;
+import com.flightstats.hub.dao.ContentDao;
+import com.flightstats.hub.dao.ContentDaoUtil;
+import com.flightstats.hub.metrics.MetricsService;
+import com.flightstats.hub.metrics.NoOpMetricsService;
+import com.flightstats.hub.model.*;
+import com.flightstats.hub.spoke.SpokeStore;
+import com.flightstats.hub.util.TimeUtil;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.name.Names;
+import com.google.inject.util.Providers;
+import org.apache.curator.framework.CuratorFramework;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class S3BatchWriterTest {
+
+    private static final String CHANNEL = "batchWriter";
+
+    private final InMemoryS3 inMemoryS3 = new InMemoryS3();
+    private final SortedMap<ContentKey, Content> spokeItems = new TreeMap<>();
+    private final ContentDao spokeWriteContentDao = mock(ContentDao.class);
+    private final LastContentPath lastContentPath = mock(LastContentPath.class);
+    private final ChannelService channelService = mock(ChannelService.class);
+    private final DateTime now = TimeUtil.now().withSecondOfMinute(30);
+    private S3BatchWriter s3BatchWriter;
+    private ContentDao s3BatchContentDao;
+    private S3QueryCache s3QueryCache;
+
+    @Before
+    public void setUp() throws Exception {
+        when(spokeWriteContentDao.queryByTime(any(TimeQuery.class))).thenAnswer(invocation -> {
+            TimeQuery query = (TimeQuery) invocation.getArguments()[0];
+            DateTime start = query.getStartTime();
+            return new TreeSet<>(spokeItems.subMap(ContentKey.lastKey(start.minusMillis(1)),
+                    ContentKey.lastKey(start.plusMinutes(1).minusMillis(1))).keySet());
+        });
+        when(spokeWriteContentDao.get(anyString(), any(ContentKey.class)))
+                .thenAnswer(invocation -> spokeItems.get(invocation.getArguments()[1]));
+        when(channelService.getLastUpdated(anyString(), any(ContentPath.class)))
+                .thenAnswer(invocation -> invocation.getArguments()[1]);
+        Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(AmazonS3.class).toProvider(Providers.of(inMemoryS3.getAmazonS3()));
+                bind(String.class).annotatedWith(Names.named("s3.environment")).toInstance("test");
+                bind(String.class).annotatedWith(Names.named("app.name")).toInstance("hub");
+                bind(MetricsService.class).to(NoOpMetricsService.class);
+                bind(LastContentPath.class).toProvider(Providers.of(lastContentPath));
+                bind(CuratorFramework.class).toProvider(Providers.of(mock(CuratorFramework.class)));
+                bind(ChannelService.class).toProvider(Providers.of(channelService));
+                bind(Cluster.class).annotatedWith(Names.named("HubCluster")).toProvider(Providers.of(mock(Cluster.class)));
+                bind(ContentDao.class).annotatedWith(Names.named(ContentDao.WRITE_CACHE)).toProvider(Providers.of(spokeWriteContentDao));
+                bind(ContentDao.class).annotatedWith(Names.named(ContentDao.BATCH_LONG_TERM)).to(S3BatchContentDao.class);
+            }
+        });
+        s3BatchWriter = injector.getInstance(S3BatchWriter.class);
+        s3BatchContentDao = injector.getInstance(Key.get(ContentDao.class, Names.named(ContentDao.BATCH_LONG_TERM)));
+        s3QueryCache = injector.getInstance(S3QueryCache.class);
+        s3QueryCache.invalidate(CHANNEL);
+    }
+
+    @Test
+    public void testWriteMinute() {
+        MinutePath minute = new MinutePath(now.minusMinutes(2));
+        List<ContentKey> keys = addItems(minute, 3);
+        assertTrue(s3BatchWriter.writeMinute(CHANNEL, minute));
+
+        for (ContentKey key : keys) {
+            Content read = s3BatchContentDao.get(CHANNEL, key);
+            ContentDaoUtil.compare(spokeItems.get(key), read, key.toString().getBytes());
+        }
+        assertEquals(keys.size(), inMemoryS3.getRangedGets());
+        String index = new String(inMemoryS3.getObjects().get(CHANNEL + "Batch/index/" + minute.toUrl()), StandardCharsets.UTF_8);
+        for (ContentKey key : keys) {
+            assertTrue(index.contains(key.toUrl()));
+        }
+    }
+
+    @Test
+    public void testReadBatchWithoutOffsets() {
+        MinutePath minute = new MinutePath(now.minusMinutes(2));
+        List<ContentKey> keys = addItems(minute, 3);
+        assertTrue(s3BatchWriter.writeMinute(CHANNEL, minute));
+        StringBuilder index = new StringBuilder("{\"id\":\"" + minute.toUrl() + "\",\"items\":[");
+        for (ContentKey key : keys) {
+            index.append(key == keys.get(0) ? "" : ",").append("\"").append(key.toUrl()).append("\"");
+        }
+        inMemoryS3.getObjects().put(CHANNEL + "Batch/index/" + minute.toUrl(), index.append("]}").toString().getBytes());
+
+        for (ContentKey key : keys) {
+            Content read = s3BatchContentDao.get(CHANNEL, key);
+            ContentDaoUtil.compare(spokeItems.get(key), read, key.toString().getBytes());
+        }
+        assertEquals(0, inMemoryS3.getRangedGets());
+    }
+
+    @Test
+    public void testReadBatchWithoutIndex() {
+        MinutePath minute = new MinutePath(now.minusMinutes(2));
+        List<ContentKey> keys = addItems(minute, 3);
+        assertTrue(s3BatchWriter.writeMinute(CHANNEL, minute));
+        inMemoryS3.getObjects().remove(CHANNEL + "Batch/index/" + minute.toUrl());
+
+        for (ContentKey key : keys) {
+            Content read = s3BatchContentDao.get(CHANNEL, key);
+            ContentDaoUtil.compare(spokeItems.get(key), read, key.toString().getBytes());
+        }
+        assertEquals(0, inMemoryS3.getRangedGets());
+        assertNull(s3BatchContentDao.get(CHANNEL, new ContentKey(now.minusMinutes(10), "none")));
+    }
+
+    @Test
+    public void testEmptyMinute() {
+        assertTrue(s3BatchWriter.writeMinute(CHANNEL, new MinutePath(now.minusMinutes(2))));
+        assertTrue(inMemoryS3.getObjects().isEmpty());
+    }
+
+    @Test
+    public void testMissingContent() {
+        MinutePath minute = new MinutePath(now.minusMinutes(2));
+        addItems(minute, 2);
+        spokeItems.put(new ContentKey(minute.getTime().plusSeconds(10), "missing"), null);
+        assertFalse(s3BatchWriter.writeMinute(CHANNEL, minute));
+        assertTrue(inMemoryS3.getObjects().isEmpty());
+    }
+
+    @Test
+    public void testWriteChannel() {
+        ChannelConfig channel = ChannelConfig.builder().name(CHANNEL).storage(ChannelConfig.BATCH).build();
+        MinutePath lastWritten = new MinutePath(now.minusMinutes(5));
+        when(lastContentPath.get(eq(CHANNEL), any(ContentPath.class), eq(S3BatchWriter.LAST_BATCH_WRITTEN))).thenReturn(lastWritten);
+        addItems(lastWritten.addMinute(), 2);
+        addItems(new MinutePath(now.minusMinutes(2)), 4);
+        addItems(new MinutePath(now), 1);
+
+        assertEquals(4, s3BatchWriter.writeChannel(channel, now.plusSeconds(15)));
+        MinutePath minute = lastWritten;
+        for (int i = 0; i < 4; i++) {
+            minute = minute.addMinute();
+            verify(lastContentPath).updateIncrease(minute, CHANNEL, S3BatchWriter.LAST_BATCH_WRITTEN);
+        }
+        verify(lastContentPath, never()).updateIncrease(minute.addMinute(), CHANNEL, S3BatchWriter.LAST_BATCH_WRITTEN);
+        assertEquals(2, inMemoryS3.getObjects().subMap(CHANNEL + "Batch/index/", CHANNEL + "Batch/index0").size());
+        assertEquals(2, inMemoryS3.getObjects().subMap(CHANNEL + "Batch/items/", CHANNEL + "Batch/items0").size());
+    }
+
+    @Test
+    public void testWriteChannelStopsAtFailure() {
+        ChannelConfig channel = ChannelConfig.builder().name(CHANNEL).storage(ChannelConfig.BATCH).build();
+        MinutePath lastWritten = new MinutePath(now.minusMinutes(4));
+        when(lastContentPath.get(eq(CHANNEL), any(ContentPath.class), eq(S3BatchWriter.LAST_BATCH_WRITTEN))).thenReturn(lastWritten);
+        spokeItems.put(new ContentKey(lastWritten.addMinute().getTime(), "missing"), null);
+
+        assertEquals(0, s3BatchWriter.writeChannel(channel, now.plusSeconds(15)));
+        verify(lastContentPath, never()).updateIncrease(any(ContentPath.class), anyString(), anyString());
+    }
+
+    @Test
+    public void testWriteChannelSkipsPastSpokeTtl() {
+        ChannelConfig channel = ChannelConfig.builder().name(CHANNEL).storage(ChannelConfig.BATCH)
+                .replicationSource("http://hub/channel/" + CHANNEL).build();
+        assertFalse(channel.isLive());
+        MinutePath lastWritten = new MinutePath(now.minusMinutes(HubProperties.getSpokeTtlMinutes(SpokeStore.WRITE) + 10));
+        when(lastContentPath.get(eq(CHANNEL), any(ContentPath.class), eq(S3BatchWriter.LAST_BATCH_WRITTEN))).thenReturn(lastWritten);
+        spokeItems.put(new ContentKey(lastWritten.addMinute().getTime(), "missing"), null);
+        MinutePath recent = new MinutePath(now.minusMinutes(2));
+        addItems(recent, 2);
+
+        assertTrue(s3BatchWriter.writeChannel(channel, now.plusSeconds(15)) > 0);
+        verify(lastContentPath, never()).updateIncrease(lastWritten.addMinute(), CHANNEL, S3BatchWriter.LAST_BATCH_WRITTEN);
+        verify(lastContentPath).updateIncrease(recent, CHANNEL, S3BatchWriter.LAST_BATCH_WRITTEN);
+        assertTrue(inMemoryS3.getObjects().containsKey(CHANNEL + "Batch/index/" + recent.toUrl()));
+    }
+
+    @Test
+    public void testHourRollup() {
+        DateTime hour = TimeUtil.Unit.HOURS.round(now.minusHours(3));
+        List<ContentKey> keys = new ArrayList<>();
+        for (int minute : Arrays.asList(5, 30, 59)) {
+            MinutePath minutePath = new MinutePath(hour.plusMinutes(minute));
+            keys.addAll(addItems(minutePath, 2));
+            assertTrue(s3BatchWriter.writeMinute(CHANNEL, minutePath));
+        }
+        addItems(new MinutePath(hour.plusHours(1)), 1);
+        assertTrue(s3BatchWriter.writeMinute(CHANNEL, new MinutePath(hour.plusHours(1))));
+
+        assertEquals(keys, new ArrayList<>(queryByTime(hour, TimeUtil.Unit.HOURS)));
+        String hourRollup = CHANNEL + "Batch/hours/" + new MinutePath(hour).toUrl();
+        assertFalse(inMemoryS3.getObjects().containsKey(hourRollup));
+        buildRollups();
+        assertTrue(inMemoryS3.getObjects().containsKey(hourRollup));
+        inMemoryS3.getObjects().remove(CHANNEL + "Batch/index/" + new MinutePath(hour.plusMinutes(5)).toUrl());
+        assertEquals(keys, new ArrayList<>(queryByTime(hour, TimeUtil.Unit.HOURS)));
+    }
+
+    @Test
+    public void testLateMinuteRemovesRollups() {
+        DateTime day = TimeUtil.Unit.DAYS.round(now.minusDays(2));
+        List<ContentKey> keys = new ArrayList<>();
+        for (int hour : Arrays.asList(1, 5, 23)) {
+            MinutePath minutePath = new MinutePath(day.plusHours(hour).plusMinutes(30));
+            keys.addAll(addItems(minutePath, 3));
+            assertTrue(s3BatchWriter.writeMinute(CHANNEL, minutePath));
+        }
+        buildRollups();
+        assertEquals(keys, new ArrayList<>(queryByTime(day, TimeUtil.Unit.DAYS)));
+        String dayRollup = CHANNEL + "Batch/days/" + new MinutePath(day).toUrl();
+        String hourRollup = CHANNEL + "Batch/hours/" + new MinutePath(day.plusHours(5)).toUrl();
+        assertTrue(inMemoryS3.getObjects().containsKey(dayRollup));
+        assertEquals(3, inMemoryS3.getObjects().subMap(CHANNEL + "Batch/hours/", CHANNEL + "Batch/hours0").size());
+
+        MinutePath late = new MinutePath(day.plusHours(5).plusMinutes(45));
+        keys.addAll(addItems(late, 2));
+        assertTrue(s3BatchWriter.writeMinute(CHANNEL, late));
+        assertFalse(inMemoryS3.getObjects().containsKey(dayRollup));
+        assertFalse(inMemoryS3.getObjects().containsKey(hourRollup));
+        Collections.sort(keys);
+        assertEquals(keys, new ArrayList<>(queryByTime(day, TimeUtil.Unit.DAYS)));
+        assertEquals(keys.subList(0, 3), new ArrayList<>(queryByTime(day.plusHours(1), TimeUtil.Unit.HOURS)));
+        assertFalse(inMemoryS3.getObjects().containsKey(dayRollup));
+        buildRollups();
+        assertTrue(inMemoryS3.getObjects().containsKey(dayRollup));
+        assertTrue(inMemoryS3.getObjects().containsKey(hourRollup));
+        assertEquals(keys, new ArrayList<>(queryByTime(day, TimeUtil.Unit.DAYS)));
+    }
+
+    @Test
+    public void testNextWithRollups() {
+        DateTime day = TimeUtil.Unit.DAYS.round(now.minusDays(2));
+        List<ContentKey> keys = new ArrayList<>();
+        for (DateTime time : Arrays.asList(day.plusHours(2), day.plusHours(20), day.plusDays(1).plusHours(3))) {
+            MinutePath minutePath = new MinutePath(time);
+            keys.addAll(addItems(minutePath, 2));
+            assertTrue(s3BatchWriter.writeMinute(CHANNEL, minutePath));
+        }
+        MinutePath recent = new MinutePath(now.minusMinutes(2));
+        keys.addAll(addItems(recent, 2));
+        assertTrue(s3BatchWriter.writeMinute(CHANNEL, recent));
+
+        DirectionQuery query = DirectionQuery.builder()
+                .channelName(CHANNEL)
+                .startKey(new ContentKey(day.minusMinutes(1), "0"))
+                .next(true)
+                .count(100)
+                .channelStable(now)
+                .build();
+        assertEquals(keys, new ArrayList<>(s3BatchContentDao.query(query)));
+        assertTrue(inMemoryS3.getObjects().subMap(CHANNEL + "Batch/days/", CHANNEL + "Batch/days0").isEmpty());
+        assertTrue(inMemoryS3.getObjects().subMap(CHANNEL + "Batch/hours/", CHANNEL + "Batch/hours0").isEmpty());
+        buildRollups();
+        assertTrue(inMemoryS3.getObjects().containsKey(CHANNEL + "Batch/days/" + new MinutePath(day).toUrl()));
+        assertEquals(keys, new ArrayList<>(s3BatchContentDao.query(query)));
+        assertEquals(keys.subList(2, 5), new ArrayList<>(s3BatchContentDao.query(query.withStartKey(keys.get(1)).withCount(3))));
+    }
+
+    @Test
+    public void testPreviousWithRollups() {
+        DateTime day = TimeUtil.Unit.DAYS.round(now.minusDays(3));
+        List<ContentKey> keys = new ArrayList<>();
+        for (DateTime time : Arrays.asList(day.plusHours(2), day.plusDays(1).plusHours(20), now.minusHours(5), now.minusMinutes(3))) {
+            MinutePath minutePath = new MinutePath(time);
+            keys.addAll(addItems(minutePath, 2));
+            assertTrue(s3BatchWriter.writeMinute(CHANNEL, minutePath));
+        }
+        DirectionQuery query = DirectionQuery.builder()
+                .channelName(CHANNEL)
+                .channelConfig(ChannelConfig.builder().name(CHANNEL).build())
+                .startKey(ContentKey.lastKey(now))
+                .earliestTime(day.minusDays(1))
+                .next(false)
+                .count(3)
+                .build();
+        assertEquals(keys.subList(5, 8), new ArrayList<>(s3BatchContentDao.query(query)));
+        assertEquals(keys.subList(0, 7), new ArrayList<>(s3BatchContentDao.query(query.withStartKey(keys.get(7)).withCount(10))));
+    }
+
+    @Test
+    public void testImmutableIndexCache() {
+        when(channelService.getCachedChannelConfig(CHANNEL)).thenReturn(ChannelConfig.builder().name(CHANNEL).build());
+        MinutePath minute = new MinutePath(now.minusHours(3));
+        List<ContentKey> keys = addItems(minute, 2);
+        assertTrue(s3BatchWriter.writeMinute(CHANNEL, minute));
+        ContentDaoUtil.compare(spokeItems.get(keys.get(0)), s3BatchContentDao.get(CHANNEL, keys.get(0)), keys.get(0).toString().getBytes());
+
+        inMemoryS3.getObjects().remove(CHANNEL + "Batch/index/" + minute.toUrl());
+        ContentDaoUtil.compare(spokeItems.get(keys.get(1)), s3BatchContentDao.get(CHANNEL, keys.get(1)), keys.get(1).toString().getBytes());
+        assertEquals(2, inMemoryS3.getRangedGets());
+
+        s3BatchContentDao.delete(CHANNEL);
+        assertNull(s3QueryCache.get(CHANNEL, "batch/index/" + minute.toUrl()));
+    }
+
+    private void buildRollups() {
+        ((S3BatchContentDao) s3BatchContentDao).buildRollups();
+    }
+
+    private SortedSet<ContentKey> queryByTime(DateTime start, TimeUtil.Unit unit) {
+        return s3BatchContentDao.queryByTime(TimeQuery.builder()
+                .channelName(CHANNEL)
+                .startTime(start)
+                .unit(unit)
+                .build());
+    }
+
+    @Test
+    public void testIsOwner() {
+        List<String> servers = Arrays.asList("hub-1:8080", "hub-2:8080", "hub-3:8080");
+        for (String channel : Arrays.asList("one", "two", "three", "four", "five")) {
+            int owners = 0;
+            for (String server : servers) {
+                if (S3BatchWriter.isOwner(channel, servers, server)) {
+                    owners++;
+                }
+            }
+            assertEquals(1, owners);
+        }
+        assertFalse(S3BatchWriter.isOwner("one", servers, "hub-4:8080"));
+    }
+
+    private List<ContentKey> addItems(MinutePath minute, int count) {
+        List<ContentKey> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ContentKey key = new ContentKey(minute.getTime().plusSeconds(i), "" + i);
+            spokeItems.put(key, ContentDaoUtil.createContent(key));
+            keys.add(key);
+        }
+        return keys;
+    }
+}
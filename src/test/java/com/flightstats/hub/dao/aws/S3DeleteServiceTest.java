@@ -0,0 +1,82 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.cluster.Cluster;
+import com.flightstats.hub.cluster.LastContentPath;
+import com.flightstats.hub.metrics.NoOpMetricsService;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.model.MinutePath;
+import com.flightstats.hub.util.TimeUtil;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.GetChildrenBuilder;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.NavigableMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class S3DeleteServiceTest {
+
+    private final InMemoryS3 inMemoryS3 = new InMemoryS3();
+    private final DateTime start = TimeUtil.Unit.DAYS.round(TimeUtil.now().minusDays(3));
+    private final LastContentPath lastContentPath = mock(LastContentPath.class);
+    private final CuratorFramework curator = mock(CuratorFramework.class);
+    private S3DeleteService s3DeleteService;
+
+    @Before
+    public void setUp() {
+        S3BucketName s3BucketName = mock(S3BucketName.class);
+        when(s3BucketName.getS3BucketName()).thenReturn("bucket");
+        Cluster cluster = mock(Cluster.class);
+        when(cluster.getAllServers()).thenReturn(Collections.singleton(Cluster.getHost(true)));
+        HubS3Client s3Client = new HubS3Client(s3BucketName, inMemoryS3.getAmazonS3(), new NoOpMetricsService());
+        s3DeleteService = new S3DeleteService(s3Client, s3BucketName, lastContentPath, curator, new NoOpMetricsService(), cluster);
+        for (int day = 0; day < 3; day++) {
+            for (int i = 0; i < 1500; i++) {
+                put("deletes/", key(day, i));
+            }
+        }
+        put("deletes/large/", key(0, 0));
+    }
+
+    private ContentKey key(int day, int second) {
+        return new ContentKey(start.plusDays(day).plusSeconds(second), "A");
+    }
+
+    private void put(String prefix, ContentKey key) {
+        inMemoryS3.getObjects().put(prefix + key.toUrl(), new byte[1]);
+    }
+
+    @Test
+    public void testDeleteBefore() {
+        s3DeleteService.deleteBefore("deletes/", key(2, 1000));
+        NavigableMap<String, byte[]> objects = inMemoryS3.getObjects();
+        assertEquals(500, objects.subMap("deletes/", "deletes/a").size());
+        assertEquals("deletes/" + key(2, 1000).toUrl(), objects.firstKey());
+        assertTrue(objects.containsKey("deletes/large/" + key(0, 0).toUrl()));
+    }
+
+    @Test
+    public void testSavedJobResumes() throws Exception {
+        String name = S3DeleteService.encode("deletes/");
+        ContentKey limitKey = key(2, 0);
+        GetChildrenBuilder children = mock(GetChildrenBuilder.class);
+        when(curator.getChildren()).thenReturn(children);
+        when(children.forPath(S3DeleteService.JOBS)).thenReturn(Collections.singletonList(name));
+        when(lastContentPath.getOrNull(name, S3DeleteService.JOBS + "/")).thenReturn(limitKey);
+        when(lastContentPath.getOrNull(name, S3DeleteService.PROGRESS)).thenReturn(new MinutePath(start));
+
+        s3DeleteService.delete("deletes/", limitKey);
+        verify(lastContentPath).update(limitKey, name, S3DeleteService.JOBS + "/");
+        verify(lastContentPath, timeout(10_000)).delete(name, S3DeleteService.JOBS + "/");
+        verify(lastContentPath).updateIncrease(new MinutePath(start.plusDays(1)), name, S3DeleteService.PROGRESS);
+
+        NavigableMap<String, byte[]> objects = inMemoryS3.getObjects();
+        assertEquals(3000, objects.subMap("deletes/", "deletes/a").size());
+        assertEquals("deletes/" + key(0, 1499).toUrl(), objects.lowerKey("deletes/" + limitKey.toUrl()));
+    }
+}
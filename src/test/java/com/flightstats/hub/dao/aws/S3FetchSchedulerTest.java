@@ -0,0 +1,94 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.metrics.NoOpMetricsService;
+import com.flightstats.hub.util.Sleeper;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class S3FetchSchedulerTest {
+
+    private final List<Integer> tasks = IntStream.range(0, 20).boxed().collect(Collectors.toList());
+
+    @Test
+    public void testOrder() {
+        S3FetchScheduler scheduler = new S3FetchScheduler(new NoOpMetricsService(), 4, 10);
+        List<Integer> results = new ArrayList<>();
+        scheduler.fetch(tasks.iterator(), task -> {
+            Sleeper.sleep((20 - task) % 5);
+            return task * 2;
+        }, results::add);
+        assertEquals(tasks.stream().map(task -> task * 2).collect(Collectors.toList()), results);
+        assertEquals(10, scheduler.getAvailable());
+    }
+
+    @Test
+    public void testStopEarly() {
+        S3FetchScheduler scheduler = new S3FetchScheduler(new NoOpMetricsService(), 4, 10);
+        AtomicInteger fetched = new AtomicInteger();
+        List<Integer> results = new ArrayList<>();
+        scheduler.fetch(tasks.iterator(), task -> {
+            fetched.incrementAndGet();
+            return task;
+        }, result -> {
+            results.add(result);
+            return results.size() < 3;
+        });
+        assertEquals(Arrays.asList(0, 1, 2), results);
+        assertTrue(fetched.get() <= 3 + 4);
+    }
+
+    @Test
+    public void testBudgetUsedUp() {
+        S3FetchScheduler scheduler = new S3FetchScheduler(new NoOpMetricsService(), 4, 0);
+        List<Integer> results = new ArrayList<>();
+        scheduler.fetch(tasks.iterator(), task -> task, results::add);
+        assertEquals(tasks, results);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFailure() {
+        S3FetchScheduler scheduler = new S3FetchScheduler(new NoOpMetricsService(), 4, 10);
+        scheduler.fetch(tasks.iterator(), task -> {
+            if (task == 5) {
+                throw new IllegalStateException("failed " + task);
+            }
+            return task;
+        }, result -> true);
+    }
+
+    @Test
+    public void testCancelledFetchesReleaseBudget() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        S3FetchScheduler scheduler = new S3FetchScheduler(new NoOpMetricsService(), 4, 10, executor);
+        CountDownLatch blocked = new CountDownLatch(1);
+        AtomicInteger fetched = new AtomicInteger();
+        scheduler.fetch(tasks.iterator(), task -> {
+            fetched.incrementAndGet();
+            if (task > 0) {
+                try {
+                    blocked.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return task;
+        }, result -> false);
+        blocked.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(fetched.get() <= 2);
+        assertEquals(10, scheduler.getAvailable());
+    }
+}
@@ -0,0 +1,127 @@
+package com.flightstats.hub.dao.aws;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.metrics.NoOpMetricsService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+public class S3GovernorTest {
+
+    private final InMemoryS3 inMemoryS3 = new InMemoryS3();
+
+    @Before
+    public void setUp() {
+        HubProperties.setProperty("s3.governor.retryDelayMillis", "1");
+    }
+
+    @After
+    public void tearDown() {
+        HubProperties.setProperty("s3.governor.retryDelayMillis", "500");
+        HubProperties.setProperty("s3.governor.clusterRetriesPerSecond", "50");
+    }
+
+    private HubS3Client getClient(S3Governor governor) {
+        return new HubS3Client(mock(S3BucketName.class), inMemoryS3.getAmazonS3(), new NoOpMetricsService(), governor);
+    }
+
+    @Test
+    public void testThrottledRetry() {
+        S3Governor governor = new S3Governor(new NoOpMetricsService(), () -> 1);
+        int limit = governor.getLimit(S3Governor.Operation.PUT);
+        inMemoryS3.throttle(2);
+        getClient(governor).putObject(new PutObjectRequest("bucket", "key",
+                new ByteArrayInputStream("data".getBytes()), new ObjectMetadata()));
+        assertArrayEquals("data".getBytes(), inMemoryS3.getObjects().get("key"));
+        assertEquals(3, inMemoryS3.getCalls());
+        assertEquals(limit / 2, governor.getLimit(S3Governor.Operation.PUT));
+    }
+
+    @Test
+    public void testRetryBudget() {
+        HubProperties.setProperty("s3.governor.clusterRetriesPerSecond", "1");
+        S3Governor governor = new S3Governor(new NoOpMetricsService(), () -> 10);
+        inMemoryS3.throttle(3);
+        try {
+            getClient(governor).getObject(new GetObjectRequest("bucket", "key"));
+            fail("expected throttling");
+        } catch (AmazonS3Exception e) {
+            assertEquals(503, e.getStatusCode());
+        }
+        assertEquals(2, inMemoryS3.getCalls());
+        assertFalse(governor.tryRetry());
+    }
+
+    @Test
+    public void testStreamNotResent() {
+        S3Governor governor = new S3Governor(new NoOpMetricsService(), () -> 1);
+        inMemoryS3.throttle(1);
+        FilterInputStream stream = new FilterInputStream(new ByteArrayInputStream("data".getBytes())) {
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+        try {
+            getClient(governor).putObject(new PutObjectRequest("bucket", "key", stream, new ObjectMetadata()));
+            fail("expected throttling");
+        } catch (AmazonS3Exception e) {
+            assertEquals("SlowDown", e.getErrorCode());
+        }
+        assertEquals(1, inMemoryS3.getCalls());
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        S3Governor governor = new S3Governor(new NoOpMetricsService(), () -> 1);
+        int limit = governor.getLimit(S3Governor.Operation.LIST);
+        AtomicInteger running = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(limit);
+        try {
+            for (int i = 0; i < limit; i++) {
+                executorService.submit(() -> {
+                    S3Governor.setPriority(S3Governor.Priority.VERIFIER);
+                    return governor.call(S3Governor.Operation.LIST, () -> {
+                        running.incrementAndGet();
+                        try {
+                            return release.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    });
+                });
+            }
+            int verifierLimit = (int) Math.ceil(limit * 0.5);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (running.get() < verifierLimit && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            assertEquals(verifierLimit, running.get());
+
+            assertEquals(S3Governor.Priority.READ, S3Governor.getPriority());
+            assertEquals("read", governor.call(S3Governor.Operation.LIST, () -> "read"));
+        } finally {
+            release.countDown();
+            executorService.shutdown();
+            executorService.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        assertEquals(limit, running.get());
+    }
+}
@@ -0,0 +1,81 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.metrics.NoOpMetricsService;
+import com.flightstats.hub.model.Content;
+import com.flightstats.hub.model.ContentKey;
+import com.google.common.io.ByteStreams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class S3LargeContentDaoTest {
+
+    private static final int MEGABYTES = 1024 * 1024;
+
+    private final InMemoryS3 inMemoryS3 = new InMemoryS3();
+    private S3LargeContentDao s3LargeContentDao;
+
+    @Before
+    public void setUp() {
+        S3BucketName s3BucketName = mock(S3BucketName.class);
+        when(s3BucketName.getS3BucketName()).thenReturn("bucket");
+        s3LargeContentDao = S3LargeContentDao.builder()
+                .metricsService(new NoOpMetricsService())
+                .s3BucketName(s3BucketName)
+                .s3Client(new HubS3Client(s3BucketName, inMemoryS3.getAmazonS3(), new NoOpMetricsService()))
+                .build();
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        byte[] data = new byte[13 * MEGABYTES];
+        new Random().nextBytes(data);
+        Content content = Content.builder()
+                .withContentType("application/octet-stream")
+                .withStream(new ByteArrayInputStream(data))
+                .withLarge(true)
+                .build();
+        ContentKey key = s3LargeContentDao.insert("testWriteAndRead", content);
+        assertArrayEquals(data, inMemoryS3.getObjects().get("testWriteAndRead/large/" + key.toUrl()));
+        assertEquals(0, inMemoryS3.getOpenUploads());
+
+        Content read = s3LargeContentDao.get("testWriteAndRead", key);
+        assertEquals("application/octet-stream", read.getContentType().get());
+        try (InputStream stream = read.getStream()) {
+            assertArrayEquals(data, ByteStreams.toByteArray(stream));
+        }
+        assertEquals(2, inMemoryS3.getRangedGets());
+    }
+
+    @Test
+    public void testFailedStreamAborts() {
+        InputStream failing = new SequenceInputStream(new ByteArrayInputStream(new byte[6 * MEGABYTES]), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("client went away");
+            }
+        });
+        Content content = Content.builder()
+                .withContentType("application/octet-stream")
+                .withStream(failing)
+                .withLarge(true)
+                .build();
+        try {
+            s3LargeContentDao.insert("testFailedStreamAborts", content);
+            fail("expected the write to fail");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(0, inMemoryS3.getOpenUploads());
+        assertTrue(inMemoryS3.getObjects().isEmpty());
+    }
+}
@@ -0,0 +1,151 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.cluster.WatchManager;
+import com.flightstats.hub.dao.ChannelService;
+import com.flightstats.hub.metrics.NoOpMetricsService;
+import com.flightstats.hub.model.ChannelConfig;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.util.TimeUtil;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.GetDataBuilder;
+import org.apache.curator.framework.api.SetDataBuilder;
+import org.apache.curator.framework.api.WatchPathable;
+import org.apache.zookeeper.data.Stat;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class S3QueryCacheTest {
+
+    private final ChannelService channelService = mock(ChannelService.class);
+    private final CuratorFramework curator = mock(CuratorFramework.class);
+    private final SetDataBuilder setData = mock(SetDataBuilder.class);
+    private final Stat invalidatedStat = new Stat();
+    private byte[] invalidatedData;
+    private File root;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        root = Files.createTempDir();
+        HubProperties.setProperty("s3.queryCache.path", root.getAbsolutePath());
+        when(curator.setData()).thenReturn(setData);
+        GetDataBuilder getData = mock(GetDataBuilder.class);
+        WatchPathable<byte[]> pathable = mock(WatchPathable.class);
+        when(curator.getData()).thenReturn(getData);
+        when(getData.storingStatIn(any(Stat.class))).thenAnswer(invocation -> {
+            ((Stat) invocation.getArguments()[0]).setVersion(invalidatedStat.getVersion());
+            return pathable;
+        });
+        when(pathable.forPath(anyString())).thenAnswer(invocation -> invalidatedData);
+    }
+
+    private S3QueryCache newCache() {
+        return new S3QueryCache(channelService, new NoOpMetricsService(), curator, mock(WatchManager.class));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        HubProperties.setProperty("s3.queryCache.path", "/tmp/spoke/s3QueryCache");
+        FileUtils.deleteDirectory(root);
+    }
+
+    @Test
+    public void testMemoryAndDisk() {
+        S3QueryCache cache = newCache();
+        assertNull(cache.get("testMemoryAndDisk", "batch/index/2017/01/01/00/00"));
+        cache.put("testMemoryAndDisk", "batch/index/2017/01/01/00/00", "index".getBytes());
+        assertArrayEquals("index".getBytes(), cache.get("testMemoryAndDisk", "batch/index/2017/01/01/00/00"));
+
+        S3QueryCache restarted = newCache();
+        assertArrayEquals("index".getBytes(), restarted.get("testMemoryAndDisk", "batch/index/2017/01/01/00/00"));
+    }
+
+    @Test
+    public void testKeys() {
+        S3QueryCache cache = newCache();
+        List<ContentKey> keys = Arrays.asList(new ContentKey(), new ContentKey(), new ContentKey());
+        cache.putKeys("testKeys", "single/2017/01/01", keys);
+        assertEquals(new TreeSet<>(keys), cache.getKeys("testKeys", "single/2017/01/01"));
+
+        cache.putKeys("testKeys", "single/2017/01/02", new TreeSet<>());
+        SortedSet<ContentKey> empty = cache.getKeys("testKeys", "single/2017/01/02");
+        assertNotNull(empty);
+        assertTrue(empty.isEmpty());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        S3QueryCache cache = newCache();
+        cache.put("testInvalidate", "single/2017/01/01", "a".getBytes());
+        cache.put("testInvalidateOther", "single/2017/01/01", "b".getBytes());
+        cache.invalidate("testInvalidate");
+        assertNull(cache.get("testInvalidate", "single/2017/01/01"));
+        assertNotNull(cache.get("testInvalidateOther", "single/2017/01/01"));
+        assertNull(newCache().get("testInvalidate", "single/2017/01/01"));
+        verify(setData).forPath("/S3QueryCache/invalidated", "testInvalidate".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testInvalidatedByOtherHub() {
+        S3QueryCache cache = newCache();
+        invalidatedStat.setVersion(0);
+        cache.invalidated();
+        cache.put("testRemote", "single/2017/01/01", "a".getBytes());
+        cache.put("testRemoteOther", "single/2017/01/01", "b".getBytes());
+
+        invalidatedStat.setVersion(1);
+        invalidatedData = "testRemote".getBytes(StandardCharsets.UTF_8);
+        cache.invalidated();
+        assertNull(cache.get("testRemote", "single/2017/01/01"));
+        assertNotNull(cache.get("testRemoteOther", "single/2017/01/01"));
+
+        invalidatedStat.setVersion(3);
+        newCache().invalidated();
+        assertNull(newCache().get("testRemoteOther", "single/2017/01/01"));
+    }
+
+    @Test
+    public void testRecreatedChannel() {
+        S3QueryCache cache = newCache();
+        ChannelConfig original = ChannelConfig.builder().name("recreated").creationDate(new Date(1000)).build();
+        when(channelService.getCachedChannelConfig("recreated")).thenReturn(original);
+        cache.put("recreated", "single/2017/01/01", "a".getBytes());
+        assertNotNull(cache.get("recreated", "single/2017/01/01"));
+
+        ChannelConfig recreated = ChannelConfig.builder().name("recreated").creationDate(new Date(2000)).build();
+        when(channelService.getCachedChannelConfig("recreated")).thenReturn(recreated);
+        assertNull(cache.get("recreated", "single/2017/01/01"));
+        assertNull(newCache().get("recreated", "single/2017/01/01"));
+    }
+
+    @Test
+    public void testIsImmutable() {
+        S3QueryCache cache = newCache();
+        DateTime old = TimeUtil.now().minusDays(2);
+        assertFalse(cache.isImmutable("missing", old, old.plusHours(1)));
+
+        when(channelService.getCachedChannelConfig("live")).thenReturn(ChannelConfig.builder().name("live").build());
+        assertTrue(cache.isImmutable("live", old, old.plusHours(1)));
+        assertFalse(cache.isImmutable("live", TimeUtil.now().minusMinutes(5), TimeUtil.now()));
+
+        ChannelConfig historical = ChannelConfig.builder().name("historical").mutableTime(old.plusMinutes(30)).build();
+        when(channelService.getCachedChannelConfig("historical")).thenReturn(historical);
+        assertFalse(cache.isImmutable("historical", old, old.plusHours(1)));
+        assertTrue(cache.isImmutable("historical", old.plusHours(1), old.plusHours(2)));
+    }
+}
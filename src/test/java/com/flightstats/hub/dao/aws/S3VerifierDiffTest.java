@@ -0,0 +1,43 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.util.TimeUtil;
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class S3VerifierDiffTest {
+
+    private final DateTime start = TimeUtil.now().minusHours(1);
+
+    private List<ContentKey> diff(List<ContentKey> spoke, List<ContentKey> s3) {
+        List<ContentKey> missing = new ArrayList<>();
+        S3Verifier.diff(spoke.iterator(), s3.iterator(), missing::add);
+        return missing;
+    }
+
+    private ContentKey key(int seconds) {
+        return new ContentKey(start.plusSeconds(seconds), "A" + seconds);
+    }
+
+    @Test
+    public void testMissing() {
+        List<ContentKey> spoke = Arrays.asList(key(1), key(2), key(3), key(4), key(5));
+        List<ContentKey> s3 = Arrays.asList(key(0), key(2), key(4), key(6));
+        assertEquals(Arrays.asList(key(1), key(3), key(5)), diff(spoke, s3));
+    }
+
+    @Test
+    public void testEmpty() {
+        List<ContentKey> spoke = Arrays.asList(key(1), key(2));
+        assertEquals(spoke, diff(spoke, Collections.emptyList()));
+        assertEquals(Collections.emptyList(), diff(Collections.emptyList(), spoke));
+        assertEquals(Collections.emptyList(), diff(spoke, spoke));
+    }
+}
@@ -0,0 +1,43 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.metrics.NoOpMetricsService;
+import com.flightstats.hub.model.ChannelContentKey;
+import com.flightstats.hub.model.Content;
+import com.flightstats.hub.model.ContentKey;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class S3WriteBufferTest {
+
+    private final S3WriteBuffer s3WriteBuffer = new S3WriteBuffer(new NoOpMetricsService());
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        Content content = Content.builder()
+                .withContentKey(new ContentKey())
+                .withContentType("text/plain")
+                .withData("some data".getBytes())
+                .build();
+        content.packageStream();
+        byte[] packaged = content.getData();
+        s3WriteBuffer.put("testPutGetRemove", content);
+        assertEquals(packaged.length, s3WriteBuffer.getBytes());
+
+        ChannelContentKey key = new ChannelContentKey("testPutGetRemove", content.getContentKey().get());
+        Content buffered = s3WriteBuffer.get(key);
+        assertArrayEquals(packaged, buffered.getData());
+        assertEquals("text/plain", buffered.getContentType().get());
+        assertEquals(content.getSize(), buffered.getSize());
+        assertArrayEquals(packaged, s3WriteBuffer.get(key).getData());
+
+        s3WriteBuffer.remove(key);
+        assertNull(s3WriteBuffer.get(key));
+        assertEquals(0, s3WriteBuffer.getBytes());
+    }
+
+    @Test
+    public void testMissing() {
+        assertNull(s3WriteBuffer.get(new ChannelContentKey("testMissing", new ContentKey())));
+    }
+}
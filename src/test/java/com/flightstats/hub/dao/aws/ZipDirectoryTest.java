@@ -0,0 +1,55 @@
+package com.flightstats.hub.dao.aws;
+
+import com.flightstats.hub.channel.ZipBulkBuilder;
+import com.flightstats.hub.dao.ContentDaoUtil;
+import com.flightstats.hub.model.ContentKey;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ZipDirectoryTest {
+
+    @Test
+    public void testRanges() throws IOException {
+        List<ContentKey> keys = new ArrayList<>();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ZipOutputStream output = new ZipOutputStream(baos)) {
+            for (int i = 0; i < 10; i++) {
+                ContentKey key = new ContentKey();
+                keys.add(key);
+                ZipBulkBuilder.createZipEntry(output, ContentDaoUtil.createContent(key));
+            }
+        }
+        byte[] zip = baos.toByteArray();
+        Map<String, long[]> directory = ZipDirectory.read(zip);
+        assertEquals(keys.size(), directory.size());
+
+        for (ContentKey key : keys) {
+            long[] range = directory.get(key.toUrl());
+            byte[] entryBytes = Arrays.copyOfRange(zip, (int) range[0], (int) range[1]);
+            ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(entryBytes));
+            ZipEntry entry = input.getNextEntry();
+            assertEquals(key.toUrl(), entry.getName());
+            assertEquals("{\"contentType\":\"stuff\"}", new String(entry.getExtra()));
+            assertEquals(key.toUrl(), new String(ByteStreams.toByteArray(input)));
+        }
+    }
+
+    @Test
+    public void testNotAZip() {
+        assertTrue(ZipDirectory.read("not a zip".getBytes()).isEmpty());
+        assertTrue(ZipDirectory.read(new byte[0]).isEmpty());
+    }
+}
@@ -0,0 +1,169 @@
+package com.flightstats.hub.events;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.dao.ChannelService;
+import com.flightstats.hub.metrics.NoOpMetricsService;
+import com.flightstats.hub.model.ChannelConfig;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.model.TimeQuery;
+import com.flightstats.hub.util.TimeUtil;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BroadcasterTest {
+
+    private static final String CHANNEL = "broadcast";
+
+    private final SortedSet<ContentKey> channelKeys = Collections.synchronizedSortedSet(new TreeSet<>());
+    private final ChannelService channelService = mock(ChannelService.class);
+    private Broadcaster broadcaster;
+
+    @Before
+    public void setUp() {
+        HubProperties.setProperty("broadcast.pollMillis", "100");
+        HubProperties.setProperty("broadcast.subscriber.buffer", "1000");
+        when(channelService.getCachedChannelConfig(anyString()))
+                .thenReturn(ChannelConfig.builder().name(CHANNEL).build());
+        when(channelService.queryByTime(any(TimeQuery.class))).thenAnswer(invocation -> {
+            TimeQuery query = (TimeQuery) invocation.getArguments()[0];
+            DateTime start = query.getUnit().round(query.getStartTime());
+            DateTime end = start.plus(query.getUnit().getDuration());
+            synchronized (channelKeys) {
+                return new TreeSet<>(channelKeys.subSet(ContentKey.lastKey(start.minusMillis(1)), ContentKey.lastKey(end.minusMillis(1))));
+            }
+        });
+        broadcaster = new Broadcaster(channelService, new NoOpMetricsService());
+    }
+
+    @Test
+    public void testSubscribers() throws Exception {
+        DateTime now = TimeUtil.now();
+        List<ContentKey> keys = Arrays.asList(
+                new ContentKey(now.minusMinutes(20), "a"),
+                new ContentKey(now.minusMinutes(5), "b"),
+                new ContentKey(now.minusSeconds(30), "c"),
+                new ContentKey(now.plusSeconds(1), "d"));
+        channelKeys.addAll(keys);
+
+        TestSubscriber early = new TestSubscriber("early", new ContentKey(now.minusHours(1), "0"), 4);
+        TestSubscriber late = new TestSubscriber("late", new ContentKey(now.minusMinutes(1), "0"), 2);
+        broadcaster.subscribe(early);
+        broadcaster.subscribe(late);
+        assertEquals(1, broadcaster.getChannelCount());
+
+        assertTrue(early.latch.await(20, TimeUnit.SECONDS));
+        assertTrue(late.latch.await(20, TimeUnit.SECONDS));
+        assertEquals(keys, early.sent);
+        assertEquals(keys.subList(2, 4), late.sent);
+
+        early.close();
+        late.close();
+        long stop = System.currentTimeMillis() + 5000;
+        while (broadcaster.getChannelCount() > 0 && System.currentTimeMillis() < stop) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, broadcaster.getChannelCount());
+        assertTrue(early.closed);
+    }
+
+    @Test
+    public void testSlowSubscriber() throws Exception {
+        HubProperties.setProperty("broadcast.subscriber.buffer", "2");
+        CountDownLatch blocked = new CountDownLatch(1);
+        TestSubscriber slow = new TestSubscriber("slow", new ContentKey(), 1) {
+            @Override
+            protected void send(ContentKey key) throws Exception {
+                blocked.await(10, TimeUnit.SECONDS);
+            }
+        };
+        slow.start(broadcaster);
+        DateTime start = TimeUtil.now();
+        for (int i = 1; i <= 5 && !slow.isClosed(); i++) {
+            slow.offer(new ContentKey(start.plusSeconds(i), "" + i));
+        }
+        assertTrue(slow.isClosed());
+        assertTrue(slow.closed);
+        blocked.countDown();
+    }
+
+    @Test
+    public void testStalledAsyncSubscriber() throws Exception {
+        HubProperties.setProperty("broadcast.send.threads", "1");
+        try {
+            broadcaster = new Broadcaster(channelService, new NoOpMetricsService());
+        } finally {
+            HubProperties.setProperty("broadcast.send.threads", "20");
+        }
+        List<CompletableFuture<Void>> outstanding = new CopyOnWriteArrayList<>();
+        TestSubscriber stalled = new TestSubscriber("stalled", new ContentKey(), 3) {
+            @Override
+            protected CompletableFuture<Void> sendAsync(ContentKey key) throws Exception {
+                send(key);
+                CompletableFuture<Void> sent = new CompletableFuture<>();
+                outstanding.add(sent);
+                return sent;
+            }
+        };
+        TestSubscriber other = new TestSubscriber("other", new ContentKey(), 3);
+        stalled.start(broadcaster);
+        other.start(broadcaster);
+        DateTime start = TimeUtil.now();
+        for (int i = 1; i <= 3; i++) {
+            stalled.offer(new ContentKey(start.plusSeconds(i), "" + i));
+            other.offer(new ContentKey(start.plusSeconds(i), "" + i));
+        }
+        assertTrue(other.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, stalled.sent.size());
+
+        outstanding.get(0).complete(null);
+        long stop = System.currentTimeMillis() + 5000;
+        while (outstanding.size() < 2 && System.currentTimeMillis() < stop) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, stalled.sent.size());
+        outstanding.get(1).completeExceptionally(new IOException("stalled"));
+        stop = System.currentTimeMillis() + 5000;
+        while (!stalled.isClosed() && System.currentTimeMillis() < stop) {
+            Thread.sleep(10);
+        }
+        assertTrue(stalled.isClosed());
+        assertEquals(2, stalled.sent.size());
+    }
+
+    private class TestSubscriber extends BroadcastSubscriber {
+
+        private final List<ContentKey> sent = new CopyOnWriteArrayList<>();
+        private final CountDownLatch latch;
+        private volatile boolean closed;
+
+        TestSubscriber(String id, ContentKey startingKey, int expected) {
+            super(id, CHANNEL, startingKey);
+            latch = new CountDownLatch(expected);
+        }
+
+        @Override
+        protected void send(ContentKey key) throws Exception {
+            sent.add(key);
+            latch.countDown();
+        }
+
+        @Override
+        protected void onClose() {
+            closed = true;
+        }
+    }
+}
@@ -189,4 +189,23 @@ public class ChannelConfigTest {
         assertFalse(testZeroBytes.isAllowZeroBytes());
     }
 
+    @Test
+    public void testCodec() {
+        ChannelConfig defaults = ChannelConfig.builder().name("testCodec").build();
+        assertEquals("", defaults.getCodec());
+        assertEquals(ContentCodec.fromName(null), defaults.getContentCodec());
+
+        ChannelConfig updated = ChannelConfig.updateFromJson(defaults, "{\"codec\": \"max\"}");
+        assertEquals("MAX", updated.getCodec());
+        assertEquals(ContentCodec.MAX, updated.getContentCodec());
+        assertEquals(updated, ChannelConfig.createFromJson(updated.toJson()));
+        assertFalse(updated.equals(defaults));
+    }
+
+    @Test
+    public void testDefaultCodec() {
+        assertEquals(ContentCodec.MAX, ContentCodec.parseDefault(" max"));
+        assertEquals(ContentCodec.FAST, ContentCodec.parseDefault("gzip"));
+    }
+
 }
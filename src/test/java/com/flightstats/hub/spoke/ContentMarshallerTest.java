@@ -2,14 +2,19 @@ package com.flightstats.hub.spoke;
 
 import com.flightstats.hub.dao.ContentMarshaller;
 import com.flightstats.hub.model.Content;
+import com.flightstats.hub.model.ContentCodec;
 import com.flightstats.hub.model.ContentKey;
 import com.flightstats.hub.util.StringUtils;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 public class ContentMarshallerTest {
 
@@ -62,6 +67,71 @@ public class ContentMarshallerTest {
         verify(content, 1024);
     }
 
+    @Test
+    public void testCodecs() throws IOException {
+        int size = 100 * 1024;
+        int previous = Integer.MAX_VALUE;
+        for (ContentCodec codec : ContentCodec.values()) {
+            Content content = getContent(size);
+            content.setCodec(codec);
+            byte[] bytes = ContentMarshaller.toBytes(content);
+            assertTrue(codec + " " + bytes.length, bytes.length <= previous);
+            previous = bytes.length;
+            Content cycled = ContentMarshaller.toContent(bytes, content.getContentKey().get());
+            assertEquals(codec, cycled.getCodec());
+            assertEquals(size, cycled.getData().length);
+            assertEquals(size, cycled.getSize().longValue());
+        }
+    }
+
+    @Test
+    public void testIncompressibleContentType() throws IOException {
+        Content content = Content.builder()
+                .withContentType("image/png")
+                .withData(StringUtils.randomAlphaNumeric(1024).getBytes())
+                .withContentKey(new ContentKey())
+                .withCodec(ContentCodec.MAX)
+                .build();
+        byte[] bytes = ContentMarshaller.toBytes(content);
+        Content cycled = ContentMarshaller.toContent(bytes, content.getContentKey().get());
+        assertEquals(ContentCodec.NONE, cycled.getCodec());
+        assertEquals("image/png", cycled.getContentType().get());
+        assertEquals(1024, cycled.getData().length);
+    }
+
+    @Test
+    public void testRandomPayloadIsNotCompressed() throws IOException {
+        byte[] random = new byte[10 * 1024];
+        new Random().nextBytes(random);
+        Content content = Content.builder()
+                .withData(random)
+                .withContentKey(new ContentKey())
+                .withCodec(ContentCodec.FAST)
+                .build();
+        Content cycled = ContentMarshaller.toContent(ContentMarshaller.toBytes(content), content.getContentKey().get());
+        assertEquals(ContentCodec.NONE, cycled.getCodec());
+        assertArrayEquals(random, cycled.getData());
+    }
+
+    @Test
+    public void testLegacyZip() throws IOException {
+        String payload = StringUtils.randomAlphaNumeric(1024);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ZipOutputStream zipOut = new ZipOutputStream(baos);
+        zipOut.setLevel(Deflater.BEST_COMPRESSION);
+        zipOut.putNextEntry(new ZipEntry("meta"));
+        zipOut.write("{\"contentType\":\"text/plain\"}".getBytes());
+        zipOut.putNextEntry(new ZipEntry("payload"));
+        zipOut.write(payload.getBytes());
+        zipOut.setComment("1024");
+        zipOut.close();
+
+        Content cycled = ContentMarshaller.toContent(baos.toByteArray(), new ContentKey());
+        assertEquals("text/plain", cycled.getContentType().get());
+        assertEquals(1024, cycled.getSize().longValue());
+        assertEquals(payload, new String(cycled.getData()));
+    }
+
     private void verify(Content content, int size) throws IOException {
         Content cycled = ContentMarshaller.toContent(ContentMarshaller.toBytes(content), content.getContentKey().get());
         assertTrue(content.equals(cycled));
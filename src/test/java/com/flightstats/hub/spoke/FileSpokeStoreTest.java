@@ -33,7 +33,12 @@ public class FileSpokeStoreTest {
     public void setUp() throws Exception {
         tempDir = Files.createTempDir().getPath();
         HubProperties.setProperty("spoke.write.path", tempDir);
-        spokeStore = new FileSpokeStore(tempDir, ttlMinutes);
+        spokeStore = createStore(tempDir, ttlMinutes);
+        assertTrue(spokeStore.awaitKeyIndex(10_000));
+    }
+
+    FileSpokeStore createStore(String path, int ttlMinutes) {
+        return new FileSpokeStore(path, ttlMinutes);
     }
 
     @Test
@@ -332,6 +337,30 @@ public class FileSpokeStoreTest {
         }
     }
 
+    @Test
+    public void testEvicted() throws Exception {
+        String channel = "testEvicted";
+        DateTime start = TimeUtil.now().minusHours(2).withMinuteOfHour(10);
+        for (int i = 0; i < 3; i++) {
+            spokeStore.insert(channel + "/" + new ContentKey(start, "" + i).toUrl(), BYTES);
+            spokeStore.insert(channel + "/" + new ContentKey(start.plusMinutes(1), "" + i).toUrl(), BYTES);
+        }
+        long old = System.currentTimeMillis() - 120_000;
+        File minute = spokeStore.spokeFilePathPart(channel + "/" + TimeUtil.minutes(start));
+        for (File file : minute.listFiles()) {
+            assertTrue(file.setLastModified(old));
+        }
+        assertTrue(minute.setLastModified(old));
+        verify(channel + "/" + TimeUtil.hours(start), 6);
+
+        SpokeEvictor.Eviction eviction = new SpokeEvictor.Eviction(true);
+        new SpokeEvictor().deleteModifiedBefore(tempDir + "/" + channel, old + 60_000, eviction);
+        assertFalse(eviction.getFiles().isEmpty());
+        spokeStore.evicted(channel, eviction.getFiles());
+        verify(channel + "/" + TimeUtil.hours(start), 3);
+        verify(channel + "/" + TimeUtil.minutes(start.plusMinutes(1)), 3);
+    }
+
     private void enforceVerify(String channel, DateTime startTime) {
         DateTime time = startTime;
         String startQuery = TimeUtil.hours(time);
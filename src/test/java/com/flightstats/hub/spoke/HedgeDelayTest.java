@@ -0,0 +1,35 @@
+package com.flightstats.hub.spoke;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class HedgeDelayTest {
+
+    @Test
+    public void testPercentile() {
+        HedgeDelay hedgeDelay = new HedgeDelay(100, 95, 1, 1000, 50);
+        assertEquals(50, hedgeDelay.getMillis());
+        for (int i = 1; i <= 100; i++) {
+            hedgeDelay.add(i);
+        }
+        assertEquals(95, hedgeDelay.getMillis());
+        for (int i = 0; i < 100; i++) {
+            hedgeDelay.add(2);
+        }
+        assertEquals(2, hedgeDelay.getMillis());
+    }
+
+    @Test
+    public void testLimits() {
+        HedgeDelay hedgeDelay = new HedgeDelay(10, 95, 5, 100, 50);
+        for (int i = 0; i < 10; i++) {
+            hedgeDelay.add(1);
+        }
+        assertEquals(5, hedgeDelay.getMillis());
+        for (int i = 0; i < 10; i++) {
+            hedgeDelay.add(10_000);
+        }
+        assertEquals(100, hedgeDelay.getMillis());
+    }
+}
@@ -1,11 +1,55 @@
 package com.flightstats.hub.spoke;
 
+import com.flightstats.hub.cluster.CuratorCluster;
+import com.flightstats.hub.dao.ContentMarshaller;
+import com.flightstats.hub.metrics.MetricsService;
+import com.flightstats.hub.model.Content;
+import com.flightstats.hub.model.ContentKey;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
-import static org.junit.Assert.assertEquals;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
 
 public class RemoteSpokeStoreTest {
 
+    private final List<Server> servers = new ArrayList<>();
+    private final ContentKey key = new ContentKey();
+    private final String path = "hedged/" + key.toUrl();
+    private final CuratorCluster cluster = mock(CuratorCluster.class);
+    private final MetricsService metricsService = mock(MetricsService.class);
+    private RemoteSpokeStore remoteSpokeStore;
+    private byte[] payload;
+
+    @Before
+    public void setUp() throws Exception {
+        payload = ContentMarshaller.toBytes(Content.builder()
+                .withContentKey(key)
+                .withContentType("text/plain")
+                .withData("hedged".getBytes())
+                .build());
+        remoteSpokeStore = new RemoteSpokeStore(cluster, metricsService, new SpokeClient(metricsService));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Server server : servers) {
+            server.stop();
+        }
+    }
+
     @Test
     public void testQuorum() {
 
@@ -18,4 +62,59 @@ public class RemoteSpokeStoreTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testHedgedGet() throws Exception {
+        String slow = startServer(5000, 200);
+        String fast = startServer(0, 200);
+        when(cluster.getRandomServers()).thenReturn(new ArrayList<>(Arrays.asList(slow, fast)));
+
+        long start = System.currentTimeMillis();
+        Content content = remoteSpokeStore.get(SpokeStore.WRITE, path, key);
+        assertEquals("hedged", new String(content.getData()));
+        assertTrue(System.currentTimeMillis() - start < 4000);
+        verify(metricsService).increment("spoke.get.hedged", "store:write");
+        verify(metricsService, timeout(1000)).increment("spoke.get.hedge.win", "store:write");
+    }
+
+    @Test
+    public void testMissingServer() throws Exception {
+        String missing = startServer(0, 404);
+        String found = startServer(0, 200);
+        when(cluster.getRandomServers()).thenReturn(new ArrayList<>(Arrays.asList(missing, found)));
+
+        Content content = remoteSpokeStore.get(SpokeStore.WRITE, path, key);
+        assertEquals("hedged", new String(content.getData()));
+    }
+
+    @Test
+    public void testNotFound() throws Exception {
+        String first = startServer(0, 404);
+        String second = startServer(0, 404);
+        when(cluster.getRandomServers()).thenReturn(new ArrayList<>(Arrays.asList(first, second)));
+
+        assertNull(remoteSpokeStore.get(SpokeStore.WRITE, path, key));
+    }
+
+    private String startServer(long sleepMillis, int status) throws Exception {
+        Server server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
+                baseRequest.setHandled(true);
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                response.setStatus(status);
+                if (status == 200) {
+                    response.getOutputStream().write(payload);
+                }
+            }
+        });
+        server.start();
+        servers.add(server);
+        return "localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+    }
+}
@@ -0,0 +1,120 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.model.ContentKey;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import javax.ws.rs.NotFoundException;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class SegmentSpokeStoreTest extends FileSpokeStoreTest {
+
+    @Override
+    FileSpokeStore createStore(String path, int ttlMinutes) {
+        return new SegmentSpokeStore(path, ttlMinutes);
+    }
+
+    @Test
+    public void testSingleSegmentPerMinute() throws Exception {
+        String tempDir = Files.createTempDir().getPath();
+        SegmentSpokeStore store = new SegmentSpokeStore(tempDir, 60);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(store.insert("testSegment/2016/05/01/12/30/01/" + String.format("%03d", i) + "/A", BYTES));
+        }
+        String[] files = new File(tempDir + "/testSegment/2016/05/01/12/30").list();
+        assertEquals(2, files.length);
+        Collection<String> keys = store.keysInBucket("testSegment/2016/05/01/12/30");
+        assertEquals(100, keys.size());
+        assertArrayEquals(BYTES, store.read("testSegment/2016/05/01/12/30/01/050/A"));
+    }
+
+    @Test
+    public void testReopenSegment() throws Exception {
+        String tempDir = Files.createTempDir().getPath();
+        String path = "testReopen/" + new ContentKey().toUrl();
+        new SegmentSpokeStore(tempDir, 60).insert(path, BYTES);
+        SegmentSpokeStore reopened = new SegmentSpokeStore(tempDir, 60);
+        assertArrayEquals(BYTES, reopened.read(path));
+    }
+
+    @Test
+    public void testLegacyFileRead() throws Exception {
+        String tempDir = Files.createTempDir().getPath();
+        String legacyPath = "testLegacy/2016/05/01/12/30/01/001/A";
+        new FileSpokeStore(tempDir, 60).insert(legacyPath, BYTES);
+        SegmentSpokeStore store = new SegmentSpokeStore(tempDir, 60);
+        String segmentPath = "testLegacy/2016/05/01/12/30/01/002/B";
+        store.insert(segmentPath, BYTES);
+        assertArrayEquals(BYTES, store.read(legacyPath));
+        assertArrayEquals(BYTES, store.read(segmentPath));
+        Collection<String> keys = store.keysInBucket("testLegacy/2016/05/01/12/30");
+        assertEquals(2, keys.size());
+        assertTrue(keys.contains(legacyPath));
+        assertTrue(keys.contains(segmentPath));
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testDeleteFile() throws Exception {
+        String tempDir = Files.createTempDir().getPath();
+        SegmentSpokeStore store = new SegmentSpokeStore(tempDir, 60);
+        String path = "testDeleteFile/" + new ContentKey().toUrl();
+        store.insert(path, BYTES);
+        assertTrue(store.deleteFile(path));
+        new SegmentSpokeStore(tempDir, 60).read(path);
+    }
+
+    @Test
+    public void testEvictionDuringWrites() throws Exception {
+        String tempDir = Files.createTempDir().getPath();
+        HubProperties.setProperty("spoke.segment.maxOpen", "1");
+        SegmentSpokeStore store;
+        try {
+            store = new SegmentSpokeStore(tempDir, 60);
+        } finally {
+            HubProperties.setProperty("spoke.segment.maxOpen", "1000");
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int thread = 0; thread < 8; thread++) {
+            int threadNumber = thread;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 100; i++) {
+                    String path = evictionPath(threadNumber, i);
+                    assertTrue(store.insert(path, path.getBytes(StandardCharsets.UTF_8)));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        SegmentSpokeStore reopened = new SegmentSpokeStore(tempDir, 60);
+        for (int thread = 0; thread < 8; thread++) {
+            for (int i = 0; i < 100; i++) {
+                String path = evictionPath(thread, i);
+                assertArrayEquals(path, path.getBytes(StandardCharsets.UTF_8), store.read(path));
+                assertArrayEquals(path, path.getBytes(StandardCharsets.UTF_8), reopened.read(path));
+            }
+        }
+        for (int minute = 0; minute < 3; minute++) {
+            assertEquals(8 * 100 / 3 + (minute < 2 ? 1 : 0),
+                    store.keysInBucket("testEviction/2016/05/01/12/3" + minute).size());
+        }
+    }
+
+    private String evictionPath(int thread, int i) {
+        int item = thread * 100 + i;
+        return "testEviction/2016/05/01/12/3" + (item % 3) + "/01/" + String.format("%03d", item % 1000) + "/T" + thread;
+    }
+}
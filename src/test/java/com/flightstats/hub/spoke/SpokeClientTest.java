@@ -0,0 +1,116 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.metrics.NoOpMetricsService;
+import com.google.common.io.ByteStreams;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SpokeClientTest {
+
+    private static final Map<String, byte[]> items = new ConcurrentHashMap<>();
+    private static Server server;
+    private static String url;
+    private static SpokeClient spokeClient;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
+                baseRequest.setHandled(true);
+                switch (request.getMethod()) {
+                    case "PUT":
+                        items.put(target, ByteStreams.toByteArray(request.getInputStream()));
+                        response.setStatus(201);
+                        break;
+                    case "GET":
+                        byte[] bytes = items.get(target);
+                        if (bytes == null) {
+                            response.setStatus(404);
+                        } else {
+                            response.setStatus(200);
+                            response.getOutputStream().write(bytes);
+                        }
+                        break;
+                    case "DELETE":
+                        response.setStatus(items.remove(target) == null ? 404 : 200);
+                        break;
+                    default:
+                        response.setStatus(405);
+                }
+            }
+        });
+        server.start();
+        url = "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        spokeClient = new SpokeClient(new NoOpMetricsService());
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testPutGetDelete() throws Exception {
+        String uri = url + "/internal/spoke/write/payload/testPutGetDelete/item";
+        assertEquals(201, spokeClient.put(uri, "payload".getBytes(), 5).get(5, TimeUnit.SECONDS).getStatus());
+
+        SpokeClient.SpokeResponse response = spokeClient.get(uri, 5).get(5, TimeUnit.SECONDS);
+        assertEquals(200, response.getStatus());
+        assertEquals("payload", response.getContentAsString());
+
+        assertEquals(200, spokeClient.delete(uri, 5).get(5, TimeUnit.SECONDS).getStatus());
+        assertEquals(404, spokeClient.get(uri, 5).get(5, TimeUnit.SECONDS).getStatus());
+    }
+
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        int count = 200;
+        List<CompletableFuture<SpokeClient.SpokeResponse>> puts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            puts.add(spokeClient.put(url + "/concurrent/" + i, ("" + i).getBytes(), 5));
+        }
+        for (CompletableFuture<SpokeClient.SpokeResponse> put : puts) {
+            assertEquals(201, put.get(10, TimeUnit.SECONDS).getStatus());
+        }
+        for (int i = 0; i < count; i++) {
+            SpokeClient.SpokeResponse response = spokeClient.get(url + "/concurrent/" + i, 5).get(5, TimeUnit.SECONDS);
+            assertEquals("" + i, response.getContentAsString());
+        }
+    }
+
+    @Test
+    public void testUnavailableServer() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        try {
+            spokeClient.get("http://localhost:" + port + "/internal/spoke/latest/none", 5).get(10, TimeUnit.SECONDS);
+            fail("expected a failure");
+        } catch (ExecutionException e) {
+            assertNotNull(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.flightstats.hub.spoke;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SpokeEvictorTest {
+
+    private final SpokeEvictor spokeEvictor = new SpokeEvictor();
+    private File root;
+
+    @Before
+    public void setUp() {
+        root = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        org.apache.commons.io.FileUtils.deleteDirectory(root);
+    }
+
+    @Test
+    public void testDelete() throws IOException {
+        write("channel/2018/01/01/00/00/00000a", 10);
+        write("channel/2018/01/01/00/00/01000b", 20);
+        write("channel/2018/01/01/00/01/00000c", 30);
+        write("channel/2018/01/01/01/00/00000d", 40);
+
+        SpokeEvictor.Eviction eviction = new SpokeEvictor.Eviction();
+        spokeEvictor.delete(root.getPath() + "/channel/2018/01/01/00", eviction);
+        assertEquals(3, eviction.getItems());
+        assertEquals(60, eviction.getBytes());
+        assertFalse(new File(root, "channel/2018/01/01/00").exists());
+        assertTrue(new File(root, "channel/2018/01/01/01/00/00000d").exists());
+
+        spokeEvictor.delete(root.getPath() + "/channel/2018/02", eviction);
+        assertEquals(3, eviction.getItems());
+    }
+
+    @Test
+    public void testDeleteSegment() throws IOException {
+        write("channel/2018/01/01/00/00/" + SpokeSegment.DATA, 100);
+        write("channel/2018/01/01/00/00/" + SpokeSegment.INDEX, 10);
+
+        SpokeEvictor.Eviction eviction = new SpokeEvictor.Eviction();
+        spokeEvictor.delete(root.getPath() + "/channel/2018/01/01/00/00", eviction);
+        assertEquals(1, eviction.getItems());
+        assertEquals(110, eviction.getBytes());
+    }
+
+    @Test
+    public void testDeleteModifiedBefore() throws IOException {
+        long now = System.currentTimeMillis();
+        File old = write("channel/2018/01/01/00/00/00000a", 10);
+        File current = write("channel/2018/01/01/00/01/00000b", 10);
+        File oldDirectory = old.getParentFile();
+        old.setLastModified(now - 120_000);
+        oldDirectory.setLastModified(now - 120_000);
+
+        SpokeEvictor.Eviction eviction = new SpokeEvictor.Eviction();
+        spokeEvictor.deleteModifiedBefore(root.getPath() + "/channel", now - 60_000, eviction);
+        assertEquals(1, eviction.getItems());
+        assertFalse(old.exists());
+        assertFalse(oldDirectory.exists());
+        assertTrue(current.exists());
+        assertTrue(new File(root, "channel").exists());
+    }
+
+    @Test
+    public void testEvictAll() {
+        AtomicInteger count = new AtomicInteger();
+        List<Runnable> evictions = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            evictions.add(count::incrementAndGet);
+        }
+        evictions.add(() -> {
+            throw new RuntimeException("failed eviction");
+        });
+        spokeEvictor.evictAll(evictions);
+        assertEquals(10, count.get());
+    }
+
+    private File write(String path, int bytes) throws IOException {
+        File file = new File(root, path);
+        Files.createParentDirs(file);
+        Files.write(new byte[bytes], file);
+        return file;
+    }
+}
@@ -0,0 +1,147 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.model.ContentKey;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class SpokeKeyIndexTest {
+
+    private static final DateTime START = new DateTime(2017, 6, 1, 12, 0, 0, 0, DateTimeZone.UTC);
+    private SpokeKeyIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        index = new SpokeKeyIndex();
+        index.loaded();
+    }
+
+    @Test
+    public void testHashOrdering() {
+        List<ContentKey> keys = Arrays.asList(
+                new ContentKey(START, "0"),
+                new ContentKey(START, "A"),
+                new ContentKey(START, "AA"),
+                new ContentKey(START, "Aa"),
+                new ContentKey(START, "Z"),
+                new ContentKey(START, "a"),
+                new ContentKey(START, "abcdef000001"),
+                new ContentKey(START, "abcdef000002"),
+                new ContentKey(START, "z"),
+                new ContentKey(START, "~ZZZZZZZZZZZZZZZZ"),
+                new ContentKey(START.plusMillis(1), "0"));
+        List<ContentKey> shuffled = new ArrayList<>(keys);
+        Collections.shuffle(shuffled);
+        for (ContentKey key : shuffled) {
+            index.add("testHashOrdering", key);
+        }
+        SpokeKeyIndex.ChannelKeys channelKeys = index.get("testHashOrdering");
+        assertEquals(keys, channelKeys.range(Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(new ArrayList<>(new TreeSet<>(keys)), keys);
+    }
+
+    @Test
+    public void testDuplicatesAndRemove() {
+        ContentKey key = new ContentKey(START, "abc");
+        index.add("testDuplicates", key);
+        index.add("testDuplicates", key);
+        assertEquals(1, index.get("testDuplicates").size());
+        index.remove("testDuplicates", key);
+        assertEquals(0, index.get("testDuplicates").size());
+    }
+
+    @Test
+    public void testRangeLatestNext() {
+        for (int i = 0; i < 1000; i++) {
+            index.add("testRange", new ContentKey(START.plusSeconds(i), "A"));
+        }
+        SpokeKeyIndex.ChannelKeys keys = index.get("testRange");
+        assertEquals(60, keys.range(START.getMillis(), START.plusMinutes(1).getMillis()).size());
+
+        ContentKey latest = keys.latest(new ContentKey(START.plusSeconds(100), "A"), START.getMillis());
+        assertEquals(new ContentKey(START.plusSeconds(99), "A"), latest);
+        assertNull(keys.latest(new ContentKey(START, "A"), START.getMillis()));
+
+        List<ContentKey> next = keys.next(new ContentKey(START.plusSeconds(10), "A"), 5, Long.MAX_VALUE);
+        assertEquals("the rest of the minute", 49, next.size());
+        assertEquals(new ContentKey(START.plusSeconds(11), "A"), next.get(0));
+
+        next = keys.next(new ContentKey(START.plusSeconds(10), "A"), 100, START.plusMinutes(2).getMillis());
+        assertEquals(109, next.size());
+    }
+
+    @Test
+    public void testRemoveBefore() {
+        for (int i = 0; i < 100; i++) {
+            index.add("testRemoveBefore", new ContentKey(START.plusMinutes(i), "A"));
+        }
+        index.removeBefore("testRemoveBefore", START.plusMinutes(50).getMillis());
+        SpokeKeyIndex.ChannelKeys keys = index.get("testRemoveBefore");
+        assertEquals(50, keys.size());
+        for (int i = 100; i < 200; i++) {
+            index.add("testRemoveBefore", new ContentKey(START.plusMinutes(i), "A"));
+        }
+        assertEquals(150, keys.size());
+        assertEquals(new ContentKey(START.plusMinutes(50), "A"), keys.range(Long.MIN_VALUE, Long.MAX_VALUE).get(0));
+    }
+
+    @Test
+    public void testNotReadyUntilLoaded() {
+        SpokeKeyIndex loading = new SpokeKeyIndex();
+        loading.add("testNotReady", new ContentKey(START, "A"));
+        assertNull(loading.get("testNotReady"));
+        loading.load("testNotReady", () -> Collections.singletonList(new ContentKey(START.minusDays(1), "B")));
+        assertEquals(2, loading.get("testNotReady").size());
+        assertNull(loading.get("other"));
+        loading.loaded();
+        assertEquals(0, loading.get("other").size());
+    }
+
+    @Test
+    public void testRemovedDuringLoad() {
+        SpokeKeyIndex loading = new SpokeKeyIndex();
+        List<ContentKey> onDisk = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            onDisk.add(new ContentKey(START.plusMinutes(i), "A"));
+        }
+        loading.load("testRemovedDuringLoad", () -> {
+            loading.remove("testRemovedDuringLoad", onDisk.get(5));
+            loading.removeBefore("testRemovedDuringLoad", START.plusMinutes(2).getMillis());
+            return onDisk;
+        });
+        loading.loaded();
+        assertEquals(onDisk.subList(2, 5), loading.get("testRemovedDuringLoad").range(Long.MIN_VALUE, START.plusMinutes(6).getMillis()));
+        assertEquals(7, loading.get("testRemovedDuringLoad").size());
+
+        loading.remove("testRemovedDuringLoad", onDisk.get(6));
+        loading.load("testRemovedDuringLoad", () -> onDisk);
+        assertEquals(10, loading.get("testRemovedDuringLoad").size());
+    }
+
+    @Test
+    public void testRemoveRange() {
+        for (int i = 0; i < 10; i++) {
+            index.add("testRemoveRange", new ContentKey(START.plusMinutes(i), "A"));
+            index.add("testRemoveRange", new ContentKey(START.plusMinutes(i), "hash-" + i + "_unpacked"));
+        }
+        index.removeRange("testRemoveRange", START.plusMinutes(3).getMillis(), START.plusMinutes(5).getMillis());
+        SpokeKeyIndex.ChannelKeys keys = index.get("testRemoveRange");
+        assertEquals(16, keys.size());
+        assertTrue(keys.range(START.plusMinutes(3).getMillis(), START.plusMinutes(5).getMillis()).isEmpty());
+        assertEquals(new ContentKey(START.plusMinutes(5), "hash-5_unpacked"),
+                keys.range(START.plusMinutes(5).getMillis(), START.plusMinutes(6).getMillis()).get(1));
+        index.removeRange("testRemoveRange", Long.MIN_VALUE, START.plusMinutes(1).getMillis());
+        assertEquals(14, keys.size());
+        index.removeRange("testRemoveRange", START.plusMinutes(8).getMillis(), Long.MAX_VALUE);
+        assertEquals(10, keys.size());
+    }
+}
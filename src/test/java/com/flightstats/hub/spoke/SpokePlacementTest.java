@@ -0,0 +1,98 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.cluster.CuratorCluster;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SpokePlacementTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private final List<String> servers = Arrays.asList("spoke-1:8080", "spoke-2:8080", "spoke-3:8080",
+            "spoke-4:8080", "spoke-5:8080", "spoke-6:8080");
+
+    @Test
+    public void testOwners() {
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 600; i++) {
+            String channel = "channel" + i;
+            List<String> owners = SpokePlacement.getOwners(channel, servers, 3);
+            assertEquals(3, new HashSet<>(owners).size());
+            assertEquals(owners, SpokePlacement.getOwners(channel.toUpperCase(), servers, 3));
+            List<String> reversed = new ArrayList<>(servers);
+            Collections.reverse(reversed);
+            assertEquals(owners, SpokePlacement.getOwners(channel, reversed, 3));
+            owners.forEach(owner -> counts.merge(owner, 1, Integer::sum));
+        }
+        for (String server : servers) {
+            assertTrue(server + " " + counts, counts.get(server) > 200);
+        }
+        assertEquals(2, SpokePlacement.getOwners("small", servers.subList(0, 2), 3).size());
+    }
+
+    @Test
+    public void testRemovedServer() {
+        List<String> remaining = servers.subList(0, 5);
+        String removed = servers.get(5);
+        for (int i = 0; i < 100; i++) {
+            String channel = "channel" + i;
+            List<String> before = SpokePlacement.getOwners(channel, servers, 3);
+            List<String> after = SpokePlacement.getOwners(channel, remaining, 3);
+            if (!before.contains(removed)) {
+                assertEquals(before, after);
+            } else {
+                assertTrue(after.containsAll(before.subList(0, before.indexOf(removed))));
+            }
+        }
+    }
+
+    @Test
+    public void testStartup() {
+        CuratorCluster cluster = mockCluster(servers);
+        SpokePlacement placement = new SpokePlacement(cluster, 3, HOUR, 0);
+        assertEquals(new HashSet<>(servers), placement.getReadServers("channel", HOUR - 1));
+        assertEquals(3, placement.getReadServers("channel", HOUR + 1).size());
+    }
+
+    @Test
+    public void testHandoff() {
+        CuratorCluster cluster = mockCluster(servers);
+        SpokePlacement placement = new SpokePlacement(cluster, 3, HOUR, 0);
+        List<String> added = new ArrayList<>(servers);
+        added.add("spoke-7:8080");
+        String channel = findChannelOwnedBy("spoke-7:8080", added);
+        List<String> before = SpokePlacement.getOwners(channel, servers, 3);
+        List<String> after = SpokePlacement.getOwners(channel, added, 3);
+        assertEquals(new HashSet<>(before), new HashSet<>(placement.getReadServers(channel, 2 * HOUR)));
+
+        when(cluster.getActiveServers()).thenReturn(added);
+        when(cluster.getAllServers()).thenReturn(new HashSet<>(added));
+        Set<String> expected = new HashSet<>(before);
+        expected.addAll(after);
+        assertEquals(4, expected.size());
+        assertEquals(expected, new HashSet<>(placement.getReadServers(channel, 3 * HOUR)));
+
+        assertEquals(new HashSet<>(after), new HashSet<>(placement.getReadServers(channel, 4 * HOUR + 1)));
+        assertEquals(after, placement.getWriteServers(channel));
+    }
+
+    private String findChannelOwnedBy(String server, List<String> servers) {
+        for (int i = 0; ; i++) {
+            if (SpokePlacement.getOwners("channel" + i, servers, 3).contains(server)) {
+                return "channel" + i;
+            }
+        }
+    }
+
+    private CuratorCluster mockCluster(List<String> servers) {
+        CuratorCluster cluster = mock(CuratorCluster.class);
+        when(cluster.getActiveServers()).thenReturn(servers);
+        when(cluster.getAllServers()).thenReturn(new HashSet<>(servers));
+        return cluster;
+    }
+}
@@ -0,0 +1,16 @@
+package com.flightstats.hub.spoke;
+
+import com.flightstats.hub.app.HubProperties;
+
+public class UnindexedFileSpokeStoreTest extends FileSpokeStoreTest {
+
+    @Override
+    FileSpokeStore createStore(String path, int ttlMinutes) {
+        HubProperties.setProperty("spoke.keyIndex", "false");
+        try {
+            return new FileSpokeStore(path, ttlMinutes);
+        } finally {
+            HubProperties.setProperty("spoke.keyIndex", "true");
+        }
+    }
+}
@@ -1,7 +1,14 @@
 package com.flightstats.hub.util;
 
+import com.google.common.io.ByteStreams;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Base64;
+
 import static org.junit.Assert.*;
 
 public class ChunkTest {
@@ -28,4 +35,43 @@ public class ChunkTest {
         assertFalse(chunk.add(5));
         assertArrayEquals(expected, chunk.getBytes());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testPoolExhausted() throws IOException {
+        ChunkPool pool = new ChunkPool(4, 2, false);
+        Chunk chunk = new Chunk(1, 12, pool);
+        byte[] bytes = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+        assertEquals(8, chunk.write(bytes, 0, bytes.length));
+        assertTrue(chunk.isFull());
+        assertEquals(0, pool.getAvailable());
+
+        byte[] expected = Arrays.copyOf(bytes, 8);
+        assertArrayEquals(expected, chunk.getBytes());
+        assertEquals(Base64.getEncoder().encodeToString(DigestUtils.md5(expected)), chunk.getMd5());
+        InputStream stream = chunk.getStream();
+        stream.mark(0);
+        assertArrayEquals(expected, ByteStreams.toByteArray(stream));
+        stream.reset();
+        assertArrayEquals(expected, ByteStreams.toByteArray(stream));
+
+        chunk.release();
+        assertEquals(2, pool.getAvailable());
+    }
+
+    @Test
+    public void testPoolWaitUsesHeap() {
+        ChunkPool pool = new ChunkPool(4, 1, true, 10);
+        Chunk first = new Chunk(1, 4, pool);
+        assertEquals(4, first.write(new byte[]{1, 2, 3, 4}, 0, 4));
+        assertEquals(0, pool.getAvailable());
+
+        Chunk second = new Chunk(2, 4, pool);
+        byte[] bytes = {5, 6, 7, 8};
+        assertEquals(4, second.write(bytes, 0, bytes.length));
+        assertArrayEquals(bytes, second.getBytes());
+        second.release();
+        assertEquals(0, pool.getAvailable());
+        first.release();
+        assertEquals(1, pool.getAvailable());
+    }
+}
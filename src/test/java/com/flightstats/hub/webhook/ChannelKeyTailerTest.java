@@ -0,0 +1,92 @@
+package com.flightstats.hub.webhook;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.dao.ChannelService;
+import com.flightstats.hub.model.ChannelConfig;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.model.MinutePath;
+import com.flightstats.hub.model.TimeQuery;
+import com.flightstats.hub.util.TimeUtil;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class ChannelKeyTailerTest {
+
+    private final ChannelService channelService = mock(ChannelService.class);
+    private final NavigableSet<ContentKey> channelKeys = new TreeSet<>();
+    private final DateTime start = TimeUtil.stable();
+    private ChannelKeyTailer channelKeyTailer;
+
+    @Before
+    public void setUp() {
+        ChannelConfig channelConfig = mock(ChannelConfig.class);
+        when(channelConfig.isLive()).thenReturn(false);
+        when(channelService.getCachedChannelConfig("tailed")).thenReturn(channelConfig);
+        when(channelService.getLastUpdated("tailed", MinutePath.NONE)).thenReturn(new ContentKey(start.plusSeconds(3), "A"));
+        when(channelService.queryByTime(any(TimeQuery.class))).thenAnswer(invocation -> {
+            TimeQuery query = (TimeQuery) invocation.getArguments()[0];
+            DateTime end = query.getStartTime().plus(query.getUnit().getDuration());
+            return new TreeSet<>(channelKeys.subSet(new ContentKey(query.getStartTime(), ""), new ContentKey(end, "")));
+        });
+        channelKeyTailer = new ChannelKeyTailer(channelService);
+        for (int i = 0; i < 3; i++) {
+            channelKeys.add(new ContentKey(start.plusSeconds(i).plusMillis(100), "A"));
+            channelKeys.add(new ContentKey(start.plusSeconds(i).plusMillis(200), "B"));
+        }
+    }
+
+    @Test
+    public void testSharedTail() throws Exception {
+        ChannelKeyTailer.Tail tail = channelKeyTailer.subscribe("tailed", 60);
+        assertSame(tail, channelKeyTailer.subscribe("tailed", 60));
+        tail.tick();
+        verify(channelService, times(3)).queryByTime(any(TimeQuery.class));
+        assertEquals(start.plusSeconds(3), tail.getEnd());
+
+        assertEquals(new ArrayList<>(channelKeys), tail.get(start, start.plusSeconds(3), 0));
+        assertEquals(new ArrayList<>(channelKeys.headSet(new ContentKey(start.plusSeconds(1), ""))),
+                tail.get(start, start.plusSeconds(1), 0));
+        assertNull(tail.get(start.minusSeconds(1), start.plusSeconds(1), 0));
+        assertNull(tail.get(start, start.plusSeconds(4), 0));
+        tail.tick();
+        verify(channelService, times(3)).queryByTime(any(TimeQuery.class));
+
+        channelKeyTailer.unsubscribe(tail, 60);
+        assertSame(tail, channelKeyTailer.subscribe("tailed", 60));
+        channelKeyTailer.unsubscribe(tail, 60);
+        channelKeyTailer.unsubscribe(tail, 60);
+        assertNotSame(tail, channelKeyTailer.subscribe("tailed", 60));
+    }
+
+    @Test
+    public void testFailedQuery() throws Exception {
+        ChannelKeyTailer.Tail tail = channelKeyTailer.subscribe("tailed", 60);
+        doThrow(new RuntimeException("spoke is down")).when(channelService).queryByTime(any(TimeQuery.class));
+        tail.tick();
+        assertFalse(tail.contains(start));
+        assertNull(tail.get(start, start.plusSeconds(1), 0));
+    }
+
+    @Test
+    public void testNewKeyWakesTail() throws Exception {
+        HubProperties.setProperty("webhook.tailer.tickMillis", "60000");
+        try {
+            channelKeyTailer = new ChannelKeyTailer(channelService);
+        } finally {
+            HubProperties.setProperty("webhook.tailer.tickMillis", "1000");
+        }
+        ChannelKeyTailer.Tail tail = channelKeyTailer.subscribe("tailed", 60);
+        channelKeyTailer.newKey("Tailed", new ContentKey(tail.getEnd().minusSeconds(10), "A"));
+        verify(channelService, after(100).never()).queryByTime(any(TimeQuery.class));
+        channelKeyTailer.newKey("Tailed", new ContentKey(tail.getEnd(), "A"));
+        tail.await(start.plusSeconds(2), 3000);
+        assertEquals(start.plusSeconds(3), tail.getEnd());
+    }
+}
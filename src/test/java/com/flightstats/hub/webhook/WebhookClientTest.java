@@ -0,0 +1,51 @@
+package com.flightstats.hub.webhook;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.metrics.NoOpMetricsService;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WebhookClientTest {
+
+    @Test
+    public void testFullPoolRequeues() throws Exception {
+        HubProperties.setProperty("webhook.client.callbackThreads", "1");
+        HubProperties.setProperty("webhook.client.callbackQueue", "1");
+        WebhookClient webhookClient;
+        try {
+            webhookClient = new WebhookClient(new NoOpMetricsService());
+        } finally {
+            HubProperties.setProperty("webhook.client.callbackThreads", "16");
+            HubProperties.setProperty("webhook.client.callbackQueue", "8192");
+        }
+        CountDownLatch blocked = new CountDownLatch(1);
+        webhookClient.execute(() -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        List<String> threads = new CopyOnWriteArrayList<>();
+        CountDownLatch ran = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            webhookClient.execute(() -> {
+                threads.add(Thread.currentThread().getName());
+                ran.countDown();
+            });
+        }
+        assertEquals(0, threads.size());
+        blocked.countDown();
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        for (String thread : threads) {
+            assertTrue(thread, thread.startsWith("WebhookCallback-"));
+        }
+    }
+}
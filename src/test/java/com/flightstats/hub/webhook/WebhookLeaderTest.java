@@ -0,0 +1,206 @@
+package com.flightstats.hub.webhook;
+
+import com.flightstats.hub.cluster.CuratorLock;
+import com.flightstats.hub.cluster.LastContentPath;
+import com.flightstats.hub.cluster.Leadership;
+import com.flightstats.hub.cluster.ZooKeeperState;
+import com.flightstats.hub.dao.ChannelService;
+import com.flightstats.hub.metrics.MetricsService;
+import com.flightstats.hub.metrics.NoOpMetricsService;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.model.ContentPath;
+import com.flightstats.hub.util.TimeUtil;
+import com.google.common.base.Optional;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.util.Providers;
+import org.apache.curator.framework.CuratorFramework;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class WebhookLeaderTest {
+
+    private final Webhook webhook = Webhook.builder().name("leader")
+            .channelUrl("http://hub/channel/leader")
+            .callbackUrl("http://client/leader")
+            .parallelCalls(2)
+            .build().withDefaults();
+    private final WebhookScheduler webhookScheduler = mock(WebhookScheduler.class);
+    private final WebhookScheduler.Task task = mock(WebhookScheduler.Task.class);
+    private final WebhookService webhookService = mock(WebhookService.class);
+    private final ChannelService channelService = mock(ChannelService.class);
+    private final WebhookProgress webhookProgress = mock(WebhookProgress.class);
+    private final WebhookProgress.Journal journal = mock(WebhookProgress.Journal.class);
+    private final CuratorLock curatorLock = mock(CuratorLock.class);
+    private final WebhookStrategy strategy = mock(WebhookStrategy.class);
+    private final WebhookRetryer retryer = mock(WebhookRetryer.class);
+    private final AtomicBoolean hasLeadership = new AtomicBoolean();
+    private final List<CompletableFuture<Boolean>> calls = new CopyOnWriteArrayList<>();
+    private final SortedSet<ContentPath> inFlight = new TreeSet<>();
+    private final DateTime start = TimeUtil.now().minusMinutes(10);
+    private WebhookLeader webhookLeader;
+    private Runnable run;
+
+    @Before
+    public void setUp() throws Exception {
+        Leadership leadership = mock(Leadership.class);
+        when(leadership.hasLeadership()).thenAnswer(invocation -> hasLeadership.get());
+        doAnswer(invocation -> {
+            hasLeadership.set((Boolean) invocation.getArguments()[0]);
+            return null;
+        }).when(leadership).setLeadership(anyBoolean());
+        when(curatorLock.tryLock(anyLong(), any(TimeUnit.class))).thenAnswer(invocation -> {
+            hasLeadership.set(true);
+            return true;
+        });
+        when(curatorLock.getLeadership()).thenReturn(leadership);
+        doAnswer(invocation -> {
+            hasLeadership.set(false);
+            return null;
+        }).when(curatorLock).stopWorking();
+
+        ArgumentCaptor<Runnable> body = ArgumentCaptor.forClass(Runnable.class);
+        when(webhookScheduler.register(anyString(), body.capture())).thenReturn(task);
+        when(webhookService.get(webhook.getName())).thenReturn(Optional.of(webhook));
+        when(channelService.channelExists(webhook.getChannelName())).thenReturn(true);
+        when(webhookProgress.open(anyString(), any(ContentPath.class), any(ContentPath.class))).thenReturn(journal);
+        when(journal.getInFlight()).thenReturn(inFlight);
+        when(strategy.getStartingPath()).thenReturn(new ContentKey(start, "start"));
+        when(strategy.inProcess(any(ContentPath.class))).thenAnswer(invocation -> invocation.getArguments()[0]);
+        when(retryer.send(any(Webhook.class), any(ContentPath.class), any())).thenAnswer(invocation -> {
+            CompletableFuture<Boolean> call = new CompletableFuture<>();
+            calls.add(call);
+            return call;
+        });
+
+        webhookLeader = new WebhookLeader() {
+            @Override
+            CuratorLock createLock() {
+                return curatorLock;
+            }
+
+            @Override
+            WebhookRetryer createRetryer() {
+                return retryer;
+            }
+
+            @Override
+            WebhookStrategy createStrategy() {
+                return strategy;
+            }
+        };
+        Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(CuratorFramework.class).toProvider(Providers.of(mock(CuratorFramework.class)));
+                bind(ZooKeeperState.class).toProvider(Providers.of(mock(ZooKeeperState.class)));
+                bind(ChannelService.class).toProvider(Providers.of(channelService));
+                bind(WebhookService.class).toProvider(Providers.of(webhookService));
+                bind(MetricsService.class).to(NoOpMetricsService.class);
+                bind(LastContentPath.class).toProvider(Providers.of(mock(LastContentPath.class)));
+                bind(WebhookProgress.class).toProvider(Providers.of(webhookProgress));
+                bind(WebhookContentPathSet.class).toProvider(Providers.of(mock(WebhookContentPathSet.class)));
+                bind(WebhookError.class).toProvider(Providers.of(mock(WebhookError.class)));
+                bind(ChannelKeyTailer.class).toProvider(Providers.of(mock(ChannelKeyTailer.class)));
+                bind(WebhookScheduler.class).toProvider(Providers.of(webhookScheduler));
+            }
+        }).injectMembers(webhookLeader);
+
+        assertTrue(webhookLeader.tryLeadership(webhook));
+        run = body.getValue();
+    }
+
+    @Test
+    public void testStartSendAndStop() throws Exception {
+        when(strategy.next()).thenReturn(Optional.of(new ContentKey(start.plusSeconds(1), "1")),
+                Optional.of(new ContentKey(start.plusSeconds(2), "2")),
+                Optional.of(new ContentKey(start.plusSeconds(3), "3")));
+        run.run();
+        verify(strategy).start(webhook, new ContentKey(start, "start"), task);
+
+        run.run();
+        assertEquals(2, calls.size());
+        verify(strategy, times(2)).next();
+
+        Thread exit = new Thread(() -> webhookLeader.exit(false));
+        exit.start();
+        waitFor(() -> !hasLeadership.get());
+        run.run();
+        verify(strategy).close();
+        verify(retryer).stop();
+        verify(curatorLock, never()).unlock();
+        exit.join(100);
+        assertTrue(exit.isAlive());
+
+        calls.get(0).complete(true);
+        run.run();
+        verify(curatorLock, never()).unlock();
+        calls.get(1).complete(true);
+        run.run();
+        verify(curatorLock).unlock();
+        verify(webhookProgress).close(journal);
+        verify(task).cancel();
+        exit.join(5000);
+        assertFalse(exit.isAlive());
+        assertEquals(2, calls.size());
+    }
+
+    @Test
+    public void testNextExceptionReleasesCall() throws Exception {
+        when(strategy.next()).thenThrow(new RuntimeException("query failed"));
+        run.run();
+        run.run();
+        verify(strategy).close();
+        verify(curatorLock).unlock();
+        verify(task).cancel();
+    }
+
+    @Test
+    public void testReplaysPerRun() throws Exception {
+        for (int i = 1; i <= 12; i++) {
+            inFlight.add(new ContentKey(start.minusSeconds(i), "" + i));
+        }
+        Webhook wide = Webhook.builder().name(webhook.getName())
+                .channelUrl(webhook.getChannelUrl())
+                .callbackUrl(webhook.getCallbackUrl())
+                .parallelCalls(20)
+                .build().withDefaults();
+        when(webhookService.get(webhook.getName())).thenReturn(Optional.of(wide));
+        when(strategy.next()).thenReturn(Optional.absent());
+        run.run();
+        reset(task);
+
+        run.run();
+        verify(strategy, times(10)).inProcess(any(ContentPath.class));
+        verify(strategy, never()).next();
+        verify(task).wake();
+        run.run();
+        verify(strategy, times(12)).inProcess(any(ContentPath.class));
+        verify(strategy).next();
+        assertEquals(12, calls.size());
+    }
+
+    private void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long stop = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < stop) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
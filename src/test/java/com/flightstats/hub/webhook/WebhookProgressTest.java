@@ -0,0 +1,139 @@
+package com.flightstats.hub.webhook;
+
+import com.flightstats.hub.cluster.LastContentPath;
+import com.flightstats.hub.metrics.NoOpMetricsService;
+import com.flightstats.hub.model.ContentKey;
+import com.flightstats.hub.model.ContentPath;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.flightstats.hub.webhook.WebhookLeader.WEBHOOK_LAST_COMPLETED;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class WebhookProgressTest {
+
+    private final LastContentPath lastContentPath = mock(LastContentPath.class);
+    private final WebhookContentPathSet webhookInProcess = mock(WebhookContentPathSet.class);
+    private final DateTime start = new DateTime(2016, 3, 1, 12, 0);
+    private final ContentKey lastCompleted = key(0);
+    private WebhookProgress webhookProgress;
+
+    @Before
+    public void setUp() {
+        when(webhookInProcess.add(anyString(), any(ContentPath.class))).thenReturn(true);
+        webhookProgress = new WebhookProgress(lastContentPath, webhookInProcess, new NoOpMetricsService());
+    }
+
+    private ContentKey key(int seconds) {
+        return new ContentKey(start.plusSeconds(seconds), "A");
+    }
+
+    @Test
+    public void testCoalescedCheckpoint() {
+        WebhookProgress.Journal journal = webhookProgress.open("coalesced", lastCompleted, lastCompleted);
+        for (int i = 1; i <= 10; i++) {
+            journal.start(key(i));
+        }
+        for (int i = 1; i <= 9; i++) {
+            journal.complete(key(i), true);
+        }
+        verifyZeroInteractions(lastContentPath);
+        webhookProgress.flush();
+
+        InOrder inOrder = inOrder(webhookInProcess, lastContentPath);
+        inOrder.verify(webhookInProcess).add("coalesced", key(10));
+        inOrder.verify(lastContentPath).updateIncrease(key(9), "coalesced", WEBHOOK_LAST_COMPLETED);
+        verify(webhookInProcess, times(1)).add(anyString(), any(ContentPath.class));
+        verify(webhookInProcess, never()).remove(anyString(), any(ContentPath.class));
+
+        journal.complete(key(10), true);
+        webhookProgress.close(journal);
+        verify(lastContentPath).updateIncrease(key(10), "coalesced", WEBHOOK_LAST_COMPLETED);
+        verify(webhookInProcess).remove("coalesced", key(10));
+        webhookProgress.flush();
+        verifyNoMoreInteractions(lastContentPath);
+    }
+
+    @Test
+    public void testRecovery() {
+        when(webhookInProcess.getSet("recovered", lastCompleted)).thenReturn(Collections.singleton(key(-1)));
+        WebhookProgress.Journal journal = webhookProgress.open("recovered", lastCompleted, lastCompleted);
+        assertEquals(Collections.singleton(key(-1)), journal.getInFlight());
+        webhookProgress.flush();
+        verifyZeroInteractions(lastContentPath);
+
+        journal.start(key(1));
+        when(webhookInProcess.add("recovered", key(1))).thenReturn(false);
+        journal.complete(key(2), true);
+        webhookProgress.flush();
+        verify(lastContentPath, never()).updateIncrease(any(ContentPath.class), anyString(), anyString());
+
+        when(webhookInProcess.add("recovered", key(1))).thenReturn(true);
+        journal.complete(key(-1), false);
+        webhookProgress.flush();
+        verify(lastContentPath).updateIncrease(key(2), "recovered", WEBHOOK_LAST_COMPLETED);
+        verify(webhookInProcess).remove("recovered", key(-1));
+        assertEquals(key(2), journal.getLastCompleted());
+    }
+
+    @Test
+    public void testDiscard() {
+        WebhookProgress.Journal journal = webhookProgress.open("discarded", lastCompleted, lastCompleted);
+        journal.start(key(1));
+        journal.complete(key(1), true);
+        webhookProgress.discard(journal);
+        journal.flush();
+        verifyZeroInteractions(lastContentPath);
+        assertNull(webhookProgress.get("discarded"));
+    }
+
+    @Test
+    public void testDiscardDuringFlush() throws Exception {
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch adding = new CountDownLatch(1);
+        CountDownLatch added = new CountDownLatch(1);
+        when(webhookInProcess.add("discardedDuringFlush", key(2))).thenAnswer(invocation -> {
+            adding.countDown();
+            added.await(5, TimeUnit.SECONDS);
+            events.add("add");
+            return true;
+        });
+        doAnswer(invocation -> events.add("lastCompleted"))
+                .when(lastContentPath).updateIncrease(key(1), "discardedDuringFlush", WEBHOOK_LAST_COMPLETED);
+        WebhookProgress.Journal journal = webhookProgress.open("discardedDuringFlush", lastCompleted, lastCompleted);
+        journal.start(key(1));
+        journal.start(key(2));
+        journal.complete(key(1), true);
+
+        Thread flush = new Thread(webhookProgress::flush);
+        flush.start();
+        assertTrue(adding.await(5, TimeUnit.SECONDS));
+        Thread discard = new Thread(() -> {
+            webhookProgress.discard(journal);
+            events.add("discarded");
+        });
+        discard.start();
+        discard.join(200);
+        assertTrue(discard.isAlive());
+        added.countDown();
+        discard.join(5000);
+        flush.join(5000);
+
+        assertEquals(Arrays.asList("add", "lastCompleted", "discarded"), events);
+        journal.complete(key(2), true);
+        journal.flush();
+        verify(lastContentPath, never()).updateIncrease(key(2), "discardedDuringFlush", WEBHOOK_LAST_COMPLETED);
+    }
+}
@@ -1,57 +1,120 @@
 package com.flightstats.hub.webhook;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.flightstats.hub.model.ContentKey;
+import org.jboss.netty.util.Timeout;
+import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Predicate;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertTrue;
-import static org.mockito.Mockito.mock;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
 
 public class WebhookRetryerTest {
 
     private List<Predicate<DeliveryAttempt>> giveUpIfs = new ArrayList<>();
     private List<Predicate<DeliveryAttempt>> tryLaterIfs = new ArrayList<>();
-    private int connectTimeoutSeconds = 10;
     private int readTimeoutSeconds = 10;
     private WebhookError webhookError = mock(WebhookError.class);
+    private WebhookClient webhookClient = mock(WebhookClient.class);
+    private Webhook webhook = Webhook.builder().name("retried").callbackUrl("http://localhost:9999/callback").maxWaitMinutes(1).build();
+
+    @Before
+    public void setUp() {
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArguments()[0]).run();
+            return null;
+        }).when(webhookClient).execute(any(Runnable.class));
+    }
 
     @Test
     public void testShouldGiveUpIf() {
         giveUpIfs.add(attempt -> true);
-        WebhookRetryer retryer = new WebhookRetryer(giveUpIfs, tryLaterIfs, connectTimeoutSeconds, readTimeoutSeconds, webhookError);
+        WebhookRetryer retryer = new WebhookRetryer(giveUpIfs, tryLaterIfs, readTimeoutSeconds, webhookError, webhookClient);
         assertTrue(retryer.shouldGiveUp(DeliveryAttempt.builder().build()));
     }
 
     @Test
     public void testShouldTryLaterIf() {
         tryLaterIfs.add(attempt -> true);
-        WebhookRetryer retryer = new WebhookRetryer(giveUpIfs, tryLaterIfs, connectTimeoutSeconds, readTimeoutSeconds, webhookError);
+        WebhookRetryer retryer = new WebhookRetryer(giveUpIfs, tryLaterIfs, readTimeoutSeconds, webhookError, webhookClient);
         assertTrue(retryer.shouldTryLater(DeliveryAttempt.builder().build()));
     }
 
     @Test
     public void testDetermineResultFromStatusCode() {
-        WebhookRetryer retryer = new WebhookRetryer(giveUpIfs, tryLaterIfs, connectTimeoutSeconds, readTimeoutSeconds, webhookError);
+        WebhookRetryer retryer = new WebhookRetryer(giveUpIfs, tryLaterIfs, readTimeoutSeconds, webhookError, webhookClient);
         assertEquals("200 OK", retryer.determineResult(DeliveryAttempt.builder().statusCode(200).build()));
         assertEquals("400 Bad Request", retryer.determineResult(DeliveryAttempt.builder().statusCode(400).build()));
     }
 
     @Test
     public void testDetermineResultFromException() {
-        WebhookRetryer retryer = new WebhookRetryer(giveUpIfs, tryLaterIfs, connectTimeoutSeconds, readTimeoutSeconds, webhookError);
+        WebhookRetryer retryer = new WebhookRetryer(giveUpIfs, tryLaterIfs, readTimeoutSeconds, webhookError, webhookClient);
         assertEquals("something", retryer.determineResult(DeliveryAttempt.builder().exception(new NullPointerException("something")).build()));
     }
 
     @Test
     public void calculateSleepTimeMS() {
-        WebhookRetryer retryer = new WebhookRetryer(giveUpIfs, tryLaterIfs, connectTimeoutSeconds, readTimeoutSeconds, webhookError);
+        WebhookRetryer retryer = new WebhookRetryer(giveUpIfs, tryLaterIfs, readTimeoutSeconds, webhookError, webhookClient);
         assertEquals(2000, retryer.calculateSleepTimeMS(DeliveryAttempt.builder().number(1).build(), 1000, 10000));
         assertEquals(4000, retryer.calculateSleepTimeMS(DeliveryAttempt.builder().number(2).build(), 1000, 10000));
         assertEquals(8000, retryer.calculateSleepTimeMS(DeliveryAttempt.builder().number(3).build(), 1000, 10000));
         assertEquals(10000, retryer.calculateSleepTimeMS(DeliveryAttempt.builder().number(4).build(), 1000, 10000));
     }
 
+    @Test
+    public void testRetriesUntilDelivered() throws Exception {
+        when(webhookClient.post(anyString(), anyString(), anyInt()))
+                .thenReturn(CompletableFuture.completedFuture(500))
+                .thenReturn(CompletableFuture.completedFuture(200));
+        when(webhookClient.schedule(any(Runnable.class), anyLong())).thenAnswer(invocation -> {
+            ((Runnable) invocation.getArguments()[0]).run();
+            return mock(Timeout.class);
+        });
+        WebhookRetryer retryer = new WebhookRetryer(giveUpIfs, tryLaterIfs, readTimeoutSeconds, webhookError, webhookClient);
+        assertTrue(retryer.send(webhook, new ContentKey(), new ObjectMapper().createObjectNode()).get());
+        verify(webhookClient).schedule(any(Runnable.class), eq(2000L));
+        verify(webhookClient, times(2)).post(eq(webhook.getCallbackUrl()), anyString(), eq(readTimeoutSeconds));
+        verify(webhookClient, times(2)).execute(any(Runnable.class));
+        verify(webhookError).add(eq("retried"), anyString());
+    }
+
+    @Test
+    public void testGiveUpAndTryLater() throws Exception {
+        giveUpIfs.add(attempt -> attempt.getNumber() > 1);
+        tryLaterIfs.add(attempt -> attempt.getWebhook().isPaused());
+        when(webhookClient.post(anyString(), anyString(), anyInt())).thenReturn(CompletableFuture.completedFuture(503));
+        when(webhookClient.schedule(any(Runnable.class), anyLong())).thenAnswer(invocation -> {
+            ((Runnable) invocation.getArguments()[0]).run();
+            return mock(Timeout.class);
+        });
+        WebhookRetryer retryer = new WebhookRetryer(giveUpIfs, tryLaterIfs, readTimeoutSeconds, webhookError, webhookClient);
+        assertTrue(retryer.send(webhook, new ContentKey(), new ObjectMapper().createObjectNode()).get());
+        verify(webhookError).publishToErrorChannel(any(DeliveryAttempt.class));
+
+        Webhook paused = webhook.withPaused(true);
+        assertFalse(retryer.send(paused, new ContentKey(), new ObjectMapper().createObjectNode()).get());
+        verify(webhookClient, times(1)).post(anyString(), anyString(), anyInt());
+    }
+
+    @Test
+    public void testStopEndsRetryWait() throws Exception {
+        Timeout timeout = mock(Timeout.class);
+        when(webhookClient.post(anyString(), anyString(), anyInt())).thenReturn(CompletableFuture.completedFuture(500));
+        when(webhookClient.schedule(any(Runnable.class), anyLong())).thenReturn(timeout);
+        when(webhookClient.cancel(timeout)).thenReturn(true);
+        WebhookRetryer retryer = new WebhookRetryer(giveUpIfs, tryLaterIfs, readTimeoutSeconds, webhookError, webhookClient);
+        CompletableFuture<Boolean> done = retryer.send(webhook, new ContentKey(), new ObjectMapper().createObjectNode());
+        assertFalse(done.isDone());
+        retryer.stop();
+        assertFalse(done.get());
+        verify(webhookClient).cancel(timeout);
+    }
+
 }
@@ -0,0 +1,90 @@
+package com.flightstats.hub.webhook;
+
+import com.flightstats.hub.app.HubProperties;
+import com.flightstats.hub.metrics.NoOpMetricsService;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WebhookSchedulerTest {
+
+    private WebhookScheduler webhookScheduler;
+
+    @Before
+    public void setUp() {
+        HubProperties.setProperty("webhook.scheduler.threads", "1");
+        try {
+            webhookScheduler = new WebhookScheduler(new NoOpMetricsService());
+        } finally {
+            HubProperties.setProperty("webhook.scheduler.threads", "16");
+        }
+    }
+
+    @Test
+    public void testTasksTakeTurns() throws Exception {
+        List<String> runs = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(6);
+        CountDownLatch blocked = new CountDownLatch(1);
+        WebhookScheduler.Task blocking = webhookScheduler.register("blocking", () -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        blocking.wake();
+        WebhookScheduler.Task first = register("first", runs, latch);
+        WebhookScheduler.Task second = register("second", runs, latch);
+        first.wake();
+        second.wake();
+        first.wake();
+        blocked.countDown();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("first", "second", "first", "second", "first", "second"), runs);
+    }
+
+    /**
+     * Each run wakes the task again, up to three runs.
+     */
+    private WebhookScheduler.Task register(String name, List<String> runs, CountDownLatch latch) {
+        AtomicInteger count = new AtomicInteger();
+        WebhookScheduler.Task[] task = new WebhookScheduler.Task[1];
+        task[0] = webhookScheduler.register(name, () -> {
+            runs.add(name);
+            latch.countDown();
+            if (count.incrementAndGet() < 3) {
+                task[0].wake();
+            }
+        });
+        return task[0];
+    }
+
+    @Test
+    public void testWakeAfter() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        WebhookScheduler.Task task = webhookScheduler.register("later", () -> {
+            runs.incrementAndGet();
+            latch.countDown();
+        });
+        long start = System.currentTimeMillis();
+        task.wakeAfter(200);
+        task.wakeAfter(1000);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        task.cancel();
+        task.wake();
+        Thread.sleep(1200);
+        assertEquals(1, runs.get());
+    }
+}